@@ -0,0 +1,112 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Governor of the rendering quality, watching the backlog of events waiting
+ * for being drawn and the time taken by the frames.
+ *
+ * The quality steps down by one level as soon as a frame falls behind, and
+ * steps up by one level only after a run of frames with time to spare, so
+ * that it does not oscillate. Only drawing is affected, never recording.
+ *
+ * @author Wincent Balin
+ */
+public class AdaptiveQuality
+{
+    /**
+     * Best and cheapest quality level, the QUALITY constants of StrokeRenderer lie in between.
+     */
+    public static final int FULL = 0;
+    public static final int CHEAPEST = 3;
+
+    /**
+     * Backlog and frame time above which the quality steps down.
+     */
+    public static final int MAX_BACKLOG = 4;
+    public static final long FRAME_BUDGET_NANOS = 16 * 1000000L;
+
+    // Frames with time to spare before the quality steps up
+    private static final int CALM_FRAMES = 30;
+
+    private int quality = FULL;
+    private int calmFrames = 0;
+
+    private int lastBacklog = 0;
+    private long lastFrameNanos = 0;
+    private int changes = 0;
+
+    /**
+     * Return to full quality and forget the frames seen.
+     */
+    public void reset()
+    {
+        quality = FULL;
+        calmFrames = 0;
+        lastBacklog = 0;
+        lastFrameNanos = 0;
+    }
+
+    /**
+     * Note a frame and adapt the quality.
+     *
+     * @param backlog Amount of events drawn in the frame
+     * @param frameNanos Time taken by the frame
+     * @return True if the quality has changed
+     */
+    public boolean update(int backlog, long frameNanos)
+    {
+        lastBacklog = backlog;
+        lastFrameNanos = frameNanos;
+
+        final int previous = quality;
+
+        if(backlog > MAX_BACKLOG || frameNanos > FRAME_BUDGET_NANOS)
+        {
+            calmFrames = 0;
+
+            if(quality < CHEAPEST)
+                quality++;
+        }
+        else if(backlog <= 1 && frameNanos < FRAME_BUDGET_NANOS / 2)
+        {
+            if(++calmFrames >= CALM_FRAMES && quality > FULL)
+            {
+                quality--;
+                calmFrames = 0;
+            }
+        }
+        else
+        {
+            calmFrames = 0;
+        }
+
+        if(quality != previous)
+            changes++;
+
+        return quality != previous;
+    }
+
+    public int getQuality()
+    {
+        return quality;
+    }
+
+    public int getLastBacklog()
+    {
+        return lastBacklog;
+    }
+
+    public long getLastFrameNanos()
+    {
+        return lastFrameNanos;
+    }
+
+    /**
+     * Give the amount of changes of the quality so far.
+     *
+     * @return Amount of changes
+     */
+    public int getChanges()
+    {
+        return changes;
+    }
+}
@@ -0,0 +1,650 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.BitSet;
+
+/**
+ * Filter dropping uninteresting touches before they are recorded.
+ *
+ * Events pass only with an action of the action mask; events ending a stroke
+ * of which something has been passed always pass, so that no stroke is left open.
+ * A pointer is kept in an event if its identifier is in the pointer set and one of
+ * its samples in the event lies inside one of the regions; rows of moves without
+ * a sample inside are removed. Other pointers are removed from the events, and events
+ * left without pointers are dropped; pointer events of a removed pointer pass as moves.
+ * A stroke entering the regions after it began starts with its first row inside,
+ * passed as a DOWN, or as a POINTER_DOWN if other strokes are passed meanwhile;
+ * one stroke enters per move, others wait for the next one.
+ * Rows of moves are kept only if a pointer moved at least the minimum distance
+ * since its last kept sample. Image load events always pass.
+ *
+ * The settings are compiled into primitive arrays, so that every sample is checked
+ * without allocating. Counters of accepted and rejected events and samples show how
+ * much of the session is kept.
+ *
+ * @author Wincent Balin
+ */
+public class CaptureFilter extends SessionFilter
+{
+    /**
+     * Mask of all actions.
+     */
+    public static final int ALL_ACTIONS = (1 << (SessionFormat.ACTION_UNKNOWN + 1)) - 1;
+
+    private static final int MAX_POINTERS = 256;
+
+    // Compiled settings; regions as left, top, right and bottom each
+    private int actionMask = ALL_ACTIONS;
+    private long[] pointerMask = null;
+    private float[] regions = null;
+    private float minDistanceSquared = 0.0f;
+
+    // Last kept position of every pointer, for the minimum distance
+    private final float[] lastX = new float[MAX_POINTERS];
+    private final float[] lastY = new float[MAX_POINTERS];
+    private final boolean[] placed = new boolean[MAX_POINTERS];
+
+    // Strokes begun in the captured session and not ended yet, by pointer identifier
+    private final boolean[] open = new boolean[MAX_POINTERS];
+
+    // Counters
+    private long eventsIn = 0;
+    private long eventsOut = 0;
+    private long samplesIn = 0;
+    private long samplesOut = 0;
+    private long filterNanos = 0;
+
+    // Outcome of the last event
+    private EventBuffer lastEvent = null;
+    private boolean lastAccepted = false;
+    private boolean lastChanged = false;
+
+    /**
+     * Create filter passing everything until restricted.
+     *
+     * @param next Handler to receive the captured events
+     */
+    public CaptureFilter(SessionHandler next)
+    {
+        super(next);
+    }
+
+    /**
+     * Create filter continuing the settings and counters of another one,
+     * e.g. when the handlers behind it are replaced.
+     *
+     * @param next Handler to receive the captured events
+     * @param previous Filter to continue
+     */
+    public CaptureFilter(SessionHandler next, CaptureFilter previous)
+    {
+        super(next);
+        actionMask = previous.actionMask;
+        pointerMask = previous.pointerMask;
+        regions = previous.regions;
+        minDistanceSquared = previous.minDistanceSquared;
+
+        System.arraycopy(previous.lastX, 0, lastX, 0, MAX_POINTERS);
+        System.arraycopy(previous.lastY, 0, lastY, 0, MAX_POINTERS);
+        System.arraycopy(previous.placed, 0, placed, 0, MAX_POINTERS);
+        System.arraycopy(previous.open, 0, open, 0, MAX_POINTERS);
+
+        eventsIn = previous.eventsIn;
+        eventsOut = previous.eventsOut;
+        samplesIn = previous.samplesIn;
+        samplesOut = previous.samplesOut;
+        filterNanos = previous.filterNanos;
+    }
+
+    /**
+     * Restrict the capture to some actions.
+     *
+     * @param actionMask Bit of every action to pass, e.g. ALL_ACTIONS
+     */
+    public void setActionMask(int actionMask)
+    {
+        this.actionMask = actionMask;
+    }
+
+    /**
+     * Restrict the capture to a set of pointers.
+     *
+     * @param pointerIds Identifiers of the pointers to pass, or null for all
+     */
+    public void setPointerIds(BitSet pointerIds)
+    {
+        if(pointerIds == null)
+        {
+            pointerMask = null;
+            return;
+        }
+
+        long[] mask = new long[MAX_POINTERS / 64];
+
+        for(int id = pointerIds.nextSetBit(0); id >= 0 && id < MAX_POINTERS; id = pointerIds.nextSetBit(id + 1))
+            mask[id >>> 6] |= 1L << id;
+
+        pointerMask = mask;
+    }
+
+    /**
+     * Restrict the capture to regions of the screen.
+     *
+     * @param regions Left, top, right and bottom border of every region, or null for the whole screen
+     */
+    public void setRegions(float[] regions)
+    {
+        if(regions != null && regions.length % 4 != 0)
+            throw new IllegalArgumentException("Regions need four borders each");
+
+        this.regions = regions != null && regions.length > 0 ? regions.clone() : null;
+    }
+
+    /**
+     * Set the distance a pointer has to move before another row of a move is kept.
+     *
+     * @param minDistance Distance in pixels, or 0 to keep all rows
+     */
+    public void setMinDistance(float minDistance)
+    {
+        minDistanceSquared = minDistance > 0.0f ? minDistance * minDistance : 0.0f;
+    }
+
+    /**
+     * Answer whether the filter restricts anything.
+     *
+     * @return True if events or samples may be dropped
+     */
+    public boolean isRestricting()
+    {
+        return actionMask != ALL_ACTIONS || pointerMask != null || regions != null || minDistanceSquared > 0.0f;
+    }
+
+    /**
+     * Parse a list of action names, like "DOWN,POINTER_DOWN".
+     *
+     * @param list Names of actions as written in the session, separated by commas
+     * @return Mask of the actions
+     * @throws NumberFormatException If a name is unknown
+     */
+    public static int parseActions(String list)
+    {
+        int mask = 0;
+
+        for(String item : list.split(","))
+        {
+            final String name = item.trim().toUpperCase();
+            final int action = SessionFormat.actionByName(name);
+
+            if(action == SessionFormat.ACTION_UNKNOWN && !name.equals(SessionFormat.ACTION_NAMES[SessionFormat.ACTION_UNKNOWN]))
+                throw new NumberFormatException("Unknown action " + item);
+
+            mask |= 1 << action;
+        }
+
+        return mask;
+    }
+
+    /**
+     * Parse a list of regions, like "0,400,480,800;0,0,100,100".
+     *
+     * @param list Left, top, right and bottom border of every region, regions separated by semicolons
+     * @return Borders of the regions
+     * @throws NumberFormatException If the list is malformed
+     */
+    public static float[] parseRegions(String list)
+    {
+        final String[] items = list.split(";");
+        float[] borders = new float[items.length * 4];
+
+        for(int r = 0; r < items.length; r++)
+        {
+            final String[] values = items[r].split(",");
+
+            if(values.length != 4)
+                throw new NumberFormatException("Wrong region " + items[r]);
+
+            for(int b = 0; b < 4; b++)
+                borders[r * 4 + b] = Float.parseFloat(values[b].trim());
+
+            if(borders[r * 4] > borders[r * 4 + 2] || borders[r * 4 + 1] > borders[r * 4 + 3])
+                throw new NumberFormatException("Wrong region " + items[r]);
+        }
+
+        return borders;
+    }
+
+    @Override
+    protected boolean filter(EventBuffer event)
+    {
+        final long start = System.nanoTime();
+        final int samples = event.getSampleCount();
+
+        eventsIn++;
+        samplesIn += samples;
+
+        lastEvent = event;
+        lastAccepted = accept(event);
+        lastChanged = event.getSampleCount() != samples;
+
+        if(lastAccepted)
+        {
+            eventsOut++;
+            samplesOut += event.getSampleCount();
+        }
+
+        filterNanos += System.nanoTime() - start;
+
+        return lastAccepted;
+    }
+
+    private boolean accept(EventBuffer event)
+    {
+        final int action = event.getAction();
+        final boolean pointerAction = action == SessionFormat.ACTION_POINTER_DOWN || action == SessionFormat.ACTION_POINTER_UP;
+        final int current = event.rowStart(event.getHistorySize());
+        final int actionId = pointerAction && event.getActionIndex() < event.getPointerCount() ?
+                pointerIdAt(event, current + event.getActionIndex()) : -1;
+
+        // A DOWN begins all strokes anew, even if an UP is missing
+        if(action == SessionFormat.ACTION_DOWN)
+            closeStrokes();
+
+        final boolean accepted = pass(event, action, pointerAction);
+
+        if(accepted)
+        {
+            final int pointers = event.getSampleCount() > 0 ? event.getPointerCount() : 0;
+
+            for(int p = 0; p < pointers; p++)
+                open[pointerIdAt(event, event.rowStart(event.getHistorySize()) + p)] = true;
+        }
+
+        // Strokes ending here begin anew with their next sample passed
+        if(action == SessionFormat.ACTION_UP || action == SessionFormat.ACTION_CANCEL)
+            closeStrokes();
+        else if(action == SessionFormat.ACTION_POINTER_UP && actionId >= 0)
+            open[actionId] = false;
+
+        return accepted;
+    }
+
+    private boolean pass(EventBuffer event, int action, boolean pointerAction)
+    {
+        if((actionMask & (1 << Math.min(action, SessionFormat.ACTION_UNKNOWN))) == 0 && !endsOpenStroke(event, action))
+            return false;
+
+        if(event.getSampleCount() == 0)
+            return true;
+
+        if(pointerMask != null || regions != null)
+        {
+            boolean actionRemoved = false;
+
+            for(int p = event.getPointerCount() - 1; p >= 0; p--)
+            {
+                if(isSelected(event, action, p))
+                    continue;
+
+                if(pointerAction && p == event.getActionIndex())
+                    actionRemoved = true;
+
+                event.removePointer(p);
+            }
+
+            if(event.getPointerCount() == 0)
+                return false;
+
+            if(actionRemoved)
+                event.setAction(SessionFormat.ACTION_MOVE, 0);
+
+            // Without passing the beginnings of strokes, strokes are passed from anywhere
+            final boolean beginnings = (actionMask & (1 << SessionFormat.ACTION_DOWN)) != 0 &&
+                    (actionMask & (1 << SessionFormat.ACTION_POINTER_DOWN)) != 0;
+
+            if(regions != null && beginnings && !removeClosed(event, action == SessionFormat.ACTION_MOVE))
+                return false;
+
+            if(regions != null && event.getAction() == SessionFormat.ACTION_MOVE)
+            {
+                removeRowsOutside(event);
+
+                if(beginnings)
+                    beginEntering(event);
+            }
+        }
+
+        if(minDistanceSquared > 0.0f)
+            return thin(event);
+
+        return true;
+    }
+
+    /**
+     * Answer whether an event ends an open stroke.
+     */
+    private boolean endsOpenStroke(EventBuffer event, int action)
+    {
+        if(event.getSampleCount() == 0)
+            return false;
+
+        final int current = event.rowStart(event.getHistorySize());
+
+        for(int p = 0; p < event.getPointerCount(); p++)
+        {
+            if(ends(event, action, p) && open[pointerIdAt(event, current + p)])
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Answer whether the stroke of a pointer ends with an event.
+     */
+    private static boolean ends(EventBuffer event, int action, int p)
+    {
+        return action == SessionFormat.ACTION_UP || action == SessionFormat.ACTION_CANCEL ||
+                (action == SessionFormat.ACTION_POINTER_UP && p == event.getActionIndex());
+    }
+
+    private void closeStrokes()
+    {
+        for(int id = 0; id < MAX_POINTERS; id++)
+            open[id] = false;
+    }
+
+    private static int pointerIdAt(EventBuffer event, int sample)
+    {
+        return event.getPointerId(sample) & (MAX_POINTERS - 1);
+    }
+
+    /**
+     * Answer whether to keep a pointer in an event: an open stroke at its end, or any sample inside.
+     */
+    private boolean isSelected(EventBuffer event, int action, int p)
+    {
+        final int id = event.getPointerId(event.rowStart(event.getHistorySize()) + p);
+
+        if(pointerMask != null && (id < 0 || id >= MAX_POINTERS || (pointerMask[id >>> 6] & (1L << id)) == 0))
+            return false;
+
+        if(ends(event, action, p))
+            return open[id & (MAX_POINTERS - 1)];
+
+        if(regions == null)
+            return true;
+
+        for(int r = 0; r <= event.getHistorySize(); r++)
+        {
+            final int sample = event.rowStart(r) + p;
+
+            if(isInside(event.getX(sample), event.getY(sample)))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Remove the rows of a move without a sample inside; at least one row has one.
+     */
+    private void removeRowsOutside(EventBuffer event)
+    {
+        int row = 0;
+
+        while(row <= event.getHistorySize())
+        {
+            if(isRowInside(event, event.rowStart(row)))
+                row++;
+            else if(event.getHistorySize() > 0)
+                event.removeRow(row);
+            else
+                return;
+        }
+    }
+
+    private boolean isRowInside(EventBuffer event, int rowStart)
+    {
+        for(int p = 0; p < event.getPointerCount(); p++)
+        {
+            if(isInside(event.getX(rowStart + p), event.getY(rowStart + p)))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Remove the pointers of strokes neither open nor beginning, except one entering in a move.
+     *
+     * @return True if pointers are left
+     */
+    private boolean removeClosed(EventBuffer event, boolean move)
+    {
+        boolean entering = move && event.getAction() == SessionFormat.ACTION_MOVE;
+        int p = 0;
+
+        while(p < event.getPointerCount())
+        {
+            final int id = pointerIdAt(event, event.rowStart(event.getHistorySize()) + p);
+            final boolean begins = event.getAction() == SessionFormat.ACTION_DOWN ||
+                    (event.getAction() == SessionFormat.ACTION_POINTER_DOWN && p == event.getActionIndex());
+
+            if(open[id] || begins)
+            {
+                p++;
+            }
+            else if(entering)
+            {
+                entering = false;
+                p++;
+            }
+            else
+            {
+                event.removePointer(p);
+            }
+        }
+
+        return event.getPointerCount() > 0;
+    }
+
+    /**
+     * Let a move begin the stroke of a pointer entering the regions, with its first row inside.
+     */
+    private void beginEntering(EventBuffer event)
+    {
+        int entering = -1;
+        boolean others = false;
+
+        for(int id = 0; id < MAX_POINTERS && !others; id++)
+            others = open[id];
+
+        for(int p = 0; p < event.getPointerCount() && entering < 0; p++)
+        {
+            if(!open[pointerIdAt(event, event.rowStart(event.getHistorySize()) + p)])
+                entering = p;
+        }
+
+        if(entering < 0)
+            return;
+
+        while(event.getHistorySize() > 0 && !isInside(event.getX(entering), event.getY(entering)))
+            event.removeRow(0);
+
+        if(others || event.getPointerCount() > 1)
+            event.setAction(SessionFormat.ACTION_POINTER_DOWN, entering);
+        else
+            event.setAction(SessionFormat.ACTION_DOWN, 0);
+    }
+
+    private boolean isInside(float x, float y)
+    {
+        for(int b = 0; b < regions.length; b += 4)
+        {
+            if(x >= regions[b] && y >= regions[b + 1] && x <= regions[b + 2] && y <= regions[b + 3])
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Keep the rows of a move in which a pointer moved far enough, all other events completely.
+     */
+    private boolean thin(EventBuffer event)
+    {
+        final int pointerCount = event.getPointerCount();
+
+        if(event.getAction() != SessionFormat.ACTION_MOVE)
+        {
+            // Positions start anew with the current row
+            final int current = event.rowStart(event.getHistorySize());
+
+            for(int p = 0; p < pointerCount; p++)
+                place(event, current + p);
+
+            return true;
+        }
+
+        int row = 0;
+
+        while(row <= event.getHistorySize())
+        {
+            if(hasMoved(event, event.rowStart(row)))
+            {
+                for(int p = 0; p < pointerCount; p++)
+                    place(event, event.rowStart(row) + p);
+
+                row++;
+            }
+            else if(event.getHistorySize() > 0)
+            {
+                event.removeRow(row);
+            }
+            else
+            {
+                // Last row has not moved either
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean hasMoved(EventBuffer event, int rowStart)
+    {
+        for(int p = 0; p < event.getPointerCount(); p++)
+        {
+            final int sample = rowStart + p;
+            final int id = event.getPointerId(sample) & (MAX_POINTERS - 1);
+
+            if(!placed[id])
+                return true;
+
+            final float dx = event.getX(sample) - lastX[id];
+            final float dy = event.getY(sample) - lastY[id];
+
+            if(dx * dx + dy * dy >= minDistanceSquared)
+                return true;
+        }
+
+        return false;
+    }
+
+    private void place(EventBuffer event, int sample)
+    {
+        final int id = event.getPointerId(sample) & (MAX_POINTERS - 1);
+
+        lastX[id] = event.getX(sample);
+        lastY[id] = event.getY(sample);
+        placed[id] = true;
+    }
+
+    /**
+     * Answer whether the last event was passed on.
+     *
+     * @return True if the event was recorded
+     */
+    public boolean wasAccepted()
+    {
+        return lastAccepted;
+    }
+
+    /**
+     * Answer whether samples of the last event passed on were removed.
+     *
+     * @return True if the recorded event differs from the one received
+     */
+    public boolean wasChanged()
+    {
+        return lastChanged;
+    }
+
+    /**
+     * Copy the last event as it was passed on.
+     *
+     * @return New buffer with the event
+     */
+    public EventBuffer copyEvent()
+    {
+        EventBuffer copy = new EventBuffer();
+        copy.begin(lastEvent.getAction(), lastEvent.getActionIndex(), lastEvent.getEdgeFlags(), lastEvent.getHistorySize(), lastEvent.getPointerCount());
+
+        for(int i = 0; i < lastEvent.getSampleCount(); i++)
+        {
+            copy.add(lastEvent.getTime(i), lastEvent.getPointerIndex(i), lastEvent.getPointerId(i),
+                    lastEvent.getX(i), lastEvent.getY(i), lastEvent.getSize(i), lastEvent.getPressure(i));
+        }
+
+        return copy;
+    }
+
+    public long getEventsAccepted()
+    {
+        return eventsOut;
+    }
+
+    public long getEventsRejected()
+    {
+        return eventsIn - eventsOut;
+    }
+
+    public long getSamplesAccepted()
+    {
+        return samplesOut;
+    }
+
+    public long getSamplesRejected()
+    {
+        return samplesIn - samplesOut;
+    }
+
+    /**
+     * Give the time spent filtering.
+     *
+     * @return Time in nanoseconds
+     */
+    public long getFilterNanos()
+    {
+        return filterNanos;
+    }
+
+    /**
+     * Describe the counters in one line.
+     *
+     * @return Description
+     */
+    public String describe()
+    {
+        StringBuilder text = new StringBuilder(128);
+
+        text.append("filter: events ").append(eventsOut).append(" accepted, ").append(eventsIn - eventsOut).append(" rejected");
+        text.append(", samples ").append(samplesOut).append(" accepted, ").append(samplesIn - samplesOut).append(" rejected");
+        text.append(", saved ").append(((eventsIn - eventsOut) * SampleStore.EVENT_BYTES + (samplesIn - samplesOut) * SampleStore.SAMPLE_BYTES) / 1024).append(" KiB");
+
+        if(samplesIn > 0)
+            text.append(", ").append(filterNanos / samplesIn).append(" ns/sample");
+
+        return text.toString();
+    }
+}
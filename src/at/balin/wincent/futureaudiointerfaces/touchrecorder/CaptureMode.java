@@ -0,0 +1,287 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Filter choosing how much of every event is recorded.
+ *
+ * FULL keeps everything. CURRENT drops the historical samples of the events.
+ * RESAMPLED keeps at most one row of samples per interval of every gesture.
+ * ACTIONS keeps the pointers going down and up, but no moves.
+ *
+ * Every mode counts what it has received and passed on, so that the memory
+ * and throughput of the modes can be compared within a session.
+ *
+ * @author Wincent Balin
+ */
+public class CaptureMode extends SessionFilter
+{
+    public static final int FULL = 0;
+    public static final int CURRENT = 1;
+    public static final int RESAMPLED = 2;
+    public static final int ACTIONS = 3;
+
+    /**
+     * Names of the modes, as used in the preferences.
+     */
+    public static final String[] NAMES = {"full", "current", "resampled", "actions"};
+
+    /**
+     * Default interval of resampling in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = 50;
+
+    private int mode;
+    private long interval = DEFAULT_INTERVAL;
+
+    // Time the next sample is due at when resampling
+    private long nextTime = Long.MIN_VALUE;
+    private long lastEventTime = Long.MIN_VALUE;
+
+    // Counters, one per mode
+    private final long[] eventsIn = new long[NAMES.length];
+    private final long[] eventsOut = new long[NAMES.length];
+    private final long[] samplesIn = new long[NAMES.length];
+    private final long[] samplesOut = new long[NAMES.length];
+    private final long[] recordedMillis = new long[NAMES.length];
+    private final long[] filterNanos = new long[NAMES.length];
+
+    /**
+     * Create filter.
+     *
+     * @param next Handler to receive the recorded events
+     * @param mode Mode of capture, e.g. FULL
+     */
+    public CaptureMode(SessionHandler next, int mode)
+    {
+        super(next);
+        setMode(mode);
+    }
+
+    /**
+     * Create filter continuing the mode, interval and counters of another one,
+     * e.g. when the handlers behind it are replaced.
+     *
+     * @param next Handler to receive the recorded events
+     * @param previous Filter to continue
+     */
+    public CaptureMode(SessionHandler next, CaptureMode previous)
+    {
+        super(next);
+        mode = previous.mode;
+        interval = previous.interval;
+        nextTime = previous.nextTime;
+        lastEventTime = previous.lastEventTime;
+
+        System.arraycopy(previous.eventsIn, 0, eventsIn, 0, NAMES.length);
+        System.arraycopy(previous.eventsOut, 0, eventsOut, 0, NAMES.length);
+        System.arraycopy(previous.samplesIn, 0, samplesIn, 0, NAMES.length);
+        System.arraycopy(previous.samplesOut, 0, samplesOut, 0, NAMES.length);
+        System.arraycopy(previous.recordedMillis, 0, recordedMillis, 0, NAMES.length);
+        System.arraycopy(previous.filterNanos, 0, filterNanos, 0, NAMES.length);
+    }
+
+    /**
+     * Find a mode by its name.
+     *
+     * @param name Name of the mode
+     * @return Mode, or -1 if there is no such mode
+     */
+    public static int parse(String name)
+    {
+        for(int m = 0; m < NAMES.length; m++)
+        {
+            if(NAMES[m].equals(name))
+                return m;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Change the mode; the counters of the modes are kept.
+     *
+     * @param mode Mode of capture, e.g. FULL
+     */
+    public void setMode(int mode)
+    {
+        if(mode < 0 || mode >= NAMES.length)
+            throw new IllegalArgumentException("Unknown capture mode " + mode);
+
+        this.mode = mode;
+    }
+
+    public int getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Set the interval of resampling.
+     *
+     * @param interval Least time in milliseconds between two kept rows of samples
+     */
+    public void setInterval(long interval)
+    {
+        this.interval = Math.max(1, interval);
+    }
+
+    @Override
+    protected boolean filter(EventBuffer event)
+    {
+        final long start = System.nanoTime();
+
+        eventsIn[mode]++;
+        samplesIn[mode] += event.getSampleCount();
+
+        // Time passes in the mode active when it ends
+        final long eventTime = event.getEventTime();
+
+        if(lastEventTime != Long.MIN_VALUE && eventTime > lastEventTime)
+            recordedMillis[mode] += eventTime - lastEventTime;
+
+        lastEventTime = eventTime;
+
+        boolean keep = true;
+
+        switch(mode)
+        {
+        case CURRENT:
+            while(event.getHistorySize() > 0)
+                event.removeRow(0);
+            break;
+        case RESAMPLED:
+            keep = resample(event);
+            break;
+        case ACTIONS:
+            keep = event.getAction() != SessionFormat.ACTION_MOVE;
+            break;
+        default:
+            break;
+        }
+
+        if(keep)
+        {
+            eventsOut[mode]++;
+            samplesOut[mode] += event.getSampleCount();
+        }
+
+        filterNanos[mode] += System.nanoTime() - start;
+
+        return keep;
+    }
+
+    /**
+     * Keep the rows of a move which are due, all other events completely.
+     */
+    private boolean resample(EventBuffer event)
+    {
+        if(event.getAction() != SessionFormat.ACTION_MOVE || event.getPointerCount() == 0)
+        {
+            nextTime = event.getEventTime() + interval;
+            return true;
+        }
+
+        int row = 0;
+
+        while(row <= event.getHistorySize())
+        {
+            final long time = event.getTime(event.rowStart(row));
+
+            if(time >= nextTime)
+            {
+                nextTime = time + interval;
+                row++;
+            }
+            else if(event.getHistorySize() > 0)
+            {
+                event.removeRow(row);
+            }
+            else
+            {
+                // Last row is not due either
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public long getEventsIn(int mode)
+    {
+        return eventsIn[mode];
+    }
+
+    public long getEventsOut(int mode)
+    {
+        return eventsOut[mode];
+    }
+
+    public long getSamplesIn(int mode)
+    {
+        return samplesIn[mode];
+    }
+
+    public long getSamplesOut(int mode)
+    {
+        return samplesOut[mode];
+    }
+
+    /**
+     * Give the session time recorded in a mode.
+     *
+     * @param mode Mode of capture
+     * @return Time in milliseconds
+     */
+    public long getRecordedMillis(int mode)
+    {
+        return recordedMillis[mode];
+    }
+
+    /**
+     * Give the time spent filtering in a mode.
+     *
+     * @param mode Mode of capture
+     * @return Time in nanoseconds
+     */
+    public long getFilterNanos(int mode)
+    {
+        return filterNanos[mode];
+    }
+
+    /**
+     * Estimate the memory taken by the events passed on in a mode, when kept in a SampleStore.
+     *
+     * @param mode Mode of capture
+     * @return Size in bytes
+     */
+    public long getStoredBytes(int mode)
+    {
+        return eventsOut[mode] * SampleStore.EVENT_BYTES + samplesOut[mode] * SampleStore.SAMPLE_BYTES;
+    }
+
+    /**
+     * Describe the counters of a mode in one line.
+     *
+     * @param mode Mode of capture
+     * @return Description
+     */
+    public String describe(int mode)
+    {
+        StringBuilder text = new StringBuilder(128);
+
+        text.append(NAMES[mode]).append(": events ").append(eventsOut[mode]).append('/').append(eventsIn[mode]);
+        text.append(" samples ").append(samplesOut[mode]).append('/').append(samplesIn[mode]);
+        text.append(" stored ").append(getStoredBytes(mode) / 1024).append(" KiB");
+
+        // Rates over the recorded session time, and the cost of filtering
+        if(recordedMillis[mode] > 0)
+        {
+            text.append(", ").append(samplesOut[mode] * 1000 / recordedMillis[mode]).append(" samples/s");
+            text.append(", ").append(getStoredBytes(mode) * 3600000L / recordedMillis[mode] / (1024 * 1024)).append(" MiB/h");
+        }
+
+        if(samplesIn[mode] > 0)
+            text.append(", ").append(filterNanos[mode] / samplesIn[mode]).append(" ns/sample");
+
+        return text.toString();
+    }
+}
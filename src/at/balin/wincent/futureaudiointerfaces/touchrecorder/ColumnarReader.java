@@ -0,0 +1,314 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader of sessions written by ColumnarWriter.
+ *
+ * Only the footer is read when opening. Column chunks are read and decoded
+ * on demand, so that groups outside of the wanted ranges are never read.
+ * Not thread-safe.
+ *
+ * @author Wincent Balin
+ */
+public class ColumnarReader
+{
+    private static final int TRAILER_BYTES = 12;
+
+    private final FileChannel channel;
+
+    private final String[] names;
+    private final int[] encodings;
+    private final float[] scales;
+
+    private final int[] rows;
+    private final long[][] offsets;
+    private final int[][] lengths;
+    private final double[][] minima;
+    private final double[][] maxima;
+
+    private long bytesRead = 0;
+
+    /**
+     * Open a columnar session and read its footer.
+     *
+     * @param channel Channel of the file, not closed by this reader
+     * @throws IOException If the file cannot be read or is not a columnar session
+     */
+    public ColumnarReader(FileChannel channel) throws IOException
+    {
+        this.channel = channel;
+
+        final long size = channel.size();
+
+        if(size < 8 + TRAILER_BYTES)
+            throw new IOException("Not a columnar session");
+
+        ByteBuffer trailer = read(size - TRAILER_BYTES, TRAILER_BYTES);
+        final long footerOffset = trailer.getLong();
+
+        if(trailer.getInt() != ColumnarWriter.MAGIC || read(0, 8).getInt() != ColumnarWriter.MAGIC)
+            throw new IOException("Not a columnar session");
+
+        if(footerOffset < 8 || footerOffset > size - TRAILER_BYTES)
+            throw new IOException("Damaged columnar session");
+
+        ByteBuffer footer = read(footerOffset, (int) (size - TRAILER_BYTES - footerOffset));
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(footer.array()));
+
+        final int columns = input.readInt();
+        names = new String[columns];
+        encodings = new int[columns];
+        scales = new float[columns];
+
+        for(int c = 0; c < columns; c++)
+        {
+            names[c] = input.readUTF();
+            encodings[c] = input.readByte();
+            scales[c] = input.readFloat();
+        }
+
+        final int groups = input.readInt();
+        rows = new int[groups];
+        offsets = new long[groups][columns];
+        lengths = new int[groups][columns];
+        minima = new double[groups][columns];
+        maxima = new double[groups][columns];
+
+        for(int g = 0; g < groups; g++)
+        {
+            rows[g] = input.readInt();
+
+            for(int c = 0; c < columns; c++)
+            {
+                offsets[g][c] = input.readLong();
+                lengths[g][c] = input.readInt();
+                minima[g][c] = input.readDouble();
+                maxima[g][c] = input.readDouble();
+            }
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while(buffer.hasRemaining())
+        {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of columnar session");
+        }
+
+        bytesRead += length;
+        buffer.flip();
+
+        return buffer;
+    }
+
+    public int getColumnCount()
+    {
+        return names.length;
+    }
+
+    public String getColumnName(int column)
+    {
+        return names[column];
+    }
+
+    /**
+     * Find a column by its name.
+     *
+     * @param name Name of the column
+     * @return Index of the column, or -1 if there is none of this name
+     */
+    public int findColumn(String name)
+    {
+        for(int c = 0; c < names.length; c++)
+        {
+            if(names[c].equals(name))
+                return c;
+        }
+
+        return -1;
+    }
+
+    public int getGroupCount()
+    {
+        return rows.length;
+    }
+
+    /**
+     * Give the amount of rows of a group.
+     *
+     * @param group Index of the group
+     * @return Amount of rows
+     */
+    public int getRows(int group)
+    {
+        return rows[group];
+    }
+
+    /**
+     * Give the smallest value of a column in a group.
+     *
+     * @param group Index of the group
+     * @param column Index of the column
+     * @return Smallest value
+     */
+    public double getMin(int group, int column)
+    {
+        return minima[group][column];
+    }
+
+    /**
+     * Give the largest value of a column in a group.
+     *
+     * @param group Index of the group
+     * @param column Index of the column
+     * @return Largest value
+     */
+    public double getMax(int group, int column)
+    {
+        return maxima[group][column];
+    }
+
+    /**
+     * Give the size of a column of a group in the file.
+     *
+     * @param group Index of the group
+     * @param column Index of the column
+     * @return Size in bytes
+     */
+    public int getBytes(int group, int column)
+    {
+        return lengths[group][column];
+    }
+
+    /**
+     * Answer whether a column of a group may have values in a range.
+     *
+     * @param group Index of the group
+     * @param column Index of the column
+     * @param min Smallest value of the range
+     * @param max Largest value of the range
+     * @return False if the group has no value in the range, else true
+     */
+    public boolean overlaps(int group, int column, double min, double max)
+    {
+        return minima[group][column] <= max && maxima[group][column] >= min;
+    }
+
+    /**
+     * Give the amount of bytes read from the file so far, footer included.
+     *
+     * @return Amount of bytes
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * Read and decode a column of a group as integers. Quantized columns
+     * give their values multiplied by the scale of the column.
+     *
+     * @param group Index of the group
+     * @param column Index of the column
+     * @return Values of the rows
+     * @throws IOException If reading fails or the column is damaged
+     */
+    public long[] readLongs(int group, int column) throws IOException
+    {
+        final ByteBuffer chunk = read(offsets[group][column], lengths[group][column]);
+        final int count = rows[group];
+        long[] values = new long[count];
+
+        try
+        {
+            if(encodings[column] == ColumnarWriter.DICTIONARY)
+            {
+                final int entries = (int) readVarint(chunk);
+                long[] dictionary = new long[entries];
+
+                for(int i = 0; i < entries; i++)
+                    dictionary[i] = readVarint(chunk);
+
+                final int width = ColumnarWriter.bitWidth(entries - 1);
+                final int mask = (1 << width) - 1;
+                int bits = 0;
+                int available = 0;
+
+                for(int r = 0; r < count; r++)
+                {
+                    while(available < width)
+                    {
+                        bits |= (chunk.get() & 0xFF) << available;
+                        available += 8;
+                    }
+
+                    values[r] = dictionary[bits & mask];
+                    bits >>>= width;
+                    available -= width;
+                }
+            }
+            else
+            {
+                long value = 0;
+
+                for(int r = 0; r < count; r++)
+                {
+                    value += readVarint(chunk);
+                    values[r] = value;
+                }
+            }
+        }
+        catch(RuntimeException e)
+        {
+            // Buffer underflow or an index outside of the dictionary
+            throw new IOException("Damaged column " + names[column] + " in group " + group);
+        }
+
+        return values;
+    }
+
+    /**
+     * Read and decode a column of a group as real numbers.
+     *
+     * @param group Index of the group
+     * @param column Index of the column
+     * @return Values of the rows
+     * @throws IOException If reading fails or the column is damaged
+     */
+    public float[] readFloats(int group, int column) throws IOException
+    {
+        final long[] quantized = readLongs(group, column);
+        final float scale = scales[column];
+        float[] values = new float[quantized.length];
+
+        for(int r = 0; r < values.length; r++)
+            values[r] = quantized[r] / scale;
+
+        return values;
+    }
+
+    private static long readVarint(ByteBuffer chunk)
+    {
+        long zigzag = 0;
+        int shift = 0;
+        int b;
+
+        do
+        {
+            b = chunk.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while((b & 0x80) != 0);
+
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
@@ -0,0 +1,414 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writer of a session in a binary columnar format, one row per sample.
+ *
+ * Rows are collected into groups. Every group is written column by column,
+ * each column encoded on its own, so that readers load only the columns
+ * they need. A footer after the groups gives the position, length and the
+ * smallest and largest value of every column of every group, so that
+ * readers may skip groups by time or pointer. See ColumnarReader.
+ *
+ * Coordinates, sizes and pressures are quantized; image load events are left out.
+ * Strokes are numbered as in SessionStatistics.
+ *
+ * @author Wincent Balin
+ */
+public class ColumnarWriter implements SessionHandler
+{
+    /**
+     * First and last int of the file.
+     */
+    public static final int MAGIC = 0x5452434C;
+    public static final int VERSION = 1;
+
+    /**
+     * Encodings of columns.
+     *
+     * DELTA stores differences to the previous value as variable-length
+     * integers, DICTIONARY stores the distinct values followed by bit-packed
+     * indices into them, QUANTIZED stores the values multiplied by a scale
+     * and rounded, as DELTA.
+     */
+    public static final int DELTA = 0;
+    public static final int DICTIONARY = 1;
+    public static final int QUANTIZED = 2;
+
+    /**
+     * Columns of the rows.
+     */
+    public static final int TIME = 0;
+    public static final int STROKE = 1;
+    public static final int POINTER = 2;
+    public static final int ACTION = 3;
+    public static final int X = 4;
+    public static final int Y = 5;
+    public static final int SIZE = 6;
+    public static final int PRESSURE = 7;
+
+    public static final String[] COLUMNS = {"time", "stroke", "pointer", "action", "x", "y", "size", "pressure"};
+    public static final int[] ENCODINGS = {DELTA, DELTA, DICTIONARY, DICTIONARY, QUANTIZED, QUANTIZED, QUANTIZED, QUANTIZED};
+
+    // Steps of quantized columns: 1/16 pixel, 1/4096 of the size and pressure range
+    public static final float[] SCALES = {1.0f, 1.0f, 1.0f, 1.0f, 16.0f, 16.0f, 4096.0f, 4096.0f};
+
+    public static final int DEFAULT_GROUP_ROWS = 16 * 1024;
+
+    private static final int MAX_POINTERS = 256;
+
+    private final DataOutputStream output;
+    private long position = 0;
+
+    private final int groupRows;
+    private int rows = 0;
+    private final long[] times;
+    private final int[][] values;
+
+    // Footer entries: rows of every group, offsets, lengths and ranges of every column chunk
+    private final ByteArrayOutputStream footer = new ByteArrayOutputStream(4 * 1024);
+    private final DataOutputStream footerOutput = new DataOutputStream(footer);
+    private int groups = 0;
+
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(64 * 1024);
+
+    private int action;
+    private int actionIndex;
+    private int actionPointer;
+    private int event = 0;
+    private final boolean[] active = new boolean[MAX_POINTERS];
+    private final int[] strokeNumber = new int[MAX_POINTERS];
+    private final int[] strokeEvent = new int[MAX_POINTERS];
+    private int nextStroke = 0;
+
+    private IOException exception = null;
+
+    /**
+     * Create columnar writer with groups of the default size.
+     * The header is written immediately.
+     *
+     * @param stream Destination of the data, not closed by this writer
+     */
+    public ColumnarWriter(OutputStream stream)
+    {
+        this(stream, DEFAULT_GROUP_ROWS);
+    }
+
+    /**
+     * Create columnar writer. The header is written immediately.
+     *
+     * @param stream Destination of the data, not closed by this writer
+     * @param groupRows Amount of rows per group
+     */
+    public ColumnarWriter(OutputStream stream, int groupRows)
+    {
+        output = new DataOutputStream(stream);
+        this.groupRows = groupRows;
+
+        times = new long[groupRows];
+        values = new int[COLUMNS.length][];
+
+        for(int c = STROKE; c < COLUMNS.length; c++)
+            values[c] = new int[groupRows];
+
+        try
+        {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            position = output.size();
+        }
+        catch(IOException e)
+        {
+            exception = e;
+        }
+    }
+
+    /**
+     * Give the first exception occurred while writing.
+     *
+     * @return Exception or null if everything was written
+     */
+    public IOException getException()
+    {
+        return exception;
+    }
+
+    /**
+     * Give the amount of row groups written so far.
+     *
+     * @return Amount of groups
+     */
+    public int getGroups()
+    {
+        return groups;
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.action = action;
+        this.actionIndex = actionIndex;
+        event++;
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        final int id = pointerId & (MAX_POINTERS - 1);
+
+        if(pointerIndex == actionIndex)
+            actionPointer = id;
+
+        // A new DOWN starts a new stroke even if the UP is missing
+        if(strokeEvent[id] != event)
+        {
+            strokeEvent[id] = event;
+
+            if(action == SessionFormat.ACTION_DOWN || (action == SessionFormat.ACTION_POINTER_DOWN && pointerIndex == actionIndex))
+                active[id] = false;
+
+            if(!active[id])
+            {
+                active[id] = true;
+                strokeNumber[id] = nextStroke++;
+            }
+        }
+
+        times[rows] = time;
+        values[STROKE][rows] = strokeNumber[id];
+        values[POINTER][rows] = pointerId;
+        values[ACTION][rows] = action;
+        values[X][rows] = Math.round(x * SCALES[X]);
+        values[Y][rows] = Math.round(y * SCALES[Y]);
+        values[SIZE][rows] = Math.round(size * SCALES[SIZE]);
+        values[PRESSURE][rows] = Math.round(pressure * SCALES[PRESSURE]);
+
+        if(++rows == groupRows)
+            writeGroup();
+    }
+
+    @Override
+    public void endEvent()
+    {
+        if(action == SessionFormat.ACTION_POINTER_UP)
+        {
+            active[actionPointer] = false;
+        }
+        else if(action == SessionFormat.ACTION_UP || action == SessionFormat.ACTION_CANCEL)
+        {
+            for(int id = 0; id < MAX_POINTERS; id++)
+                active[id] = false;
+        }
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+    }
+
+    @Override
+    public void endSession()
+    {
+        if(rows > 0)
+            writeGroup();
+
+        if(exception != null)
+            return;
+
+        try
+        {
+            output.writeInt(COLUMNS.length);
+
+            for(int c = 0; c < COLUMNS.length; c++)
+            {
+                output.writeUTF(COLUMNS[c]);
+                output.writeByte(ENCODINGS[c]);
+                output.writeFloat(SCALES[c]);
+            }
+
+            output.writeInt(groups);
+            footer.writeTo(output);
+
+            output.writeLong(position);
+            output.writeInt(MAGIC);
+            output.flush();
+        }
+        catch(IOException e)
+        {
+            exception = e;
+        }
+    }
+
+    /**
+     * Encode the collected rows column by column and note them in the footer.
+     */
+    private void writeGroup()
+    {
+        try
+        {
+            footerOutput.writeInt(rows);
+
+            for(int c = 0; c < COLUMNS.length; c++)
+            {
+                chunk.reset();
+
+                long min;
+                long max;
+
+                if(c == TIME)
+                {
+                    min = max = times[0];
+
+                    for(int r = 0; r < rows; r++)
+                    {
+                        min = Math.min(min, times[r]);
+                        max = Math.max(max, times[r]);
+                    }
+
+                    encodeDelta(times, rows, chunk);
+                }
+                else
+                {
+                    final int[] column = values[c];
+                    min = max = column[0];
+
+                    for(int r = 0; r < rows; r++)
+                    {
+                        min = Math.min(min, column[r]);
+                        max = Math.max(max, column[r]);
+                    }
+
+                    if(ENCODINGS[c] == DICTIONARY)
+                        encodeDictionary(column, rows, chunk);
+                    else
+                        encodeDelta(column, rows, chunk);
+                }
+
+                footerOutput.writeLong(position);
+                footerOutput.writeInt(chunk.size());
+                footerOutput.writeDouble(min / (double) SCALES[c]);
+                footerOutput.writeDouble(max / (double) SCALES[c]);
+
+                chunk.writeTo(output);
+                position += chunk.size();
+            }
+        }
+        catch(IOException e)
+        {
+            if(exception == null)
+                exception = e;
+        }
+
+        groups++;
+        rows = 0;
+    }
+
+    private static void encodeDelta(long[] column, int rows, ByteArrayOutputStream chunk)
+    {
+        long previous = 0;
+
+        for(int r = 0; r < rows; r++)
+        {
+            writeVarint(chunk, column[r] - previous);
+            previous = column[r];
+        }
+    }
+
+    private static void encodeDelta(int[] column, int rows, ByteArrayOutputStream chunk)
+    {
+        long previous = 0;
+
+        for(int r = 0; r < rows; r++)
+        {
+            writeVarint(chunk, column[r] - previous);
+            previous = column[r];
+        }
+    }
+
+    private static void encodeDictionary(int[] column, int rows, ByteArrayOutputStream chunk)
+    {
+        // Columns with a dictionary have few distinct values
+        int[] dictionary = new int[16];
+        int entries = 0;
+        int[] indices = new int[rows];
+
+        for(int r = 0; r < rows; r++)
+        {
+            int i = 0;
+
+            while(i < entries && dictionary[i] != column[r])
+                i++;
+
+            if(i == entries)
+            {
+                if(entries == dictionary.length)
+                {
+                    int[] larger = new int[entries * 2];
+                    System.arraycopy(dictionary, 0, larger, 0, entries);
+                    dictionary = larger;
+                }
+
+                dictionary[entries++] = column[r];
+            }
+
+            indices[r] = i;
+        }
+
+        writeVarint(chunk, entries);
+
+        for(int i = 0; i < entries; i++)
+            writeVarint(chunk, dictionary[i]);
+
+        // Indices with as few bits as needed, lowest bits first
+        final int width = bitWidth(entries - 1);
+        int bits = 0;
+        int available = 0;
+
+        for(int r = 0; r < rows && width > 0; r++)
+        {
+            bits |= indices[r] << available;
+            available += width;
+
+            while(available >= 8)
+            {
+                chunk.write(bits & 0xFF);
+                bits >>>= 8;
+                available -= 8;
+            }
+        }
+
+        if(available > 0)
+            chunk.write(bits & 0xFF);
+    }
+
+    /**
+     * Give the amount of bits needed for a value.
+     *
+     * @param value Non-negative value
+     * @return Amount of bits, 0 for 0
+     */
+    static int bitWidth(int value)
+    {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Write a signed value in zigzag encoding, seven bits per byte, lowest first.
+     */
+    private static void writeVarint(ByteArrayOutputStream chunk, long value)
+    {
+        long zigzag = (value << 1) ^ (value >> 63);
+
+        while((zigzag & ~0x7FL) != 0)
+        {
+            chunk.write((int) (zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+
+        chunk.write((int) zigzag);
+    }
+}
@@ -0,0 +1,183 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stream compressing its data in gzip format on a thread of its own.
+ *
+ * Two buffers alternate: while the writer fills one, the other is compressed,
+ * so that formatting and compression overlap.
+ *
+ * @author Wincent Balin
+ */
+public class CompressingOutputStream extends OutputStream
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Buffer marking the end of the data
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(2);
+    private final BlockingQueue<byte[]> full = new ArrayBlockingQueue<byte[]>(2);
+    private final int[] lengths = new int[2];
+    private final byte[][] buffers = new byte[2][];
+
+    private byte[] buffer;
+    private int length = 0;
+
+    private final Thread compressor;
+    private volatile IOException exception = null;
+    private boolean closed = false;
+
+    /**
+     * Create stream.
+     *
+     * @param out Destination of the compressed data, closed with this stream
+     * @param level Compression level from 1 (fastest) to 9 (smallest)
+     * @throws IOException If the gzip header cannot be written
+     */
+    public CompressingOutputStream(OutputStream out, final int level) throws IOException
+    {
+        final GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE)
+        {
+            {
+                def.setLevel(level);
+            }
+        };
+
+        buffers[0] = new byte[BUFFER_SIZE];
+        buffers[1] = new byte[BUFFER_SIZE];
+        free.add(buffers[1]);
+        buffer = buffers[0];
+
+        compressor = new Thread("CompressingOutputStream")
+        {
+            @Override
+            public void run()
+            {
+                compress(gzip);
+            }
+        };
+        compressor.start();
+    }
+
+    private void compress(GZIPOutputStream gzip)
+    {
+        try
+        {
+            try
+            {
+                while(true)
+                {
+                    final byte[] data = full.take();
+
+                    if(data == END)
+                        break;
+
+                    gzip.write(data, 0, lengths[data == buffers[0] ? 0 : 1]);
+
+                    free.put(data);
+                }
+            }
+            finally
+            {
+                gzip.close();
+            }
+        }
+        catch(IOException e)
+        {
+            if(exception == null)
+                exception = e;
+
+            // Let the writer continue until it notices
+            free.offer(buffers[0]);
+            free.offer(buffers[1]);
+        }
+        catch(InterruptedException e)
+        {
+            exception = new IOException("Compression interrupted");
+
+            free.offer(buffers[0]);
+            free.offer(buffers[1]);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if(length == BUFFER_SIZE)
+            pass();
+
+        buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while(len > 0)
+        {
+            if(length == BUFFER_SIZE)
+                pass();
+
+            final int part = Math.min(len, BUFFER_SIZE - length);
+            System.arraycopy(b, off, buffer, length, part);
+            length += part;
+            off += part;
+            len -= part;
+        }
+    }
+
+    /**
+     * Hand the filled buffer over to the compressor and take the other one.
+     */
+    private void pass() throws IOException
+    {
+        if(exception != null)
+            throw exception;
+
+        lengths[buffer == buffers[0] ? 0 : 1] = length;
+
+        try
+        {
+            full.put(buffer);
+            buffer = free.take();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing");
+        }
+
+        length = 0;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if(closed)
+            return;
+
+        closed = true;
+
+        if(length > 0)
+            pass();
+
+        try
+        {
+            full.put(END);
+            compressor.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing");
+        }
+
+        if(exception != null)
+            throw exception;
+    }
+}
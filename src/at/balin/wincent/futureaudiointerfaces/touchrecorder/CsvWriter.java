@@ -0,0 +1,132 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer of a session as comma-separated values, one row per sample.
+ *
+ * Image load events get a row of their own, with the file name in the last column.
+ *
+ * @author Wincent Balin
+ */
+public class CsvWriter implements SessionHandler
+{
+    /**
+     * Header row of the output.
+     */
+    public static final String HEADER = "event,action,time,historical,pointer_index,pointer_id,x,y,size,pressure,image\n";
+
+    private final Writer writer;
+
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    private int event = -1;
+    private String actionName;
+    private int historicalSamples;
+    private int samples;
+
+    private IOException exception = null;
+
+    /**
+     * Create CSV writer. The header row is written immediately.
+     *
+     * @param writer Destination of the text
+     */
+    public CsvWriter(Writer writer)
+    {
+        this.writer = writer;
+
+        buffer.append(HEADER);
+        flushBuffer();
+    }
+
+    /**
+     * Give the first exception occurred while writing.
+     *
+     * @return Exception or null if everything was written
+     */
+    public IOException getException()
+    {
+        return exception;
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        event++;
+        actionName = SessionFormat.actionName(action);
+        historicalSamples = historySize * pointerCount;
+        samples = 0;
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        buffer.append(event).append(',');
+        buffer.append(actionName).append(',');
+        buffer.append(time).append(',');
+        buffer.append(samples < historicalSamples ? 1 : 0).append(',');
+        buffer.append(pointerIndex).append(',');
+        buffer.append(pointerId).append(',');
+        buffer.append(x).append(',');
+        buffer.append(y).append(',');
+        buffer.append(size).append(',');
+        buffer.append(pressure).append(",\n");
+
+        samples++;
+    }
+
+    @Override
+    public void endEvent()
+    {
+        flushBuffer();
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+        event++;
+
+        buffer.append(event).append(",IMAGE,");
+        buffer.append(time).append(",,,,,,,,");
+
+        // Quote file name, as it may contain anything
+        buffer.append('"');
+        buffer.append(fileName.replace("\"", "\"\""));
+        buffer.append("\"\n");
+
+        flushBuffer();
+    }
+
+    @Override
+    public void endSession()
+    {
+        try
+        {
+            writer.flush();
+        }
+        catch(IOException e)
+        {
+            if(exception == null)
+                exception = e;
+        }
+    }
+
+    private void flushBuffer()
+    {
+        if(exception == null)
+        {
+            try
+            {
+                writer.append(buffer);
+            }
+            catch(IOException e)
+            {
+                exception = e;
+            }
+        }
+
+        buffer.setLength(0);
+    }
+}
@@ -0,0 +1,385 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.Arrays;
+
+/**
+ * Coarse grid accumulating where touches concentrate, for a heatmap.
+ *
+ * Every sample adds its weight, either the time the pointer dwelt there or its
+ * pressure, to one cell. Cells changed since the last call of clearDirty() are
+ * listed, so that only they need to be colorized anew. Colors are relative to a
+ * scale which doubles when exceeded; only then all cells change.
+ *
+ * @author Wincent Balin
+ */
+public class DensityGrid implements SessionHandler
+{
+    /**
+     * Weight samples by the time until the next sample of the pointer.
+     */
+    public static final int WEIGHT_DWELL = 0;
+
+    /**
+     * Weight samples by their pressure.
+     */
+    public static final int WEIGHT_PRESSURE = 1;
+
+    private static final int MAX_POINTERS = 256;
+
+    // Longer pauses of a pointer are not counted as dwelling
+    private static final long MAX_DWELL = 100;
+
+    private final float cellSize;
+    private final int columns;
+    private final int rows;
+    private final int weighting;
+
+    private final float[] values;
+    private float scale = 1.0f;
+
+    // Cells changed since the last clearDirty()
+    private final boolean[] dirty;
+    private final int[] dirtyCells;
+    private int dirtyCount = 0;
+    private boolean allDirty = true;
+
+    // State of the current event and of the pointers
+    private int action;
+    private int actionIndex;
+    private final long[] lastTime = new long[MAX_POINTERS];
+    private final int[] lastCell = new int[MAX_POINTERS];
+    private final boolean[] known = new boolean[MAX_POINTERS];
+
+    /**
+     * Create grid.
+     *
+     * @param width Width of the covered area
+     * @param height Height of the covered area
+     * @param cellSize Width and height of a cell
+     * @param weighting WEIGHT_DWELL or WEIGHT_PRESSURE
+     */
+    public DensityGrid(float width, float height, float cellSize, int weighting)
+    {
+        this.cellSize = cellSize;
+        this.weighting = weighting;
+        columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        rows = Math.max(1, (int) Math.ceil(height / cellSize));
+
+        values = new float[columns * rows];
+        dirty = new boolean[columns * rows];
+        dirtyCells = new int[columns * rows];
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.action = action;
+        this.actionIndex = actionIndex;
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        final int id = pointerId & (MAX_POINTERS - 1);
+        final int cell = cell(x, y);
+
+        if(weighting == WEIGHT_PRESSURE)
+        {
+            add(cell, pressure);
+        }
+        else
+        {
+            // The pointer dwelt at its previous position until now
+            if(known[id] && !startsStroke(action, actionIndex, pointerIndex))
+                add(lastCell[id], Math.min(time - lastTime[id], MAX_DWELL));
+
+            known[id] = true;
+            lastTime[id] = time;
+            lastCell[id] = cell;
+        }
+    }
+
+    @Override
+    public void endEvent()
+    {
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+    }
+
+    @Override
+    public void endSession()
+    {
+    }
+
+    private static boolean startsStroke(int action, int actionIndex, int pointerIndex)
+    {
+        return action == SessionFormat.ACTION_DOWN || (action == SessionFormat.ACTION_POINTER_DOWN && pointerIndex == actionIndex);
+    }
+
+    private int cell(float x, float y)
+    {
+        // Positions outside of the grid count at its border; NaN compares false
+        final int column = x >= 0.0f ? Math.min(columns - 1, (int) (x / cellSize)) : 0;
+        final int row = y >= 0.0f ? Math.min(rows - 1, (int) (y / cellSize)) : 0;
+
+        return row * columns + column;
+    }
+
+    private void add(int cell, float weight)
+    {
+        values[cell] += weight;
+
+        if(!dirty[cell])
+        {
+            dirty[cell] = true;
+            dirtyCells[dirtyCount++] = cell;
+        }
+
+        if(values[cell] > scale)
+            growScale(values[cell]);
+    }
+
+    private void growScale(float value)
+    {
+        while(scale < value)
+            scale *= 2.0f;
+
+        allDirty = true;
+    }
+
+    /**
+     * Remove everything accumulated.
+     */
+    public void clear()
+    {
+        Arrays.fill(values, 0.0f);
+        Arrays.fill(known, false);
+        scale = 1.0f;
+        allDirty = true;
+    }
+
+    /**
+     * Accumulate a whole session anew, dividing its events between threads.
+     *
+     * @param store Session
+     * @param threads Amount of threads
+     */
+    public void rebuild(final SampleStore store, int threads)
+    {
+        clear();
+
+        final int events = store.getEventCount();
+        final int parts = Math.max(1, Math.min(threads, events / 1024));
+        final float[][] partValues = new float[parts][];
+        Thread[] workers = new Thread[parts];
+
+        for(int t = 0; t < parts; t++)
+        {
+            final int part = t;
+            final int from = (int) ((long) events * t / parts);
+            final int to = (int) ((long) events * (t + 1) / parts);
+
+            workers[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    partValues[part] = accumulate(store, from, to);
+                }
+            };
+            workers[t].start();
+        }
+
+        boolean interrupted = false;
+
+        for(int t = 0; t < parts; t++)
+        {
+            try
+            {
+                workers[t].join();
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+                t--;
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+
+        float max = 0.0f;
+
+        for(int c = 0; c < values.length; c++)
+        {
+            for(int t = 0; t < parts; t++)
+                values[c] += partValues[t][c];
+
+            max = Math.max(max, values[c]);
+        }
+
+        growScale(max);
+
+        // Continue recording after the last event of the session
+        for(int e = Math.max(0, events - 64); e < events; e++)
+            noteCurrentRow(store, e, lastTime, lastCell, known);
+    }
+
+    /**
+     * Accumulate the samples of a range of events into a grid of their own.
+     */
+    private float[] accumulate(SampleStore store, int fromEvent, int toEvent)
+    {
+        final float[] part = new float[values.length];
+
+        final long[] partLastTime = new long[MAX_POINTERS];
+        final int[] partLastCell = new int[MAX_POINTERS];
+        final boolean[] partKnown = new boolean[MAX_POINTERS];
+
+        // Pointers may have started before the range
+        for(int e = Math.max(0, fromEvent - 64); e < fromEvent; e++)
+            noteCurrentRow(store, e, partLastTime, partLastCell, partKnown);
+
+        for(int e = fromEvent; e < toEvent; e++)
+        {
+            final int first = store.getEventFirstSample(e);
+            final int last = first + store.getEventSampleCount(e);
+            final int eventAction = store.getEventAction(e);
+            final int eventActionIndex = store.getEventActionIndex(e);
+
+            for(int s = first; s < last; s++)
+            {
+                final int cell = cell(store.getX(s), store.getY(s));
+
+                if(weighting == WEIGHT_PRESSURE)
+                {
+                    part[cell] += store.getPressure(s);
+                    continue;
+                }
+
+                final int id = store.getPointerId(s) & (MAX_POINTERS - 1);
+                final long time = store.getTime(s);
+
+                if(partKnown[id] && !startsStroke(eventAction, eventActionIndex, store.getPointerIndex(s)))
+                    part[partLastCell[id]] += Math.min(time - partLastTime[id], MAX_DWELL);
+
+                partKnown[id] = true;
+                partLastTime[id] = time;
+                partLastCell[id] = cell;
+            }
+        }
+
+        return part;
+    }
+
+    private void noteCurrentRow(SampleStore store, int event, long[] times, int[] cells, boolean[] knownIds)
+    {
+        final int count = store.getEventPointerCount(event);
+        final int current = store.getEventFirstSample(event) + store.getEventSampleCount(event) - count;
+
+        for(int s = current; s < current + count; s++)
+        {
+            final int id = store.getPointerId(s) & (MAX_POINTERS - 1);
+
+            knownIds[id] = true;
+            times[id] = store.getTime(s);
+            cells[id] = cell(store.getX(s), store.getY(s));
+        }
+    }
+
+    public int getColumns()
+    {
+        return columns;
+    }
+
+    public int getRows()
+    {
+        return rows;
+    }
+
+    public int getWeighting()
+    {
+        return weighting;
+    }
+
+    public float getValue(int cell)
+    {
+        return values[cell];
+    }
+
+    /**
+     * Answer whether all cells have to be colorized anew, e.g. because the scale has changed.
+     *
+     * @return True if all cells changed
+     */
+    public boolean isAllDirty()
+    {
+        return allDirty;
+    }
+
+    public int getDirtyCount()
+    {
+        return dirtyCount;
+    }
+
+    /**
+     * Give a cell changed since the last call of clearDirty().
+     *
+     * @param i Number of the change, less than getDirtyCount()
+     * @return Index of the cell
+     */
+    public int getDirtyCell(int i)
+    {
+        return dirtyCells[i];
+    }
+
+    /**
+     * Forget the changed cells, after they have been colorized.
+     */
+    public void clearDirty()
+    {
+        for(int i = 0; i < dirtyCount; i++)
+            dirty[dirtyCells[i]] = false;
+
+        dirtyCount = 0;
+        allDirty = false;
+    }
+
+    /**
+     * Give the color of a cell, from transparent over blue and red to yellow.
+     *
+     * @param cell Index of the cell
+     * @return Color as ARGB
+     */
+    public int getColor(int cell)
+    {
+        if(values[cell] <= 0.0f)
+            return 0;
+
+        // Square root spreads the many weak cells over more colors
+        final float t = (float) Math.sqrt(Math.min(1.0f, values[cell] / scale));
+
+        final int alpha = 80 + (int) (t * 150.0f);
+        final int red;
+        final int green;
+        final int blue;
+
+        if(t < 0.5f)
+        {
+            red = (int) (t * 2.0f * 255.0f);
+            green = 0;
+            blue = 255 - red;
+        }
+        else
+        {
+            red = 255;
+            green = (int) ((t - 0.5f) * 2.0f * 255.0f);
+            blue = 0;
+        }
+
+        return alpha << 24 | red << 16 | green << 8 | blue;
+    }
+}
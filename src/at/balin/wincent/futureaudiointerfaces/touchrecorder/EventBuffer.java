@@ -0,0 +1,293 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Reusable buffer of one motion event with all its samples.
+ *
+ * Samples are kept in rows of pointerCount samples each; the first historySize rows
+ * hold the history, the last row holds the current samples. The buffer grows as needed
+ * and never shrinks, so that filling it again does not allocate.
+ *
+ * @author Wincent Balin
+ */
+public class EventBuffer
+{
+    private int action;
+    private int actionIndex;
+    private int edgeFlags;
+    private int historySize;
+    private int pointerCount;
+
+    private int count = 0;
+    private long[] time = new long[16];
+    private int[] pointerIndex = new int[16];
+    private int[] pointerId = new int[16];
+    private float[] x = new float[16];
+    private float[] y = new float[16];
+    private float[] size = new float[16];
+    private float[] pressure = new float[16];
+
+    /**
+     * Start buffering a new event, forgetting the previous one.
+     *
+     * @param action Action of the event
+     * @param actionIndex Index of the pointer causing the action
+     * @param edgeFlags Edge flags
+     * @param historySize Amount of historical rows
+     * @param pointerCount Amount of pointers per row
+     */
+    public void begin(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.action = action;
+        this.actionIndex = actionIndex;
+        this.edgeFlags = edgeFlags;
+        this.historySize = historySize;
+        this.pointerCount = pointerCount;
+        count = 0;
+    }
+
+    /**
+     * Change the action of the event, keeping its samples.
+     *
+     * @param action Action of the event
+     * @param actionIndex Index of the pointer causing the action
+     */
+    public void setAction(int action, int actionIndex)
+    {
+        this.action = action;
+        this.actionIndex = actionIndex;
+    }
+
+    /**
+     * Change the description of the event, keeping its samples.
+     *
+     * @param actionIndex Index of the pointer causing the action
+     * @param edgeFlags Edge flags
+     * @param historySize Amount of historical rows
+     * @param pointerCount Amount of pointers per row
+     */
+    public void reshape(int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.actionIndex = actionIndex;
+        this.edgeFlags = edgeFlags;
+        this.historySize = historySize;
+        this.pointerCount = pointerCount;
+    }
+
+    /**
+     * Append a sample.
+     *
+     * @param time Time of the sample
+     * @param pointerIndex Index of the pointer
+     * @param pointerId Identifier of the pointer
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param size Size of the touch
+     * @param pressure Pressure of the touch
+     */
+    public void add(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        if(count == this.time.length)
+            grow();
+
+        this.time[count] = time;
+        this.pointerIndex[count] = pointerIndex;
+        this.pointerId[count] = pointerId;
+        this.x[count] = x;
+        this.y[count] = y;
+        this.size[count] = size;
+        this.pressure[count] = pressure;
+        count++;
+    }
+
+    private void grow()
+    {
+        final int capacity = time.length * 2;
+
+        long[] newTime = new long[capacity];
+        System.arraycopy(time, 0, newTime, 0, count);
+        time = newTime;
+
+        pointerIndex = copyOf(pointerIndex, capacity);
+        pointerId = copyOf(pointerId, capacity);
+        x = copyOf(x, capacity);
+        y = copyOf(y, capacity);
+        size = copyOf(size, capacity);
+        pressure = copyOf(pressure, capacity);
+    }
+
+    private int[] copyOf(int[] array, int capacity)
+    {
+        int[] result = new int[capacity];
+        System.arraycopy(array, 0, result, 0, count);
+        return result;
+    }
+
+    private float[] copyOf(float[] array, int capacity)
+    {
+        float[] result = new float[capacity];
+        System.arraycopy(array, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Deliver the buffered event to a handler.
+     *
+     * @param handler Receiver of the event
+     */
+    public void replay(SessionHandler handler)
+    {
+        handler.beginEvent(action, actionIndex, edgeFlags, historySize, pointerCount);
+
+        for(int i = 0; i < count; i++)
+            handler.sample(time[i], pointerIndex[i], pointerId[i], x[i], y[i], size[i], pressure[i]);
+
+        handler.endEvent();
+    }
+
+    /**
+     * Remove a pointer from every row, renumbering the following pointers.
+     *
+     * @param index Index of the pointer to remove
+     */
+    public void removePointer(int index)
+    {
+        int target = 0;
+
+        for(int i = 0; i < count; i++)
+        {
+            final int p = pointerIndex[i];
+
+            if(p == index)
+                continue;
+
+            move(i, target);
+            pointerIndex[target] = p > index ? p - 1 : p;
+            target++;
+        }
+
+        count = target;
+        pointerCount--;
+
+        if(actionIndex > index)
+            actionIndex--;
+    }
+
+    /**
+     * Remove a row, making the last remaining row the current one.
+     *
+     * @param row Index of the row to remove; the current row only if there is history
+     */
+    public void removeRow(int row)
+    {
+        final int start = row * pointerCount;
+        final int end = start + pointerCount;
+
+        for(int i = end; i < count; i++)
+            move(i, i - pointerCount);
+
+        count -= end - start;
+        historySize--;
+    }
+
+    private void move(int from, int to)
+    {
+        time[to] = time[from];
+        pointerIndex[to] = pointerIndex[from];
+        pointerId[to] = pointerId[from];
+        x[to] = x[from];
+        y[to] = y[from];
+        size[to] = size[from];
+        pressure[to] = pressure[from];
+    }
+
+    /**
+     * Give the index of the first sample of a row.
+     *
+     * @param row Row; historySize denotes the current row
+     * @return Index of the sample
+     */
+    public int rowStart(int row)
+    {
+        return row * pointerCount;
+    }
+
+    public int getAction()
+    {
+        return action;
+    }
+
+    public int getActionIndex()
+    {
+        return actionIndex;
+    }
+
+    public int getEdgeFlags()
+    {
+        return edgeFlags;
+    }
+
+    public int getHistorySize()
+    {
+        return historySize;
+    }
+
+    public int getPointerCount()
+    {
+        return pointerCount;
+    }
+
+    /**
+     * Give the amount of buffered samples.
+     *
+     * @return Amount of samples
+     */
+    public int getSampleCount()
+    {
+        return count;
+    }
+
+    /**
+     * Give the time of the current row, which is the time of the event.
+     *
+     * @return Time of the event, or 0 if the event has no samples
+     */
+    public long getEventTime()
+    {
+        return count > 0 ? time[count - 1] : 0;
+    }
+
+    public long getTime(int i)
+    {
+        return time[i];
+    }
+
+    public int getPointerIndex(int i)
+    {
+        return pointerIndex[i];
+    }
+
+    public int getPointerId(int i)
+    {
+        return pointerId[i];
+    }
+
+    public float getX(int i)
+    {
+        return x[i];
+    }
+
+    public float getY(int i)
+    {
+        return y[i];
+    }
+
+    public float getSize(int i)
+    {
+        return size[i];
+    }
+
+    public float getPressure(int i)
+    {
+        return pressure[i];
+    }
+}
@@ -0,0 +1,273 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.BitSet;
+
+/**
+ * Bitmap indexes over the events of a stored session, by action and by pointer,
+ * for searching sessions of millions of events.
+ *
+ * An event belongs to the bitmap of a pointer if the pointer acts in it: the
+ * pointer going down or up in POINTER_DOWN and POINTER_UP, any pointer of the
+ * event otherwise. Images belong to the bitmap of ACTION_IMAGE.
+ *
+ * A search combines the bitmaps of the query first and then checks the time
+ * and the thresholds of the samples of the remaining events only. It proceeds
+ * in steps, so that results can be shown while it goes on.
+ *
+ * @author Wincent Balin
+ */
+public class EventIndex
+{
+    /**
+     * Action of image load events in the index.
+     */
+    public static final int ACTION_IMAGE = SessionFormat.ACTION_UNKNOWN + 1;
+
+    private static final int MAX_POINTERS = 256;
+
+    private final SampleStore store;
+    private final int events;
+
+    private final BitSet[] actionBitmaps = new BitSet[ACTION_IMAGE + 1];
+    private final BitSet[] pointerBitmaps = new BitSet[MAX_POINTERS];
+
+    /**
+     * Query of events; unset parts do not restrict the search.
+     */
+    public static class Query
+    {
+        public BitSet actions = null;
+        public BitSet pointers = null;
+        public long fromTime = Long.MIN_VALUE;
+        public long untilTime = Long.MAX_VALUE;
+        public float minPressure = Float.NEGATIVE_INFINITY;
+        public float minSize = Float.NEGATIVE_INFINITY;
+
+        /**
+         * Answer whether samples need to be checked, i.e. whether thresholds are set.
+         *
+         * @return True if there is a threshold
+         */
+        public boolean hasThresholds()
+        {
+            return minPressure != Float.NEGATIVE_INFINITY || minSize != Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Search in progress.
+     */
+    public class Search
+    {
+        private final Query query;
+        private final BitSet candidates;
+        private final int from;
+        private final int to;
+        private int next;
+
+        private Search(Query query)
+        {
+            this.query = query;
+
+            // Events in the time range; their times grow
+            from = query.fromTime == Long.MIN_VALUE ? 0 : Math.min(events, store.findEventAt(query.fromTime));
+            to = query.untilTime == Long.MAX_VALUE ? events : Math.min(events, store.findEventAt(query.untilTime + 1));
+            next = from;
+
+            candidates = union(actionBitmaps, query.actions);
+
+            if(query.pointers != null)
+                candidates.and(union(pointerBitmaps, query.pointers));
+        }
+
+        /**
+         * Search on.
+         *
+         * @param matches Receives the indexes of the matching events, in ascending order
+         * @param step Most events to go over
+         * @return Amount of matches given
+         */
+        public int next(int[] matches, int step)
+        {
+            final int end = (int) Math.min(to, (long) next + step);
+            int count = 0;
+
+            for(int e = candidates.nextSetBit(next); e >= 0 && e < end && count < matches.length; e = candidates.nextSetBit(e + 1))
+            {
+                if(!query.hasThresholds() || reachesThresholds(e))
+                    matches[count++] = e;
+
+                next = e + 1;
+            }
+
+            // Nothing more before the end of the step
+            if(count < matches.length)
+                next = end;
+
+            return count;
+        }
+
+        private boolean reachesThresholds(int event)
+        {
+            final int first = store.getEventFirstSample(event);
+            final int last = first + store.getEventSampleCount(event);
+
+            for(int s = first; s < last; s++)
+            {
+                if(store.getPressure(s) >= query.minPressure && store.getSize(s) >= query.minSize &&
+                        (query.pointers == null || query.pointers.get(store.getPointerId(s) & (MAX_POINTERS - 1))))
+                    return true;
+            }
+
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            return next >= to;
+        }
+
+        /**
+         * Give how far the search has gone.
+         *
+         * @return Fraction from 0 to 1
+         */
+        public float getProgress()
+        {
+            return to > from ? (float) (next - from) / (to - from) : 1.0f;
+        }
+    }
+
+    /**
+     * Build the indexes of the first events of a session.
+     *
+     * @param store Session
+     * @param events Amount of events to index
+     */
+    public EventIndex(SampleStore store, int events)
+    {
+        this.store = store;
+        this.events = events;
+
+        for(int a = 0; a < actionBitmaps.length; a++)
+            actionBitmaps[a] = new BitSet(events);
+
+        for(int e = 0; e < events; e++)
+        {
+            final int action = store.getEventAction(e);
+
+            if(action == SampleStore.ACTION_IMAGE)
+            {
+                actionBitmaps[ACTION_IMAGE].set(e);
+                continue;
+            }
+
+            actionBitmaps[Math.min(action, SessionFormat.ACTION_UNKNOWN)].set(e);
+
+            final int first = store.getEventFirstSample(e);
+
+            if(action == SessionFormat.ACTION_POINTER_DOWN || action == SessionFormat.ACTION_POINTER_UP)
+            {
+                final int actionIndex = store.getEventActionIndex(e);
+
+                if(actionIndex < store.getEventPointerCount(e))
+                    pointerBitmap(store.getPointerId(first + store.getEventHistorySize(e) * store.getEventPointerCount(e) + actionIndex)).set(e);
+            }
+            else
+            {
+                // Pointers of the current row; the history has the same ones
+                final int pointerCount = store.getEventPointerCount(e);
+                final int row = first + store.getEventHistorySize(e) * pointerCount;
+
+                for(int s = row; s < row + pointerCount && s < first + store.getEventSampleCount(e); s++)
+                    pointerBitmap(store.getPointerId(s)).set(e);
+            }
+        }
+    }
+
+    private BitSet pointerBitmap(int pointerId)
+    {
+        final int id = pointerId & (MAX_POINTERS - 1);
+
+        if(pointerBitmaps[id] == null)
+            pointerBitmaps[id] = new BitSet(events);
+
+        return pointerBitmaps[id];
+    }
+
+    /**
+     * Combine the bitmaps of the chosen values.
+     *
+     * @return New bitmap; all events if nothing is chosen
+     */
+    private BitSet union(BitSet[] bitmaps, BitSet chosen)
+    {
+        BitSet result = new BitSet(events);
+
+        if(chosen == null)
+        {
+            result.set(0, events);
+            return result;
+        }
+
+        for(int v = chosen.nextSetBit(0); v >= 0 && v < bitmaps.length; v = chosen.nextSetBit(v + 1))
+        {
+            if(bitmaps[v] != null)
+                result.or(bitmaps[v]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Start a search.
+     *
+     * @param query Query
+     * @return Search, to be continued with next()
+     */
+    public Search search(Query query)
+    {
+        return new Search(query);
+    }
+
+    /**
+     * Give the amount of events indexed.
+     *
+     * @return Amount of events
+     */
+    public int getEvents()
+    {
+        return events;
+    }
+
+    /**
+     * Give the amount of events with an action.
+     *
+     * @param action Action, or ACTION_IMAGE
+     * @return Amount of events
+     */
+    public int count(int action)
+    {
+        return actionBitmaps[action].cardinality();
+    }
+
+    /**
+     * Give the action of a name, as written in the session.
+     *
+     * @param name Name of the action, e.g. POINTER_DOWN, or IMAGE
+     * @return Action, or -1 if the name is unknown
+     */
+    public static int parseAction(String name)
+    {
+        if(name.equals("IMAGE"))
+            return ACTION_IMAGE;
+
+        for(int a = 0; a < SessionFormat.ACTION_NAMES.length; a++)
+        {
+            if(SessionFormat.ACTION_NAMES[a].equals(name))
+                return a;
+        }
+
+        return -1;
+    }
+}
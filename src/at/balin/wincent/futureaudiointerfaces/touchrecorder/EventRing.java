@@ -0,0 +1,573 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring buffer passing the recorded session from the input thread to consumers on threads of their own.
+ *
+ * The input thread publishes every event as records of primitive arrays, allocated
+ * once: a record at the beginning, one per sample and one at the end; images take
+ * a record each. An event is published as a whole by advancing a single cursor, without
+ * locks. Every consumer follows with a cursor of its own and replays the events to its
+ * handler, so that adding a consumer costs the input thread nothing.
+ *
+ * What happens if a consumer falls behind by the whole ring depends on its policy:
+ * BLOCK makes the input thread wait for it, DROP skips what it has missed, and
+ * COALESCE drops moves followed by other moves as soon as it lags by a quarter of
+ * the ring, to catch up without losing the beginning and end of any stroke. Only
+ * blocking consumers are ever looked at by the input thread, and only when the ring
+ * has wrapped around since it last looked.
+ *
+ * @author Wincent Balin
+ */
+public class EventRing implements SessionHandler
+{
+    /**
+     * Policies of consumers falling behind.
+     */
+    public static final int BLOCK = 0;
+    public static final int DROP = 1;
+    public static final int COALESCE = 2;
+
+    /**
+     * Names of the policies.
+     */
+    public static final String[] POLICY_NAMES = {"block", "drop", "coalesce"};
+
+    /**
+     * Memory taken by a record in the ring.
+     */
+    public static final int RECORD_BYTES = 1 + 4 + 4 + 8 + 4 * 4 + 4;
+
+    private static final byte BEGIN = 0;
+    private static final byte SAMPLE = 1;
+    private static final byte END = 2;
+    private static final byte IMAGE = 3;
+
+    // Waiting for records to come in or for blocking consumers to catch up: yielding
+    // a few times first, then sleeping
+    private static final int YIELDS = 16;
+    private static final long WAIT_NANOS = 1000000;
+
+    private final int capacity;
+    private final int mask;
+
+    // Records; samples as in FlightRecorder, beginnings with the shape of the event in the
+    // pointer field and the history size in the time field
+    private final byte[] kind;
+    private final int[] pointer;
+    private final long[] time;
+    private final float[] x;
+    private final float[] y;
+    private final float[] size;
+    private final float[] pressure;
+    private final String[] name;
+
+    // Records being written, and records readable by consumers
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+
+    private volatile Consumer[] consumers = new Consumer[0];
+    private volatile boolean closed = false;
+
+    // State of the input thread
+    private long next = 0;
+    private long eventEnd = 0;
+    private boolean eventOpen = false;
+    private long gate = 0;
+
+    // Counters of the input thread
+    private long events = 0;
+    private long oversized = 0;
+    private long blocked = 0;
+    private long blockedNanos = 0;
+
+    /**
+     * Create ring.
+     *
+     * @param capacity Amount of records, rounded up to a power of two; larger than any event
+     */
+    public EventRing(int capacity)
+    {
+        if(capacity < 2)
+            throw new IllegalArgumentException("Capacity must be at least 2");
+
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        mask = this.capacity - 1;
+
+        kind = new byte[this.capacity];
+        pointer = new int[this.capacity];
+        time = new long[this.capacity];
+        x = new float[this.capacity];
+        y = new float[this.capacity];
+        size = new float[this.capacity];
+        pressure = new float[this.capacity];
+        name = new String[this.capacity];
+    }
+
+    /**
+     * Add a consumer and start its thread. It receives the events published from now on.
+     *
+     * @param consumerName Name of the consumer, for the status and the thread
+     * @param handler Receiver of the events, called on the thread of the consumer only
+     * @param policy Policy if the consumer falls behind: BLOCK, DROP or COALESCE
+     * @return Consumer
+     */
+    public synchronized Consumer addConsumer(String consumerName, SessionHandler handler, int policy)
+    {
+        if(policy < BLOCK || policy > COALESCE)
+            throw new IllegalArgumentException("Unknown policy " + policy);
+
+        Consumer consumer = new Consumer(consumerName, handler, policy, published.get());
+
+        Consumer[] grown = new Consumer[consumers.length + 1];
+        System.arraycopy(consumers, 0, grown, 0, consumers.length);
+        grown[consumers.length] = consumer;
+        consumers = grown;
+
+        Thread thread = new Thread(consumer, "EventRing " + consumerName);
+        thread.setDaemon(true);
+        thread.start();
+
+        return consumer;
+    }
+
+    /**
+     * Stop publishing. Consumers replay what has been published, end the session and stop.
+     */
+    public void close()
+    {
+        closed = true;
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        final long records = 2 + (long) (historySize + 1) * pointerCount;
+
+        eventOpen = false;
+
+        if(records > capacity)
+        {
+            oversized++;
+            return;
+        }
+
+        if(!claim(records))
+            return;
+
+        final int r = (int) (next & mask);
+
+        kind[r] = BEGIN;
+        pointer[r] = (action & 0xFF) << 24 | (actionIndex & 0xFF) << 16 | (edgeFlags & 0xFF) << 8 | (pointerCount & 0xFF);
+        time[r] = historySize;
+        next++;
+
+        eventEnd = next - 1 + records - 1;
+        eventOpen = true;
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        // Samples beyond the shape of the event have no room
+        if(!eventOpen || next >= eventEnd)
+            return;
+
+        final int r = (int) (next & mask);
+
+        kind[r] = SAMPLE;
+        pointer[r] = (pointerIndex & 0xFFFF) << 16 | (pointerId & 0xFFFF);
+        this.time[r] = time;
+        this.x[r] = x;
+        this.y[r] = y;
+        this.size[r] = size;
+        this.pressure[r] = pressure;
+        next++;
+    }
+
+    @Override
+    public void endEvent()
+    {
+        if(!eventOpen)
+            return;
+
+        kind[(int) (next & mask)] = END;
+        next++;
+        eventOpen = false;
+        events++;
+
+        published.set(next);
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+        if(eventOpen || !claim(1))
+            return;
+
+        final int r = (int) (next & mask);
+
+        kind[r] = IMAGE;
+        name[r] = fileName;
+        this.time[r] = time;
+        next++;
+        events++;
+
+        published.set(next);
+    }
+
+    @Override
+    public void endSession()
+    {
+    }
+
+    /**
+     * Make room for records, waiting for blocking consumers if needed, and mark them as being written.
+     *
+     * @return False if the ring is closed
+     */
+    private boolean claim(long records)
+    {
+        final long end = next + records;
+
+        if(end - capacity > gate)
+        {
+            gate = lowestBlockingCursor();
+
+            if(end - capacity > gate)
+            {
+                final long start = System.nanoTime();
+                int attempt = 0;
+                blocked++;
+
+                while(end - capacity > gate && !closed)
+                {
+                    pause(attempt++);
+                    gate = lowestBlockingCursor();
+                }
+
+                blockedNanos += System.nanoTime() - start;
+            }
+        }
+
+        claimed.set(end);
+
+        // Reading after the claim keeps the records from being written before it
+        return !closed;
+    }
+
+    private static void pause(int attempt)
+    {
+        if(attempt < YIELDS)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(WAIT_NANOS);
+    }
+
+    private long lowestBlockingCursor()
+    {
+        long lowest = next;
+
+        for(Consumer consumer : consumers)
+        {
+            if(consumer.policy == BLOCK && !consumer.finished)
+                lowest = Math.min(lowest, consumer.cursor.get());
+        }
+
+        return lowest;
+    }
+
+    /**
+     * Give the capacity.
+     *
+     * @return Amount of records
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Give the memory taken by the records.
+     *
+     * @return Size in bytes
+     */
+    public long getMemoryBytes()
+    {
+        return (long) capacity * RECORD_BYTES;
+    }
+
+    /**
+     * Give the consumers.
+     *
+     * @return Consumers in the order they were added
+     */
+    public Consumer[] getConsumers()
+    {
+        return consumers;
+    }
+
+    /**
+     * Describe the ring and its consumers, one line each.
+     *
+     * @return Description
+     */
+    public String describe()
+    {
+        StringBuilder text = new StringBuilder(256);
+
+        text.append("Ring of ").append(capacity).append(" records, ").append(getMemoryBytes() / 1024).append(" KiB");
+        text.append(", published ").append(events).append(" events");
+
+        if(oversized > 0)
+            text.append(", ").append(oversized).append(" too large");
+
+        if(blocked > 0)
+            text.append(", waited ").append(blocked).append(" times for ").append(blockedNanos / 1000000).append(" ms");
+
+        text.append('\n');
+
+        for(Consumer consumer : consumers)
+            text.append(consumer.describe()).append('\n');
+
+        return text.toString();
+    }
+
+    /**
+     * Consumer of the ring, replaying the events to its handler on a thread of its own.
+     */
+    public class Consumer implements Runnable
+    {
+        private final String consumerName;
+        private final SessionHandler handler;
+        private final int policy;
+
+        private final AtomicLong cursor;
+        private volatile boolean finished = false;
+
+        // Event or image being replayed
+        private final EventBuffer event = new EventBuffer();
+        private String imageName = null;
+        private long imageTime = 0;
+
+        // Counters, written by the thread of the consumer only
+        private volatile long lag = 0;
+        private volatile long maxLag = 0;
+        private volatile long delivered = 0;
+        private volatile long dropped = 0;
+        private volatile long coalesced = 0;
+
+        private Consumer(String consumerName, SessionHandler handler, int policy, long start)
+        {
+            this.consumerName = consumerName;
+            this.handler = handler;
+            this.policy = policy;
+            cursor = new AtomicLong(start);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                consume();
+                handler.endSession();
+            }
+            finally
+            {
+                // A consumer gone must not hold up the input thread
+                finished = true;
+            }
+        }
+
+        private void consume()
+        {
+            long position = cursor.get();
+            int attempt = 0;
+
+            while(true)
+            {
+                // Closing is checked first, so that what has been published before is replayed
+                final boolean last = closed;
+                final long available = published.get();
+
+                if(position == available)
+                {
+                    lag = 0;
+
+                    if(last)
+                        return;
+
+                    pause(attempt++);
+                    continue;
+                }
+
+                attempt = 0;
+
+                if(available - position > capacity)
+                {
+                    // Overtaken by the input thread; records passed are lost
+                    dropped += available - position;
+                    position = available;
+                    cursor.set(position);
+                    continue;
+                }
+
+                final long end = read(position, available);
+
+                // Writing the lag before reading the claim keeps the records from being read after it
+                lag = available - position;
+                maxLag = Math.max(maxLag, lag);
+
+                if(claimed.get() - capacity > position)
+                {
+                    // Overwritten while being read
+                    dropped += available - position;
+                    position = published.get();
+                    cursor.set(position);
+                    continue;
+                }
+
+                if(imageName != null)
+                {
+                    handler.image(imageName, imageTime);
+                    delivered++;
+                }
+                else if(policy == COALESCE && isSuperseded(end, available))
+                {
+                    coalesced++;
+                }
+                else
+                {
+                    event.replay(handler);
+                    delivered++;
+                }
+
+                position = end;
+                cursor.set(position);
+            }
+        }
+
+        /**
+         * Copy the event starting at a record into the buffer, unless it is an image.
+         *
+         * @return Record after the event
+         */
+        private long read(long position, long available)
+        {
+            int r = (int) (position & mask);
+
+            if(kind[r] == IMAGE)
+            {
+                imageName = name[r];
+                imageTime = time[r];
+
+                return position + 1;
+            }
+
+            imageName = null;
+
+            final int shape = pointer[r];
+            event.begin(shape >>> 24, (shape >> 16) & 0xFF, (shape >> 8) & 0xFF, (int) time[r], shape & 0xFF);
+
+            long p = position + 1;
+
+            for(; p < available; p++)
+            {
+                r = (int) (p & mask);
+
+                if(kind[r] != SAMPLE)
+                    break;
+
+                event.add(time[r], pointer[r] >>> 16, pointer[r] & 0xFFFF, x[r], y[r], size[r], pressure[r]);
+            }
+
+            // Skip the end record
+            return p + 1;
+        }
+
+        /**
+         * Answer whether the event in the buffer is a move followed by another one, while lagging.
+         */
+        private boolean isSuperseded(long end, long available)
+        {
+            if(event.getAction() != SessionFormat.ACTION_MOVE || available - end < 1 || lag < capacity / 4)
+                return false;
+
+            final int r = (int) (end & mask);
+
+            return kind[r] == BEGIN && pointer[r] >>> 24 == SessionFormat.ACTION_MOVE;
+        }
+
+        public String getName()
+        {
+            return consumerName;
+        }
+
+        /**
+         * Give the amount of records published but not yet replayed, when last looked.
+         *
+         * @return Amount of records
+         */
+        public long getLag()
+        {
+            return lag;
+        }
+
+        public long getMaxLag()
+        {
+            return maxLag;
+        }
+
+        public long getDelivered()
+        {
+            return delivered;
+        }
+
+        /**
+         * Give the amount of records lost by falling behind.
+         *
+         * @return Amount of records
+         */
+        public long getDropped()
+        {
+            return dropped;
+        }
+
+        /**
+         * Give the amount of moves dropped to catch up.
+         *
+         * @return Amount of events
+         */
+        public long getCoalesced()
+        {
+            return coalesced;
+        }
+
+        /**
+         * Describe the consumer in one line.
+         *
+         * @return Description
+         */
+        public String describe()
+        {
+            StringBuilder text = new StringBuilder(128);
+
+            text.append(consumerName).append(" (").append(POLICY_NAMES[policy]).append("): ");
+            text.append(delivered).append(" events, lag ").append(lag).append(" records, at most ").append(maxLag);
+
+            if(dropped > 0)
+                text.append(", dropped ").append(dropped).append(" records");
+
+            if(coalesced > 0)
+                text.append(", coalesced ").append(coalesced).append(" moves");
+
+            if(finished)
+                text.append(", stopped");
+
+            return text.toString();
+        }
+    }
+}
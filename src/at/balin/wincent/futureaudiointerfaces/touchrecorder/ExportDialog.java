@@ -0,0 +1,115 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Dialog choosing the part of the session to export.
+ *
+ * Empty fields do not restrict the export. The results are given as extras
+ * FROM and UNTIL (long), POINTERS and STROKES (BitSet) and REGION (float[4]);
+ * COLUMNAR (boolean) asks for the columnar format of ColumnarWriter.
+ *
+ * @author Wincent Balin
+ */
+public class ExportDialog extends Activity implements OnClickListener
+{
+    /**
+     * Map keys of the results; those of the session times are also keys of the arguments.
+     */
+    public static final String FROM = "FROM";
+    public static final String UNTIL = "UNTIL";
+    public static final String POINTERS = "POINTERS";
+    public static final String STROKES = "STROKES";
+    public static final String REGION = "REGION";
+    public static final String COLUMNAR = "COLUMNAR";
+
+    private EditText from;
+    private EditText until;
+    private EditText pointers;
+    private EditText strokes;
+    private EditText region;
+    private CheckBox columnar;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.export);
+
+        from = (EditText) findViewById(R.id.export_from);
+        until = (EditText) findViewById(R.id.export_until);
+        pointers = (EditText) findViewById(R.id.export_pointers);
+        strokes = (EditText) findViewById(R.id.export_strokes);
+        region = (EditText) findViewById(R.id.export_region);
+        columnar = (CheckBox) findViewById(R.id.export_columnar);
+
+        // Show the time range of the session
+        final long first = getIntent().getLongExtra(FROM, 0);
+        final long last = getIntent().getLongExtra(UNTIL, 0);
+
+        TextView session = (TextView) findViewById(R.id.export_session);
+        session.setText(getResources().getString(R.string.export_session, first, last));
+
+        Button accept = (Button) findViewById(R.id.export_accept);
+        accept.setOnClickListener(this);
+    }
+
+    @Override
+    public void onClick(View v)
+    {
+        Intent intent = getIntent();
+
+        try
+        {
+            intent.putExtra(FROM, parseTime(from, Long.MIN_VALUE));
+            intent.putExtra(UNTIL, parseTime(until, Long.MAX_VALUE));
+
+            if(pointers.getText().length() > 0)
+                intent.putExtra(POINTERS, SelectionFilter.parseRanges(pointers.getText().toString()));
+
+            if(strokes.getText().length() > 0)
+                intent.putExtra(STROKES, SelectionFilter.parseRanges(strokes.getText().toString()));
+
+            if(region.getText().length() > 0)
+            {
+                final String[] borders = region.getText().toString().split(",");
+
+                if(borders.length != 4)
+                    throw new NumberFormatException("Region needs four borders");
+
+                float[] rectangle = new float[4];
+
+                for(int b = 0; b < 4; b++)
+                    rectangle[b] = Float.parseFloat(borders[b].trim());
+
+                intent.putExtra(REGION, rectangle);
+            }
+
+            intent.putExtra(COLUMNAR, columnar.isChecked());
+        }
+        catch(NumberFormatException e)
+        {
+            Toast.makeText(ExportDialog.this, R.string.wrong_export_selection, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        setResult(RESULT_OK, intent);
+        finish();
+    }
+
+    private static long parseTime(EditText field, long unrestricted)
+    {
+        final String text = field.getText().toString().trim();
+
+        return text.length() > 0 ? Long.parseLong(text) : unrestricted;
+    }
+}
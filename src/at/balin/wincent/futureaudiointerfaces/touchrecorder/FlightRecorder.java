@@ -0,0 +1,287 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Recorder keeping only the latest samples of a session, in a fixed amount of memory.
+ *
+ * Samples and events are kept in circular buffers of primitive arrays, allocated
+ * once; the newest sample overwrites the oldest one, and an event is dropped as soon
+ * as its first sample is overwritten. Recording never allocates, so that memory stays
+ * the same however long the session runs. Images are not kept.
+ *
+ * To save the latest part of the session without holding up the recording, copy
+ * it into a second recorder of the same capacity with copyTo() and replay that one.
+ *
+ * @author Wincent Balin
+ */
+public class FlightRecorder implements SessionHandler
+{
+    /**
+     * Memory taken by an event and by a sample in the buffers.
+     */
+    public static final int EVENT_BYTES = 4 + 4 + 8 + 4;
+    public static final int SAMPLE_BYTES = 8 + 4 + 4 * 4;
+
+    private final int capacity;
+    private long window;
+
+    // Events; counted only once ended, so that an event in progress is never replayed
+    private final int[] eventShape; // action, action index, edge flags and pointer count, 8 bits each
+    private final int[] eventHistory;
+    private final long[] eventFirstSample;
+    private final int[] eventSampleCount;
+    private long events = 0;
+    private boolean eventOpen = false;
+
+    // Samples
+    private final long[] time;
+    private final int[] pointer; // pointer index and pointer identifier, 16 bits each
+    private final float[] x;
+    private final float[] y;
+    private final float[] size;
+    private final float[] pressure;
+    private long samples = 0;
+
+    /**
+     * Create recorder.
+     *
+     * @param capacity Amount of samples and events to keep at most
+     * @param window Keep only events of this many ms before the newest one, or 0 for all that fit
+     */
+    public FlightRecorder(int capacity, long window)
+    {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        this.capacity = capacity;
+        this.window = window;
+
+        eventShape = new int[capacity];
+        eventHistory = new int[capacity];
+        eventFirstSample = new long[capacity];
+        eventSampleCount = new int[capacity];
+
+        time = new long[capacity];
+        pointer = new int[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        size = new float[capacity];
+        pressure = new float[capacity];
+    }
+
+    /**
+     * Give the capacity needed to keep a time window at a rate of samples.
+     *
+     * @param window Time in ms
+     * @param samplesPerSecond Highest rate of samples, all pointers together
+     * @return Amount of samples
+     */
+    public static int capacityFor(long window, int samplesPerSecond)
+    {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, window * samplesPerSecond / 1000));
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        final int e = (int) (events % capacity);
+
+        eventShape[e] = (action & 0xFF) << 24 | (actionIndex & 0xFF) << 16 | (edgeFlags & 0xFF) << 8 | (pointerCount & 0xFF);
+        eventHistory[e] = historySize;
+        eventFirstSample[e] = samples;
+        eventSampleCount[e] = 0;
+        eventOpen = true;
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        final int s = (int) (samples % capacity);
+
+        this.time[s] = time;
+        pointer[s] = (pointerIndex & 0xFFFF) << 16 | (pointerId & 0xFFFF);
+        this.x[s] = x;
+        this.y[s] = y;
+        this.size[s] = size;
+        this.pressure[s] = pressure;
+        samples++;
+
+        if(eventOpen)
+            eventSampleCount[(int) (events % capacity)]++;
+    }
+
+    @Override
+    public void endEvent()
+    {
+        if(eventOpen)
+        {
+            events++;
+            eventOpen = false;
+        }
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+    }
+
+    @Override
+    public void endSession()
+    {
+    }
+
+    /**
+     * Forget all events and samples.
+     */
+    public void clear()
+    {
+        events = 0;
+        samples = 0;
+        eventOpen = false;
+    }
+
+    /**
+     * Set the time window of the events kept.
+     *
+     * @param window Time in ms, or 0 for all that fit
+     */
+    public void setWindow(long window)
+    {
+        this.window = window;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Give the amount of samples recorded since the start, kept or overwritten.
+     *
+     * @return Amount of samples
+     */
+    public long getTotalSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * Give the amount of samples overwritten so far.
+     *
+     * @return Amount of samples
+     */
+    public long getOverwritten()
+    {
+        return Math.max(0, samples - capacity);
+    }
+
+    /**
+     * Give the memory occupied by the buffers.
+     *
+     * @return Size in bytes
+     */
+    public long getMemoryBytes()
+    {
+        return (long) capacity * (EVENT_BYTES + SAMPLE_BYTES);
+    }
+
+    /**
+     * Find the oldest event kept, i.e. whose samples are all kept and which lies in the window.
+     *
+     * @return Event number since the start
+     */
+    private long firstEvent()
+    {
+        // The slot after the newest event may already hold the event in progress
+        long low = Math.max(0, events - capacity + 1);
+        long high = events;
+
+        // First samples and times only grow, so the first event kept can be searched for
+        final long oldestSample = samples - capacity;
+        final long oldestTime = window > 0 && events > 0 ? eventTime(events - 1) - window : Long.MIN_VALUE;
+
+        while(low < high)
+        {
+            final long middle = (low + high) >>> 1;
+
+            if(eventFirstSample[(int) (middle % capacity)] < oldestSample || eventTime(middle) < oldestTime)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    private long eventTime(long event)
+    {
+        final int e = (int) (event % capacity);
+        final int count = eventSampleCount[e];
+
+        return count > 0 ? time[(int) ((eventFirstSample[e] + count - 1) % capacity)] : Long.MIN_VALUE;
+    }
+
+    /**
+     * Give the amount of events kept.
+     *
+     * @return Amount of events
+     */
+    public int getEventCount()
+    {
+        return (int) (events - firstEvent());
+    }
+
+    /**
+     * Deliver the events kept, oldest first, to a handler, and end the session.
+     *
+     * @param handler Receiver of the events
+     */
+    public void replay(SessionHandler handler)
+    {
+        for(long event = firstEvent(); event < events; event++)
+        {
+            final int e = (int) (event % capacity);
+            final int shape = eventShape[e];
+
+            handler.beginEvent(shape >>> 24, (shape >> 16) & 0xFF, (shape >> 8) & 0xFF, eventHistory[e], shape & 0xFF);
+
+            for(long sample = eventFirstSample[e]; sample < eventFirstSample[e] + eventSampleCount[e]; sample++)
+            {
+                final int s = (int) (sample % capacity);
+
+                handler.sample(time[s], pointer[s] >>> 16, pointer[s] & 0xFFFF, x[s], y[s], size[s], pressure[s]);
+            }
+
+            handler.endEvent();
+        }
+
+        handler.endSession();
+    }
+
+    /**
+     * Copy the events and samples kept into another recorder, replacing its own.
+     *
+     * @param target Recorder of the same capacity
+     */
+    public void copyTo(FlightRecorder target)
+    {
+        if(target.capacity != capacity)
+            throw new IllegalArgumentException("Recorders differ in capacity");
+
+        System.arraycopy(eventShape, 0, target.eventShape, 0, capacity);
+        System.arraycopy(eventHistory, 0, target.eventHistory, 0, capacity);
+        System.arraycopy(eventFirstSample, 0, target.eventFirstSample, 0, capacity);
+        System.arraycopy(eventSampleCount, 0, target.eventSampleCount, 0, capacity);
+
+        System.arraycopy(time, 0, target.time, 0, capacity);
+        System.arraycopy(pointer, 0, target.pointer, 0, capacity);
+        System.arraycopy(x, 0, target.x, 0, capacity);
+        System.arraycopy(y, 0, target.y, 0, capacity);
+        System.arraycopy(size, 0, target.size, 0, capacity);
+        System.arraycopy(pressure, 0, target.pressure, 0, capacity);
+
+        target.events = events;
+        target.samples = samples;
+        target.eventOpen = false;
+        target.window = window;
+    }
+}
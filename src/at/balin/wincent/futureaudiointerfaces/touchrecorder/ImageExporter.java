@@ -0,0 +1,404 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * Exporter of a session as a PNG image of any scale, e.g. for printing.
+ *
+ * The image is cut into tiles across its full width, each small enough for the
+ * memory budget of a tile. Tiles are rendered in parallel, every one by a renderer
+ * of its own, with the same drawing as on screen; they are written into the image
+ * in order as soon as they are done. At most one tile per thread is held at a time,
+ * so that memory does not depend on the size of the image.
+ *
+ * Before rendering, the session is read once to find the vertical extent of every
+ * gesture, from a DOWN to the next one. A tile renders only the gestures reaching
+ * into it, so that the work grows with the strokes in every tile rather than with
+ * the whole session per tile. Like after undoing on screen, the renderer starts
+ * afresh after skipped gestures.
+ *
+ * @author Wincent Balin
+ */
+public class ImageExporter
+{
+    /**
+     * Default memory budget of a tile in bytes.
+     */
+    public static final long DEFAULT_TILE_BYTES = 4 * 1024 * 1024;
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * Session to render, delivered in parts for every tile, possibly by several threads at once.
+     */
+    public interface Source
+    {
+        /**
+         * Give the amount of events of the session.
+         *
+         * @return Amount of events
+         */
+        int getEventCount();
+
+        /**
+         * Deliver a range of events to a handler, without ending the session.
+         *
+         * @param fromEvent First event to deliver
+         * @param toEvent Event after the last one to deliver
+         * @param handler Receiver of the events
+         * @throws IOException If the session cannot be read
+         */
+        void replay(int fromEvent, int toEvent, SessionHandler handler) throws IOException;
+    }
+
+    /**
+     * Vertical extents of the gestures of a session, on the screen.
+     */
+    private static class Gestures implements SessionHandler
+    {
+        private final StrokeRenderer settings;
+
+        // First event of every gesture, and the top and bottom its drawing reaches
+        private int count = 0;
+        private int[] first = new int[64];
+        private float[] top = new float[64];
+        private float[] bottom = new float[64];
+
+        private int events = 0;
+
+        Gestures(StrokeRenderer settings)
+        {
+            this.settings = settings;
+        }
+
+        @Override
+        public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+        {
+            if(action == SessionFormat.ACTION_DOWN || count == 0)
+                begin();
+
+            events++;
+        }
+
+        private void begin()
+        {
+            if(count == first.length)
+            {
+                first = copyOf(first, count * 2);
+                top = copyOf(top, count * 2);
+                bottom = copyOf(bottom, count * 2);
+            }
+
+            first[count] = events;
+            top[count] = Float.MAX_VALUE;
+            bottom[count] = -Float.MAX_VALUE;
+            count++;
+        }
+
+        @Override
+        public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+        {
+            final float reach = settings.getReach(size);
+
+            top[count - 1] = Math.min(top[count - 1], y - reach);
+            bottom[count - 1] = Math.max(bottom[count - 1], y + reach);
+        }
+
+        @Override
+        public void endEvent()
+        {
+        }
+
+        @Override
+        public void image(String fileName, long time)
+        {
+            if(count == 0)
+                begin();
+
+            events++;
+        }
+
+        @Override
+        public void endSession()
+        {
+        }
+
+        int end(int gesture)
+        {
+            return gesture + 1 < count ? first[gesture + 1] : events;
+        }
+
+        private static int[] copyOf(int[] array, int length)
+        {
+            int[] result = new int[length];
+            System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+            return result;
+        }
+
+        private static float[] copyOf(float[] array, int length)
+        {
+            float[] result = new float[length];
+            System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+            return result;
+        }
+    }
+
+    private final Source source;
+    private final StrokeRenderer settings;
+    private final float scale;
+    private final int width;
+    private final int height;
+
+    private int backgroundColor = 0xFFFFFFFF;
+    private Bitmap background = null;
+    private int backgroundScale = 1;
+
+    private long tileBytes = DEFAULT_TILE_BYTES;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    // Measurements of the last export
+    private int tiles = 0;
+    private int events = 0;
+    private final AtomicLong renderedEvents = new AtomicLong();
+    private long exportNanos = 0;
+
+    /**
+     * Create exporter.
+     *
+     * @param source Session to render
+     * @param settings Renderer to take the dimensions and survey mode of
+     * @param screenWidth Width of the screen the session was recorded on
+     * @param screenHeight Height of the screen
+     * @param scale Size of the image relative to the screen
+     */
+    public ImageExporter(Source source, StrokeRenderer settings, int screenWidth, int screenHeight, float scale)
+    {
+        if(scale <= 0.0f)
+            throw new IllegalArgumentException("Scale must be positive");
+
+        this.source = source;
+        this.settings = settings;
+        this.scale = scale;
+
+        width = Math.max(1, Math.round(screenWidth * scale));
+        height = Math.max(1, Math.round(screenHeight * scale));
+    }
+
+    /**
+     * Set the background below the strokes.
+     *
+     * @param color Color of the background as ARGB
+     * @param bitmap Image on the background, or null for none
+     * @param bitmapScale How many times larger the image is shown on screen
+     */
+    public void setBackground(int color, Bitmap bitmap, int bitmapScale)
+    {
+        backgroundColor = color;
+        background = bitmap;
+        backgroundScale = bitmapScale;
+    }
+
+    /**
+     * Set the memory budget of a tile.
+     *
+     * @param tileBytes Size in bytes; a tile has one row at least
+     */
+    public void setTileBytes(long tileBytes)
+    {
+        this.tileBytes = tileBytes;
+    }
+
+    /**
+     * Set the amount of tiles rendered at once.
+     *
+     * @param threads Amount of threads
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Give the height of the tiles.
+     *
+     * @return Height in pixels
+     */
+    public int getTileHeight()
+    {
+        return (int) Math.max(1, Math.min(height, tileBytes / ((long) width * BYTES_PER_PIXEL)));
+    }
+
+    /**
+     * Render the session and write it as PNG.
+     *
+     * @param out Destination, not closed
+     * @param level Compression level from 1 (fastest) to 9 (smallest)
+     * @throws IOException If the image cannot be rendered or written
+     */
+    public void export(OutputStream out, int level) throws IOException
+    {
+        final long start = System.nanoTime();
+        final int tileHeight = getTileHeight();
+
+        tiles = (height + tileHeight - 1) / tileHeight;
+        events = source.getEventCount();
+        renderedEvents.set(0);
+
+        final Gestures gestures = new Gestures(settings);
+        source.replay(0, events, gestures);
+
+        PngWriter png = new PngWriter(out, width, height, level);
+        int[] pixels = new int[width];
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Bitmap>> pending = new LinkedList<Future<Bitmap>>();
+
+        try
+        {
+            int next = 0;
+
+            for(int t = 0; t < tiles; t++)
+            {
+                // Keep every thread busy, holding no more tiles than threads
+                while(next < tiles && pending.size() < threads)
+                    pending.add(pool.submit(renderTile(next++ * tileHeight, tileHeight, gestures)));
+
+                Bitmap tile = pending.remove(0).get();
+
+                for(int y = 0; y < tile.getHeight(); y++)
+                {
+                    tile.getPixels(pixels, 0, width, 0, y, width, 1);
+                    png.writeRow(pixels, 0);
+                }
+
+                tile.recycle();
+            }
+
+            png.finish();
+        }
+        catch(InterruptedException e)
+        {
+            throw new IOException("Export interrupted");
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException("Cannot render tile: " + e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        exportNanos = System.nanoTime() - start;
+    }
+
+    private Callable<Bitmap> renderTile(final int top, final int tileHeight, final Gestures gestures)
+    {
+        return new Callable<Bitmap>()
+        {
+            @Override
+            public Bitmap call() throws IOException
+            {
+                Bitmap tile = Bitmap.createBitmap(width, Math.min(tileHeight, height - top), Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(tile);
+                canvas.drawColor(backgroundColor);
+
+                // Screen coordinates onto the part of the image in the tile
+                canvas.translate(0.0f, -top);
+                canvas.scale(scale, scale);
+
+                if(background != null)
+                {
+                    Paint paint = new Paint();
+                    paint.setFilterBitmap(true);
+                    canvas.drawBitmap(background, null, new RectF(0.0f, 0.0f,
+                            background.getWidth() * backgroundScale, background.getHeight() * backgroundScale), paint);
+                }
+
+                StrokeRenderer renderer = new StrokeRenderer(settings);
+                renderer.setCanvas(canvas);
+
+                // Part of the screen in the tile
+                final float screenTop = top / scale;
+                final float screenBottom = (top + tileHeight) / scale;
+
+                // Gestures following each other are replayed at once
+                int from = -1;
+                int to = -1;
+
+                for(int g = 0; g < gestures.count; g++)
+                {
+                    if(gestures.bottom[g] < screenTop || gestures.top[g] > screenBottom)
+                        continue;
+
+                    if(gestures.first[g] != to)
+                    {
+                        render(from, to, renderer);
+                        renderer.reset();
+                        from = gestures.first[g];
+                    }
+
+                    to = gestures.end(g);
+                }
+
+                render(from, to, renderer);
+
+                return tile;
+            }
+        };
+    }
+
+    private void render(int from, int to, StrokeRenderer renderer) throws IOException
+    {
+        if(from < 0)
+            return;
+
+        source.replay(from, to, renderer);
+        renderedEvents.addAndGet(to - from);
+    }
+
+    /**
+     * Describe the last export in one line.
+     *
+     * @return Description
+     */
+    public String describe()
+    {
+        StringBuilder text = new StringBuilder(128);
+
+        text.append(width).append('x').append(height).append(" px at scale ").append(scale);
+        text.append(", ").append(tiles).append(" tiles of ").append(getTileHeight()).append(" rows");
+        text.append(" rendering ").append(tiles > 0 ? renderedEvents.get() / tiles : 0).append(" of ").append(events).append(" events each");
+        text.append(" on ").append(threads).append(" threads, at most ").append((long) threads * width * getTileHeight() * BYTES_PER_PIXEL / 1024).append(" KiB of tiles");
+        text.append(", ").append(exportNanos / 1000000).append(" ms");
+
+        return text.toString();
+    }
+}
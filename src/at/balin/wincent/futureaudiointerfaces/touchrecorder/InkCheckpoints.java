@@ -0,0 +1,144 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Compressed snapshots of the ink, so that it can be rendered anew from the
+ * nearest snapshot instead of from the start of the session.
+ *
+ * Every snapshot notes the amount of events rendered into it. When the
+ * snapshots exceed their memory budget, the oldest ones are dropped.
+ * Snapshots may be compressed in the background and added afterwards, unless
+ * the generation has changed meanwhile.
+ *
+ * @author Wincent Balin
+ */
+public class InkCheckpoints
+{
+    private final long budget;
+    private long bytes = 0;
+    private int generation = 0;
+
+    private final List<Integer> events = new ArrayList<Integer>();
+    private final List<byte[]> images = new ArrayList<byte[]>();
+
+    /**
+     * Create empty list of snapshots.
+     *
+     * @param budget Largest memory to take, in bytes
+     */
+    public InkCheckpoints(long budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * Compress the ink into a snapshot; may be done on any thread.
+     *
+     * @param ink Bitmap of the ink, not changed while compressed
+     * @return Compressed snapshot
+     */
+    public static byte[] compress(Bitmap ink)
+    {
+        ByteArrayOutputStream image = new ByteArrayOutputStream(64 * 1024);
+        ink.compress(Bitmap.CompressFormat.PNG, 100, image);
+
+        return image.toByteArray();
+    }
+
+    /**
+     * Add a snapshot of the ink.
+     *
+     * @param event Amount of events rendered into the ink
+     * @param image Snapshot as given by compress()
+     */
+    public void add(int event, byte[] image)
+    {
+        events.add(event);
+        images.add(image);
+        bytes += image.length;
+
+        while(bytes > budget && !images.isEmpty())
+            remove(0);
+    }
+
+    /**
+     * Give the generation of the snapshots, which changes whenever they are invalidated or cleared.
+     *
+     * @return Generation
+     */
+    public int getGeneration()
+    {
+        return generation;
+    }
+
+    private void remove(int i)
+    {
+        bytes -= images.get(i).length;
+        events.remove(i);
+        images.remove(i);
+    }
+
+    /**
+     * Drop the snapshots containing events after a given one, e.g. because they have been undone.
+     *
+     * @param event Index of the first changed event
+     */
+    public void invalidateFrom(int event)
+    {
+        generation++;
+
+        while(!events.isEmpty() && events.get(events.size() - 1) > event)
+            remove(events.size() - 1);
+    }
+
+    /**
+     * Remove all snapshots.
+     */
+    public void clear()
+    {
+        generation++;
+        events.clear();
+        images.clear();
+        bytes = 0;
+    }
+
+    public int size()
+    {
+        return events.size();
+    }
+
+    /**
+     * Give the amount of events rendered into a snapshot.
+     *
+     * @param i Index of the snapshot
+     * @return Amount of events
+     */
+    public int getEvent(int i)
+    {
+        return events.get(i);
+    }
+
+    /**
+     * Decompress a snapshot.
+     *
+     * @param i Index of the snapshot
+     * @return Bitmap of the ink, or null if it cannot be decoded
+     */
+    public Bitmap restore(int i)
+    {
+        final byte[] image = images.get(i);
+
+        return BitmapFactory.decodeByteArray(image, 0, image.length);
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+}
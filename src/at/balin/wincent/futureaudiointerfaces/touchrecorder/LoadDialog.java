@@ -0,0 +1,88 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.Toast;
+
+/**
+ * Dialog choosing the synthetic load to generate.
+ *
+ * The results are given as extras SEED and DURATION (long), POINTERS, RATE,
+ * HISTORY and SHAPE (int), the last one a shape of LoadGenerator.
+ *
+ * @author Wincent Balin
+ */
+public class LoadDialog extends Activity implements OnClickListener
+{
+    /**
+     * Map keys of the results.
+     */
+    public static final String SEED = "SEED";
+    public static final String POINTERS = "POINTERS";
+    public static final String RATE = "RATE";
+    public static final String HISTORY = "HISTORY";
+    public static final String SHAPE = "SHAPE";
+    public static final String DURATION = "DURATION";
+
+    private EditText seed;
+    private EditText pointers;
+    private EditText rate;
+    private EditText history;
+    private EditText shape;
+    private EditText duration;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.load);
+
+        seed = (EditText) findViewById(R.id.load_seed);
+        pointers = (EditText) findViewById(R.id.load_pointers);
+        rate = (EditText) findViewById(R.id.load_rate);
+        history = (EditText) findViewById(R.id.load_history);
+        shape = (EditText) findViewById(R.id.load_shape);
+        duration = (EditText) findViewById(R.id.load_duration);
+
+        Button accept = (Button) findViewById(R.id.load_accept);
+        accept.setOnClickListener(this);
+    }
+
+    @Override
+    public void onClick(View v)
+    {
+        Intent intent = getIntent();
+
+        try
+        {
+            final int pointerCount = Integer.parseInt(pointers.getText().toString().trim());
+            final int eventRate = Integer.parseInt(rate.getText().toString().trim());
+            final int historySize = Integer.parseInt(history.getText().toString().trim());
+            final int strokeShape = LoadGenerator.parseShape(shape.getText().toString().trim());
+            final long length = Long.parseLong(duration.getText().toString().trim());
+
+            if(pointerCount < 1 || pointerCount > 32 || eventRate < 1 || historySize < 0 || strokeShape < 0 || length < 0)
+                throw new NumberFormatException("Load out of range");
+
+            intent.putExtra(SEED, Long.parseLong(seed.getText().toString().trim()));
+            intent.putExtra(POINTERS, pointerCount);
+            intent.putExtra(RATE, eventRate);
+            intent.putExtra(HISTORY, historySize);
+            intent.putExtra(SHAPE, strokeShape);
+            intent.putExtra(DURATION, length);
+        }
+        catch(NumberFormatException e)
+        {
+            Toast.makeText(LoadDialog.this, R.string.wrong_load_settings, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        setResult(RESULT_OK, intent);
+        finish();
+    }
+}
@@ -0,0 +1,351 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.Random;
+
+/**
+ * Generator of synthetic touch sessions for stress and throughput tests.
+ *
+ * Gestures of GESTURE_LENGTH ms follow each other until the duration is
+ * reached. In every gesture all pointers go down one after another, move
+ * along their shapes with rate move events per second, each carrying a
+ * history of historySize rows, and go up again in reverse order. Shapes,
+ * positions, speeds, sizes and pressures are drawn from a random generator,
+ * so that the same seed always gives the same session.
+ *
+ * @author Wincent Balin
+ */
+public class LoadGenerator
+{
+    /**
+     * Shapes of the strokes.
+     */
+    public static final int SHAPE_LINE = 0;
+    public static final int SHAPE_CIRCLE = 1;
+    public static final int SHAPE_SCRIBBLE = 2;
+
+    private static final String[] SHAPE_NAMES = {"line", "circle", "scribble"};
+
+    /**
+     * Length of a gesture and pause between gestures, in ms.
+     */
+    public static final long GESTURE_LENGTH = 2000;
+    public static final long GESTURE_PAUSE = 100;
+
+    private static final int MAX_POINTERS = 32;
+
+    // Phases of a gesture
+    private static final int PHASE_DOWN = 0;
+    private static final int PHASE_MOVE = 1;
+    private static final int PHASE_UP = 2;
+    private static final int PHASE_DONE = 3;
+
+    private final Random random;
+    private final int pointers;
+    private final double interval;
+    private final int historySize;
+    private final int shape;
+    private final long startTime;
+    private final long endTime;
+    private final float width;
+    private final float height;
+
+    // Shape of every pointer in the current gesture
+    private final float[] centerX;
+    private final float[] centerY;
+    private final float[] radius;
+    private final float[] phase;
+    private final float[] speed;
+    private final float[] velocityX;
+    private final float[] velocityY;
+    private final float[] walkX;
+    private final float[] walkY;
+    private final long[] walkTime;
+    private final float[] size;
+    private final float[] pressure;
+
+    private int state = PHASE_DOWN;
+    private int down = 0;
+    private long gestureStart;
+    private double clock;
+    private long lastTime;
+    private int events = 0;
+
+    /**
+     * Create generator.
+     *
+     * @param seed Seed of the random generator
+     * @param pointers Amount of pointers down at once, 1 to 32
+     * @param rate Move events per second
+     * @param historySize Amount of historical rows of every move event
+     * @param shape One of the SHAPE constants
+     * @param startTime Time of the first event, in ms
+     * @param duration Length of the session, in ms
+     * @param width Width of the area to touch
+     * @param height Height of the area to touch
+     */
+    public LoadGenerator(long seed, int pointers, int rate, int historySize, int shape, long startTime, long duration, float width, float height)
+    {
+        if(pointers < 1 || pointers > MAX_POINTERS)
+            throw new IllegalArgumentException("Amount of pointers must be from 1 to " + MAX_POINTERS);
+
+        if(rate < 1 || historySize < 0 || duration < 0 || shape < SHAPE_LINE || shape > SHAPE_SCRIBBLE)
+            throw new IllegalArgumentException("Rate must be positive, history and duration not negative, shape known");
+
+        random = new Random(seed);
+        this.pointers = pointers;
+        interval = 1000.0 / rate;
+        this.historySize = historySize;
+        this.shape = shape;
+        this.startTime = startTime;
+        endTime = startTime + duration;
+        this.width = width;
+        this.height = height;
+
+        centerX = new float[pointers];
+        centerY = new float[pointers];
+        radius = new float[pointers];
+        phase = new float[pointers];
+        speed = new float[pointers];
+        velocityX = new float[pointers];
+        velocityY = new float[pointers];
+        walkX = new float[pointers];
+        walkY = new float[pointers];
+        walkTime = new long[pointers];
+        size = new float[pointers];
+        pressure = new float[pointers];
+
+        clock = startTime;
+        lastTime = startTime;
+        startGesture();
+    }
+
+    /**
+     * Give the shape with a name.
+     *
+     * @param name Name of the shape: line, circle or scribble
+     * @return One of the SHAPE constants, or -1 if the name is unknown
+     */
+    public static int parseShape(String name)
+    {
+        for(int s = 0; s < SHAPE_NAMES.length; s++)
+        {
+            if(SHAPE_NAMES[s].equals(name))
+                return s;
+        }
+
+        return -1;
+    }
+
+    private void startGesture()
+    {
+        gestureStart = (long) clock;
+        down = 0;
+
+        for(int p = 0; p < pointers; p++)
+        {
+            radius[p] = Math.min(width, height) * (0.05f + 0.15f * random.nextFloat());
+            centerX[p] = radius[p] + random.nextFloat() * Math.max(0.0f, width - 2.0f * radius[p]);
+            centerY[p] = radius[p] + random.nextFloat() * Math.max(0.0f, height - 2.0f * radius[p]);
+            phase[p] = random.nextFloat() * (float) (2.0 * Math.PI);
+
+            // Up to one screen width per second
+            speed[p] = (0.2f + 0.8f * random.nextFloat()) * width / 1000.0f;
+
+            final double angle = random.nextDouble() * 2.0 * Math.PI;
+            velocityX[p] = speed[p] * (float) Math.cos(angle);
+            velocityY[p] = speed[p] * (float) Math.sin(angle);
+            walkX[p] = centerX[p];
+            walkY[p] = centerY[p];
+            walkTime[p] = gestureStart;
+
+            size[p] = 0.1f + 0.2f * random.nextFloat();
+            pressure[p] = 0.2f + 0.6f * random.nextFloat();
+        }
+    }
+
+    /**
+     * Answer whether there are events left.
+     *
+     * @return True until the last event has been given
+     */
+    public boolean hasNext()
+    {
+        return state != PHASE_DONE;
+    }
+
+    /**
+     * Give the time of the next event.
+     *
+     * @return Time in ms
+     */
+    public long nextTime()
+    {
+        return Math.max(lastTime, (long) clock);
+    }
+
+    /**
+     * Generate the next event.
+     *
+     * @param event Receives the event
+     * @return False if there are no events left
+     */
+    public boolean next(EventBuffer event)
+    {
+        final long time = nextTime();
+
+        switch(state)
+        {
+        case PHASE_DOWN:
+            // Pointers go down one per event, a millisecond apart
+            event.begin(down == 0 ? SessionFormat.ACTION_DOWN : SessionFormat.ACTION_POINTER_DOWN, down, 0, 0, down + 1);
+            down++;
+            addRow(event, time, down);
+            clock = time + 1;
+
+            if(down == pointers)
+                state = PHASE_MOVE;
+            break;
+
+        case PHASE_MOVE:
+            event.begin(SessionFormat.ACTION_MOVE, 0, 0, historySize, down);
+
+            // History spread evenly over the interval since the last event
+            for(int row = 1; row <= historySize; row++)
+                addRow(event, lastTime + Math.round((time - lastTime) * (double) row / (historySize + 1)), down);
+
+            addRow(event, time, down);
+            clock += interval;
+
+            if(clock >= Math.min(endTime, gestureStart + GESTURE_LENGTH))
+                state = PHASE_UP;
+            break;
+
+        case PHASE_UP:
+            // The last pointer goes up first, so that the others keep their indices
+            down--;
+            event.begin(down == 0 ? SessionFormat.ACTION_UP : SessionFormat.ACTION_POINTER_UP, down, 0, 0, down + 1);
+            addRow(event, time, down + 1);
+            clock = time + 1;
+
+            if(down == 0)
+            {
+                if(clock + GESTURE_PAUSE >= endTime)
+                {
+                    state = PHASE_DONE;
+                }
+                else
+                {
+                    clock += GESTURE_PAUSE;
+                    state = PHASE_DOWN;
+                    startGesture();
+                }
+            }
+            break;
+
+        default:
+            return false;
+        }
+
+        lastTime = time;
+        events++;
+
+        return true;
+    }
+
+    private void addRow(EventBuffer event, long time, int count)
+    {
+        for(int p = 0; p < count; p++)
+        {
+            final float t = time - gestureStart;
+            float x;
+            float y;
+
+            switch(shape)
+            {
+            case SHAPE_LINE:
+                // Back and forth through the center
+                final float reach = (float) Math.sin(phase[p] + t * speed[p] / radius[p]) * radius[p];
+                x = centerX[p] + reach * (float) Math.cos(phase[p]);
+                y = centerY[p] + reach * (float) Math.sin(phase[p]);
+                break;
+
+            case SHAPE_CIRCLE:
+                final float angle = phase[p] + t * speed[p] / radius[p];
+                x = centerX[p] + radius[p] * (float) Math.cos(angle);
+                y = centerY[p] + radius[p] * (float) Math.sin(angle);
+                break;
+
+            default:
+                x = walk(p, time);
+                y = walkY[p];
+                break;
+            }
+
+            event.add(time, p, p, x, y, size[p] * (0.9f + 0.2f * random.nextFloat()), pressure[p] * (0.9f + 0.2f * random.nextFloat()));
+        }
+    }
+
+    /**
+     * Move a pointer of a scribble to a time, turning a little at random and
+     * bouncing off the borders.
+     *
+     * @return New x; y is in walkY
+     */
+    private float walk(int p, long time)
+    {
+        final float dt = Math.max(0, time - walkTime[p]);
+        final double turn = (random.nextDouble() - 0.5) * 0.5;
+        final float cos = (float) Math.cos(turn);
+        final float sin = (float) Math.sin(turn);
+        final float vx = velocityX[p] * cos - velocityY[p] * sin;
+        final float vy = velocityX[p] * sin + velocityY[p] * cos;
+
+        velocityX[p] = (walkX[p] + vx * dt < 0.0f || walkX[p] + vx * dt > width) ? -vx : vx;
+        velocityY[p] = (walkY[p] + vy * dt < 0.0f || walkY[p] + vy * dt > height) ? -vy : vy;
+        walkX[p] += velocityX[p] * dt;
+        walkY[p] += velocityY[p] * dt;
+        walkTime[p] = Math.max(walkTime[p], time);
+
+        return walkX[p];
+    }
+
+    /**
+     * Deliver all remaining events to a handler and end the session.
+     *
+     * @param handler Receiver of the events
+     */
+    public void generate(SessionHandler handler)
+    {
+        EventBuffer event = new EventBuffer();
+
+        while(next(event))
+            event.replay(handler);
+
+        handler.endSession();
+    }
+
+    /**
+     * Give the amount of events generated so far.
+     *
+     * @return Amount of events
+     */
+    public int getEvents()
+    {
+        return events;
+    }
+
+    /**
+     * Describe the generated load.
+     *
+     * @return One line of text
+     */
+    public String describe()
+    {
+        StringBuilder text = new StringBuilder(64);
+
+        text.append(pointers).append(" pointers ").append(Math.round(1000.0 / interval)).append(" Hz history ").append(historySize);
+        text.append(' ').append(SHAPE_NAMES[shape]).append(' ').append(endTime - startTime).append(" ms");
+
+        return text.toString();
+    }
+}
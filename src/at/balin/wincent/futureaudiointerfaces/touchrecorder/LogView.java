@@ -1,23 +1,523 @@
 package at.balin.wincent.futureaudiointerfaces.touchrecorder;
 
+import java.io.StringWriter;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.SeekBar;
+import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
+import android.widget.Toast;
 
-public class LogView extends Activity
+/**
+ * Viewer of the log.
+ *
+ * Either shows the text given as "LogData", or the session given to show(),
+ * one event per list entry. Entries are formatted only when they become visible;
+ * the scrubber jumps to the first event at the chosen time. Events of undone
+ * gestures are marked.
+ *
+ * The filter bar shows only the events with the chosen actions and pointers,
+ * within a time range, with a sample reaching the thresholds of pressure and
+ * size. It is backed by an EventIndex built in the background when the session
+ * is opened; matches are shown while the search goes on. The session must not
+ * be spilled while isShowingSession() answers true, as the viewer reads it in place.
+ *
+ * @author Wincent Balin
+ */
+public class LogView extends Activity implements OnSeekBarChangeListener, OnClickListener
 {
+    // Events searched per step, and most matches handed over per step
+    private static final int SEARCH_STEP = 64 * 1024;
+    private static final int SEARCH_MATCHES = 4 * 1024;
+
+    // Session to show, handed over by show()
+    private static SampleStore session = null;
+    private static StrokeHistory sessionHistory = null;
+
+    // Amount of viewers and background tasks reading a session
+    private static final AtomicInteger readers = new AtomicInteger();
+
+    private SampleStore store;
+    private boolean reading = false;
+    private StrokeHistory history;
+    private boolean humanReadable;
+    private long firstTime;
+
+    private ListView entries;
+    private TextView time;
+    private EventAdapter adapter;
+
+    private EventIndex index = null;
+    private String indexStatus = null;
+    private AsyncTask<Void, Void, EventIndex> indexer = null;
+    private AsyncTask<Void, Object, Void> searcher = null;
+
+    private EditText filterActions;
+    private EditText filterPointers;
+    private EditText filterFrom;
+    private EditText filterUntil;
+    private EditText filterPressure;
+    private EditText filterSize;
+    private Button filterApply;
+    private TextView filterStatus;
+
+    /**
+     * Show a session.
+     *
+     * @param context Context starting the viewer
+     * @param store Session to show
+     * @param history History of the gestures, marking undone events; may be null
+     * @param humanReadable Whether to show the human-readable format
+     */
+    public static void show(Context context, SampleStore store, StrokeHistory history, boolean humanReadable)
+    {
+        session = store;
+        sessionHistory = history;
+
+        Intent intent = new Intent(context, LogView.class);
+        intent.putExtra("HumanReadable", humanReadable);
+        context.startActivity(intent);
+    }
+
+    /**
+     * Answer whether a session given to show() is being read.
+     *
+     * @return True while the session must not be spilled
+     */
+    public static boolean isShowingSession()
+    {
+        return readers.get() > 0;
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.logview);
-        
-        String data = getIntent().getExtras().getString("LogData");
-        
-        if(data.length() > 0)
+
+        entries = (ListView) findViewById(R.id.log_entries);
+        entries.setEmptyView(findViewById(R.id.log_content));
+
+        time = (TextView) findViewById(R.id.log_time);
+        SeekBar scrubber = (SeekBar) findViewById(R.id.log_scrubber);
+
+        filterActions = (EditText) findViewById(R.id.log_filter_actions);
+        filterPointers = (EditText) findViewById(R.id.log_filter_pointers);
+        filterFrom = (EditText) findViewById(R.id.log_filter_from);
+        filterUntil = (EditText) findViewById(R.id.log_filter_until);
+        filterPressure = (EditText) findViewById(R.id.log_filter_pressure);
+        filterSize = (EditText) findViewById(R.id.log_filter_size);
+        filterApply = (Button) findViewById(R.id.log_filter_apply);
+        filterStatus = (TextView) findViewById(R.id.log_filter_status);
+
+        final String data = getIntent().getStringExtra("LogData");
+
+        if(data != null)
+        {
+            // Text given, nothing to scrub through or filter
+            findViewById(R.id.log_filter).setVisibility(View.GONE);
+            time.setVisibility(View.GONE);
+            scrubber.setVisibility(View.GONE);
+
+            if(data.length() > 0)
+                entries.setAdapter(new ArrayAdapter<String>(this, R.layout.logviewentry, Collections.singletonList(data)));
+
+            return;
+        }
+
+        store = session;
+        history = sessionHistory;
+        humanReadable = getIntent().getBooleanExtra("HumanReadable", true);
+
+        if(store == null || store.getEventCount() == 0)
+        {
+            findViewById(R.id.log_filter).setVisibility(View.GONE);
+            time.setVisibility(View.GONE);
+            scrubber.setVisibility(View.GONE);
+            return;
+        }
+
+        readers.incrementAndGet();
+        reading = true;
+
+        final int events = store.getEventCount();
+        firstTime = store.getEventTime(0);
+
+        scrubber.setMax((int) Math.min(Integer.MAX_VALUE, store.getEventTime(events - 1) - firstTime));
+        scrubber.setOnSeekBarChangeListener(this);
+        showTime(firstTime);
+
+        adapter = new EventAdapter(events);
+        entries.setAdapter(adapter);
+
+        // Filtering waits for the index
+        filterApply.setEnabled(false);
+        filterApply.setOnClickListener(this);
+        buildIndex(events);
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        if(indexer != null)
+            indexer.cancel(false);
+
+        if(searcher != null)
+            searcher.cancel(false);
+
+        // Tasks still running hold the session themselves
+        if(reading)
+            readers.decrementAndGet();
+
+        super.onDestroy();
+    }
+
+    private void buildIndex(final int events)
+    {
+        filterStatus.setText(getResources().getString(R.string.logview_indexing, events));
+
+        final long start = System.nanoTime();
+
+        indexer = new AsyncTask<Void, Void, EventIndex>()
+        {
+            @Override
+            protected EventIndex doInBackground(Void... params)
+            {
+                readers.incrementAndGet();
+
+                try
+                {
+                    return isCancelled() ? null : new EventIndex(store, events);
+                }
+                finally
+                {
+                    readers.decrementAndGet();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(EventIndex result)
+            {
+                index = result;
+                indexer = null;
+                filterApply.setEnabled(true);
+                indexStatus = getResources().getString(R.string.logview_indexed, events, (System.nanoTime() - start) / 1000000);
+                filterStatus.setText(indexStatus);
+            }
+        }.execute();
+    }
+
+    @Override
+    public void onClick(View v)
+    {
+        EventIndex.Query query = new EventIndex.Query();
+        boolean filtered = false;
+
+        try
+        {
+            final String actions = filterActions.getText().toString().trim();
+
+            if(actions.length() > 0)
+            {
+                query.actions = new BitSet();
+
+                for(String name : actions.split(","))
+                {
+                    final int action = EventIndex.parseAction(name.trim().toUpperCase());
+
+                    if(action < 0)
+                        throw new NumberFormatException("Unknown action " + name);
+
+                    query.actions.set(action);
+                }
+
+                filtered = true;
+            }
+
+            if(filterPointers.getText().length() > 0)
+            {
+                query.pointers = SelectionFilter.parseRanges(filterPointers.getText().toString());
+                filtered = true;
+            }
+
+            if(filterFrom.getText().length() > 0)
+            {
+                query.fromTime = Long.parseLong(filterFrom.getText().toString().trim());
+                filtered = true;
+            }
+
+            if(filterUntil.getText().length() > 0)
+            {
+                query.untilTime = Long.parseLong(filterUntil.getText().toString().trim());
+                filtered = true;
+            }
+
+            if(filterPressure.getText().length() > 0)
+            {
+                query.minPressure = Float.parseFloat(filterPressure.getText().toString().trim());
+                filtered = true;
+            }
+
+            if(filterSize.getText().length() > 0)
+            {
+                query.minSize = Float.parseFloat(filterSize.getText().toString().trim());
+                filtered = true;
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            Toast.makeText(this, R.string.wrong_filter, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        if(searcher != null)
+            searcher.cancel(false);
+
+        if(filtered)
+        {
+            search(query);
+        }
+        else
+        {
+            // Empty filter shows all events again
+            searcher = null;
+            adapter.showAll();
+            filterStatus.setText(indexStatus);
+        }
+    }
+
+    private void search(EventIndex.Query query)
+    {
+        final EventIndex.Search search = index.search(query);
+        final long start = System.nanoTime();
+
+        adapter.showMatches();
+
+        searcher = new AsyncTask<Void, Object, Void>()
+        {
+            @Override
+            protected Void doInBackground(Void... params)
+            {
+                int[] matches = new int[SEARCH_MATCHES];
+
+                readers.incrementAndGet();
+
+                try
+                {
+                    while(!search.isDone() && !isCancelled())
+                    {
+                        final int count = search.next(matches, SEARCH_STEP);
+                        int[] found = new int[count];
+                        System.arraycopy(matches, 0, found, 0, count);
+
+                        publishProgress(found, search.getProgress());
+                    }
+                }
+                finally
+                {
+                    readers.decrementAndGet();
+                }
+
+                return null;
+            }
+
+            @Override
+            protected void onProgressUpdate(Object... values)
+            {
+                // A cancelled search must not add to the next one
+                if(searcher != this)
+                    return;
+
+                adapter.addMatches((int[]) values[0]);
+                filterStatus.setText(getResources().getString(R.string.logview_searching,
+                        adapter.getCount(), Math.round((Float) values[1] * 100.0f)));
+            }
+
+            @Override
+            protected void onPostExecute(Void result)
+            {
+                if(searcher != this)
+                    return;
+
+                searcher = null;
+                filterStatus.setText(getResources().getString(R.string.logview_found,
+                        adapter.getCount(), index.getEvents(), (System.nanoTime() - start) / 1000000));
+            }
+        }.execute();
+    }
+
+    @Override
+    public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+    {
+        if(!fromUser)
+            return;
+
+        final long target = firstTime + progress;
+        showTime(target);
+
+        entries.setSelection(adapter.findPosition(store.findEventAt(target)));
+    }
+
+    @Override
+    public void onStartTrackingTouch(SeekBar seekBar)
+    {
+    }
+
+    @Override
+    public void onStopTrackingTouch(SeekBar seekBar)
+    {
+    }
+
+    private void showTime(long target)
+    {
+        time.setText(getResources().getString(R.string.logview_time, target));
+    }
+
+    /**
+     * Adapter formatting events of the session on demand, either all of them or
+     * the matches of the filter found so far.
+     *
+     * @author Wincent Balin
+     */
+    private class EventAdapter extends BaseAdapter
+    {
+        private final int events;
+
+        // Indexes of the matching events in ascending order, or null to show all
+        private int[] matches = null;
+        private int matchCount = 0;
+
+        /**
+         * Create adapter.
+         *
+         * @param events Amount of events to show; events recorded later are left out
+         */
+        public EventAdapter(int events)
         {
-            TextView logContent = (TextView) findViewById(R.id.log_content);
-            logContent.setText(data);
+            this.events = events;
+        }
+
+        public void showAll()
+        {
+            matches = null;
+            matchCount = 0;
+            notifyDataSetChanged();
+        }
+
+        public void showMatches()
+        {
+            matches = new int[SEARCH_MATCHES];
+            matchCount = 0;
+            notifyDataSetChanged();
+        }
+
+        public void addMatches(int[] found)
+        {
+            if(found.length == 0)
+                return;
+
+            if(matchCount + found.length > matches.length)
+            {
+                int[] grown = new int[Math.max(matches.length * 2, matchCount + found.length)];
+                System.arraycopy(matches, 0, grown, 0, matchCount);
+                matches = grown;
+            }
+
+            System.arraycopy(found, 0, matches, matchCount, found.length);
+            matchCount += found.length;
+            notifyDataSetChanged();
+        }
+
+        /**
+         * Find the position of the first shown event at or after an event.
+         *
+         * @param event Index of the event
+         * @return Position in the list
+         */
+        public int findPosition(int event)
+        {
+            if(matches == null)
+                return Math.min(event, events - 1);
+
+            int low = 0;
+            int high = matchCount;
+
+            while(low < high)
+            {
+                final int middle = (low + high) >>> 1;
+
+                if(matches[middle] < event)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+
+            return Math.min(low, Math.max(0, matchCount - 1));
+        }
+
+        private int getEvent(int position)
+        {
+            return matches != null ? matches[position] : position;
+        }
+
+        @Override
+        public int getCount()
+        {
+            return matches != null ? matchCount : events;
+        }
+
+        @Override
+        public Object getItem(int position)
+        {
+            final int event = getEvent(position);
+
+            StringWriter text = new StringWriter();
+            store.replay(event, event + 1, new SessionWriter(text, humanReadable));
+
+            // Line ends of the format are given by the list
+            String description = text.toString();
+
+            while(description.endsWith("\n"))
+                description = description.substring(0, description.length() - 1);
+
+            if(history != null && history.isUndone(event))
+                description = getResources().getString(R.string.logview_undone, description);
+
+            return description;
+        }
+
+        @Override
+        public long getItemId(int position)
+        {
+            return getEvent(position);
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent)
+        {
+            TextView entry = (TextView) convertView;
+
+            if(entry == null)
+                entry = (TextView) getLayoutInflater().inflate(R.layout.logviewentry, parent, false);
+
+            entry.setText((String) getItem(position));
+
+            return entry;
         }
     }
 }
@@ -0,0 +1,246 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Account of the memory taken by the parts of the application, releasing
+ * memory when it exceeds a budget or when the system is short of memory.
+ *
+ * Parts are registered with the stage they release memory in. Caches are
+ * released first, then the recorded session is spilled, and only then is the
+ * background downsampled; parts of stage FIXED are accounted but never released.
+ *
+ * @author Wincent Balin
+ */
+public class MemoryBudget
+{
+    /**
+     * Stages of releasing memory, in the order they are applied.
+     */
+    public static final int FIXED = -1;
+    public static final int CACHES = 0;
+    public static final int SESSION = 1;
+    public static final int BACKGROUND = 2;
+
+    /**
+     * Names of the stages.
+     */
+    public static final String[] STAGE_NAMES = {"caches", "session", "background"};
+
+    /**
+     * Levels given to onTrimMemory() since API 14, here for older SDKs.
+     */
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    /**
+     * Part of the application taking memory.
+     */
+    public interface Part
+    {
+        /**
+         * Give the memory taken.
+         *
+         * @return Size in bytes
+         */
+        long getBytes();
+
+        /**
+         * Release memory, as far as possible at the moment.
+         */
+        void release();
+    }
+
+    private long budget = 0;
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<Integer> stages = new ArrayList<Integer>();
+    private final List<Part> parts = new ArrayList<Part>();
+
+    // Counters, one per part
+    private long[] releases = new long[0];
+    private long[] released = new long[0];
+
+    private String lastReason = null;
+
+    /**
+     * Register a part.
+     *
+     * @param name Name of the part, for the status
+     * @param stage Stage the part releases memory in, or FIXED
+     * @param part Part
+     */
+    public void add(String name, int stage, Part part)
+    {
+        names.add(name);
+        stages.add(stage);
+        parts.add(part);
+
+        long[] grownReleases = new long[parts.size()];
+        long[] grownReleased = new long[parts.size()];
+        System.arraycopy(releases, 0, grownReleases, 0, releases.length);
+        System.arraycopy(released, 0, grownReleased, 0, released.length);
+        releases = grownReleases;
+        released = grownReleased;
+    }
+
+    /**
+     * Set the budget.
+     *
+     * @param budget Most memory to take in bytes, or 0 for no budget
+     */
+    public void setBudget(long budget)
+    {
+        this.budget = Math.max(0, budget);
+    }
+
+    public long getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * Give the memory taken by all parts.
+     *
+     * @return Size in bytes
+     */
+    public long getBytes()
+    {
+        long bytes = 0;
+
+        for(Part part : parts)
+            bytes += part.getBytes();
+
+        return bytes;
+    }
+
+    /**
+     * Release memory stage by stage until the parts fit into the budget.
+     *
+     * @return Amount of bytes released
+     */
+    public long enforce()
+    {
+        if(budget == 0)
+            return 0;
+
+        long bytes = getBytes();
+        long freed = 0;
+
+        for(int stage = CACHES; stage <= BACKGROUND && bytes > budget; stage++)
+        {
+            freed += release(stage, "budget of " + budget / 1024 + " KiB");
+            bytes = getBytes();
+        }
+
+        return freed;
+    }
+
+    /**
+     * Release memory of all stages up to a given one, whatever the budget.
+     *
+     * @param lastStage Last stage to release memory in
+     * @param reason Reason of the release, for the status
+     * @return Amount of bytes released
+     */
+    public long trim(int lastStage, String reason)
+    {
+        long freed = 0;
+
+        for(int stage = CACHES; stage <= lastStage; stage++)
+            freed += release(stage, reason);
+
+        return freed;
+    }
+
+    /**
+     * Give the last stage to release memory in when the system trims memory.
+     *
+     * @param level Level given to onTrimMemory()
+     * @return Stage, or FIXED if nothing is to be released
+     */
+    public static int stageOf(int level)
+    {
+        if(level >= TRIM_MEMORY_COMPLETE)
+            return BACKGROUND;
+        else if(level >= TRIM_MEMORY_MODERATE)
+            return SESSION;
+        else if(level >= TRIM_MEMORY_UI_HIDDEN)
+            return CACHES;
+        else if(level >= TRIM_MEMORY_RUNNING_CRITICAL)
+            return BACKGROUND;
+        else if(level >= TRIM_MEMORY_RUNNING_LOW)
+            return SESSION;
+        else if(level >= TRIM_MEMORY_RUNNING_MODERATE)
+            return CACHES;
+
+        return FIXED;
+    }
+
+    private long release(int stage, String reason)
+    {
+        long freed = 0;
+
+        for(int p = 0; p < parts.size(); p++)
+        {
+            if(stages.get(p) != stage)
+                continue;
+
+            final Part part = parts.get(p);
+            final long before = part.getBytes();
+            part.release();
+            final long after = part.getBytes();
+
+            if(after < before)
+            {
+                releases[p]++;
+                released[p] += before - after;
+                freed += before - after;
+                lastReason = reason;
+            }
+        }
+
+        return freed;
+    }
+
+    /**
+     * Describe the memory taken by every part, one line each.
+     *
+     * @return Description
+     */
+    public String describe()
+    {
+        StringBuilder text = new StringBuilder(512);
+
+        text.append("Total ").append(getBytes() / 1024).append(" KiB");
+
+        if(budget > 0)
+            text.append(" of a budget of ").append(budget / 1024).append(" KiB");
+
+        text.append('\n');
+
+        for(int p = 0; p < parts.size(); p++)
+        {
+            final int stage = stages.get(p);
+
+            text.append(names.get(p)).append(": ").append(parts.get(p).getBytes() / 1024).append(" KiB");
+            text.append(", ").append(stage == FIXED ? "kept" : "released with " + STAGE_NAMES[stage]);
+
+            if(releases[p] > 0)
+                text.append(", released ").append(releases[p]).append(" times, ").append(released[p] / 1024).append(" KiB");
+
+            text.append('\n');
+        }
+
+        if(lastReason != null)
+            text.append("Last released for ").append(lastReason).append('\n');
+
+        return text.toString();
+    }
+}
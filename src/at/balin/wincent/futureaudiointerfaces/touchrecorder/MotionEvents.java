@@ -0,0 +1,53 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import android.view.MotionEvent;
+
+/**
+ * Bridge between Android motion events and session handlers.
+ *
+ * @author Wincent Balin
+ */
+public final class MotionEvents
+{
+    private MotionEvents()
+    {
+    }
+
+    /**
+     * Deliver a motion event to a session handler, the same way it is written into the log.
+     *
+     * @param event Motion event
+     * @param handler Receiver of the event
+     */
+    public static void deliver(MotionEvent event, SessionHandler handler)
+    {
+        final int action = Math.min(event.getAction() & MotionEvent.ACTION_MASK, SessionFormat.ACTION_UNKNOWN);
+        final int pointerCount = event.getPointerCount();
+
+        final boolean pointerAction = action == MotionEvent.ACTION_POINTER_DOWN || action == MotionEvent.ACTION_POINTER_UP;
+        final int actionIndex = pointerAction ? event.getAction() >> MotionEvent.ACTION_POINTER_ID_SHIFT : 0;
+        final int edgeFlags = action == MotionEvent.ACTION_DOWN ? event.getEdgeFlags() : 0;
+        final int historySize = action == MotionEvent.ACTION_MOVE ? event.getHistorySize() : 0;
+
+        handler.beginEvent(action, actionIndex, edgeFlags, historySize, pointerCount);
+
+        for(int h = 0; h < historySize; h++)
+        {
+            final long time = event.getHistoricalEventTime(h);
+
+            for(int i = 0; i < pointerCount; i++)
+            {
+                handler.sample(time, i, event.getPointerId(i),
+                        event.getHistoricalX(i, h), event.getHistoricalY(i, h),
+                        event.getHistoricalSize(i, h), event.getHistoricalPressure(i, h));
+            }
+        }
+
+        final long time = event.getEventTime();
+
+        for(int i = 0; i < pointerCount; i++)
+            handler.sample(time, i, event.getPointerId(i), event.getX(i), event.getY(i), event.getSize(i), event.getPressure(i));
+
+        handler.endEvent();
+    }
+}
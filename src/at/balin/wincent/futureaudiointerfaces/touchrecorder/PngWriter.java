@@ -0,0 +1,189 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writer of an opaque image in PNG format, row by row from top to bottom.
+ *
+ * Rows are filtered with the Sub filter and compressed as they come, so that
+ * only one row and one buffer of compressed data are held, whatever the size
+ * of the image. Alpha is dropped; pixels are written as 8-bit RGB.
+ *
+ * @author Wincent Balin
+ */
+public class PngWriter
+{
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int FILTER_SUB = 1;
+
+    // Largest amount of compressed data per IDAT chunk
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+
+    private final Deflater deflater;
+    private final byte[] row;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength = 0;
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[8];
+
+    private int rows = 0;
+
+    /**
+     * Create writer and write the header of the image.
+     *
+     * @param out Destination, not closed by the writer
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @param level Compression level from 1 (fastest) to 9 (smallest)
+     * @throws IOException If the header cannot be written
+     */
+    public PngWriter(OutputStream out, int width, int height, int level) throws IOException
+    {
+        if(width < 1 || height < 1)
+            throw new IllegalArgumentException("Image must not be empty");
+
+        this.out = out;
+        this.width = width;
+        this.height = height;
+
+        deflater = new Deflater(level);
+        row = new byte[1 + width * 3];
+
+        out.write(SIGNATURE);
+
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8; // Bits per channel
+        ihdr[9] = COLOR_TYPE_RGB;
+        ihdr[10] = 0; // Deflate
+        ihdr[11] = 0; // Adaptive filtering
+        ihdr[12] = 0; // Not interlaced
+        writeChunk("IHDR", ihdr, ihdr.length);
+    }
+
+    /**
+     * Write the next row.
+     *
+     * @param pixels Colors of the pixels as ARGB
+     * @param offset Index of the first pixel of the row
+     * @throws IOException If the image cannot be written
+     */
+    public void writeRow(int[] pixels, int offset) throws IOException
+    {
+        if(rows >= height)
+            throw new IllegalStateException("Image has " + height + " rows only");
+
+        row[0] = FILTER_SUB;
+
+        int previous = 0;
+
+        for(int i = 0; i < width; i++)
+        {
+            final int pixel = pixels[offset + i];
+            final int b = 1 + i * 3;
+
+            // Each channel minus the one of the pixel to the left
+            row[b] = (byte) ((pixel >> 16) - (previous >> 16));
+            row[b + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+            row[b + 2] = (byte) (pixel - previous);
+
+            previous = pixel;
+        }
+
+        deflater.setInput(row);
+
+        while(!deflater.needsInput())
+            deflate();
+
+        rows++;
+    }
+
+    /**
+     * Write the rest of the compressed data and the end of the image.
+     *
+     * @throws IOException If the image cannot be written, or not all rows have been given
+     */
+    public void finish() throws IOException
+    {
+        if(rows < height)
+            throw new IOException("Image has " + rows + " of " + height + " rows");
+
+        deflater.finish();
+
+        while(!deflater.finished())
+            deflate();
+
+        if(chunkLength > 0)
+            writeChunk("IDAT", chunk, chunkLength);
+
+        writeChunk("IEND", chunk, 0);
+        deflater.end();
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Give the amount of rows written so far.
+     *
+     * @return Amount of rows
+     */
+    public int getRows()
+    {
+        return rows;
+    }
+
+    private void deflate() throws IOException
+    {
+        chunkLength += deflater.deflate(chunk, chunkLength, CHUNK_SIZE - chunkLength);
+
+        if(chunkLength == CHUNK_SIZE)
+        {
+            writeChunk("IDAT", chunk, chunkLength);
+            chunkLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException
+    {
+        putInt(header, 0, length);
+
+        for(int i = 0; i < 4; i++)
+            header[4 + i] = (byte) type.charAt(i);
+
+        crc.reset();
+        crc.update(header, 4, 4);
+        crc.update(data, 0, length);
+
+        out.write(header, 0, 8);
+        out.write(data, 0, length);
+        putInt(header, 0, (int) crc.getValue());
+        out.write(header, 0, 4);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value)
+    {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
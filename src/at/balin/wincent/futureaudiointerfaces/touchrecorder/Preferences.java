@@ -95,4 +95,191 @@ public class Preferences extends PreferenceActivity
     {
         return PreferenceManager.getDefaultSharedPreferences(context).getString("linewidth", "3.0f");
     }
+
+    /**
+     * Option whether to simplify strokes while drawing.
+     *
+     * @param context Application context
+     * @return Boolean option
+     */
+    public static boolean simplifyDrawing(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("simplifydraw", false);
+    }
+
+    /**
+     * Option whether to simplify strokes in the saved files.
+     *
+     * @param context Application context
+     * @return Boolean option
+     */
+    public static boolean simplifySaving(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("simplifysave", false);
+    }
+
+    /**
+     * Option of largest distance in pixels a sample removed by simplification may have from the stroke.
+     *
+     * @param context Application context
+     * @return Float option as string
+     */
+    public static String simplifyTolerance(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("tolerance", "2.0");
+    }
+
+    /**
+     * Option of the gzip compression level of saved files, from 1 to 9, or 0 not to compress.
+     *
+     * @param context Application context
+     * @return Integer option as string
+     */
+    public static String compressionLevel(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("compression", "0");
+    }
+
+    /**
+     * Option of what to record of every event: full, current, resampled or actions.
+     *
+     * @param context Application context
+     * @return Name of the capture mode
+     */
+    public static String captureMode(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("capture", "full");
+    }
+
+    /**
+     * Option of time in milliseconds between the samples recorded in the resampled capture mode.
+     *
+     * @param context Application context
+     * @return Integer option as string
+     */
+    public static String captureInterval(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("captureinterval", "50");
+    }
+
+    /**
+     * Option of the regions of the screen recorded, as left,top,right,bottom separated by semicolons.
+     *
+     * @param context Application context
+     * @return List of regions, empty for the whole screen
+     */
+    public static String captureRegions(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("captureregions", "");
+    }
+
+    /**
+     * Option of the actions recorded, as names separated by commas.
+     *
+     * @param context Application context
+     * @return List of actions, empty for all
+     */
+    public static String captureActions(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("captureactions", "");
+    }
+
+    /**
+     * Option of the identifiers of the pointers recorded, as numbers and ranges separated by commas.
+     *
+     * @param context Application context
+     * @return List of pointers, empty for all
+     */
+    public static String capturePointers(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("capturepointers", "");
+    }
+
+    /**
+     * Option of the distance in pixels a pointer has to move before another sample of a move is recorded.
+     *
+     * @param context Application context
+     * @return Float option as string
+     */
+    public static String captureDistance(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("capturedistance", "0");
+    }
+
+    /**
+     * Option whether the heatmap shows pressure instead of the time touches dwelt.
+     *
+     * @param context Application context
+     * @return Boolean option
+     */
+    public static boolean heatmapPressure(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("heatmappressure", false);
+    }
+
+    /**
+     * Option of how far ahead to predict the strokes in progress, in ms, or 0 not to predict.
+     *
+     * @param context Application context
+     * @return Integer option as string
+     */
+    public static String predictHorizon(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("predict", "0");
+    }
+
+    /**
+     * Option whether to show the heads-up display with lag and prediction errors.
+     *
+     * @param context Application context
+     * @return Boolean option
+     */
+    public static boolean showHud(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("hud", false);
+    }
+
+    /**
+     * Option whether to lower the quality of drawing while touch events pile up.
+     *
+     * @param context Application context
+     * @return Boolean option
+     */
+    public static boolean adaptiveQuality(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("adaptive", false);
+    }
+
+    /**
+     * Option how many seconds the flight recorder keeps, 0 for recording everything.
+     *
+     * @param context Application context
+     * @return Integer option as string
+     */
+    public static String flightWindow(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("flight", "0");
+    }
+
+    /**
+     * Option of the memory budget in MiB, 0 for none.
+     *
+     * @param context Application context
+     * @return Integer option as string
+     */
+    public static String memoryBudget(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("memorybudget", "0");
+    }
+
+    /**
+     * Option of the scale of exported images, as a factor of the screen or a resolution like "600dpi".
+     *
+     * @param context Application context
+     * @return Scale option as string
+     */
+    public static String imageScale(Context context)
+    {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("imagescale", "4");
+    }
 }
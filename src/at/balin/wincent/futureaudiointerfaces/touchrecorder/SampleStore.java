@@ -0,0 +1,474 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Store of a session in primitive arrays, one column per attribute.
+ *
+ * Columns are split into chunks of fixed size, so that growing the store
+ * never copies the samples already stored. Events and samples are addressed
+ * by their index in the session.
+ *
+ * @author Wincent Balin
+ */
+public class SampleStore implements SessionHandler
+{
+    /**
+     * Action of image load events in the store.
+     */
+    public static final int ACTION_IMAGE = 0xFF;
+
+    /**
+     * Memory taken by an event and by a sample in the columns.
+     */
+    public static final int EVENT_BYTES = 4 + 4 + 4 + 8;
+    public static final int SAMPLE_BYTES = 8 + 4 + 4 * 4;
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Columns of events
+    private int eventCount = 0;
+    private int[][] eventShape = new int[16][]; // action, action index, edge flags and pointer count, 8 bits each
+    private int[][] eventHistory = new int[16][];
+    private int[][] eventFirstSample = new int[16][];
+    private long[][] eventTime = new long[16][];
+
+    // Columns of samples
+    private int sampleCount = 0;
+    private long[][] time = new long[16][];
+    private int[][] pointer = new int[16][]; // pointer index and pointer identifier, 16 bits each
+    private float[][] x = new float[16][];
+    private float[][] y = new float[16][];
+    private float[][] size = new float[16][];
+    private float[][] pressure = new float[16][];
+
+    private final List<String> imageFileNames = new ArrayList<String>();
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        addEvent(action, actionIndex, edgeFlags, historySize, pointerCount, sampleCount);
+    }
+
+    private void addEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount, int firstSample)
+    {
+        final int chunk = eventCount >> CHUNK_BITS;
+        final int i = eventCount & CHUNK_MASK;
+
+        if(i == 0)
+        {
+            if(chunk == eventShape.length)
+            {
+                eventShape = grow(eventShape);
+                eventHistory = grow(eventHistory);
+                eventFirstSample = grow(eventFirstSample);
+                eventTime = grow(eventTime);
+            }
+
+            if(eventShape[chunk] == null)
+            {
+                eventShape[chunk] = new int[CHUNK_SIZE];
+                eventHistory[chunk] = new int[CHUNK_SIZE];
+                eventFirstSample[chunk] = new int[CHUNK_SIZE];
+                eventTime[chunk] = new long[CHUNK_SIZE];
+            }
+        }
+
+        eventShape[chunk][i] = (action & 0xFF) << 24 | (actionIndex & 0xFF) << 16 | (edgeFlags & 0xFF) << 8 | (pointerCount & 0xFF);
+        eventHistory[chunk][i] = historySize;
+        eventFirstSample[chunk][i] = firstSample;
+        eventTime[chunk][i] = eventCount > 0 ? getEventTime(eventCount - 1) : 0;
+        eventCount++;
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        final int chunk = sampleCount >> CHUNK_BITS;
+        final int i = sampleCount & CHUNK_MASK;
+
+        if(i == 0)
+        {
+            if(chunk == this.time.length)
+            {
+                this.time = grow(this.time);
+                this.pointer = grow(this.pointer);
+                this.x = grow(this.x);
+                this.y = grow(this.y);
+                this.size = grow(this.size);
+                this.pressure = grow(this.pressure);
+            }
+
+            if(this.time[chunk] == null)
+            {
+                this.time[chunk] = new long[CHUNK_SIZE];
+                this.pointer[chunk] = new int[CHUNK_SIZE];
+                this.x[chunk] = new float[CHUNK_SIZE];
+                this.y[chunk] = new float[CHUNK_SIZE];
+                this.size[chunk] = new float[CHUNK_SIZE];
+                this.pressure[chunk] = new float[CHUNK_SIZE];
+            }
+        }
+
+        this.time[chunk][i] = time;
+        this.pointer[chunk][i] = (pointerIndex & 0xFFFF) << 16 | (pointerId & 0xFFFF);
+        this.x[chunk][i] = x;
+        this.y[chunk][i] = y;
+        this.size[chunk][i] = size;
+        this.pressure[chunk][i] = pressure;
+        sampleCount++;
+
+        // The event happens at the time of its last sample
+        final int event = eventCount - 1;
+        eventTime[event >> CHUNK_BITS][event & CHUNK_MASK] = time;
+    }
+
+    @Override
+    public void endEvent()
+    {
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+        // Image load events keep the index of the file name in place of the history size
+        synchronized(imageFileNames)
+        {
+            addEvent(ACTION_IMAGE, 0, 0, imageFileNames.size(), 0, sampleCount);
+            imageFileNames.add(fileName);
+        }
+
+        final int event = eventCount - 1;
+        eventTime[event >> CHUNK_BITS][event & CHUNK_MASK] = time;
+    }
+
+    @Override
+    public void endSession()
+    {
+    }
+
+    /**
+     * Remove everything stored.
+     */
+    public void clear()
+    {
+        eventCount = 0;
+        sampleCount = 0;
+
+        synchronized(imageFileNames)
+        {
+            imageFileNames.clear();
+        }
+    }
+
+    /**
+     * Remove everything stored and give the memory of the columns back.
+     */
+    public void release()
+    {
+        clear();
+
+        eventShape = new int[16][];
+        eventHistory = new int[16][];
+        eventFirstSample = new int[16][];
+        eventTime = new long[16][];
+
+        time = new long[16][];
+        pointer = new int[16][];
+        x = new float[16][];
+        y = new float[16][];
+        size = new float[16][];
+        pressure = new float[16][];
+    }
+
+    /**
+     * Deliver the whole session to a handler.
+     *
+     * @param handler Receiver of the session
+     */
+    public void replay(SessionHandler handler)
+    {
+        replay(0, eventCount, handler);
+        handler.endSession();
+    }
+
+    /**
+     * Deliver a range of events to a handler, without finishing the session.
+     *
+     * @param fromEvent First event to deliver
+     * @param toEvent Event after the last one to deliver
+     * @param handler Receiver of the events
+     */
+    public void replay(int fromEvent, int toEvent, SessionHandler handler)
+    {
+        replay(fromEvent, toEvent, handler, null);
+    }
+
+    /**
+     * Deliver a range of events to a handler, with image file names copied before.
+     *
+     * @param fromEvent First event to deliver
+     * @param toEvent Event after the last one to deliver
+     * @param handler Receiver of the events
+     * @param fileNames Copy of the image file names as given by getImageFileNames(), or null for the own ones
+     */
+    public void replay(int fromEvent, int toEvent, SessionHandler handler, List<String> fileNames)
+    {
+        if(fileNames == null)
+            fileNames = imageFileNames;
+
+        for(int e = fromEvent; e < toEvent; e++)
+        {
+            final int action = getEventAction(e);
+
+            if(action == ACTION_IMAGE)
+            {
+                handler.image(fileNames.get(eventHistory[e >> CHUNK_BITS][e & CHUNK_MASK]), getEventTime(e));
+                continue;
+            }
+
+            handler.beginEvent(action, getEventActionIndex(e), getEventEdgeFlags(e), getEventHistorySize(e), getEventPointerCount(e));
+
+            final int first = getEventFirstSample(e);
+            final int last = first + getEventSampleCount(e);
+
+            for(int s = first; s < last; s++)
+            {
+                final int chunk = s >> CHUNK_BITS;
+                final int i = s & CHUNK_MASK;
+                final int p = pointer[chunk][i];
+
+                handler.sample(time[chunk][i], p >>> 16, p & 0xFFFF, x[chunk][i], y[chunk][i], size[chunk][i], pressure[chunk][i]);
+            }
+
+            handler.endEvent();
+        }
+    }
+
+    /**
+     * Find the event a sample belongs to.
+     *
+     * @param sample Index of the sample
+     * @return Index of the event
+     */
+    public int findEvent(int sample)
+    {
+        int low = 0;
+        int high = eventCount - 1;
+
+        // Find the last event starting at or before the sample
+        while(low < high)
+        {
+            final int middle = (low + high + 1) >>> 1;
+
+            if(getEventFirstSample(middle) <= sample)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+
+        // Image load events and empty events start where the next event does
+        while(low > 0 && getEventSampleCount(low) == 0)
+            low--;
+
+        return low;
+    }
+
+    /**
+     * Find the first event happening at or after a time.
+     *
+     * Event times grow while recording, so the times of the events form the time index of the store.
+     *
+     * @param time Time in milliseconds
+     * @return Index of the event, or the amount of events if all happened earlier
+     */
+    public int findEventAt(long time)
+    {
+        int low = 0;
+        int high = eventCount;
+
+        while(low < high)
+        {
+            final int middle = (low + high) >>> 1;
+
+            if(getEventTime(middle) < time)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    public int getEventCount()
+    {
+        return eventCount;
+    }
+
+    public int getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    public int getEventAction(int event)
+    {
+        return eventShape[event >> CHUNK_BITS][event & CHUNK_MASK] >>> 24;
+    }
+
+    public int getEventActionIndex(int event)
+    {
+        return (eventShape[event >> CHUNK_BITS][event & CHUNK_MASK] >>> 16) & 0xFF;
+    }
+
+    public int getEventEdgeFlags(int event)
+    {
+        return (eventShape[event >> CHUNK_BITS][event & CHUNK_MASK] >>> 8) & 0xFF;
+    }
+
+    public int getEventPointerCount(int event)
+    {
+        return eventShape[event >> CHUNK_BITS][event & CHUNK_MASK] & 0xFF;
+    }
+
+    public int getEventHistorySize(int event)
+    {
+        return getEventAction(event) == ACTION_IMAGE ? 0 : eventHistory[event >> CHUNK_BITS][event & CHUNK_MASK];
+    }
+
+    /**
+     * Give the index of the first sample of an event.
+     *
+     * @param event Index of the event
+     * @return Index of the sample
+     */
+    public int getEventFirstSample(int event)
+    {
+        return eventFirstSample[event >> CHUNK_BITS][event & CHUNK_MASK];
+    }
+
+    /**
+     * Give the amount of samples of an event.
+     *
+     * @param event Index of the event
+     * @return Amount of samples; 0 for image load events
+     */
+    public int getEventSampleCount(int event)
+    {
+        if(getEventAction(event) == ACTION_IMAGE)
+            return 0;
+
+        return (getEventHistorySize(event) + 1) * getEventPointerCount(event);
+    }
+
+    /**
+     * Give the time of an event, which is the time of its current samples or of the image load.
+     *
+     * @param event Index of the event
+     * @return Time in milliseconds
+     */
+    public long getEventTime(int event)
+    {
+        return eventTime[event >> CHUNK_BITS][event & CHUNK_MASK];
+    }
+
+    /**
+     * Copy the image file names, so that another thread can replay events while images are loaded.
+     *
+     * @return File names, indexed like those of image load events
+     */
+    public List<String> getImageFileNames()
+    {
+        synchronized(imageFileNames)
+        {
+            return new ArrayList<String>(imageFileNames);
+        }
+    }
+
+    /**
+     * Give the name of the image file of an image load event.
+     *
+     * @param event Index of the event
+     * @return File name
+     */
+    public String getImageFileName(int event)
+    {
+        return imageFileNames.get(eventHistory[event >> CHUNK_BITS][event & CHUNK_MASK]);
+    }
+
+    public long getTime(int sample)
+    {
+        return time[sample >> CHUNK_BITS][sample & CHUNK_MASK];
+    }
+
+    public int getPointerIndex(int sample)
+    {
+        return pointer[sample >> CHUNK_BITS][sample & CHUNK_MASK] >>> 16;
+    }
+
+    public int getPointerId(int sample)
+    {
+        return pointer[sample >> CHUNK_BITS][sample & CHUNK_MASK] & 0xFFFF;
+    }
+
+    public float getX(int sample)
+    {
+        return x[sample >> CHUNK_BITS][sample & CHUNK_MASK];
+    }
+
+    public float getY(int sample)
+    {
+        return y[sample >> CHUNK_BITS][sample & CHUNK_MASK];
+    }
+
+    public float getSize(int sample)
+    {
+        return size[sample >> CHUNK_BITS][sample & CHUNK_MASK];
+    }
+
+    public float getPressure(int sample)
+    {
+        return pressure[sample >> CHUNK_BITS][sample & CHUNK_MASK];
+    }
+
+    /**
+     * Estimate the memory occupied by the columns.
+     *
+     * @return Size in bytes
+     */
+    public long getMemoryBytes()
+    {
+        long bytes = 0;
+
+        for(int c = 0; c < eventShape.length && eventShape[c] != null; c++)
+            bytes += CHUNK_SIZE * EVENT_BYTES;
+
+        for(int c = 0; c < time.length && time[c] != null; c++)
+            bytes += CHUNK_SIZE * SAMPLE_BYTES;
+
+        return bytes;
+    }
+
+    private static int[][] grow(int[][] chunks)
+    {
+        int[][] result = new int[chunks.length * 2][];
+        System.arraycopy(chunks, 0, result, 0, chunks.length);
+        return result;
+    }
+
+    private static long[][] grow(long[][] chunks)
+    {
+        long[][] result = new long[chunks.length * 2][];
+        System.arraycopy(chunks, 0, result, 0, chunks.length);
+        return result;
+    }
+
+    private static float[][] grow(float[][] chunks)
+    {
+        float[][] result = new float[chunks.length * 2][];
+        System.arraycopy(chunks, 0, result, 0, chunks.length);
+        return result;
+    }
+}
@@ -0,0 +1,250 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.BitSet;
+
+/**
+ * Filter passing only the events of a time window, of a set of pointers, of a set
+ * of strokes and of a region of the screen.
+ *
+ * An event belongs to the time window if its current samples do; historical rows
+ * before the start of the window are removed. Image load events pass if they happen
+ * within the time window. Strokes are numbered in the order they start, counting
+ * every stroke of the session, as in SessionStatistics. A pointer belongs to the region
+ * in an event if at least one of its samples lies inside. Samples of pointers not
+ * selected are removed, and events left without pointers are dropped. Pointer events
+ * caused by an unselected pointer pass as moves of the remaining pointers.
+ *
+ * @author Wincent Balin
+ */
+public class SelectionFilter extends SessionFilter
+{
+    private static final int MAX_POINTERS = 256;
+
+    private long from = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+
+    private BitSet pointerIds = null;
+    private BitSet strokes = null;
+
+    private boolean region = false;
+    private float left;
+    private float top;
+    private float right;
+    private float bottom;
+
+    // Numbering of strokes, indexed by pointer identifier
+    private final boolean[] active = new boolean[MAX_POINTERS];
+    private final int[] strokeNumber = new int[MAX_POINTERS];
+    private int nextStroke = 0;
+
+    /**
+     * Create filter passing everything until restricted.
+     *
+     * @param next Handler to receive the filtered session
+     */
+    public SelectionFilter(SessionHandler next)
+    {
+        super(next);
+    }
+
+    /**
+     * Restrict the session to a time window.
+     *
+     * @param from Start of the window in milliseconds, inclusive
+     * @param until End of the window in milliseconds, inclusive
+     */
+    public void setTimeWindow(long from, long until)
+    {
+        this.from = from;
+        this.until = until;
+    }
+
+    /**
+     * Restrict the session to a set of pointers.
+     *
+     * @param pointerIds Identifiers of the pointers to pass, or null for all
+     */
+    public void setPointerIds(BitSet pointerIds)
+    {
+        this.pointerIds = pointerIds;
+    }
+
+    /**
+     * Restrict the session to a set of strokes.
+     *
+     * @param strokes Numbers of the strokes to pass, or null for all
+     */
+    public void setStrokes(BitSet strokes)
+    {
+        this.strokes = strokes;
+    }
+
+    /**
+     * Restrict the session to a region of the screen.
+     *
+     * @param left Left border
+     * @param top Top border
+     * @param right Right border
+     * @param bottom Bottom border
+     */
+    public void setRegion(float left, float top, float right, float bottom)
+    {
+        this.region = true;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    /**
+     * Parse a list of numbers and ranges of numbers, like "1,4-7,12".
+     *
+     * @param list List of non-negative numbers and ranges, separated by commas
+     * @return Set of the numbers
+     * @throws NumberFormatException If the list is malformed
+     */
+    public static BitSet parseRanges(String list)
+    {
+        BitSet numbers = new BitSet();
+
+        for(String item : list.split(","))
+        {
+            final int dash = item.indexOf('-');
+
+            if(dash < 0)
+            {
+                numbers.set(Integer.parseInt(item.trim()));
+            }
+            else
+            {
+                final int first = Integer.parseInt(item.substring(0, dash).trim());
+                final int last = Integer.parseInt(item.substring(dash + 1).trim());
+
+                if(first < 0 || last < first)
+                    throw new NumberFormatException("Wrong range " + item);
+
+                numbers.set(first, last + 1);
+            }
+        }
+
+        return numbers;
+    }
+
+    @Override
+    protected boolean filter(EventBuffer event)
+    {
+        // Strokes are counted in the whole session, so before anything is dropped;
+        // the numbers stay valid for the rest of the event
+        if(strokes != null)
+            numberStrokes(event);
+
+        if(event.getSampleCount() == 0)
+            return true;
+
+        final long eventTime = event.getEventTime();
+
+        if(eventTime < from || eventTime > until)
+            return false;
+
+        // Remove history before the window
+        while(event.getHistorySize() > 0 && event.getTime(event.rowStart(0)) < from)
+            event.removeRow(0);
+
+        if(pointerIds != null || strokes != null || region)
+        {
+            final int action = event.getAction();
+            final boolean pointerAction = action == SessionFormat.ACTION_POINTER_DOWN || action == SessionFormat.ACTION_POINTER_UP;
+            boolean actionRemoved = false;
+
+            for(int p = event.getPointerCount() - 1; p >= 0; p--)
+            {
+                final int current = event.rowStart(event.getHistorySize());
+
+                if(isSelected(event, p, current + p))
+                    continue;
+
+                if(pointerAction && p == event.getActionIndex())
+                    actionRemoved = true;
+
+                event.removePointer(p);
+            }
+
+            if(event.getPointerCount() == 0)
+                return false;
+
+            // The remaining pointers keep their samples, without the action of the removed one
+            if(actionRemoved)
+                event.setAction(SessionFormat.ACTION_MOVE, 0);
+        }
+
+        return true;
+    }
+
+    private boolean isSelected(EventBuffer event, int p, int current)
+    {
+        if(pointerIds != null && !pointerIds.get(event.getPointerId(current)))
+            return false;
+
+        if(strokes != null && !strokes.get(strokeNumber[event.getPointerId(current) & (MAX_POINTERS - 1)]))
+            return false;
+
+        if(region)
+        {
+            for(int r = 0; r <= event.getHistorySize(); r++)
+            {
+                final int sample = event.rowStart(r) + p;
+                final float x = event.getX(sample);
+                final float y = event.getY(sample);
+
+                if(x >= left && x <= right && y >= top && y <= bottom)
+                    return true;
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Note the numbers of the strokes the pointers of an event belong to.
+     *
+     * @param event Event
+     */
+    private void numberStrokes(EventBuffer event)
+    {
+        final int action = event.getAction();
+        final int current = event.rowStart(event.getHistorySize());
+
+        for(int p = 0; p < event.getPointerCount(); p++)
+        {
+            final int id = event.getPointerId(current + p) & (MAX_POINTERS - 1);
+
+            // A new DOWN starts a new stroke even if the UP is missing
+            if(action == SessionFormat.ACTION_DOWN || (action == SessionFormat.ACTION_POINTER_DOWN && p == event.getActionIndex()))
+                active[id] = false;
+
+            if(!active[id])
+            {
+                active[id] = true;
+                strokeNumber[id] = nextStroke++;
+            }
+        }
+
+        if(action == SessionFormat.ACTION_POINTER_UP)
+        {
+            active[event.getPointerId(current + event.getActionIndex()) & (MAX_POINTERS - 1)] = false;
+        }
+        else if(action == SessionFormat.ACTION_UP || action == SessionFormat.ACTION_CANCEL)
+        {
+            for(int id = 0; id < MAX_POINTERS; id++)
+                active[id] = false;
+        }
+    }
+
+    @Override
+    protected boolean filterImage(String fileName, long time)
+    {
+        return time >= from && time <= until;
+    }
+}
@@ -0,0 +1,270 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of saved sessions with their summaries, so that they can be listed
+ * without opening them.
+ *
+ * The index is a text file with one line per session: its path, time of
+ * last modification and length, followed by the values of its summary,
+ * all separated by tabs. It is written into a temporary file first and
+ * renamed, so that it is never left half-written. Summaries are parsed
+ * only when asked for, so that loading takes little more than reading.
+ *
+ * @author Wincent Balin
+ */
+public class SessionCatalog
+{
+    /**
+     * Session of the catalog.
+     */
+    public static class Entry
+    {
+        public final File file;
+        public final long modified;
+        public final long length;
+
+        // Summary, or its values as read until it is needed
+        private SessionSummary summary;
+        private String summaryLine;
+
+        public Entry(File file, long modified, long length, SessionSummary summary)
+        {
+            this.file = file;
+            this.modified = modified;
+            this.length = length;
+            this.summary = summary;
+        }
+
+        private Entry(File file, long modified, long length, String summaryLine)
+        {
+            this.file = file;
+            this.modified = modified;
+            this.length = length;
+            this.summaryLine = summaryLine;
+        }
+
+        /**
+         * Give the summary of the session, reading it from the catalog line on first use.
+         *
+         * @return Summary, or null if the line is malformed
+         */
+        public SessionSummary getSummary()
+        {
+            if(summary == null && summaryLine != null)
+            {
+                try
+                {
+                    summary = SessionSummary.fromLine(summaryLine.split("\t"), 0);
+                    summaryLine = null;
+                }
+                catch(NumberFormatException e)
+                {
+                    // Kept as it is when the catalog is saved
+                    summary = null;
+                }
+            }
+
+            return summary;
+        }
+
+        private String getSummaryLine()
+        {
+            return summaryLine != null ? summaryLine : summary.toLine();
+        }
+
+        /**
+         * Answer whether the session file has changed since it was noted.
+         *
+         * @return True if the file is missing or changed
+         */
+        public boolean isStale()
+        {
+            return file.lastModified() != modified || file.length() != length;
+        }
+    }
+
+    private final File file;
+
+    // Entries by path, in the order they were added
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    private int malformed = 0;
+
+    /**
+     * Create empty catalog; see load().
+     *
+     * @param file File of the catalog
+     */
+    public SessionCatalog(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Read the catalog file. A missing file gives an empty catalog; malformed lines are skipped.
+     *
+     * @throws IOException If reading fails
+     */
+    public void load() throws IOException
+    {
+        entries.clear();
+        malformed = 0;
+
+        BufferedReader reader;
+
+        try
+        {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 64 * 1024);
+        }
+        catch(FileNotFoundException e)
+        {
+            return;
+        }
+
+        try
+        {
+            String line;
+
+            while((line = reader.readLine()) != null)
+            {
+                final int pathEnd = line.indexOf('\t');
+                final int modifiedEnd = line.indexOf('\t', pathEnd + 1);
+                final int lengthEnd = line.indexOf('\t', modifiedEnd + 1);
+
+                try
+                {
+                    if(pathEnd < 0 || modifiedEnd < 0 || lengthEnd < 0)
+                        throw new NumberFormatException("Entry needs a path, time, length and summary");
+
+                    put(new Entry(new File(line.substring(0, pathEnd)),
+                            Long.parseLong(line.substring(pathEnd + 1, modifiedEnd)),
+                            Long.parseLong(line.substring(modifiedEnd + 1, lengthEnd)),
+                            line.substring(lengthEnd + 1)));
+                }
+                catch(NumberFormatException e)
+                {
+                    malformed++;
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write the catalog file.
+     *
+     * @throws IOException If writing fails
+     */
+    public void save() throws IOException
+    {
+        File temporary = new File(file.getPath() + ".new");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"), 64 * 1024);
+
+        try
+        {
+            for(Entry entry : entries.values())
+            {
+                writer.append(entry.file.getPath()).append('\t');
+                writer.append(Long.toString(entry.modified)).append('\t');
+                writer.append(Long.toString(entry.length)).append('\t');
+                writer.append(entry.getSummaryLine()).append('\n');
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        if(!temporary.renameTo(file))
+        {
+            // Renaming onto an existing file fails on some file systems
+            file.delete();
+
+            if(!temporary.renameTo(file))
+                throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Add or replace an entry.
+     *
+     * @param entry Entry
+     */
+    public void put(Entry entry)
+    {
+        // Moved to the end, as the newest
+        entries.remove(entry.file.getPath());
+        entries.put(entry.file.getPath(), entry);
+    }
+
+    /**
+     * Remove the entry of a session.
+     *
+     * @param session Session file
+     * @return True if there was an entry
+     */
+    public boolean remove(File session)
+    {
+        return entries.remove(session.getPath()) != null;
+    }
+
+    /**
+     * Give the entries, the most recently added last.
+     *
+     * @return Entries
+     */
+    public List<Entry> getEntries()
+    {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Give the amount of lines skipped by the last load(); malformed summaries
+     * are only noticed by Entry.getSummary().
+     *
+     * @return Amount of malformed lines
+     */
+    public int getMalformed()
+    {
+        return malformed;
+    }
+
+    /**
+     * Note a just saved session in a catalog file.
+     *
+     * @param catalogFile File of the catalog
+     * @param session Saved session file
+     * @param summary Summary of the session
+     * @throws IOException If the catalog cannot be read or written
+     */
+    public static synchronized void update(File catalogFile, File session, SessionSummary summary) throws IOException
+    {
+        SessionCatalog catalog = new SessionCatalog(catalogFile);
+        catalog.load();
+        catalog.put(new Entry(session.getAbsoluteFile(), session.lastModified(), session.length(), summary));
+        catalog.save();
+    }
+}
@@ -0,0 +1,666 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Comparison of two sessions of the same gestures, e.g. recorded on different devices.
+ *
+ * The k-th stroke of a pointer in one session is matched with the k-th stroke of
+ * the same pointer in the other one. Matched strokes are aligned by dynamic time
+ * warping on position and pressure, restricted to a band around the diagonal, so
+ * that an alignment takes time and memory linear in the length of the strokes.
+ * Strokes longer than MAX_SAMPLES are thinned out, which bounds the memory of
+ * every alignment. Alignments run in parallel, each thread reusing its buffers.
+ *
+ * The distance of two strokes is the mean cost per step of their alignment; the
+ * worst region of a stroke is the run of REGION_STEPS steps with the highest cost.
+ *
+ * @author Wincent Balin
+ */
+public class SessionComparison
+{
+    /**
+     * Default radius of the band in samples.
+     */
+    public static final int DEFAULT_BAND = 32;
+
+    /**
+     * Default cost of a pressure difference of 1, in pixels.
+     */
+    public static final float DEFAULT_PRESSURE_WEIGHT = 100.0f;
+
+    /**
+     * Most samples of a stroke aligned; longer strokes are thinned out.
+     */
+    public static final int MAX_SAMPLES = 4096;
+
+    /**
+     * Amount of steps of the alignment in a worst region.
+     */
+    public static final int REGION_STEPS = 16;
+
+    private static final byte DIAGONAL = 0;
+    private static final byte UP = 1;
+    private static final byte LEFT = 2;
+
+    private final List<StrokeCollector.Stroke> strokesA;
+    private final List<StrokeCollector.Stroke> strokesB;
+    private final int band;
+    private final float pressureWeight;
+
+    private final List<Match> matches = new ArrayList<Match>();
+    private int unmatchedA = 0;
+    private int unmatchedB = 0;
+
+    private long compareNanos = 0;
+
+    /**
+     * Alignment of a pair of strokes.
+     */
+    public static class Match
+    {
+        private final int strokeA;
+        private final int strokeB;
+        private final StrokeCollector.Stroke a;
+        private final StrokeCollector.Stroke b;
+
+        private int steps;
+        private double cost;
+        private float maxCost;
+        private float regionCost;
+        private long regionStart;
+        private long regionEnd;
+        private float regionX;
+        private float regionY;
+
+        private Match(int strokeA, int strokeB, StrokeCollector.Stroke a, StrokeCollector.Stroke b)
+        {
+            this.strokeA = strokeA;
+            this.strokeB = strokeB;
+            this.a = a;
+            this.b = b;
+        }
+
+        public int getStrokeA()
+        {
+            return strokeA;
+        }
+
+        public int getStrokeB()
+        {
+            return strokeB;
+        }
+
+        public int getPointerId()
+        {
+            return a.getPointerId();
+        }
+
+        /**
+         * Give the amount of steps of the alignment.
+         *
+         * @return Amount of steps
+         */
+        public int getSteps()
+        {
+            return steps;
+        }
+
+        /**
+         * Give the distance of the strokes.
+         *
+         * @return Mean cost per step
+         */
+        public float getDistance()
+        {
+            return steps > 0 ? (float) (cost / steps) : 0.0f;
+        }
+
+        /**
+         * Give the highest cost of a single step.
+         *
+         * @return Cost
+         */
+        public float getMaxCost()
+        {
+            return maxCost;
+        }
+
+        /**
+         * Give the mean cost per step of the worst region.
+         *
+         * @return Cost
+         */
+        public float getRegionCost()
+        {
+            return regionCost;
+        }
+
+        /**
+         * Give the time the worst region starts at, in the first session.
+         *
+         * @return Time in milliseconds
+         */
+        public long getRegionStart()
+        {
+            return regionStart;
+        }
+
+        /**
+         * Give the time the worst region ends at, in the first session.
+         *
+         * @return Time in milliseconds
+         */
+        public long getRegionEnd()
+        {
+            return regionEnd;
+        }
+
+        /**
+         * Give the mean position of the worst region in the first session.
+         *
+         * @return Horizontal position
+         */
+        public float getRegionX()
+        {
+            return regionX;
+        }
+
+        public float getRegionY()
+        {
+            return regionY;
+        }
+    }
+
+    /**
+     * Create comparison.
+     *
+     * @param a Strokes of the first session
+     * @param b Strokes of the second session
+     * @param band Radius of the band in samples, widened as far as the lengths of strokes differ
+     * @param pressureWeight Cost of a pressure difference of 1, in pixels
+     */
+    public SessionComparison(StrokeCollector a, StrokeCollector b, int band, float pressureWeight)
+    {
+        if(band < 1)
+            throw new IllegalArgumentException("Band must be positive");
+
+        strokesA = a.getStrokes();
+        strokesB = b.getStrokes();
+        this.band = band;
+        this.pressureWeight = pressureWeight;
+
+        match();
+    }
+
+    /**
+     * Pair the strokes of both sessions by pointer and order.
+     */
+    private void match()
+    {
+        // Strokes of every pointer in the order they started, in the second session
+        List<List<Integer>> byPointer = new ArrayList<List<Integer>>();
+
+        for(int s = 0; s < strokesB.size(); s++)
+        {
+            final int id = strokesB.get(s).getPointerId();
+
+            while(byPointer.size() <= id)
+                byPointer.add(new ArrayList<Integer>());
+
+            byPointer.get(id).add(s);
+        }
+
+        int[] taken = new int[byPointer.size()];
+
+        for(int s = 0; s < strokesA.size(); s++)
+        {
+            final int id = strokesA.get(s).getPointerId();
+
+            if(id < byPointer.size() && taken[id] < byPointer.get(id).size())
+            {
+                final int other = byPointer.get(id).get(taken[id]++);
+                matches.add(new Match(s, other, strokesA.get(s), strokesB.get(other)));
+            }
+            else
+            {
+                unmatchedA++;
+            }
+        }
+
+        unmatchedB = strokesB.size() - matches.size();
+    }
+
+    /**
+     * Align all matched strokes.
+     *
+     * A failure of any thread is thrown again here, after the others have been stopped.
+     *
+     * @param threads Amount of threads
+     */
+    public void compare(int threads)
+    {
+        final long start = System.nanoTime();
+        final AtomicInteger next = new AtomicInteger();
+
+        threads = Math.max(1, threads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> pending = new ArrayList<Future<?>>(threads);
+
+        try
+        {
+            for(int t = 0; t < threads; t++)
+            {
+                pending.add(executor.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Aligner aligner = new Aligner();
+
+                        for(int m = next.getAndIncrement(); m < matches.size(); m = next.getAndIncrement())
+                            aligner.align(matches.get(m));
+                    }
+                }));
+            }
+
+            for(Future<?> thread : pending)
+                thread.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            if(e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+
+            throw new RuntimeException("Cannot align strokes", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        compareNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Buffers of one thread, grown to the largest alignment so far.
+     */
+    private class Aligner
+    {
+        private final float[] ax = new float[MAX_SAMPLES];
+        private final float[] ay = new float[MAX_SAMPLES];
+        private final float[] ap = new float[MAX_SAMPLES];
+        private final int[] aIndex = new int[MAX_SAMPLES];
+        private final float[] bx = new float[MAX_SAMPLES];
+        private final float[] by = new float[MAX_SAMPLES];
+        private final float[] bp = new float[MAX_SAMPLES];
+        private final int[] bIndex = new int[MAX_SAMPLES];
+
+        // Costs of the previous and current row within the band
+        private double[] previous = new double[0];
+        private double[] current = new double[0];
+
+        // Direction of the best predecessor of every cell within the band
+        private byte[] directions = new byte[0];
+
+        // Steps of the path, from its end
+        private final float[] pathCosts = new float[2 * MAX_SAMPLES];
+        private final int[] pathRows = new int[2 * MAX_SAMPLES];
+
+        void align(Match match)
+        {
+            final int n = load(match.a, ax, ay, ap, aIndex);
+            final int m = load(match.b, bx, by, bp, bIndex);
+
+            if(n == 0 || m == 0)
+                return;
+
+            // The band has to connect the rows even if the strokes differ in length
+            int radius = n > 1 ? Math.max(band, (m - 1 + n - 2) / (n - 1) + 1) : m;
+            radius = Math.min(radius, m);
+
+            final int width = 2 * radius + 1;
+
+            if(previous.length < width)
+            {
+                previous = new double[width];
+                current = new double[width];
+            }
+
+            if(directions.length < n * width)
+                directions = new byte[n * width];
+
+            int previousLow = 0;
+
+            for(int i = 0; i < n; i++)
+            {
+                final int low = center(i, n, m) - radius;
+                final int first = Math.max(0, low);
+                final int last = Math.min(m - 1, low + width - 1);
+
+                Arrays.fill(current, 0, width, Double.MAX_VALUE);
+
+                for(int j = first; j <= last; j++)
+                {
+                    final double cost = cost(i, j);
+                    double best;
+                    byte direction;
+
+                    if(i == 0 && j == 0)
+                    {
+                        best = 0.0;
+                        direction = DIAGONAL;
+                    }
+                    else
+                    {
+                        best = Double.MAX_VALUE;
+                        direction = DIAGONAL;
+
+                        if(i > 0 && j > 0)
+                        {
+                            final int k = j - 1 - previousLow;
+
+                            if(k >= 0 && k < width)
+                                best = previous[k];
+                        }
+
+                        if(i > 0)
+                        {
+                            final int k = j - previousLow;
+
+                            if(k >= 0 && k < width && previous[k] < best)
+                            {
+                                best = previous[k];
+                                direction = UP;
+                            }
+                        }
+
+                        if(j > first && current[j - 1 - low] < best)
+                        {
+                            best = current[j - 1 - low];
+                            direction = LEFT;
+                        }
+                    }
+
+                    current[j - low] = best == Double.MAX_VALUE ? Double.MAX_VALUE : best + cost;
+                    directions[i * width + j - low] = direction;
+                }
+
+                double[] swap = previous;
+                previous = current;
+                current = swap;
+                previousLow = low;
+            }
+
+            match.cost = previous[m - 1 - previousLow];
+
+            backtrack(match, n, m, radius, width);
+        }
+
+        private void backtrack(Match match, int n, int m, int radius, int width)
+        {
+            int i = n - 1;
+            int j = m - 1;
+            int steps = 0;
+            float maxCost = 0.0f;
+
+            while(true)
+            {
+                final float cost = cost(i, j);
+
+                pathCosts[steps] = cost;
+                pathRows[steps] = i;
+                steps++;
+                maxCost = Math.max(maxCost, cost);
+
+                if(i == 0 && j == 0)
+                    break;
+
+                final byte direction = directions[i * width + j - (center(i, n, m) - radius)];
+
+                if(direction == LEFT)
+                {
+                    j--;
+                }
+                else if(direction == UP)
+                {
+                    i--;
+                }
+                else
+                {
+                    i--;
+                    j--;
+                }
+            }
+
+            match.steps = steps;
+            match.maxCost = maxCost;
+
+            // Run of steps with the highest sum of costs
+            final int length = Math.min(REGION_STEPS, steps);
+            double sum = 0.0;
+
+            for(int s = 0; s < length; s++)
+                sum += pathCosts[s];
+
+            double worst = sum;
+            int worstStart = 0;
+
+            for(int s = length; s < steps; s++)
+            {
+                sum += pathCosts[s] - pathCosts[s - length];
+
+                if(sum > worst)
+                {
+                    worst = sum;
+                    worstStart = s - length + 1;
+                }
+            }
+
+            // The path runs backwards, so the last step of the run is its earliest row
+            final int firstRow = pathRows[worstStart + length - 1];
+            final int lastRow = pathRows[worstStart];
+            float x = 0.0f;
+            float y = 0.0f;
+
+            for(int r = firstRow; r <= lastRow; r++)
+            {
+                x += ax[r];
+                y += ay[r];
+            }
+
+            match.regionCost = (float) (worst / length);
+            match.regionStart = match.a.getTime(aIndex[firstRow]);
+            match.regionEnd = match.a.getTime(aIndex[lastRow]);
+            match.regionX = x / (lastRow - firstRow + 1);
+            match.regionY = y / (lastRow - firstRow + 1);
+        }
+
+        private float cost(int i, int j)
+        {
+            final float dx = ax[i] - bx[j];
+            final float dy = ay[i] - by[j];
+            final float dp = (ap[i] - bp[j]) * pressureWeight;
+
+            return (float) Math.sqrt(dx * dx + dy * dy + dp * dp);
+        }
+    }
+
+    /**
+     * Give the sample of the other stroke the band is centered on.
+     */
+    private static int center(int i, int n, int m)
+    {
+        return n > 1 ? (int) ((long) i * (m - 1) / (n - 1)) : 0;
+    }
+
+    /**
+     * Copy the samples of a stroke, every stride-th of them if it is too long.
+     *
+     * @return Amount of samples copied
+     */
+    private static int load(StrokeCollector.Stroke stroke, float[] x, float[] y, float[] pressure, int[] index)
+    {
+        final int count = stroke.getSampleCount();
+        final int stride = (count + MAX_SAMPLES - 1) / MAX_SAMPLES;
+        int n = 0;
+
+        for(int s = 0; s < count; s += stride)
+        {
+            x[n] = stroke.getX(s);
+            y[n] = stroke.getY(s);
+            pressure[n] = stroke.getPressure(s);
+            index[n] = s;
+            n++;
+        }
+
+        return n;
+    }
+
+    /**
+     * Give the alignments.
+     *
+     * @return Alignments in the order of the strokes of the first session
+     */
+    public List<Match> getMatches()
+    {
+        return matches;
+    }
+
+    /**
+     * Give the amount of strokes of the first session without a match.
+     *
+     * @return Amount of strokes
+     */
+    public int getUnmatchedA()
+    {
+        return unmatchedA;
+    }
+
+    public int getUnmatchedB()
+    {
+        return unmatchedB;
+    }
+
+    /**
+     * Give the distance of the sessions.
+     *
+     * @return Mean cost per step over all alignments
+     */
+    public float getDistance()
+    {
+        double cost = 0.0;
+        long steps = 0;
+
+        for(Match match : matches)
+        {
+            cost += match.cost;
+            steps += match.steps;
+        }
+
+        return steps > 0 ? (float) (cost / steps) : 0.0f;
+    }
+
+    /**
+     * Give the largest distance of two strokes.
+     *
+     * @return Distance
+     */
+    public float getMaxDistance()
+    {
+        float distance = 0.0f;
+
+        for(Match match : matches)
+            distance = Math.max(distance, match.getDistance());
+
+        return distance;
+    }
+
+    /**
+     * Give the alignments with the worst regions.
+     *
+     * @param count Most alignments to give
+     * @return Alignments, worst first
+     */
+    public List<Match> getWorstRegions(int count)
+    {
+        List<Match> sorted = new ArrayList<Match>(matches);
+
+        Collections.sort(sorted, new Comparator<Match>()
+        {
+            @Override
+            public int compare(Match a, Match b)
+            {
+                return Float.compare(b.regionCost, a.regionCost);
+            }
+        });
+
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+    /**
+     * Write the alignment of every stroke as CSV.
+     *
+     * @param output Destination
+     * @throws IOException If writing fails
+     */
+    public void writeStrokes(Writer output) throws IOException
+    {
+        output.write("stroke_a,stroke_b,pointer,samples_a,samples_b,steps,distance,max_cost,region_cost,region_start,region_end,region_x,region_y\n");
+
+        for(Match match : matches)
+        {
+            output.write(match.strokeA + "," + match.strokeB + "," + match.getPointerId() + "," +
+                    match.a.getSampleCount() + "," + match.b.getSampleCount() + "," + match.steps + "," +
+                    match.getDistance() + "," + match.maxCost + "," + match.regionCost + "," +
+                    match.regionStart + "," + match.regionEnd + "," + match.regionX + "," + match.regionY + "\n");
+        }
+    }
+
+    /**
+     * Describe the comparison, with the worst regions, one line each.
+     *
+     * @param regions Amount of worst regions to list
+     * @return Description
+     */
+    public String describe(int regions)
+    {
+        StringBuilder text = new StringBuilder(512);
+
+        text.append(matches.size()).append(" strokes matched, ").append(unmatchedA).append(" and ").append(unmatchedB).append(" unmatched");
+        text.append(", distance ").append(String.format("%.2f", getDistance()));
+        text.append(", worst stroke ").append(String.format("%.2f", getMaxDistance()));
+        text.append(", band ").append(band).append(", ").append(compareNanos / 1000000).append(" ms\n");
+
+        for(Match match : getWorstRegions(regions))
+        {
+            text.append("stroke ").append(match.strokeA).append('/').append(match.strokeB);
+            text.append(" pointer ").append(match.getPointerId());
+            text.append(" at ").append(match.regionStart).append('-').append(match.regionEnd).append(" ms");
+            text.append(" near ").append(Math.round(match.regionX)).append(',').append(Math.round(match.regionY));
+            text.append(": ").append(String.format("%.2f", match.regionCost));
+            text.append(" (stroke ").append(String.format("%.2f", match.getDistance())).append(")\n");
+        }
+
+        return text.toString();
+    }
+}
@@ -0,0 +1,161 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reading and writing of session files, compressed in gzip format or not.
+ *
+ * Compressed files are recognized by their content, not by their name.
+ *
+ * @author Wincent Balin
+ */
+public class SessionFiles
+{
+    /**
+     * Suffix of compressed session files.
+     */
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    // Extensions of session files, longest first
+    private static final String[] EXTENSIONS = {".human.txt", ".text.txt", ".columns", ".csv", ".txt"};
+
+    private static final int GZIP_MAGIC_1 = 0x1F;
+    private static final int GZIP_MAGIC_2 = 0x8B;
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    private SessionFiles()
+    {
+    }
+
+    /**
+     * Answer whether a file is compressed in gzip format.
+     *
+     * @param file File
+     * @return True if compressed
+     * @throws IOException If the file cannot be read
+     */
+    public static boolean isCompressed(File file) throws IOException
+    {
+        InputStream stream = new FileInputStream(file);
+
+        try
+        {
+            return stream.read() == GZIP_MAGIC_1 && stream.read() == GZIP_MAGIC_2;
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Parse a session file, decompressing it while parsing if needed.
+     *
+     * @param file Session file
+     * @param parser Parser passing the session on
+     * @throws IOException If reading fails
+     */
+    public static void parse(File file, SessionParser parser) throws IOException
+    {
+        final boolean compressed = isCompressed(file);
+        FileInputStream stream = new FileInputStream(file);
+
+        try
+        {
+            if(compressed)
+                parser.parse(new GZIPInputStream(stream, STREAM_BUFFER));
+            else
+                parser.parse(stream.getChannel());
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Read the summary at the start of a session file, decompressing it if needed.
+     *
+     * @param file Session file
+     * @return Summary, or null if the file has no summary
+     * @throws IOException If reading fails
+     */
+    public static SessionSummary readSummary(File file) throws IOException
+    {
+        final boolean compressed = isCompressed(file);
+        InputStream stream = new FileInputStream(file);
+
+        try
+        {
+            return SessionSummary.readHeader(compressed ? new GZIPInputStream(stream) : stream);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Create a session file, compressing it on another thread if wanted.
+     *
+     * @param file Session file
+     * @param level Compression level from 1 (fastest) to 9 (smallest), or 0 not to compress
+     * @return Stream into the file
+     * @throws IOException If the file cannot be created
+     */
+    public static OutputStream create(File file, int level) throws IOException
+    {
+        FileOutputStream stream = new FileOutputStream(file);
+
+        if(level <= 0)
+            return stream;
+
+        try
+        {
+            return new CompressingOutputStream(stream, level);
+        }
+        catch(IOException e)
+        {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Give the name of a file as written with a compression level.
+     *
+     * @param fileName Name of the file
+     * @param level Compression level, or 0 not to compress
+     * @return Name ending with the suffix of compressed files if compressed
+     */
+    public static String name(String fileName, int level)
+    {
+        return level > 0 && !fileName.endsWith(COMPRESSED_SUFFIX) ? fileName + COMPRESSED_SUFFIX : fileName;
+    }
+
+    /**
+     * Give the name of a session file without its extensions, so that others can be added.
+     *
+     * @param fileName Name of the file, e.g. session.text.txt.gz
+     * @return Name without the suffix of compressed files and the extension of the format, e.g. session
+     */
+    public static String baseName(String fileName)
+    {
+        if(fileName.endsWith(COMPRESSED_SUFFIX))
+            fileName = fileName.substring(0, fileName.length() - COMPRESSED_SUFFIX.length());
+
+        for(String extension : EXTENSIONS)
+        {
+            if(fileName.endsWith(extension) && fileName.length() > extension.length())
+                return fileName.substring(0, fileName.length() - extension.length());
+        }
+
+        return fileName;
+    }
+}
@@ -0,0 +1,78 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Stage between a session source and a handler, which may alter or drop events.
+ *
+ * Every motion event is buffered completely before being passed to filter(),
+ * so that subclasses may inspect and change all of its samples.
+ *
+ * @author Wincent Balin
+ */
+public abstract class SessionFilter implements SessionHandler
+{
+    protected final SessionHandler next;
+
+    private final EventBuffer event = new EventBuffer();
+
+    /**
+     * Create filter.
+     *
+     * @param next Handler to receive the filtered session
+     */
+    public SessionFilter(SessionHandler next)
+    {
+        this.next = next;
+    }
+
+    /**
+     * Inspect and possibly change a buffered event.
+     *
+     * @param event Buffered event
+     * @return True if the event should be passed on, else false
+     */
+    protected abstract boolean filter(EventBuffer event);
+
+    /**
+     * Decide whether to pass on an image load event.
+     *
+     * @param fileName Name of the loaded image file
+     * @param time Time the image was loaded at
+     * @return True if the image load event should be passed on
+     */
+    protected boolean filterImage(String fileName, long time)
+    {
+        return true;
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        event.begin(action, actionIndex, edgeFlags, historySize, pointerCount);
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        event.add(time, pointerIndex, pointerId, x, y, size, pressure);
+    }
+
+    @Override
+    public void endEvent()
+    {
+        if(filter(event))
+            event.replay(next);
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+        if(filterImage(fileName, time))
+            next.image(fileName, time);
+    }
+
+    @Override
+    public void endSession()
+    {
+        next.endSession();
+    }
+}
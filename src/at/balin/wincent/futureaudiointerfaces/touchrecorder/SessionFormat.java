@@ -0,0 +1,95 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Constants of the recorded session format.
+ *
+ * The values of actions and edge flags equal those of android.view.MotionEvent,
+ * so that this class and everything built upon it stays usable off the device.
+ *
+ * @author Wincent Balin
+ */
+public final class SessionFormat
+{
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+    public static final int ACTION_CANCEL = 3;
+    public static final int ACTION_OUTSIDE = 4;
+    public static final int ACTION_POINTER_DOWN = 5;
+    public static final int ACTION_POINTER_UP = 6;
+    public static final int ACTION_UNKNOWN = 7;
+
+    public static final int EDGE_TOP = 0x00000001;
+    public static final int EDGE_BOTTOM = 0x00000002;
+    public static final int EDGE_LEFT = 0x00000004;
+    public static final int EDGE_RIGHT = 0x00000008;
+
+    /**
+     * Names of actions as written into logs, indexed by action.
+     */
+    public static final String[] ACTION_NAMES = {"DOWN", "UP", "MOVE", "CANCEL", "OUTSIDE", "POINTER_DOWN", "POINTER_UP", "UNKNOWN"};
+
+    /**
+     * Names of edges as written into logs, in the order they are written.
+     */
+    public static final String[] EDGE_NAMES = {"BOTTOM", "LEFT", "RIGHT", "TOP"};
+
+    /**
+     * Edge flags matching EDGE_NAMES.
+     */
+    public static final int[] EDGE_FLAGS = {EDGE_BOTTOM, EDGE_LEFT, EDGE_RIGHT, EDGE_TOP};
+
+    private SessionFormat()
+    {
+    }
+
+    /**
+     * Give the name of an action.
+     *
+     * @param action Action
+     * @return Name of the action
+     */
+    public static String actionName(int action)
+    {
+        return (action >= 0 && action < ACTION_UNKNOWN) ? ACTION_NAMES[action] : ACTION_NAMES[ACTION_UNKNOWN];
+    }
+
+    /**
+     * Find action by its name.
+     *
+     * @param name Name of the action
+     * @return Action, or ACTION_UNKNOWN if the name is not known
+     */
+    public static int actionByName(String name)
+    {
+        for(int action = 0; action < ACTION_UNKNOWN; action++)
+        {
+            if(ACTION_NAMES[action].equals(name))
+                return action;
+        }
+
+        return ACTION_UNKNOWN;
+    }
+
+    /**
+     * Answer whether the action starts a stroke of a pointer.
+     *
+     * @param action Action
+     * @return True for DOWN and POINTER_DOWN
+     */
+    public static boolean startsStroke(int action)
+    {
+        return action == ACTION_DOWN || action == ACTION_POINTER_DOWN;
+    }
+
+    /**
+     * Answer whether the action ends a stroke of a pointer.
+     *
+     * @param action Action
+     * @return True for UP, CANCEL and POINTER_UP
+     */
+    public static boolean endsStroke(int action)
+    {
+        return action == ACTION_UP || action == ACTION_CANCEL || action == ACTION_POINTER_UP;
+    }
+}
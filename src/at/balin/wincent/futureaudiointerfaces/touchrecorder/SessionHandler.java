@@ -0,0 +1,55 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Receiver of a recorded session, delivered event by event.
+ *
+ * Every motion event is delivered as a call to beginEvent(), followed by
+ * historySize * pointerCount historical samples (history-major, as in the log),
+ * followed by pointerCount current samples and a call to endEvent().
+ *
+ * @author Wincent Balin
+ */
+public interface SessionHandler
+{
+    /**
+     * Start a motion event.
+     *
+     * @param action Action of the event, see SessionFormat
+     * @param actionIndex Index of the pointer which caused POINTER_DOWN or POINTER_UP, else 0
+     * @param edgeFlags Edge flags of a DOWN event, else 0
+     * @param historySize Amount of historical sample rows
+     * @param pointerCount Amount of pointers in every row
+     */
+    void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount);
+
+    /**
+     * Deliver a sample of the current event.
+     *
+     * @param time Time of the sample in milliseconds since the last start of the device
+     * @param pointerIndex Index of the pointer in the event
+     * @param pointerId Identifier of the pointer
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param size Size of the touch
+     * @param pressure Pressure of the touch
+     */
+    void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure);
+
+    /**
+     * Finish the current motion event.
+     */
+    void endEvent();
+
+    /**
+     * Deliver an image load event.
+     *
+     * @param fileName Name of the loaded image file
+     * @param time Time the image was loaded at
+     */
+    void image(String fileName, long time);
+
+    /**
+     * Finish the session.
+     */
+    void endSession();
+}
@@ -0,0 +1,947 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Parser of sessions in the text format of the log, both machine- and human-readable.
+ *
+ * The parser works directly on the bytes of a ByteBuffer, e.g. a memory-mapped file:
+ * numbers are parsed in place and no object is created per field; only file names of
+ * image load events become strings. Input may be given in pieces; only complete lines
+ * are consumed. Malformed lines are skipped and reported with their byte offset.
+ *
+ * @author Wincent Balin
+ */
+public class SessionParser
+{
+    /**
+     * Receiver of reports about malformed input.
+     */
+    public interface ErrorListener
+    {
+        /**
+         * Report a malformed line.
+         *
+         * @param offset Byte offset of the start of the line in the input
+         * @param message Description of the problem
+         */
+        void malformed(long offset, String message);
+    }
+
+    private static final int MAPPING_WINDOW = 64 * 1024 * 1024;
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    private static final byte[] EVENT = ascii("Event");
+    private static final byte[] IMAGE = ascii("Image");
+    private static final byte[] INDEX = ascii("Index");
+    private static final byte[] SESSION = ascii("Session");
+    private static final byte[] WITH = ascii("with");
+    private static final byte[] ACTION = ascii("action");
+    private static final byte[] EDGES = ascii("edges");
+    private static final byte[] POINTER = ascii("pointer");
+    private static final byte[] POINTERS = ascii("pointers");
+    private static final byte[] HISTORY = ascii("history");
+    private static final byte[] AT = ascii("At");
+    private static final byte[] MS = ascii("ms");
+    private static final byte[] KNOWN = ascii("known");
+    private static final byte[] AS = ascii("as");
+    private static final byte[] X = ascii("x");
+    private static final byte[] Y = ascii("y");
+    private static final byte[] SIZE = ascii("size");
+    private static final byte[] PRESSURE = ascii("pressure");
+    private static final byte[] FOLLOWING = ascii("Following");
+    private static final byte[] CREATED = ascii("Created");
+    private static final byte[][] ACTION_NAMES = new byte[SessionFormat.ACTION_NAMES.length][];
+    private static final byte[][] EDGE_NAMES = new byte[SessionFormat.EDGE_NAMES.length][];
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static
+    {
+        for(int a = 0; a < ACTION_NAMES.length; a++)
+            ACTION_NAMES[a] = ascii(SessionFormat.ACTION_NAMES[a]);
+
+        for(int e = 0; e < EDGE_NAMES.length; e++)
+            EDGE_NAMES[e] = ascii(SessionFormat.EDGE_NAMES[e]);
+
+        POWERS_OF_TEN[0] = 1.0;
+
+        for(int p = 1; p < POWERS_OF_TEN.length; p++)
+            POWERS_OF_TEN[p] = POWERS_OF_TEN[p - 1] * 10.0;
+    }
+
+    private final SessionHandler handler;
+    private ErrorListener errorListener = null;
+
+    private final EventBuffer event = new EventBuffer();
+
+    // Cursor within the current line
+    private ByteBuffer buffer;
+    private int pos;
+    private int end;
+
+    // Byte offset of the first unconsumed byte of the input
+    private long offset = 0;
+    private long lineOffset;
+
+    private long errors = 0;
+    private long firstErrorOffset = -1;
+    private String firstError = null;
+
+    // State of a human-readable event or image spanning several lines
+    private boolean humanEventPending = false;
+    private int humanAction;
+    private int humanActionIndex;
+    private int humanEdgeFlags;
+    private int humanMaxPointerIndex;
+    private String humanImageFileName = null;
+    private boolean humanSkipping = false;
+
+    private long bytes = 0;
+
+    /**
+     * Create parser.
+     *
+     * @param handler Receiver of the parsed session, e.g. a SampleStore
+     */
+    public SessionParser(SessionHandler handler)
+    {
+        this.handler = handler;
+    }
+
+    /**
+     * Set receiver of reports about malformed input.
+     *
+     * @param errorListener Receiver, or null to only count the errors
+     */
+    public void setErrorListener(ErrorListener errorListener)
+    {
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * Parse a file, mapping it into memory window by window.
+     *
+     * @param channel Channel of the file
+     * @throws IOException If reading fails
+     */
+    public void parse(FileChannel channel) throws IOException
+    {
+        parse(channel, 0, channel.size());
+    }
+
+    /**
+     * Parse a part of a file, e.g. one found in its TimeIndex.
+     *
+     * The part has to begin and end at the start of a line; byte offsets
+     * in error reports are relative to the beginning of the file.
+     *
+     * @param channel Channel of the file
+     * @param from Byte offset of the first line to parse
+     * @param to Byte offset after the last line to parse
+     * @throws IOException If reading fails
+     */
+    public void parse(FileChannel channel, long from, long to) throws IOException
+    {
+        final long size = Math.min(to, channel.size());
+        long position = from;
+
+        offset = from;
+
+        while(position < size)
+        {
+            final long length = Math.min(MAPPING_WINDOW, size - position);
+            final boolean last = position + length == size;
+
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            parse(window, last);
+
+            if(window.position() == 0 && !last)
+                throw new IOException("Line at offset " + position + " is longer than " + MAPPING_WINDOW + " bytes");
+
+            position += window.position();
+        }
+
+        finish();
+    }
+
+    /**
+     * Parse a stream, e.g. a decompressed file.
+     *
+     * @param stream Source of the bytes
+     * @throws IOException If reading fails
+     */
+    public void parse(InputStream stream) throws IOException
+    {
+        ByteBuffer streamBuffer = ByteBuffer.allocate(STREAM_BUFFER);
+        boolean last = false;
+
+        while(!last)
+        {
+            final int read = stream.read(streamBuffer.array(), streamBuffer.position(), streamBuffer.remaining());
+
+            if(read < 0)
+                last = true;
+            else
+                streamBuffer.position(streamBuffer.position() + read);
+
+            streamBuffer.flip();
+            parse(streamBuffer, last);
+            streamBuffer.compact();
+
+            // A line longer than the buffer needs a larger buffer
+            if(!streamBuffer.hasRemaining())
+            {
+                ByteBuffer larger = ByteBuffer.allocate(streamBuffer.capacity() * 2);
+                streamBuffer.flip();
+                larger.put(streamBuffer);
+                streamBuffer = larger;
+            }
+        }
+
+        finish();
+    }
+
+    /**
+     * Parse the complete lines between position and limit of a buffer.
+     *
+     * The position is advanced past the last consumed line; an incomplete last
+     * line is left in the buffer, unless the end of the input has been reached.
+     *
+     * @param buffer Bytes of the input
+     * @param endOfInput Whether no more input follows
+     */
+    public void parse(ByteBuffer buffer, boolean endOfInput)
+    {
+        this.buffer = buffer;
+
+        final int start = buffer.position();
+        final int limit = buffer.limit();
+        final long base = offset - start;
+
+        int p = start;
+
+        while(p < limit)
+        {
+            int newline = p;
+
+            while(newline < limit && buffer.get(newline) != '\n')
+                newline++;
+
+            if(newline == limit && !endOfInput)
+                break;
+
+            int lineEnd = newline;
+
+            if(lineEnd > p && buffer.get(lineEnd - 1) == '\r')
+                lineEnd--;
+
+            lineOffset = base + p;
+            parseLine(p, lineEnd);
+
+            p = Math.min(newline + 1, limit);
+        }
+
+        bytes += p - start;
+        offset += p - start;
+        buffer.position(p);
+        this.buffer = null;
+    }
+
+    /**
+     * Finish parsing, delivering pending events and finishing the session.
+     */
+    public void finish()
+    {
+        flushHuman();
+        handler.endSession();
+    }
+
+    private void parseLine(int start, int lineEnd)
+    {
+        pos = start;
+        end = lineEnd;
+
+        try
+        {
+            skipSpaces();
+
+            if(pos == end)
+            {
+                // Empty lines end human-readable events
+                humanSkipping = false;
+                flushHuman();
+                return;
+            }
+
+            final boolean indented = pos > start;
+
+            if(indented && humanSkipping)
+                return;
+
+            humanSkipping = false;
+
+            if(!indented && peek(EVENT))
+            {
+                flushHuman();
+                parseEvent();
+            }
+            else if(!indented && peek(IMAGE))
+            {
+                flushHuman();
+                parseImage();
+            }
+            else if(!indented && peek(INDEX))
+            {
+                // Footer of a saved session, read by TimeIndex
+                flushHuman();
+            }
+            else if(!indented && peek(SESSION))
+            {
+                // Header of a saved session, read by SessionSummary
+                flushHuman();
+            }
+            else if(indented && (humanEventPending || humanImageFileName != null))
+            {
+                parseHumanLine();
+            }
+            else
+            {
+                throw new Malformed("unknown record");
+            }
+        }
+        catch(Malformed e)
+        {
+            // Forget the broken event, so that it is not delivered in parts
+            humanSkipping = humanEventPending;
+            humanEventPending = false;
+            humanImageFileName = null;
+
+            reportError(e.getMessage());
+        }
+    }
+
+    private void reportError(String message)
+    {
+        errors++;
+
+        if(firstError == null)
+        {
+            firstErrorOffset = lineOffset;
+            firstError = message;
+        }
+
+        if(errorListener != null)
+            errorListener.malformed(lineOffset, message);
+    }
+
+    private void parseEvent() throws Malformed
+    {
+        expect(EVENT);
+        skipSpaces();
+
+        if(peek(WITH))
+        {
+            // Human-readable: "Event with action NAME:", details follow on separate lines
+            expect(WITH);
+            expect(ACTION);
+
+            humanAction = parseAction();
+            humanActionIndex = 0;
+            humanEdgeFlags = 0;
+            humanMaxPointerIndex = -1;
+            humanEventPending = true;
+
+            event.begin(humanAction, 0, 0, 0, 0);
+            expectEnd();
+            return;
+        }
+
+        // Machine-readable: everything on one line
+        final int action = parseAction();
+
+        int actionIndex = 0;
+        int edgeFlags = 0;
+        int historySize = 0;
+        int pointerCount = 0;
+        boolean begun = false;
+
+        skipSpaces();
+
+        while(pos < end)
+        {
+            if(peek(AT))
+            {
+                if(!begun)
+                {
+                    event.begin(action, actionIndex, edgeFlags, historySize, pointerCount);
+                    begun = true;
+                }
+
+                parseSample();
+            }
+            else if(peek(POINTERS))
+            {
+                expect(POINTERS);
+                pointerCount = parseInt();
+            }
+            else if(peek(POINTER))
+            {
+                expect(POINTER);
+                actionIndex = parseInt();
+            }
+            else if(peek(HISTORY))
+            {
+                expect(HISTORY);
+                historySize = parseInt();
+            }
+            else if(peek(EDGES))
+            {
+                expect(EDGES);
+                edgeFlags = parseEdges();
+            }
+            else
+            {
+                throw new Malformed("unexpected token");
+            }
+
+            skipSpaces();
+        }
+
+        if(!begun)
+            event.begin(action, actionIndex, edgeFlags, historySize, pointerCount);
+
+        final int expected = (action == SessionFormat.ACTION_MOVE ? historySize + 1 : 1) * pointerCount;
+
+        if(event.getSampleCount() != expected)
+            throw new Malformed("expected " + expected + " samples, found " + event.getSampleCount());
+
+        event.replay(handler);
+    }
+
+    private void parseHumanLine() throws Malformed
+    {
+        if(peek(AT))
+        {
+            if(humanImageFileName != null)
+            {
+                // Second line of an image load event
+                expect(AT);
+                final long time = parseLong();
+                optional(MS);
+                expectEnd();
+
+                handler.image(humanImageFileName, time);
+                humanImageFileName = null;
+            }
+            else
+            {
+                parseSample();
+                humanMaxPointerIndex = Math.max(humanMaxPointerIndex, event.getPointerIndex(event.getSampleCount() - 1));
+            }
+        }
+        else if(peek(FOLLOWING))
+        {
+            // "Following screen edges had been crossed: BOTTOM LEFT "
+            while(pos < end && buffer.get(pos) != ':')
+                pos++;
+
+            pos++;
+            humanEdgeFlags = parseEdges();
+            expectEnd();
+        }
+        else if(peek(CREATED))
+        {
+            // "Created by pointer N"
+            while(pos < end && !peek(POINTER))
+                pos++;
+
+            expect(POINTER);
+            humanActionIndex = parseInt();
+            expectEnd();
+        }
+        else
+        {
+            throw new Malformed("unknown detail");
+        }
+    }
+
+    private void flushHuman()
+    {
+        if(humanImageFileName != null)
+        {
+            humanImageFileName = null;
+            reportError("image without time");
+        }
+
+        if(!humanEventPending)
+            return;
+
+        humanEventPending = false;
+
+        // The human-readable format does not name the shape of the event; infer it from the samples
+        final int count = event.getSampleCount();
+        final int pointerCount = humanMaxPointerIndex + 1;
+
+        if(pointerCount == 0 ? count != 0 : count % pointerCount != 0)
+        {
+            reportError("incomplete rows of samples");
+            return;
+        }
+
+        final int historySize = pointerCount == 0 ? 0 : count / pointerCount - 1;
+
+        if(historySize > 0 && humanAction != SessionFormat.ACTION_MOVE)
+        {
+            reportError("history in an event other than MOVE");
+            return;
+        }
+
+        event.reshape(humanActionIndex, humanEdgeFlags, historySize, pointerCount);
+        event.replay(handler);
+    }
+
+    private void parseImage() throws Malformed
+    {
+        expect(IMAGE);
+
+        // Exactly one space separates the file name, which may start with spaces itself
+        final int nameStart = pos + 1;
+
+        // Machine-readable lines end with " At <time>", human-readable ones have the time on the next line
+        int timeStart = end;
+
+        while(timeStart > nameStart && isDigit(buffer.get(timeStart - 1)))
+            timeStart--;
+
+        final boolean machineReadable = timeStart < end && timeStart - 4 >= nameStart
+            && buffer.get(timeStart - 4) == ' ' && buffer.get(timeStart - 3) == 'A' && buffer.get(timeStart - 2) == 't' && buffer.get(timeStart - 1) == ' ';
+
+        if(machineReadable)
+        {
+            final String fileName = decode(nameStart, timeStart - 4);
+            pos = timeStart;
+            handler.image(fileName, parseLong());
+        }
+        else
+        {
+            humanImageFileName = decode(nameStart, end);
+        }
+    }
+
+    private void parseSample() throws Malformed
+    {
+        // At <time> [ms] pointer <index> known as <id>: x [=] <x> y [=] <y> size [=] <size> pressure [=] <pressure>
+        expect(AT);
+        final long time = parseLong();
+        optional(MS);
+
+        expect(POINTER);
+        final int pointerIndex = parseInt();
+        expect(KNOWN);
+        expect(AS);
+        final int pointerId = parseInt();
+
+        if(pos == end || buffer.get(pos) != ':')
+            throw new Malformed("colon expected");
+
+        pos++;
+
+        expect(X);
+        final float x = parseValue();
+        expect(Y);
+        final float y = parseValue();
+        expect(SIZE);
+        final float size = parseValue();
+        expect(PRESSURE);
+        final float pressure = parseValue();
+
+        event.add(time, pointerIndex, pointerId, x, y, size, pressure);
+    }
+
+    private float parseValue() throws Malformed
+    {
+        skipSpaces();
+
+        if(pos < end && buffer.get(pos) == '=')
+            pos++;
+
+        return parseFloat();
+    }
+
+    private int parseAction() throws Malformed
+    {
+        skipSpaces();
+
+        for(int a = 0; a < ACTION_NAMES.length; a++)
+        {
+            final byte[] name = ACTION_NAMES[a];
+
+            if(matches(name) && pos + name.length < end && buffer.get(pos + name.length) == ':')
+            {
+                pos += name.length + 1;
+                return a;
+            }
+        }
+
+        throw new Malformed("unknown action");
+    }
+
+    private int parseEdges()
+    {
+        int edgeFlags = 0;
+
+        skipSpaces();
+
+        while(pos < end)
+        {
+            boolean found = false;
+
+            for(int e = 0; e < EDGE_NAMES.length; e++)
+            {
+                if(matches(EDGE_NAMES[e]))
+                {
+                    edgeFlags |= SessionFormat.EDGE_FLAGS[e];
+                    pos += EDGE_NAMES[e].length;
+                    found = true;
+                    break;
+                }
+            }
+
+            if(!found)
+                break;
+
+            // Machine-readable edges are separated by slashes, human-readable ones by spaces
+            if(pos < end && buffer.get(pos) == '/')
+                pos++;
+            else
+                skipSpaces();
+        }
+
+        return edgeFlags;
+    }
+
+    private int parseInt() throws Malformed
+    {
+        final long value = parseLong();
+
+        if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw new Malformed("integer out of range");
+
+        return (int) value;
+    }
+
+    private long parseLong() throws Malformed
+    {
+        skipSpaces();
+
+        boolean negative = false;
+
+        if(pos < end && buffer.get(pos) == '-')
+        {
+            negative = true;
+            pos++;
+        }
+
+        final int start = pos;
+        long value = 0;
+
+        while(pos < end)
+        {
+            final byte b = buffer.get(pos);
+
+            if(!isDigit(b))
+                break;
+
+            value = value * 10 + (b - '0');
+            pos++;
+        }
+
+        if(pos == start || pos - start > 18)
+            throw new Malformed("number expected");
+
+        return negative ? -value : value;
+    }
+
+    private float parseFloat() throws Malformed
+    {
+        skipSpaces();
+
+        final int start = pos;
+        boolean negative = false;
+
+        if(pos < end && buffer.get(pos) == '-')
+        {
+            negative = true;
+            pos++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+
+        while(pos < end && isDigit(buffer.get(pos)))
+        {
+            final int digit = buffer.get(pos) - '0';
+
+            if(significantDigits < 18)
+            {
+                mantissa = mantissa * 10 + digit;
+
+                if(mantissa != 0)
+                    significantDigits++;
+            }
+            else
+            {
+                exponent++;
+            }
+
+            anyDigit = true;
+            pos++;
+        }
+
+        if(pos < end && buffer.get(pos) == '.')
+        {
+            pos++;
+
+            while(pos < end && isDigit(buffer.get(pos)))
+            {
+                if(significantDigits < 18)
+                {
+                    mantissa = mantissa * 10 + (buffer.get(pos) - '0');
+                    exponent--;
+
+                    if(mantissa != 0)
+                        significantDigits++;
+                }
+
+                anyDigit = true;
+                pos++;
+            }
+        }
+
+        if(!anyDigit)
+        {
+            // NaN and Infinity are rare enough to be parsed the slow way
+            while(pos < end && buffer.get(pos) != ' ')
+                pos++;
+
+            return parseFloatSlowly(start);
+        }
+
+        if(pos < end && (buffer.get(pos) == 'E' || buffer.get(pos) == 'e'))
+        {
+            pos++;
+
+            boolean negativeExponent = false;
+
+            if(pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+'))
+            {
+                negativeExponent = buffer.get(pos) == '-';
+                pos++;
+            }
+
+            int exponentValue = 0;
+            final int exponentStart = pos;
+
+            while(pos < end && isDigit(buffer.get(pos)) && pos - exponentStart < 4)
+            {
+                exponentValue = exponentValue * 10 + (buffer.get(pos) - '0');
+                pos++;
+            }
+
+            if(pos == exponentStart)
+                throw new Malformed("exponent expected");
+
+            exponent += negativeExponent ? -exponentValue : exponentValue;
+        }
+
+        if(pos < end && buffer.get(pos) != ' ')
+            throw new Malformed("number expected");
+
+        // Mantissas of floats written by Java fit into a double exactly; so do powers of ten up to 22
+        double value = mantissa;
+
+        if(mantissa != 0 && exponent != 0)
+        {
+            if(significantDigits > 15 || exponent < -22 || exponent > 22)
+                return parseFloatSlowly(start);
+
+            value = exponent < 0 ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+        }
+
+        return (float) (negative ? -value : value);
+    }
+
+    private float parseFloatSlowly(int start) throws Malformed
+    {
+        try
+        {
+            return Float.parseFloat(decode(start, pos));
+        }
+        catch(NumberFormatException e)
+        {
+            throw new Malformed("number expected");
+        }
+    }
+
+    private boolean matches(byte[] word)
+    {
+        if(end - pos < word.length)
+            return false;
+
+        for(int i = 0; i < word.length; i++)
+        {
+            if(buffer.get(pos + i) != word[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private boolean peek(byte[] word)
+    {
+        if(!matches(word))
+            return false;
+
+        // The word must not continue
+        final int after = pos + word.length;
+
+        return after == end || !isLetter(buffer.get(after));
+    }
+
+    private void expect(byte[] word) throws Malformed
+    {
+        skipSpaces();
+
+        if(!peek(word))
+            throw new Malformed("expected " + decodeAscii(word));
+
+        pos += word.length;
+    }
+
+    private void optional(byte[] word)
+    {
+        skipSpaces();
+
+        if(peek(word))
+            pos += word.length;
+    }
+
+    private void expectEnd() throws Malformed
+    {
+        skipSpaces();
+
+        if(pos != end)
+            throw new Malformed("unexpected characters at end of line");
+    }
+
+    private void skipSpaces()
+    {
+        while(pos < end && buffer.get(pos) == ' ')
+            pos++;
+    }
+
+    private static boolean isDigit(byte b)
+    {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isLetter(byte b)
+    {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_';
+    }
+
+    private String decode(int start, int stop)
+    {
+        byte[] bytes = new byte[stop - start];
+
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(start + i);
+
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decodeAscii(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length];
+
+        for(int i = 0; i < bytes.length; i++)
+            chars[i] = (char) bytes[i];
+
+        return new String(chars);
+    }
+
+    private static byte[] ascii(String word)
+    {
+        byte[] bytes = new byte[word.length()];
+
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) word.charAt(i);
+
+        return bytes;
+    }
+
+    /**
+     * Give the amount of malformed lines.
+     *
+     * @return Amount of lines skipped because of errors
+     */
+    public long getErrors()
+    {
+        return errors;
+    }
+
+    /**
+     * Describe the first error.
+     *
+     * @return Description including the byte offset, or null if there were no errors
+     */
+    public String getFirstError()
+    {
+        return firstError == null ? null : "offset " + firstErrorOffset + ": " + firstError;
+    }
+
+    /**
+     * Give the amount of bytes consumed.
+     *
+     * @return Amount of bytes
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Problem found in the input; never leaves the parser.
+     */
+    private static class Malformed extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        public Malformed(String message)
+        {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            // Malformed input is expected, the stack trace is not needed
+            return this;
+        }
+    }
+}
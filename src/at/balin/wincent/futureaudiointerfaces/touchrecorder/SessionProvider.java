@@ -0,0 +1,490 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+/**
+ * Provider of sessions to other apps, formatted while they are read.
+ *
+ * URIs have the form content://AUTHORITY/current/FORMAT for the session being
+ * recorded, or content://AUTHORITY/saved/FORMAT/PATH for a saved session,
+ * where FORMAT is text, human or csv; saved sessions may be compressed.
+ * A producer thread writes the session into a pipe, so that the receiver
+ * starts reading immediately and no copy is kept. Before Android 2.3, which
+ * has no pipes, the session is written into a file in the cache directory instead.
+ * The session being recorded must not be cleared while isProviding() answers true.
+ *
+ * @author Wincent Balin
+ */
+public class SessionProvider extends ContentProvider
+{
+    public static final String AUTHORITY = "at.balin.wincent.futureaudiointerfaces.touchrecorder.sessions";
+
+    private static final String[] FORMATS = {"text", "human", "csv"};
+    private static final String[] TYPES = {"text/plain", "text/plain", "text/csv"};
+    private static final String[] EXTENSIONS = {".txt", ".human.txt", ".csv"};
+
+    private static final int PIPE_SDK = 9;
+    private static final int REPLAY_EVENTS = 256;
+    private static final int SNAPSHOT_SECONDS = 5;
+
+    // Session being recorded, handed over by the view
+    private static SampleStore session = null;
+    private static StrokeHistory sessionHistory = null;
+
+    // Amount of readers of the session being recorded
+    private static final AtomicInteger providing = new AtomicInteger();
+
+    /**
+     * Events, image file names and undone gestures of the session being recorded, taken on opening.
+     *
+     * Taken on the main thread, which records the session, so that every event counted
+     * is complete and visible to the thread reading it afterwards.
+     */
+    private static class Snapshot
+    {
+        final SampleStore store = session;
+        final int events;
+        final List<String> imageFileNames;
+        final BitSet undone;
+
+        Snapshot()
+        {
+            events = store != null ? store.getEventCount() : 0;
+            imageFileNames = store != null ? store.getImageFileNames() : null;
+            undone = sessionHistory != null ? sessionHistory.getUndone() : null;
+        }
+    }
+
+    /**
+     * Set the session being recorded.
+     *
+     * The store may grow while it is read; events recorded after opening are
+     * not provided, nor are gestures undone or redone after opening. The store
+     * must not be cleared or spilled while isProviding() answers true.
+     *
+     * @param store Session
+     * @param history History of the gestures, undone ones are left out; may be null
+     */
+    public static void setSession(SampleStore store, StrokeHistory history)
+    {
+        session = store;
+        sessionHistory = history;
+    }
+
+    /**
+     * Answer whether the session being recorded is being read.
+     *
+     * @return True while the session must not be cleared
+     */
+    public static boolean isProviding()
+    {
+        return providing.get() > 0;
+    }
+
+    /**
+     * Give the URI of the session being recorded.
+     *
+     * @param format Format: text, human or csv
+     * @return URI
+     */
+    public static Uri currentUri(String format)
+    {
+        return Uri.parse("content://" + AUTHORITY + "/current/" + format);
+    }
+
+    /**
+     * Give the URI of a saved session.
+     *
+     * @param format Format: text, human or csv
+     * @param file Saved session
+     * @return URI
+     */
+    public static Uri savedUri(String format, File file)
+    {
+        return Uri.parse("content://" + AUTHORITY + "/saved/" + format + Uri.encode(file.getAbsolutePath(), "/"));
+    }
+
+    @Override
+    public boolean onCreate()
+    {
+        return true;
+    }
+
+    /**
+     * Find the format of a URI.
+     *
+     * @return Index of the format
+     * @throws FileNotFoundException If the URI does not denote a session
+     */
+    private static int format(Uri uri) throws FileNotFoundException
+    {
+        final List<String> segments = uri.getPathSegments();
+
+        if(segments.size() >= 2 && (segments.get(0).equals("current") || (segments.get(0).equals("saved") && segments.size() > 2)))
+        {
+            for(int f = 0; f < FORMATS.length; f++)
+            {
+                if(FORMATS[f].equals(segments.get(1)))
+                    return f;
+            }
+        }
+
+        throw new FileNotFoundException("No session at " + uri);
+    }
+
+    private static File savedFile(Uri uri)
+    {
+        final List<String> segments = uri.getPathSegments();
+        StringBuilder path = new StringBuilder();
+
+        for(int i = 2; i < segments.size(); i++)
+            path.append('/').append(segments.get(i));
+
+        return new File(path.toString());
+    }
+
+    private static String displayName(Uri uri, int format)
+    {
+        final String name = uri.getPathSegments().get(0).equals("current") ? "session" : savedFile(uri).getName();
+
+        return name + EXTENSIONS[format];
+    }
+
+    @Override
+    public String getType(Uri uri)
+    {
+        try
+        {
+            return TYPES[format(uri)];
+        }
+        catch(FileNotFoundException e)
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder)
+    {
+        final int format;
+
+        try
+        {
+            format = format(uri);
+        }
+        catch(FileNotFoundException e)
+        {
+            return null;
+        }
+
+        // Size is not known before the session has been formatted
+        if(projection == null)
+            projection = new String[] {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+        Object[] row = new Object[projection.length];
+
+        for(int c = 0; c < projection.length; c++)
+        {
+            if(projection[c].equals(OpenableColumns.DISPLAY_NAME))
+                row[c] = displayName(uri, format);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+
+        return cursor;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(final Uri uri, String mode) throws FileNotFoundException
+    {
+        final int format = format(uri);
+
+        if(!mode.equals("r"))
+            throw new FileNotFoundException("Sessions can only be read");
+
+        if(uri.getPathSegments().get(0).equals("saved") && !savedFile(uri).isFile())
+            throw new FileNotFoundException("No session at " + uri);
+
+        final boolean current = uri.getPathSegments().get(0).equals("current");
+
+        // Keep the session from being cleared before the snapshot is taken
+        if(current)
+            providing.incrementAndGet();
+
+        // Changes from now on are not provided
+        final Snapshot snapshot;
+
+        try
+        {
+            snapshot = current ? takeSnapshot() : null;
+        }
+        catch(FileNotFoundException e)
+        {
+            providing.decrementAndGet();
+            throw e;
+        }
+
+        if(Build.VERSION.SDK_INT < PIPE_SDK)
+        {
+            try
+            {
+                return openCopy(uri, format, snapshot);
+            }
+            finally
+            {
+                if(current)
+                    providing.decrementAndGet();
+            }
+        }
+
+        final ParcelFileDescriptor[] pipe;
+
+        try
+        {
+            pipe = createPipe();
+        }
+        catch(FileNotFoundException e)
+        {
+            if(current)
+                providing.decrementAndGet();
+
+            throw e;
+        }
+
+        new Thread("SessionProvider")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    produce(uri, format, snapshot, new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
+                }
+                catch(IOException e)
+                {
+                    // Usually the receiver has stopped reading
+                    Log.i("share", "Stopped providing " + uri + ": " + e.getMessage());
+                }
+                catch(RuntimeException e)
+                {
+                    // The receiver sees the end of the pipe rather than waiting for ever
+                    Log.e("share", "Cannot provide " + uri, e);
+                    close(pipe[1]);
+                }
+                finally
+                {
+                    if(current)
+                        providing.decrementAndGet();
+                }
+            }
+        }.start();
+
+        return pipe[0];
+    }
+
+    /**
+     * Take a snapshot of the session being recorded on the main thread, between its events.
+     */
+    private static Snapshot takeSnapshot() throws FileNotFoundException
+    {
+        if(Looper.myLooper() == Looper.getMainLooper())
+            return new Snapshot();
+
+        FutureTask<Snapshot> task = new FutureTask<Snapshot>(new Callable<Snapshot>()
+        {
+            @Override
+            public Snapshot call()
+            {
+                return new Snapshot();
+            }
+        });
+
+        new Handler(Looper.getMainLooper()).post(task);
+
+        try
+        {
+            return task.get(SNAPSHOT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new FileNotFoundException("Interrupted while opening the session");
+        }
+        catch(ExecutionException e)
+        {
+            throw new FileNotFoundException("Cannot open the session: " + e.getCause());
+        }
+        catch(TimeoutException e)
+        {
+            task.cancel(false);
+            throw new FileNotFoundException("Session is busy");
+        }
+    }
+
+    private static void close(ParcelFileDescriptor descriptor)
+    {
+        try
+        {
+            descriptor.close();
+        }
+        catch(IOException e)
+        {
+            Log.w("share", "Cannot close pipe: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create a pipe; the method is not known to the API this app is built against.
+     */
+    private static ParcelFileDescriptor[] createPipe() throws FileNotFoundException
+    {
+        try
+        {
+            Method createPipe = ParcelFileDescriptor.class.getMethod("createPipe");
+
+            return (ParcelFileDescriptor[]) createPipe.invoke(null);
+        }
+        catch(Exception e)
+        {
+            throw new FileNotFoundException("Cannot create pipe: " + e);
+        }
+    }
+
+    /**
+     * Write the session into the cache directory and open the copy.
+     */
+    private ParcelFileDescriptor openCopy(Uri uri, int format, Snapshot snapshot) throws FileNotFoundException
+    {
+        File copy = new File(getContext().getCacheDir(), "shared" + EXTENSIONS[format]);
+
+        try
+        {
+            produce(uri, format, snapshot, new FileOutputStream(copy));
+        }
+        catch(IOException e)
+        {
+            throw new FileNotFoundException("Cannot write " + copy + ": " + e.getMessage());
+        }
+
+        return ParcelFileDescriptor.open(copy, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Write a session in a format.
+     *
+     * @param uri URI of the session
+     * @param format Index of the format
+     * @param snapshot State of the session being recorded to provide, or null for a saved session
+     * @param stream Destination, closed afterwards
+     * @throws IOException If writing or reading fails
+     */
+    private static void produce(Uri uri, int format, Snapshot snapshot, OutputStream stream) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 64 * 1024);
+
+        try
+        {
+            SessionWriter sessionWriter = null;
+            CsvWriter csvWriter = null;
+            SessionHandler target;
+
+            if(FORMATS[format].equals("csv"))
+            {
+                csvWriter = new CsvWriter(writer);
+                target = csvWriter;
+            }
+            else
+            {
+                sessionWriter = new SessionWriter(writer, FORMATS[format].equals("human"));
+                target = sessionWriter;
+            }
+
+            if(snapshot != null)
+            {
+                final SampleStore store = snapshot.store;
+                final int events = snapshot.events;
+
+                // Stop early if the receiver stops reading
+                for(int e = 0; e < events; e += REPLAY_EVENTS)
+                {
+                    final int end = Math.min(events, e + REPLAY_EVENTS);
+
+                    if(snapshot.undone != null)
+                        StrokeHistory.replay(store, snapshot.imageFileNames, snapshot.undone, e, end, target);
+                    else
+                        store.replay(e, end, target, snapshot.imageFileNames);
+
+                    throwException(sessionWriter, csvWriter);
+                }
+
+                target.endSession();
+            }
+            else
+            {
+                SessionFiles.parse(savedFile(uri), new SessionParser(target));
+            }
+
+            throwException(sessionWriter, csvWriter);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private static void throwException(SessionWriter sessionWriter, CsvWriter csvWriter) throws IOException
+    {
+        if(sessionWriter != null && sessionWriter.getException() != null)
+            throw sessionWriter.getException();
+
+        if(csvWriter != null && csvWriter.getException() != null)
+            throw csvWriter.getException();
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values)
+    {
+        throw new UnsupportedOperationException("Sessions cannot be changed");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs)
+    {
+        throw new UnsupportedOperationException("Sessions cannot be changed");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs)
+    {
+        throw new UnsupportedOperationException("Sessions cannot be changed");
+    }
+}
@@ -0,0 +1,305 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Statistics of a session and of its strokes.
+ *
+ * A stroke is the path of one pointer from its DOWN or POINTER_DOWN to its UP,
+ * POINTER_UP or CANCEL. Strokes are numbered in the order they start, as in
+ * SelectionFilter. Finished strokes are written as comma-separated rows
+ * immediately, so that memory does not grow with the length of the session.
+ *
+ * @author Wincent Balin
+ */
+public class SessionStatistics implements SessionHandler
+{
+    /**
+     * Header row of the stroke output.
+     */
+    public static final String STROKE_HEADER = "stroke,pointer_id,start,end,duration,samples,length,mean_size,mean_pressure,max_pressure\n";
+
+    private static final int MAX_POINTERS = 256;
+
+    private final Writer strokeWriter;
+    private IOException exception = null;
+
+    // Session statistics
+    private long events = 0;
+    private long images = 0;
+    private long samples = 0;
+    private long strokes = 0;
+    private long[] actions = new long[SessionFormat.ACTION_UNKNOWN + 1];
+    private long firstTime = Long.MAX_VALUE;
+    private long lastTime = Long.MIN_VALUE;
+    private int maxPointers = 0;
+    private float left = Float.MAX_VALUE;
+    private float top = Float.MAX_VALUE;
+    private float right = -Float.MAX_VALUE;
+    private float bottom = -Float.MAX_VALUE;
+    private double totalLength = 0.0;
+
+    // State of the strokes, indexed by pointer identifier
+    private final boolean[] active = new boolean[MAX_POINTERS];
+    private final long[] strokeNumber = new long[MAX_POINTERS];
+    private final long[] strokeStart = new long[MAX_POINTERS];
+    private final long[] strokeEnd = new long[MAX_POINTERS];
+    private final int[] strokeSamples = new int[MAX_POINTERS];
+    private final float[] strokeX = new float[MAX_POINTERS];
+    private final float[] strokeY = new float[MAX_POINTERS];
+    private final double[] strokeLength = new double[MAX_POINTERS];
+    private final double[] strokeSize = new double[MAX_POINTERS];
+    private final double[] strokePressure = new double[MAX_POINTERS];
+    private final float[] strokeMaxPressure = new float[MAX_POINTERS];
+
+    // State of the current event
+    private int action;
+    private int actionIndex;
+    private final int[] eventPointerIds = new int[MAX_POINTERS];
+
+    private final StringBuilder buffer = new StringBuilder(128);
+
+    /**
+     * Create statistics collector.
+     *
+     * @param strokeWriter Destination of stroke rows, or null if strokes are not needed
+     */
+    public SessionStatistics(Writer strokeWriter)
+    {
+        this.strokeWriter = strokeWriter;
+
+        if(strokeWriter != null)
+        {
+            buffer.append(STROKE_HEADER);
+            flushBuffer();
+        }
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.action = action;
+        this.actionIndex = actionIndex;
+
+        events++;
+        actions[Math.min(Math.max(action, 0), SessionFormat.ACTION_UNKNOWN)]++;
+        maxPointers = Math.max(maxPointers, pointerCount);
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        samples++;
+
+        firstTime = Math.min(firstTime, time);
+        lastTime = Math.max(lastTime, time);
+
+        left = Math.min(left, x);
+        top = Math.min(top, y);
+        right = Math.max(right, x);
+        bottom = Math.max(bottom, y);
+
+        final int id = pointerId & (MAX_POINTERS - 1);
+
+        if(pointerIndex < MAX_POINTERS)
+            eventPointerIds[pointerIndex] = id;
+
+        // A new DOWN finishes a stroke whose UP is missing
+        if(action == SessionFormat.ACTION_DOWN || (action == SessionFormat.ACTION_POINTER_DOWN && pointerIndex == actionIndex))
+            finishStroke(id);
+
+        if(!active[id])
+        {
+            // Pointers appearing without DOWN (e.g. in filtered sessions) start a stroke too
+            active[id] = true;
+            strokeNumber[id] = strokes++;
+            strokeStart[id] = time;
+            strokeSamples[id] = 0;
+            strokeLength[id] = 0.0;
+            strokeSize[id] = 0.0;
+            strokePressure[id] = 0.0;
+            strokeMaxPressure[id] = 0.0f;
+        }
+        else
+        {
+            final double dx = x - strokeX[id];
+            final double dy = y - strokeY[id];
+            final double distance = Math.sqrt(dx * dx + dy * dy);
+
+            strokeLength[id] += distance;
+            totalLength += distance;
+        }
+
+        strokeEnd[id] = time;
+        strokeSamples[id]++;
+        strokeX[id] = x;
+        strokeY[id] = y;
+        strokeSize[id] += size;
+        strokePressure[id] += pressure;
+        strokeMaxPressure[id] = Math.max(strokeMaxPressure[id], pressure);
+    }
+
+    @Override
+    public void endEvent()
+    {
+        if(action == SessionFormat.ACTION_POINTER_UP)
+        {
+            finishStroke(eventPointerIds[actionIndex & (MAX_POINTERS - 1)]);
+        }
+        else if(action == SessionFormat.ACTION_UP || action == SessionFormat.ACTION_CANCEL)
+        {
+            for(int id = 0; id < MAX_POINTERS; id++)
+            {
+                if(active[id])
+                    finishStroke(id);
+            }
+        }
+    }
+
+    private void finishStroke(int id)
+    {
+        if(!active[id])
+            return;
+
+        active[id] = false;
+
+        if(strokeWriter != null)
+        {
+            final int count = strokeSamples[id];
+
+            buffer.append(strokeNumber[id]).append(',');
+            buffer.append(id).append(',');
+            buffer.append(strokeStart[id]).append(',');
+            buffer.append(strokeEnd[id]).append(',');
+            buffer.append(strokeEnd[id] - strokeStart[id]).append(',');
+            buffer.append(count).append(',');
+            buffer.append((float) strokeLength[id]).append(',');
+            buffer.append((float) (strokeSize[id] / count)).append(',');
+            buffer.append((float) (strokePressure[id] / count)).append(',');
+            buffer.append(strokeMaxPressure[id]).append('\n');
+            flushBuffer();
+        }
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+        images++;
+    }
+
+    @Override
+    public void endSession()
+    {
+        // Strokes not finished at the end of the session count too
+        for(int id = 0; id < MAX_POINTERS; id++)
+        {
+            if(active[id])
+                finishStroke(id);
+        }
+
+        if(strokeWriter != null)
+        {
+            try
+            {
+                strokeWriter.flush();
+            }
+            catch(IOException e)
+            {
+                if(exception == null)
+                    exception = e;
+            }
+        }
+    }
+
+    private void flushBuffer()
+    {
+        if(exception == null)
+        {
+            try
+            {
+                strokeWriter.append(buffer);
+            }
+            catch(IOException e)
+            {
+                exception = e;
+            }
+        }
+
+        buffer.setLength(0);
+    }
+
+    /**
+     * Give the first exception occurred while writing strokes.
+     *
+     * @return Exception or null if everything was written
+     */
+    public IOException getException()
+    {
+        return exception;
+    }
+
+    public long getEvents()
+    {
+        return events;
+    }
+
+    public long getImages()
+    {
+        return images;
+    }
+
+    public long getSamples()
+    {
+        return samples;
+    }
+
+    public long getStrokes()
+    {
+        return strokes;
+    }
+
+    /**
+     * Give the duration of the session.
+     *
+     * @return Milliseconds between the first and the last sample
+     */
+    public long getDuration()
+    {
+        return samples > 0 ? lastTime - firstTime : 0;
+    }
+
+    /**
+     * Describe the session in one line of "key value" pairs.
+     *
+     * @return Description
+     */
+    public String describe()
+    {
+        StringBuilder description = new StringBuilder();
+
+        description.append("events ").append(events);
+        description.append(" images ").append(images);
+        description.append(" samples ").append(samples);
+        description.append(" strokes ").append(strokes);
+
+        if(samples > 0)
+        {
+            description.append(" start ").append(firstTime);
+            description.append(" end ").append(lastTime);
+            description.append(" duration ").append(lastTime - firstTime);
+            description.append(" bounds ").append(left).append(' ').append(top).append(' ').append(right).append(' ').append(bottom);
+        }
+
+        description.append(" pointers ").append(maxPointers);
+        description.append(" length ").append((float) totalLength);
+
+        for(int a = 0; a < actions.length; a++)
+        {
+            if(actions[a] > 0)
+                description.append(' ').append(SessionFormat.actionName(a)).append(' ').append(actions[a]);
+        }
+
+        return description.toString();
+    }
+}
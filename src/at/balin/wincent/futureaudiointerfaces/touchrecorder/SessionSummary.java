@@ -0,0 +1,291 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metadata of a session: time span, amounts of events and samples, most pointers
+ * at once, bounding box, loaded background images and the format it is saved in.
+ *
+ * Collected as handler of the session; saved sessions start with it as header,
+ * which the parser skips:
+ *
+ * <pre>
+ * Session format text start 1000 end 1900 events 180 samples 480 pointers 2
+ * Session bounds 0.10 0.61 399.67 796.44
+ * Session image /sdcard/background.png
+ * </pre>
+ *
+ * @author Wincent Balin
+ */
+public class SessionSummary implements SessionHandler
+{
+    private static final String HEADER = "Session";
+    private static final int MAX_HEADER_LINES = 1024;
+
+    private String format;
+    private long startTime = -1;
+    private long endTime = -1;
+    private int events = 0;
+    private long samples = 0;
+    private int maxPointers = 0;
+    private float left = Float.POSITIVE_INFINITY;
+    private float top = Float.POSITIVE_INFINITY;
+    private float right = Float.NEGATIVE_INFINITY;
+    private float bottom = Float.NEGATIVE_INFINITY;
+    private final List<String> images = new ArrayList<String>();
+
+    /**
+     * Create empty summary.
+     *
+     * @param format Format the session is saved in, e.g. text, human or columnar
+     */
+    public SessionSummary(String format)
+    {
+        this.format = format;
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        events++;
+        maxPointers = Math.max(maxPointers, pointerCount);
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        noteTime(time);
+        samples++;
+
+        left = Math.min(left, x);
+        top = Math.min(top, y);
+        right = Math.max(right, x);
+        bottom = Math.max(bottom, y);
+    }
+
+    @Override
+    public void endEvent()
+    {
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+        noteTime(time);
+        events++;
+
+        // One line per image; other values of the header are single words
+        final String name = fileName.replace('\n', ' ').replace('\r', ' ').replace('\t', ' ');
+
+        if(!images.contains(name))
+            images.add(name);
+    }
+
+    @Override
+    public void endSession()
+    {
+    }
+
+    private void noteTime(long time)
+    {
+        if(startTime < 0 || time < startTime)
+            startTime = time;
+
+        endTime = Math.max(endTime, time);
+    }
+
+    public String getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Give the time of the first sample or image.
+     *
+     * @return Time in ms, or -1 if the session is empty
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * Give the time of the last sample or image.
+     *
+     * @return Time in ms, or -1 if the session is empty
+     */
+    public long getEndTime()
+    {
+        return endTime;
+    }
+
+    public int getEvents()
+    {
+        return events;
+    }
+
+    public long getSamples()
+    {
+        return samples;
+    }
+
+    public int getMaxPointers()
+    {
+        return maxPointers;
+    }
+
+    /**
+     * Give the bounding box of all samples.
+     *
+     * @return Left, top, right and bottom border, or null if there is no sample
+     */
+    public float[] getBounds()
+    {
+        return samples > 0 ? new float[] {left, top, right, bottom} : null;
+    }
+
+    /**
+     * Give the names of the loaded background images, each once, in the order of loading.
+     *
+     * @return Names of the image files
+     */
+    public List<String> getImages()
+    {
+        return images;
+    }
+
+    /**
+     * Give the summary as header of a saved session.
+     *
+     * @return Lines of the header, each ending with a newline
+     */
+    public String toHeader()
+    {
+        StringBuilder header = new StringBuilder(128);
+
+        header.append(HEADER).append(" format ").append(format);
+        header.append(" start ").append(startTime);
+        header.append(" end ").append(endTime);
+        header.append(" events ").append(events);
+        header.append(" samples ").append(samples);
+        header.append(" pointers ").append(maxPointers).append('\n');
+
+        if(samples > 0)
+        {
+            header.append(HEADER).append(" bounds ").append(left).append(' ').append(top);
+            header.append(' ').append(right).append(' ').append(bottom).append('\n');
+        }
+
+        for(String image : images)
+            header.append(HEADER).append(" image ").append(image).append('\n');
+
+        return header.toString();
+    }
+
+    /**
+     * Give the summary as one line of a catalog, with tabs between the values.
+     *
+     * @return Line without newline
+     */
+    public String toLine()
+    {
+        StringBuilder line = new StringBuilder(128);
+
+        line.append(format).append('\t').append(startTime).append('\t').append(endTime);
+        line.append('\t').append(events).append('\t').append(samples).append('\t').append(maxPointers);
+        line.append('\t').append(left).append('\t').append(top).append('\t').append(right).append('\t').append(bottom);
+
+        for(String image : images)
+            line.append('\t').append(image);
+
+        return line.toString();
+    }
+
+    /**
+     * Read a summary from values of a catalog line.
+     *
+     * @param fields Values of the line
+     * @param first Index of the first value of the summary
+     * @return Summary
+     * @throws NumberFormatException If the values are malformed
+     */
+    public static SessionSummary fromLine(String[] fields, int first)
+    {
+        if(fields.length < first + 10)
+            throw new NumberFormatException("Summary needs ten values");
+
+        SessionSummary summary = new SessionSummary(fields[first]);
+        summary.startTime = Long.parseLong(fields[first + 1]);
+        summary.endTime = Long.parseLong(fields[first + 2]);
+        summary.events = Integer.parseInt(fields[first + 3]);
+        summary.samples = Long.parseLong(fields[first + 4]);
+        summary.maxPointers = Integer.parseInt(fields[first + 5]);
+        summary.left = Float.parseFloat(fields[first + 6]);
+        summary.top = Float.parseFloat(fields[first + 7]);
+        summary.right = Float.parseFloat(fields[first + 8]);
+        summary.bottom = Float.parseFloat(fields[first + 9]);
+
+        for(int i = first + 10; i < fields.length; i++)
+            summary.images.add(fields[i]);
+
+        return summary;
+    }
+
+    /**
+     * Read the header at the start of a saved session; the rest is not read.
+     *
+     * @param stream Session, possibly decompressed
+     * @return Summary, or null if the session has no valid header
+     * @throws IOException If reading fails
+     */
+    public static SessionSummary readHeader(InputStream stream) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"), 4 * 1024);
+        SessionSummary summary = null;
+
+        for(int l = 0; l < MAX_HEADER_LINES; l++)
+        {
+            final String line = reader.readLine();
+
+            if(line == null || !line.startsWith(HEADER + " "))
+                break;
+
+            final String[] fields = line.split(" ");
+
+            try
+            {
+                if(fields[1].equals("format") && fields.length == 13 && summary == null)
+                {
+                    summary = new SessionSummary(fields[2]);
+                    summary.startTime = Long.parseLong(fields[4]);
+                    summary.endTime = Long.parseLong(fields[6]);
+                    summary.events = Integer.parseInt(fields[8]);
+                    summary.samples = Long.parseLong(fields[10]);
+                    summary.maxPointers = Integer.parseInt(fields[12]);
+                }
+                else if(fields[1].equals("bounds") && fields.length == 6 && summary != null)
+                {
+                    summary.left = Float.parseFloat(fields[2]);
+                    summary.top = Float.parseFloat(fields[3]);
+                    summary.right = Float.parseFloat(fields[4]);
+                    summary.bottom = Float.parseFloat(fields[5]);
+                }
+                else if(fields[1].equals("image") && summary != null)
+                {
+                    summary.images.add(line.substring(HEADER.length() + " image ".length()));
+                }
+            }
+            catch(NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        return summary;
+    }
+}
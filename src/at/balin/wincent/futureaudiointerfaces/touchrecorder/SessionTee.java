@@ -0,0 +1,56 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Handler passing a session to several handlers at once.
+ *
+ * @author Wincent Balin
+ */
+public class SessionTee implements SessionHandler
+{
+    private final SessionHandler[] handlers;
+
+    /**
+     * Create tee.
+     *
+     * @param handlers Handlers to receive the session, in this order
+     */
+    public SessionTee(SessionHandler... handlers)
+    {
+        this.handlers = handlers;
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        for(int i = 0; i < handlers.length; i++)
+            handlers[i].beginEvent(action, actionIndex, edgeFlags, historySize, pointerCount);
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        for(int i = 0; i < handlers.length; i++)
+            handlers[i].sample(time, pointerIndex, pointerId, x, y, size, pressure);
+    }
+
+    @Override
+    public void endEvent()
+    {
+        for(int i = 0; i < handlers.length; i++)
+            handlers[i].endEvent();
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+        for(int i = 0; i < handlers.length; i++)
+            handlers[i].image(fileName, time);
+    }
+
+    @Override
+    public void endSession()
+    {
+        for(int i = 0; i < handlers.length; i++)
+            handlers[i].endSession();
+    }
+}
@@ -0,0 +1,927 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command-line tool for batch processing of recorded sessions on the desktop.
+ *
+ * Sessions are processed in parallel, one per thread, and streamed from their
+ * files, so that memory does not depend on their size. Does not use any part
+ * of the Android API.
+ *
+ * @author Wincent Balin
+ */
+public class SessionTool
+{
+    private static final String USAGE =
+        "Usage: SessionTool <command> [options] <file or directory>...\n" +
+        "Commands:\n" +
+        "  convert    Convert sessions into another format; needs -out\n" +
+        "  stats      Print statistics of every session\n" +
+        "  scan       Count the rows of columnar sessions matching -from, -until,\n" +
+        "             -pointers and -stroke, reading only the groups which may match\n" +
+        "  generate   Generate a synthetic session into -out, reporting how fast it is\n" +
+        "             stored and saved; needs no input\n" +
+        "  compare    Align the strokes of two sessions by pointer and order with dynamic\n" +
+        "             time warping on position and pressure, printing their distances\n" +
+        "             and the worst matching regions; needs two files\n" +
+        "Options:\n" +
+        "  -format <text|human|csv|columnar>\n" +
+        "                            Output format of convert (default: csv) and\n" +
+        "                            generate (default: text)\n" +
+        "  -out <directory>          Directory for the output files\n" +
+        "  -strokes                  Write statistics of every stroke (stats, compare;\n" +
+        "                            into -out)\n" +
+        "  -from <ms>                Skip events before this time\n" +
+        "  -until <ms>               Skip events after this time\n" +
+        "  -pointers <id,id-id,...>  Keep only these pointers\n" +
+        "  -stroke <n,n-n,...>       Keep only these strokes, numbered as by -strokes\n" +
+        "  -region <l,t,r,b>         Keep only pointers passing this rectangle\n" +
+        "  -simplify <px>            Remove samples deviating less from the strokes\n" +
+        "  -capture <mode>           Keep what this capture mode would have recorded:\n" +
+        "                            full, current, resampled or actions\n" +
+        "  -interval <ms>            Interval of the resampled capture mode (default: 50)\n" +
+        "  -predict <ms>             Measure how far strokes predicted this far ahead miss\n" +
+        "                            the real positions, compared with no prediction\n" +
+        "  -compress <level>         Compress the output files with gzip, level 1 to 9,\n" +
+        "                            except columnar ones\n" +
+        "  -threads <n>              Amount of worker threads (default: all cores)\n" +
+        "Options of generate:\n" +
+        "  -seed <n>                 Seed; the same seed gives the same session (default: 1)\n" +
+        "  -fingers <n>              Pointers down at once, 1 to 32 (default: 10)\n" +
+        "  -rate <hz>                Move events per second (default: 240)\n" +
+        "  -history <n>              Historical samples per move event (default: 4)\n" +
+        "  -shape <line|circle|scribble>\n" +
+        "                            Shape of the strokes (default: scribble)\n" +
+        "  -duration <ms>            Length of the session (default: 10000)\n" +
+        "Options of compare:\n" +
+        "  -band <n>                 Samples a stroke may run ahead of the other one\n" +
+        "                            (default: 32)\n" +
+        "  -weight <px>              Cost of a pressure difference of 1 in pixels\n" +
+        "                            (default: 100)\n" +
+        "  -worst <n>                Amount of worst matching regions to print (default: 5)\n";
+
+    private static final String CHARSET = "UTF-8";
+
+    // Screen the generated sessions are touched on
+    private static final float GENERATED_WIDTH = 480.0f;
+    private static final float GENERATED_HEIGHT = 800.0f;
+
+    private String command;
+    private String format = null;
+    private File outputDirectory = null;
+    private boolean strokes = false;
+    private long from = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    private BitSet pointerIds = null;
+    private BitSet strokeNumbers = null;
+    private float[] region = null;
+    private float tolerance = -1.0f;
+    private int captureMode = -1;
+    private long captureInterval = CaptureMode.DEFAULT_INTERVAL;
+    private long predictHorizon = 0;
+    private int compressionLevel = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private long seed = 1;
+    private int fingers = 10;
+    private int rate = 240;
+    private int historySize = 4;
+    private int shape = LoadGenerator.SHAPE_SCRIBBLE;
+    private long duration = 10000;
+
+    private int band = SessionComparison.DEFAULT_BAND;
+    private float pressureWeight = SessionComparison.DEFAULT_PRESSURE_WEIGHT;
+    private int worstRegions = 5;
+
+    private final List<File> inputRoots = new ArrayList<File>();
+    private final List<File> inputs = new ArrayList<File>();
+    private final List<String> inputNames = new ArrayList<String>();
+
+    private final PrintStream out = System.out;
+
+    // Totals of the run
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong totalEvents = new AtomicLong();
+    private final AtomicLong totalSamples = new AtomicLong();
+    private final AtomicLong failedFiles = new AtomicLong();
+
+    public static void main(String[] args)
+    {
+        SessionTool tool = new SessionTool();
+
+        try
+        {
+            tool.parseArguments(args);
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        System.exit(tool.run() ? 0 : 1);
+    }
+
+    private void parseArguments(String[] args)
+    {
+        if(args.length == 0)
+            throw new IllegalArgumentException("No command given");
+
+        command = args[0];
+
+        if(!command.equals("convert") && !command.equals("stats") && !command.equals("scan") && !command.equals("generate") &&
+           !command.equals("compare"))
+            throw new IllegalArgumentException("Unknown command " + command);
+
+        for(int i = 1; i < args.length; i++)
+        {
+            final String arg = args[i];
+
+            if(arg.equals("-strokes"))
+            {
+                strokes = true;
+            }
+            else if(arg.startsWith("-"))
+            {
+                if(i + 1 == args.length)
+                    throw new IllegalArgumentException("Option " + arg + " needs a value");
+
+                final String value = args[++i];
+
+                try
+                {
+                    if(arg.equals("-format"))
+                        format = value;
+                    else if(arg.equals("-out"))
+                        outputDirectory = new File(value);
+                    else if(arg.equals("-from"))
+                        from = Long.parseLong(value);
+                    else if(arg.equals("-until"))
+                        until = Long.parseLong(value);
+                    else if(arg.equals("-pointers"))
+                        pointerIds = SelectionFilter.parseRanges(value);
+                    else if(arg.equals("-stroke"))
+                        strokeNumbers = SelectionFilter.parseRanges(value);
+                    else if(arg.equals("-region"))
+                        region = parseRegion(value);
+                    else if(arg.equals("-simplify"))
+                        tolerance = Float.parseFloat(value);
+                    else if(arg.equals("-capture"))
+                        captureMode = parseCaptureMode(value);
+                    else if(arg.equals("-interval"))
+                        captureInterval = Long.parseLong(value);
+                    else if(arg.equals("-predict"))
+                        predictHorizon = Math.max(1, Long.parseLong(value));
+                    else if(arg.equals("-compress"))
+                        compressionLevel = parseCompressionLevel(value);
+                    else if(arg.equals("-threads"))
+                        threads = Math.max(1, Integer.parseInt(value));
+                    else if(arg.equals("-seed"))
+                        seed = Long.parseLong(value);
+                    else if(arg.equals("-fingers"))
+                        fingers = Integer.parseInt(value);
+                    else if(arg.equals("-rate"))
+                        rate = Integer.parseInt(value);
+                    else if(arg.equals("-history"))
+                        historySize = Integer.parseInt(value);
+                    else if(arg.equals("-shape"))
+                        shape = parseShape(value);
+                    else if(arg.equals("-duration"))
+                        duration = Long.parseLong(value);
+                    else if(arg.equals("-band"))
+                        band = Math.max(1, Integer.parseInt(value));
+                    else if(arg.equals("-weight"))
+                        pressureWeight = Float.parseFloat(value);
+                    else if(arg.equals("-worst"))
+                        worstRegions = Math.max(0, Integer.parseInt(value));
+                    else
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+                catch(NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Wrong value of option " + arg);
+                }
+            }
+            else
+            {
+                inputRoots.add(new File(arg));
+            }
+        }
+
+        // Generated sessions are meant to be read by stats and compare again
+        if(format == null)
+            format = command.equals("generate") ? "text" : "csv";
+
+        if(!Arrays.asList("text", "human", "csv", "columnar").contains(format))
+            throw new IllegalArgumentException("Unknown format " + format);
+
+        if((command.equals("convert") || command.equals("generate") || strokes) && outputDirectory == null)
+            throw new IllegalArgumentException("Commands convert and generate and option -strokes need -out");
+
+        if(command.equals("generate"))
+        {
+            if(fingers < 1 || fingers > 32 || rate < 1 || historySize < 0 || duration < 0)
+                throw new IllegalArgumentException("Wrong fingers, rate, history or duration");
+        }
+        else if(command.equals("compare"))
+        {
+            if(inputRoots.size() != 2)
+                throw new IllegalArgumentException("Command compare needs two files");
+        }
+        else if(inputRoots.isEmpty())
+            throw new IllegalArgumentException("No input given");
+    }
+
+    private static int parseCompressionLevel(String value)
+    {
+        final int level = Integer.parseInt(value);
+
+        if(level < 1 || level > 9)
+            throw new IllegalArgumentException("Compression level must be from 1 to 9");
+
+        return level;
+    }
+
+    private static int parseCaptureMode(String value)
+    {
+        final int mode = CaptureMode.parse(value);
+
+        if(mode < 0)
+            throw new IllegalArgumentException("Unknown capture mode " + value);
+
+        return mode;
+    }
+
+    private static int parseShape(String value)
+    {
+        final int shape = LoadGenerator.parseShape(value);
+
+        if(shape < 0)
+            throw new IllegalArgumentException("Unknown shape " + value);
+
+        return shape;
+    }
+
+    private static float[] parseRegion(String value)
+    {
+        final String[] borders = value.split(",");
+
+        if(borders.length != 4)
+            throw new NumberFormatException("Region needs four borders");
+
+        float[] region = new float[4];
+
+        for(int b = 0; b < 4; b++)
+            region[b] = Float.parseFloat(borders[b].trim());
+
+        return region;
+    }
+
+    /**
+     * Collect input files, directories recursively.
+     *
+     * @param file File or directory
+     * @param name Name of the output relative to the output directory
+     */
+    private void collect(File file, String name)
+    {
+        if(file.isDirectory())
+        {
+            File[] files = file.listFiles();
+
+            if(files == null)
+                return;
+
+            Arrays.sort(files);
+
+            for(File child : files)
+            {
+                if(!child.getName().startsWith("."))
+                    collect(child, name + File.separatorChar + child.getName());
+            }
+        }
+        else if(file.isFile())
+        {
+            // Outputs get the extensions of their own format
+            inputs.add(file);
+            inputNames.add(SessionFiles.baseName(name));
+        }
+        else
+        {
+            System.err.println(file + ": not found");
+            failedFiles.incrementAndGet();
+        }
+    }
+
+    private boolean run()
+    {
+        if(command.equals("generate"))
+            return generate();
+
+        if(command.equals("compare"))
+            return compare();
+
+        for(File root : inputRoots)
+            collect(root, root.getName());
+
+        final long startTime = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for(int i = 0; i < inputs.size(); i++)
+        {
+            final File input = inputs.get(i);
+            final String name = inputNames.get(i);
+
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    process(input, name);
+                }
+            });
+        }
+
+        executor.shutdown();
+
+        try
+        {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        printSummary(seconds);
+
+        return failedFiles.get() == 0;
+    }
+
+    private void process(File input, String name)
+    {
+        if(command.equals("scan"))
+        {
+            scan(input);
+            return;
+        }
+
+        Writer output = null;
+        OutputStream columnarOutput = null;
+        Writer strokeOutput = null;
+
+        try
+        {
+            // Build chain of handlers: parser -> capture -> selection -> simplifier -> statistics (+ converter)
+            if(strokes)
+                strokeOutput = createOutput(name + ".strokes.csv");
+
+            SessionStatistics statistics = new SessionStatistics(strokeOutput);
+            SessionHandler sink = statistics;
+
+            SessionWriter textWriter = null;
+            CsvWriter csvWriter = null;
+            ColumnarWriter columnarWriter = null;
+
+            if(command.equals("convert") && format.equals("columnar"))
+            {
+                // Compressed files could not be seeked in
+                columnarOutput = new BufferedOutputStream(SessionFiles.create(createFile(name + ".columns", 0), 0), 64 * 1024);
+                columnarWriter = new ColumnarWriter(columnarOutput);
+                sink = new SessionTee(statistics, columnarWriter);
+            }
+            else if(command.equals("convert"))
+            {
+                output = createOutput(name + (format.equals("csv") ? ".csv" : "." + format + ".txt"));
+
+                if(format.equals("csv"))
+                {
+                    csvWriter = new CsvWriter(output);
+                    sink = new SessionTee(statistics, csvWriter);
+                }
+                else
+                {
+                    textWriter = new SessionWriter(output, format.equals("human"));
+                    textWriter.setIndexInterval(TimeIndex.DEFAULT_INTERVAL);
+                    sink = new SessionTee(statistics, textWriter);
+                }
+            }
+
+            StrokePredictor predictor = null;
+
+            if(predictHorizon > 0)
+            {
+                predictor = new StrokePredictor(predictHorizon);
+                sink = new SessionTee(sink, predictor);
+            }
+
+            StrokeSimplifier simplifier = null;
+
+            if(tolerance >= 0.0f)
+            {
+                simplifier = new StrokeSimplifier(sink, tolerance);
+                sink = simplifier;
+            }
+
+            if(from != Long.MIN_VALUE || until != Long.MAX_VALUE || pointerIds != null || strokeNumbers != null || region != null)
+            {
+                SelectionFilter selection = new SelectionFilter(sink);
+                selection.setTimeWindow(from, until);
+                selection.setPointerIds(pointerIds);
+                selection.setStrokes(strokeNumbers);
+
+                if(region != null)
+                    selection.setRegion(region[0], region[1], region[2], region[3]);
+
+                sink = selection;
+            }
+
+            CaptureMode capture = null;
+
+            if(captureMode >= 0)
+            {
+                capture = new CaptureMode(sink, captureMode);
+                capture.setInterval(captureInterval);
+                sink = capture;
+            }
+
+            SessionParser parser = new SessionParser(sink);
+
+            // Compressed sessions cannot be seeked in
+            if(SessionFiles.isCompressed(input))
+            {
+                SessionFiles.parse(input, parser);
+            }
+            else
+            {
+                FileInputStream stream = new FileInputStream(input);
+
+                try
+                {
+                    parse(stream.getChannel(), parser);
+                }
+                finally
+                {
+                    stream.close();
+                }
+            }
+
+            if(textWriter != null && textWriter.getException() != null)
+                throw textWriter.getException();
+
+            if(csvWriter != null && csvWriter.getException() != null)
+                throw csvWriter.getException();
+
+            if(columnarWriter != null && columnarWriter.getException() != null)
+                throw columnarWriter.getException();
+
+            if(statistics.getException() != null)
+                throw statistics.getException();
+
+            totalBytes.addAndGet(parser.getBytes());
+            totalEvents.addAndGet(statistics.getEvents());
+            totalSamples.addAndGet(statistics.getSamples());
+
+            StringBuilder report = new StringBuilder();
+            report.append(input.getPath()).append(": ").append(statistics.describe());
+
+            if(simplifier != null)
+                report.append(" simplified ").append(Math.round(simplifier.getReductionRatio() * 100.0f)).append('%');
+
+            if(predictor != null)
+                report.append(" predict ").append(predictor.describe());
+
+            if(capture != null)
+                report.append(" capture ").append(capture.describe(captureMode));
+
+            if(parser.getErrors() > 0)
+                report.append(" malformed ").append(parser.getErrors()).append(" (").append(parser.getFirstError()).append(')');
+
+            synchronized(out)
+            {
+                out.println(report);
+            }
+        }
+        catch(IOException e)
+        {
+            failedFiles.incrementAndGet();
+            System.err.println(input.getPath() + ": " + e.getMessage());
+        }
+        finally
+        {
+            close(output);
+            close(columnarOutput);
+            close(strokeOutput);
+        }
+    }
+
+    /**
+     * Generate a synthetic session into the sample store, as the recorder does,
+     * then save it, reporting the rate events are stored at, the memory taken
+     * and the time of saving.
+     *
+     * @return True if the session has been saved
+     */
+    private boolean generate()
+    {
+        LoadGenerator generator = new LoadGenerator(seed, fingers, rate, historySize, shape, 0, duration, GENERATED_WIDTH, GENERATED_HEIGHT);
+        SampleStore store = new SampleStore();
+
+        final long memoryBefore = usedMemory();
+        final long storeStart = System.nanoTime();
+
+        generator.generate(store);
+
+        final long storeNanos = System.nanoTime() - storeStart;
+        final long memoryAfter = usedMemory();
+
+        final String name = "generated-" + seed;
+        Writer output = null;
+        OutputStream columnarOutput = null;
+
+        try
+        {
+            final long saveStart = System.nanoTime();
+            IOException exception;
+
+            if(format.equals("columnar"))
+            {
+                columnarOutput = new BufferedOutputStream(SessionFiles.create(createFile(name + ".columns", 0), 0), 64 * 1024);
+                ColumnarWriter writer = new ColumnarWriter(columnarOutput);
+                store.replay(writer);
+                exception = writer.getException();
+            }
+            else if(format.equals("csv"))
+            {
+                output = createOutput(name + ".csv");
+                CsvWriter writer = new CsvWriter(output);
+                store.replay(writer);
+                exception = writer.getException();
+            }
+            else
+            {
+                output = createOutput(name + "." + format + ".txt");
+                SessionWriter writer = new SessionWriter(output, format.equals("human"));
+                writer.setIndexInterval(TimeIndex.DEFAULT_INTERVAL);
+                store.replay(writer);
+                exception = writer.getException();
+            }
+
+            // Closing flushes, so it belongs to the time of saving
+            close(output);
+            close(columnarOutput);
+            output = null;
+            columnarOutput = null;
+
+            if(exception != null)
+                throw exception;
+
+            final double storeSeconds = storeNanos / 1e9;
+
+            out.println("Generated " + generator.describe() + " seed " + seed);
+            out.printf("Stored %d events (%.0f events/s), %d samples (%.0f samples/s)%n",
+                    store.getEventCount(), store.getEventCount() / storeSeconds,
+                    store.getSampleCount(), store.getSampleCount() / storeSeconds);
+            out.printf("Memory grew by %d KiB, store holds %d KiB%n",
+                    (memoryAfter - memoryBefore) / 1024, store.getMemoryBytes() / 1024);
+            out.printf("Saved as %s in %.3f s%n", format, (System.nanoTime() - saveStart) / 1e9);
+
+            return true;
+        }
+        catch(IOException e)
+        {
+            System.err.println(name + ": " + e.getMessage());
+            return false;
+        }
+        finally
+        {
+            close(output);
+            close(columnarOutput);
+        }
+    }
+
+    /**
+     * Compare the strokes of two sessions, reading both at once, then aligning
+     * the strokes on all threads.
+     *
+     * @return True if both sessions have been read
+     */
+    private boolean compare()
+    {
+        final long startTime = System.nanoTime();
+        final StrokeCollector[] collectors = new StrokeCollector[2];
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(2, threads));
+
+        for(int i = 0; i < 2; i++)
+        {
+            final int session = i;
+            collectors[session] = new StrokeCollector();
+
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    read(inputRoots.get(session), collectors[session]);
+                }
+            });
+        }
+
+        executor.shutdown();
+
+        try
+        {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if(failedFiles.get() > 0)
+            return false;
+
+        final double readSeconds = (System.nanoTime() - startTime) / 1e9;
+
+        SessionComparison comparison = new SessionComparison(collectors[0], collectors[1], band, pressureWeight);
+        comparison.compare(threads);
+
+        out.printf("Read %d and %d strokes, %d and %d samples in %.3f s%n",
+                collectors[0].getStrokes().size(), collectors[1].getStrokes().size(),
+                collectors[0].getSamples(), collectors[1].getSamples(), readSeconds);
+        out.print(comparison.describe(worstRegions));
+
+        if(strokes)
+        {
+            final String name = SessionFiles.baseName(inputRoots.get(0).getName()) + "-" + SessionFiles.baseName(inputRoots.get(1).getName()) + ".compare.csv";
+            Writer output = null;
+
+            try
+            {
+                output = createOutput(name);
+                comparison.writeStrokes(output);
+            }
+            catch(IOException e)
+            {
+                System.err.println(name + ": " + e.getMessage());
+                return false;
+            }
+            finally
+            {
+                close(output);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Read a whole session into a handler, through the selection if any.
+     *
+     * @param input Session file
+     * @param handler Receiver of the session
+     */
+    private void read(File input, SessionHandler handler)
+    {
+        try
+        {
+            SessionHandler sink = handler;
+
+            if(from != Long.MIN_VALUE || until != Long.MAX_VALUE || pointerIds != null || strokeNumbers != null || region != null)
+            {
+                SelectionFilter selection = new SelectionFilter(sink);
+                selection.setTimeWindow(from, until);
+                selection.setPointerIds(pointerIds);
+                selection.setStrokes(strokeNumbers);
+
+                if(region != null)
+                    selection.setRegion(region[0], region[1], region[2], region[3]);
+
+                sink = selection;
+            }
+
+            SessionParser parser = new SessionParser(sink);
+            SessionFiles.parse(input, parser);
+
+            if(parser.getErrors() > 0)
+            {
+                synchronized(out)
+                {
+                    out.println(input.getPath() + ": malformed " + parser.getErrors() + " (" + parser.getFirstError() + ")");
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            failedFiles.incrementAndGet();
+            System.err.println(input.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    private static long usedMemory()
+    {
+        final Runtime runtime = Runtime.getRuntime();
+
+        System.gc();
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Count the rows of a columnar session in the selection, skipping the
+     * groups which cannot match by their smallest and largest values.
+     *
+     * @param input Columnar session
+     */
+    private void scan(File input)
+    {
+        try
+        {
+            FileInputStream stream = new FileInputStream(input);
+
+            try
+            {
+                ColumnarReader reader = new ColumnarReader(stream.getChannel());
+                final int groups = reader.getGroupCount();
+                long rows = 0;
+                long matching = 0;
+                int groupsRead = 0;
+
+                for(int g = 0; g < groups; g++)
+                {
+                    rows += reader.getRows(g);
+
+                    if(!reader.overlaps(g, ColumnarWriter.TIME, from, until) ||
+                       !overlaps(reader, g, ColumnarWriter.POINTER, pointerIds) ||
+                       !overlaps(reader, g, ColumnarWriter.STROKE, strokeNumbers))
+                        continue;
+
+                    groupsRead++;
+
+                    // Only the columns of the selection are read
+                    final long[] times = reader.readLongs(g, ColumnarWriter.TIME);
+                    final long[] pointers = pointerIds != null ? reader.readLongs(g, ColumnarWriter.POINTER) : null;
+                    final long[] strokeColumn = strokeNumbers != null ? reader.readLongs(g, ColumnarWriter.STROKE) : null;
+
+                    for(int r = 0; r < times.length; r++)
+                    {
+                        if(times[r] >= from && times[r] <= until &&
+                           (pointers == null || pointerIds.get((int) pointers[r])) &&
+                           (strokeColumn == null || strokeNumbers.get((int) strokeColumn[r])))
+                            matching++;
+                    }
+                }
+
+                totalBytes.addAndGet(reader.getBytesRead());
+                totalSamples.addAndGet(matching);
+
+                synchronized(out)
+                {
+                    out.printf("%s: %d of %d rows, read %d of %d groups, %d of %d bytes%n",
+                            input.getPath(), matching, rows, groupsRead, groups, reader.getBytesRead(), input.length());
+                }
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+        catch(IOException e)
+        {
+            failedFiles.incrementAndGet();
+            System.err.println(input.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answer whether a column of a group may have values in a set.
+     *
+     * @param reader Columnar session
+     * @param group Index of the group
+     * @param column Index of the column
+     * @param set Set of values, or null for all
+     * @return False if the group has no value of the set, else true
+     */
+    private static boolean overlaps(ColumnarReader reader, int group, int column, BitSet set)
+    {
+        if(set == null)
+            return true;
+
+        final int next = set.nextSetBit((int) Math.max(0, reader.getMin(group, column)));
+
+        return next >= 0 && next <= reader.getMax(group, column);
+    }
+
+    /**
+     * Parse a session file, skipping the parts outside of the time window if the session has an index.
+     *
+     * @param channel Channel of the file
+     * @param parser Parser passing the session on
+     * @throws IOException If reading fails
+     */
+    private void parse(FileChannel channel, SessionParser parser) throws IOException
+    {
+        long start = 0;
+        long stop = channel.size();
+
+        // Numbering strokes needs the whole session before the window
+        if((from != Long.MIN_VALUE || until != Long.MAX_VALUE) && strokeNumbers == null)
+        {
+            TimeIndex index = TimeIndex.read(channel);
+
+            if(index != null)
+            {
+                final int first = index.findBefore(from);
+                final int last = index.findAfter(until);
+
+                if(first >= 0)
+                    start = index.getOffset(first);
+
+                if(last < index.size())
+                    stop = index.getOffset(last);
+            }
+        }
+
+        parser.parse(channel, start, stop);
+    }
+
+    private Writer createOutput(String name) throws IOException
+    {
+        File file = createFile(name, compressionLevel);
+
+        return new BufferedWriter(new OutputStreamWriter(SessionFiles.create(file, compressionLevel), CHARSET), 64 * 1024);
+    }
+
+    /**
+     * Give an output file in the output directory, creating its directory if needed.
+     *
+     * @param name Name of the file relative to the output directory
+     * @param level Compression level of the file, or 0 if not compressed
+     * @return File
+     * @throws IOException If the directory cannot be created
+     */
+    private File createFile(String name, int level) throws IOException
+    {
+        File file = new File(outputDirectory, SessionFiles.name(name, level));
+        File parent = file.getParentFile();
+
+        if(parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+            throw new IOException("Cannot create directory " + parent);
+
+        return file;
+    }
+
+    private static void close(Closeable output)
+    {
+        if(output == null)
+            return;
+
+        try
+        {
+            output.close();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Cannot close output: " + e.getMessage());
+        }
+    }
+
+    private void printSummary(double seconds)
+    {
+        final double megabytes = totalBytes.get() / (1024.0 * 1024.0);
+        final long files = inputs.size();
+
+        synchronized(out)
+        {
+            out.printf("Processed %d files (%d failed) with %d threads in %.3f s%n", files, failedFiles.get(), threads, seconds);
+            out.printf("Read %.1f MB (%.1f MB/s), %d events (%.0f events/s), %d samples (%.0f samples/s)%n",
+                    megabytes, megabytes / seconds,
+                    totalEvents.get(), totalEvents.get() / seconds,
+                    totalSamples.get(), totalSamples.get() / seconds);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer of a session in the text format of the log, either machine- or human-readable.
+ *
+ * The output is the same as the one of the log view and of saved files.
+ * Output may start with a header holding a SessionSummary; machine-readable
+ * output may end with a footer holding a TimeIndex.
+ *
+ * @author Wincent Balin
+ */
+public class SessionWriter implements SessionHandler
+{
+    private static final String PREFIX = "        ";
+
+    private final Writer writer;
+    private final boolean humanReadable;
+
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    private int historicalSamples;
+    private int pointerCount;
+    private int samples;
+
+    private IOException exception = null;
+
+    // Time index of the output, if any
+    private TimeIndex index = null;
+    private int indexInterval = 0;
+    private int events = 0;
+    private long bytes = 0;
+    private boolean indexTimePending = false;
+
+    /**
+     * Create session writer.
+     *
+     * @param writer Destination of the text
+     * @param humanReadable Whether to write the human-readable format
+     */
+    public SessionWriter(Writer writer, boolean humanReadable)
+    {
+        this.writer = writer;
+        this.humanReadable = humanReadable;
+    }
+
+    /**
+     * Give the first exception occurred while writing.
+     *
+     * As handler methods cannot throw checked exceptions, they are noted here.
+     *
+     * @return Exception or null if everything was written
+     */
+    public IOException getException()
+    {
+        return exception;
+    }
+
+    /**
+     * Note the time of every n-th event and write the notes as footer at the end of the session.
+     *
+     * Only the machine-readable format gets a footer. The output is assumed to be encoded
+     * in UTF-8 and to start at byte offset 0.
+     *
+     * @param indexInterval Amount of events between two entries of the index, 0 for no index
+     */
+    public void setIndexInterval(int indexInterval)
+    {
+        this.indexInterval = humanReadable ? 0 : indexInterval;
+        index = this.indexInterval > 0 ? new TimeIndex() : null;
+    }
+
+    /**
+     * Give the time index of the written session.
+     *
+     * @return Index, or null if none is written
+     */
+    public TimeIndex getTimeIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Give the amount of bytes written.
+     *
+     * @return Amount of bytes in UTF-8
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Write a summary of the session as header; to be called before the first event.
+     *
+     * @param summary Summary of the whole session to be written
+     */
+    public void writeHeader(SessionSummary summary)
+    {
+        buffer.append(summary.toHeader());
+        flushBuffer();
+    }
+
+    private void noteEvent(long time)
+    {
+        if(index != null && events % indexInterval == 0)
+        {
+            index.add(time, events, bytes);
+            indexTimePending = time < 0;
+        }
+
+        events++;
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.historicalSamples = action == SessionFormat.ACTION_MOVE ? historySize * pointerCount : 0;
+        this.pointerCount = pointerCount;
+        samples = 0;
+
+        // The time of an event is known with its first sample
+        noteEvent(-1);
+
+        buffer.append("Event ");
+
+        if(humanReadable)
+            buffer.append("with action ");
+
+        buffer.append(SessionFormat.actionName(action));
+        buffer.append(':');
+        buffer.append(humanReadable ? '\n' : ' ');
+
+        // If this is a DOWN action, look whether it was started at the edge
+        if(action == SessionFormat.ACTION_DOWN && edgeFlags != 0)
+        {
+            if(humanReadable)
+            {
+                buffer.append(PREFIX);
+                buffer.append("Following screen edges had been crossed: ");
+            }
+            else
+            {
+                buffer.append("edges ");
+            }
+
+            for(int e = 0; e < SessionFormat.EDGE_FLAGS.length; e++)
+            {
+                if((edgeFlags & SessionFormat.EDGE_FLAGS[e]) != 0)
+                {
+                    buffer.append(SessionFormat.EDGE_NAMES[e]);
+                    buffer.append(humanReadable ? ' ' : '/');
+                }
+            }
+
+            buffer.append(humanReadable ? '\n' : ' ');
+        }
+
+        // If this is a POINTER_DOWN or POINTER_UP action, describe the source pointer
+        if(action == SessionFormat.ACTION_POINTER_DOWN || action == SessionFormat.ACTION_POINTER_UP)
+        {
+            if(humanReadable)
+            {
+                buffer.append(PREFIX);
+                buffer.append("Created by pointer ");
+            }
+            else
+            {
+                buffer.append("pointer ");
+            }
+
+            buffer.append(actionIndex);
+            buffer.append(humanReadable ? '\n' : ' ');
+        }
+
+        if(action == SessionFormat.ACTION_MOVE && !humanReadable)
+        {
+            buffer.append("history ");
+            buffer.append(historySize);
+            buffer.append(' ');
+
+            if(historySize > 0)
+            {
+                buffer.append("pointers ");
+                buffer.append(pointerCount);
+                buffer.append(' ');
+            }
+        }
+
+        if(historicalSamples == 0 && !humanReadable)
+            appendPointers();
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        if(indexTimePending)
+        {
+            index.setTime(index.size() - 1, time);
+            indexTimePending = false;
+        }
+
+        if(humanReadable)
+            buffer.append(PREFIX);
+
+        buffer.append("At ");
+        buffer.append(time);
+        buffer.append(humanReadable ? " ms " : " ");
+
+        buffer.append("pointer ");
+        buffer.append(pointerIndex);
+        buffer.append(" known as ");
+        buffer.append(pointerId);
+        buffer.append(": ");
+
+        buffer.append(humanReadable ? "x = " : "x ");
+        buffer.append(x);
+        buffer.append(humanReadable ? "  " : " ");
+
+        buffer.append(humanReadable ? "y = " : "y ");
+        buffer.append(y);
+        buffer.append(humanReadable ? "  " : " ");
+
+        buffer.append(humanReadable ? "size = " : "size ");
+        buffer.append(size);
+        buffer.append(humanReadable ? "  " : " ");
+
+        buffer.append(humanReadable ? "pressure = " : "pressure ");
+        buffer.append(pressure);
+        buffer.append(humanReadable ? "  " : " ");
+
+        buffer.append(humanReadable ? '\n' : ' ');
+
+        samples++;
+
+        // Describe every pointer for the current time after the history
+        if(samples == historicalSamples && !humanReadable)
+            appendPointers();
+    }
+
+    private void appendPointers()
+    {
+        buffer.append("pointers ");
+        buffer.append(pointerCount);
+        buffer.append(' ');
+    }
+
+    @Override
+    public void endEvent()
+    {
+        buffer.append('\n');
+        flushBuffer();
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+        noteEvent(time);
+
+        buffer.append("Image ");
+        buffer.append(fileName);
+
+        if(humanReadable)
+        {
+            buffer.append('\n');
+            buffer.append(PREFIX);
+        }
+        else
+        {
+            buffer.append(' ');
+        }
+
+        buffer.append("At ");
+        buffer.append(time);
+
+        if(humanReadable)
+            buffer.append(" ms");
+
+        buffer.append('\n');
+        flushBuffer();
+    }
+
+    @Override
+    public void endSession()
+    {
+        try
+        {
+            if(index != null && exception == null)
+            {
+                // Events without samples take the time of their predecessors
+                for(int i = 0; i < index.size(); i++)
+                {
+                    if(index.getTime(i) < 0)
+                        index.setTime(i, i > 0 ? index.getTime(i - 1) : 0);
+                }
+
+                index.write(writer, bytes);
+            }
+
+            writer.flush();
+        }
+        catch(IOException e)
+        {
+            if(exception == null)
+                exception = e;
+        }
+    }
+
+    private void flushBuffer()
+    {
+        if(exception == null)
+        {
+            try
+            {
+                writer.append(buffer);
+                bytes += utf8Length(buffer);
+            }
+            catch(IOException e)
+            {
+                exception = e;
+            }
+        }
+
+        buffer.setLength(0);
+    }
+
+    private static long utf8Length(CharSequence text)
+    {
+        long length = 0;
+
+        for(int i = 0; i < text.length(); i++)
+        {
+            final char c = text.charAt(i);
+
+            if(c < 0x80)
+            {
+                length++;
+            }
+            else if(c < 0x800)
+            {
+                length += 2;
+            }
+            else if(Character.isHighSurrogate(c))
+            {
+                // Surrogate pair
+                length += 4;
+                i++;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,147 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Environment;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * List of the saved sessions with their summaries, read from the catalog
+ * instead of the session files, newest first.
+ *
+ * Choosing a session gives its file name as FileDialog.FILENAME. Sessions
+ * changed or removed since they were saved are marked.
+ *
+ * @author Wincent Balin
+ */
+public class SessionsView extends Activity implements OnItemClickListener
+{
+    private static final String CATALOG_NAME = ".touchrecorder-catalog";
+
+    private List<SessionCatalog.Entry> sessions;
+
+    /**
+     * Give the file of the catalog of saved sessions.
+     *
+     * @return Catalog file
+     */
+    public static File catalogFile()
+    {
+        return new File(Environment.getExternalStorageDirectory(), CATALOG_NAME);
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.sessions);
+
+        ListView entries = (ListView) findViewById(R.id.sessions_entries);
+        entries.setEmptyView(findViewById(R.id.sessions_none));
+        entries.setOnItemClickListener(this);
+
+        final long start = System.nanoTime();
+
+        SessionCatalog catalog = new SessionCatalog(catalogFile());
+
+        try
+        {
+            catalog.load();
+        }
+        catch(IOException e)
+        {
+            Toast.makeText(this, R.string.something_wrong_with_file, Toast.LENGTH_LONG).show();
+        }
+
+        sessions = catalog.getEntries();
+
+        TextView count = (TextView) findViewById(R.id.sessions_count);
+        count.setText(getResources().getString(R.string.sessions_count, sessions.size(), (System.nanoTime() - start) / 1000000));
+
+        entries.setAdapter(new SessionAdapter());
+    }
+
+    @Override
+    public void onItemClick(AdapterView<?> parent, View view, int position, long id)
+    {
+        final SessionCatalog.Entry entry = sessions.get(sessions.size() - 1 - position);
+
+        if(!entry.file.isFile())
+        {
+            Toast.makeText(this, R.string.file_not_found, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        Intent intent = getIntent();
+        intent.putExtra(FileDialog.FILENAME, entry.file.getPath());
+        setResult(RESULT_OK, intent);
+        finish();
+    }
+
+    /**
+     * Adapter formatting the sessions on demand, the newest first.
+     *
+     * @author Wincent Balin
+     */
+    private class SessionAdapter extends BaseAdapter
+    {
+        @Override
+        public int getCount()
+        {
+            return sessions.size();
+        }
+
+        @Override
+        public Object getItem(int position)
+        {
+            final SessionCatalog.Entry entry = sessions.get(sessions.size() - 1 - position);
+            final SessionSummary summary = entry.getSummary();
+
+            if(summary == null)
+                return entry.file.getPath();
+
+            String description = getResources().getString(R.string.sessions_entry,
+                    entry.file.getName(), summary.getFormat(),
+                    summary.getStartTime(), summary.getEndTime(),
+                    summary.getEvents(), summary.getSamples(), summary.getMaxPointers(),
+                    summary.getImages().size());
+
+            // Only visible entries are checked
+            if(entry.isStale())
+                description = getResources().getString(R.string.sessions_stale, description);
+
+            return description;
+        }
+
+        @Override
+        public long getItemId(int position)
+        {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent)
+        {
+            TextView entry = (TextView) convertView;
+
+            if(entry == null)
+                entry = (TextView) getLayoutInflater().inflate(R.layout.logviewentry, parent, false);
+
+            entry.setText((String) getItem(position));
+
+            return entry;
+        }
+    }
+}
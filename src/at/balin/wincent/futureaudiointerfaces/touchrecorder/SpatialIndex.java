@@ -0,0 +1,229 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the positions of samples, for finding samples near a point.
+ *
+ * Samples are numbered in the order they arrive, just as in a SampleStore fed
+ * with the same session, so the results of a query address the samples there.
+ * Samples outside of the grid are kept in the cells at its border.
+ *
+ * @author Wincent Balin
+ */
+public class SpatialIndex implements SessionHandler
+{
+    private final float cellSize;
+    private final int columns;
+    private final int rows;
+
+    // Samples of every cell with their coordinates, grown as needed
+    private final int[][] cellSamples;
+    private final float[][] cellX;
+    private final float[][] cellY;
+    private final int[] cellCounts;
+
+    private int sampleCount = 0;
+
+    // Result of the current query
+    private int[] found = new int[64];
+    private int foundCount;
+
+    /**
+     * Create index.
+     *
+     * @param width Width of the indexed area
+     * @param height Height of the indexed area
+     * @param cellSize Width and height of a cell
+     */
+    public SpatialIndex(float width, float height, float cellSize)
+    {
+        this.cellSize = cellSize;
+        columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        rows = Math.max(1, (int) Math.ceil(height / cellSize));
+
+        final int cells = columns * rows;
+        cellSamples = new int[cells][];
+        cellX = new float[cells][];
+        cellY = new float[cells][];
+        cellCounts = new int[cells];
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        final int cell = row(y) * columns + column(x);
+        final int count = cellCounts[cell];
+
+        if(cellSamples[cell] == null)
+        {
+            cellSamples[cell] = new int[8];
+            cellX[cell] = new float[8];
+            cellY[cell] = new float[8];
+        }
+        else if(count == cellSamples[cell].length)
+        {
+            cellSamples[cell] = copyOf(cellSamples[cell], count * 2);
+            cellX[cell] = copyOf(cellX[cell], count * 2);
+            cellY[cell] = copyOf(cellY[cell], count * 2);
+        }
+
+        cellSamples[cell][count] = sampleCount++;
+        cellX[cell][count] = x;
+        cellY[cell][count] = y;
+        cellCounts[cell] = count + 1;
+    }
+
+    @Override
+    public void endEvent()
+    {
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+    }
+
+    @Override
+    public void endSession()
+    {
+    }
+
+    /**
+     * Remove every sample from the index.
+     */
+    public void clear()
+    {
+        Arrays.fill(cellCounts, 0);
+        sampleCount = 0;
+    }
+
+    /**
+     * Give the amount of indexed samples.
+     *
+     * @return Amount of samples
+     */
+    public int getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    /**
+     * Find the samples within a circle.
+     *
+     * @param x X coordinate of the center
+     * @param y Y coordinate of the center
+     * @param radius Radius of the circle
+     * @return Indexes of the samples in ascending order
+     */
+    public int[] findWithin(float x, float y, float radius)
+    {
+        final float radiusSquared = radius * radius;
+
+        foundCount = 0;
+
+        for(int r = row(y - radius); r <= row(y + radius); r++)
+        {
+            for(int c = column(x - radius); c <= column(x + radius); c++)
+            {
+                final int cell = r * columns + c;
+                final float[] xs = cellX[cell];
+                final float[] ys = cellY[cell];
+
+                for(int i = 0; i < cellCounts[cell]; i++)
+                {
+                    final float dx = xs[i] - x;
+                    final float dy = ys[i] - y;
+
+                    if(dx * dx + dy * dy <= radiusSquared)
+                        addFound(cellSamples[cell][i]);
+                }
+            }
+        }
+
+        return sortFound();
+    }
+
+    /**
+     * Find the samples inside a rectangle, its borders included.
+     *
+     * @param left Left border
+     * @param top Top border
+     * @param right Right border
+     * @param bottom Bottom border
+     * @return Indexes of the samples in ascending order
+     */
+    public int[] findInside(float left, float top, float right, float bottom)
+    {
+        foundCount = 0;
+
+        for(int r = row(top); r <= row(bottom); r++)
+        {
+            for(int c = column(left); c <= column(right); c++)
+            {
+                final int cell = r * columns + c;
+                final float[] xs = cellX[cell];
+                final float[] ys = cellY[cell];
+
+                for(int i = 0; i < cellCounts[cell]; i++)
+                {
+                    if(xs[i] >= left && xs[i] <= right && ys[i] >= top && ys[i] <= bottom)
+                        addFound(cellSamples[cell][i]);
+                }
+            }
+        }
+
+        return sortFound();
+    }
+
+    private int column(float x)
+    {
+        // Also catches NaN, which compares false
+        if(!(x >= 0.0f))
+            return 0;
+
+        return Math.min(columns - 1, (int) (x / cellSize));
+    }
+
+    private int row(float y)
+    {
+        if(!(y >= 0.0f))
+            return 0;
+
+        return Math.min(rows - 1, (int) (y / cellSize));
+    }
+
+    private void addFound(int sample)
+    {
+        if(foundCount == found.length)
+            found = copyOf(found, foundCount * 2);
+
+        found[foundCount++] = sample;
+    }
+
+    private int[] sortFound()
+    {
+        int[] result = copyOf(found, foundCount);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static int[] copyOf(int[] array, int length)
+    {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+    private static float[] copyOf(float[] array, int length)
+    {
+        float[] result = new float[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+}
@@ -0,0 +1,195 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collector of the strokes of a session, with the position, pressure and time of their samples.
+ *
+ * Strokes are numbered in the order they start, as in SessionStatistics. A stroke
+ * starts when its pointer goes down or first appears, and ends when it goes up or
+ * the gesture is cancelled. Image load events are ignored.
+ *
+ * @author Wincent Balin
+ */
+public class StrokeCollector implements SessionHandler
+{
+    private static final int MAX_POINTERS = 256;
+
+    private final List<Stroke> strokes = new ArrayList<Stroke>();
+
+    // Stroke of every pointer identifier in progress, or null
+    private final Stroke[] active = new Stroke[MAX_POINTERS];
+
+    // State of the current event
+    private int action;
+    private int actionIndex;
+    private int actionPointerId;
+    private long events = 0;
+
+    private long samples = 0;
+
+    /**
+     * Samples of one stroke.
+     */
+    public static class Stroke
+    {
+        private final int pointerId;
+        private final long startEvent;
+
+        private int count = 0;
+        private float[] x = new float[16];
+        private float[] y = new float[16];
+        private float[] pressure = new float[16];
+        private long[] time = new long[16];
+
+        private Stroke(int pointerId, long startEvent)
+        {
+            this.pointerId = pointerId;
+            this.startEvent = startEvent;
+        }
+
+        private void add(long time, float x, float y, float pressure)
+        {
+            if(count == this.time.length)
+            {
+                final int capacity = count * 2;
+
+                this.x = grow(this.x, capacity);
+                this.y = grow(this.y, capacity);
+                this.pressure = grow(this.pressure, capacity);
+
+                long[] times = new long[capacity];
+                System.arraycopy(this.time, 0, times, 0, count);
+                this.time = times;
+            }
+
+            this.time[count] = time;
+            this.x[count] = x;
+            this.y[count] = y;
+            this.pressure[count] = pressure;
+            count++;
+        }
+
+        private float[] grow(float[] values, int capacity)
+        {
+            float[] result = new float[capacity];
+            System.arraycopy(values, 0, result, 0, count);
+
+            return result;
+        }
+
+        public int getPointerId()
+        {
+            return pointerId;
+        }
+
+        public int getSampleCount()
+        {
+            return count;
+        }
+
+        public float getX(int i)
+        {
+            return x[i];
+        }
+
+        public float getY(int i)
+        {
+            return y[i];
+        }
+
+        public float getPressure(int i)
+        {
+            return pressure[i];
+        }
+
+        public long getTime(int i)
+        {
+            return time[i];
+        }
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.action = action;
+        this.actionIndex = actionIndex;
+        actionPointerId = -1;
+        events++;
+
+        // A new DOWN starts new strokes even if the UP is missing
+        if(action == SessionFormat.ACTION_DOWN)
+            endAll();
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        final int id = pointerId & (MAX_POINTERS - 1);
+        Stroke stroke = active[id];
+
+        if(pointerIndex == actionIndex)
+            actionPointerId = id;
+
+        // The pointer going down starts a stroke anew
+        if(stroke != null && stroke.startEvent != events && action == SessionFormat.ACTION_POINTER_DOWN && pointerIndex == actionIndex)
+            stroke = null;
+
+        if(stroke == null)
+        {
+            stroke = new Stroke(id, events);
+            strokes.add(stroke);
+            active[id] = stroke;
+        }
+
+        stroke.add(time, x, y, pressure);
+        samples++;
+    }
+
+    @Override
+    public void endEvent()
+    {
+        if(action == SessionFormat.ACTION_UP || action == SessionFormat.ACTION_CANCEL)
+            endAll();
+        else if(action == SessionFormat.ACTION_POINTER_UP && actionPointerId >= 0)
+            active[actionPointerId] = null;
+    }
+
+    private void endAll()
+    {
+        for(int id = 0; id < MAX_POINTERS; id++)
+            active[id] = null;
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+    }
+
+    @Override
+    public void endSession()
+    {
+        endAll();
+    }
+
+    /**
+     * Give the strokes collected so far.
+     *
+     * @return Strokes in the order they started
+     */
+    public List<Stroke> getStrokes()
+    {
+        return strokes;
+    }
+
+    /**
+     * Give the amount of samples collected.
+     *
+     * @return Amount of samples
+     */
+    public long getSamples()
+    {
+        return samples;
+    }
+}
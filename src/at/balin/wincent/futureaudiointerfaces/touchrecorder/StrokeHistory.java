@@ -0,0 +1,232 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * History of the gestures of a session, from DOWN to UP, for undoing and redoing them.
+ *
+ * Events are numbered in arrival order, matching SampleStore. Undone gestures stay
+ * in the session, but their events are marked, so that replay() leaves them out.
+ * Recording a new gesture discards the gestures which could be redone.
+ * The marks may be copied by another thread while the history is changed.
+ *
+ * @author Wincent Balin
+ */
+public class StrokeHistory implements SessionHandler
+{
+    private int events = 0;
+    private int action;
+    private int gestureStart = -1;
+
+    // Gestures as pairs of first event and event after the last one
+    private int[] done = new int[32];
+    private int doneCount = 0;
+    private int[] undoneStack = new int[32];
+    private int undoneCount = 0;
+
+    private final BitSet undone = new BitSet();
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.action = action;
+
+        if(action == SessionFormat.ACTION_DOWN)
+            gestureStart = events;
+
+        events++;
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+    }
+
+    @Override
+    public void endEvent()
+    {
+        if((action == SessionFormat.ACTION_UP || action == SessionFormat.ACTION_CANCEL) && gestureStart >= 0)
+        {
+            done = push(done, doneCount, gestureStart, events);
+            doneCount += 2;
+            gestureStart = -1;
+
+            // Undone gestures cannot be redone after a new one
+            undoneCount = 0;
+        }
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+        events++;
+    }
+
+    @Override
+    public void endSession()
+    {
+    }
+
+    private static int[] push(int[] stack, int count, int first, int end)
+    {
+        if(count + 2 > stack.length)
+        {
+            int[] larger = new int[stack.length * 2];
+            System.arraycopy(stack, 0, larger, 0, count);
+            stack = larger;
+        }
+
+        stack[count] = first;
+        stack[count + 1] = end;
+
+        return stack;
+    }
+
+    /**
+     * Forget the whole history.
+     */
+    public void clear()
+    {
+        events = 0;
+        gestureStart = -1;
+        doneCount = 0;
+        undoneCount = 0;
+
+        synchronized(undone)
+        {
+            undone.clear();
+        }
+    }
+
+    public boolean canUndo()
+    {
+        return doneCount > 0;
+    }
+
+    public boolean canRedo()
+    {
+        return undoneCount > 0;
+    }
+
+    /**
+     * Undo the last gesture.
+     *
+     * @return First event and event after the last one of the gesture, or null if there is none
+     */
+    public int[] undo()
+    {
+        if(doneCount == 0)
+            return null;
+
+        doneCount -= 2;
+        final int first = done[doneCount];
+        final int end = done[doneCount + 1];
+
+        undoneStack = push(undoneStack, undoneCount, first, end);
+        undoneCount += 2;
+
+        synchronized(undone)
+        {
+            undone.set(first, end);
+        }
+
+        return new int[] {first, end};
+    }
+
+    /**
+     * Redo the last undone gesture.
+     *
+     * @return First event and event after the last one of the gesture, or null if there is none
+     */
+    public int[] redo()
+    {
+        if(undoneCount == 0)
+            return null;
+
+        undoneCount -= 2;
+        final int first = undoneStack[undoneCount];
+        final int end = undoneStack[undoneCount + 1];
+
+        done = push(done, doneCount, first, end);
+        doneCount += 2;
+
+        synchronized(undone)
+        {
+            undone.clear(first, end);
+        }
+
+        return new int[] {first, end};
+    }
+
+    /**
+     * Answer whether an event belongs to an undone gesture.
+     *
+     * @param event Index of the event
+     * @return True if undone
+     */
+    public boolean isUndone(int event)
+    {
+        return undone.get(event);
+    }
+
+    /**
+     * Give the amount of events of undone gestures.
+     *
+     * @return Amount of events
+     */
+    public int getUndoneEvents()
+    {
+        return undone.cardinality();
+    }
+
+    /**
+     * Copy the marks of the events of undone gestures.
+     *
+     * @return Set of events of undone gestures
+     */
+    public BitSet getUndone()
+    {
+        synchronized(undone)
+        {
+            return (BitSet) undone.clone();
+        }
+    }
+
+    /**
+     * Deliver a range of events of a store to a handler, leaving out undone gestures.
+     *
+     * @param store Session
+     * @param fromEvent First event to deliver
+     * @param toEvent Event after the last one to deliver
+     * @param handler Receiver of the events
+     */
+    public void replay(SampleStore store, int fromEvent, int toEvent, SessionHandler handler)
+    {
+        replay(store, null, undone, fromEvent, toEvent, handler);
+    }
+
+    /**
+     * Deliver a range of events of a store to a handler, leaving out the events of a copy of the marks.
+     *
+     * @param store Session
+     * @param imageFileNames Copy of the image file names of the store, or null for its own
+     * @param undone Events to leave out, as given by getUndone()
+     * @param fromEvent First event to deliver
+     * @param toEvent Event after the last one to deliver
+     * @param handler Receiver of the events
+     */
+    public static void replay(SampleStore store, List<String> imageFileNames, BitSet undone, int fromEvent, int toEvent, SessionHandler handler)
+    {
+        int first = undone.nextClearBit(fromEvent);
+
+        while(first < toEvent)
+        {
+            final int end = undone.nextSetBit(first);
+            final int last = end < 0 ? toEvent : Math.min(end, toEvent);
+
+            store.replay(first, last, handler, imageFileNames);
+            first = undone.nextClearBit(last);
+        }
+    }
+}
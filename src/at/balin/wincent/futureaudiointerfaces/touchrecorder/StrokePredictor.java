@@ -0,0 +1,347 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Predictor of where the pointers are a few milliseconds after their last sample,
+ * extrapolating velocity and acceleration of their last three samples.
+ *
+ * Every prediction is also checked against the samples arriving later: the
+ * distance of the predicted position to the real one at that time is compared
+ * with the distance of the last sample to it, which is what is seen without
+ * prediction.
+ *
+ * @author Wincent Balin
+ */
+public class StrokePredictor implements SessionHandler
+{
+    private static final int MAX_POINTERS = 256;
+    private static final int PENDING = 8;
+
+    // Acceleration is noisy; only a part of it is extrapolated
+    private static final float ACCELERATION_WEIGHT = 0.5f;
+
+    private long horizon;
+
+    // Last three samples of every pointer, the latest at index 2
+    private final long[][] times = new long[MAX_POINTERS][3];
+    private final float[][] xs = new float[MAX_POINTERS][3];
+    private final float[][] ys = new float[MAX_POINTERS][3];
+    private final int[] known = new int[MAX_POINTERS];
+    private final boolean[] active = new boolean[MAX_POINTERS];
+
+    // Predictions waiting for the samples at their time: time, predicted and last position
+    private final long[][] pendingTimes = new long[MAX_POINTERS][PENDING];
+    private final float[][] pending = new float[MAX_POINTERS][PENDING * 4];
+    private final int[] pendingCount = new int[MAX_POINTERS];
+
+    private int action;
+    private int actionIndex;
+    private int actionPointer;
+
+    private final float[] prediction = new float[2];
+
+    private long checked = 0;
+    private double predictedError = 0.0;
+    private double unpredictedError = 0.0;
+
+    /**
+     * Create predictor.
+     *
+     * @param horizon How far to predict after the last sample, in ms
+     */
+    public StrokePredictor(long horizon)
+    {
+        this.horizon = horizon;
+    }
+
+    /**
+     * Set how far to predict; the measured errors are reset.
+     *
+     * @param horizon How far to predict after the last sample, in ms
+     */
+    public void setHorizon(long horizon)
+    {
+        if(horizon != this.horizon)
+            resetErrors();
+
+        this.horizon = horizon;
+    }
+
+    public long getHorizon()
+    {
+        return horizon;
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.action = action;
+        this.actionIndex = actionIndex;
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        final int id = pointerId & (MAX_POINTERS - 1);
+
+        if(pointerIndex == actionIndex)
+            actionPointer = id;
+
+        // A new stroke forgets the samples of the previous one
+        if(action == SessionFormat.ACTION_DOWN || (action == SessionFormat.ACTION_POINTER_DOWN && pointerIndex == actionIndex))
+        {
+            known[id] = 0;
+            pendingCount[id] = 0;
+        }
+
+        active[id] = true;
+
+        check(id, time, x, y);
+
+        final int last = known[id];
+
+        if(last > 0 && time <= times[id][2])
+        {
+            // Samples at the same time replace each other
+            xs[id][2] = x;
+            ys[id][2] = y;
+        }
+        else
+        {
+            for(int i = 0; i < 2; i++)
+            {
+                times[id][i] = times[id][i + 1];
+                xs[id][i] = xs[id][i + 1];
+                ys[id][i] = ys[id][i + 1];
+            }
+
+            times[id][2] = time;
+            xs[id][2] = x;
+            ys[id][2] = y;
+            known[id] = Math.min(3, last + 1);
+        }
+
+        // Note what would be shown at the time of the prediction
+        if(horizon > 0 && predict(id, prediction) && pendingCount[id] < PENDING)
+        {
+            final int p = pendingCount[id]++;
+
+            pendingTimes[id][p] = time + horizon;
+            pending[id][p * 4] = prediction[0];
+            pending[id][p * 4 + 1] = prediction[1];
+            pending[id][p * 4 + 2] = x;
+            pending[id][p * 4 + 3] = y;
+        }
+    }
+
+    /**
+     * Measure the pending predictions of a pointer reached by a new sample.
+     */
+    private void check(int id, long time, float x, float y)
+    {
+        if(known[id] == 0 || time <= times[id][2])
+            return;
+
+        final long previousTime = times[id][2];
+        int kept = 0;
+
+        for(int p = 0; p < pendingCount[id]; p++)
+        {
+            final long target = pendingTimes[id][p];
+
+            if(target <= time)
+            {
+                // Real position at the time of the prediction, between the last two samples
+                final float f = target > previousTime ? (float) (target - previousTime) / (time - previousTime) : 0.0f;
+                final float realX = xs[id][2] + (x - xs[id][2]) * f;
+                final float realY = ys[id][2] + (y - ys[id][2]) * f;
+
+                predictedError += Math.hypot(pending[id][p * 4] - realX, pending[id][p * 4 + 1] - realY);
+                unpredictedError += Math.hypot(pending[id][p * 4 + 2] - realX, pending[id][p * 4 + 3] - realY);
+                checked++;
+            }
+            else
+            {
+                pendingTimes[id][kept] = target;
+                System.arraycopy(pending[id], p * 4, pending[id], kept * 4, 4);
+                kept++;
+            }
+        }
+
+        pendingCount[id] = kept;
+    }
+
+    @Override
+    public void endEvent()
+    {
+        if(action == SessionFormat.ACTION_POINTER_UP)
+        {
+            active[actionPointer] = false;
+            pendingCount[actionPointer] = 0;
+        }
+        else if(action == SessionFormat.ACTION_UP || action == SessionFormat.ACTION_CANCEL)
+        {
+            for(int id = 0; id < MAX_POINTERS; id++)
+            {
+                active[id] = false;
+                pendingCount[id] = 0;
+            }
+        }
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+    }
+
+    @Override
+    public void endSession()
+    {
+    }
+
+    /**
+     * Answer whether a pointer is down.
+     *
+     * @param pointerId Identifier of the pointer
+     * @return True between the pointer going down and up
+     */
+    public boolean isActive(int pointerId)
+    {
+        return active[pointerId & (MAX_POINTERS - 1)];
+    }
+
+    /**
+     * Find the next pointer which is down.
+     *
+     * @param from Identifier to start searching at
+     * @return Identifier of the pointer, or -1 if there is none
+     */
+    public int nextActive(int from)
+    {
+        for(int id = Math.max(0, from); id < MAX_POINTERS; id++)
+        {
+            if(active[id])
+                return id;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Give the last sample of a pointer.
+     *
+     * @param pointerId Identifier of the pointer
+     * @param position Receives x and y
+     * @return False if the pointer has no sample
+     */
+    public boolean getLast(int pointerId, float[] position)
+    {
+        final int id = pointerId & (MAX_POINTERS - 1);
+
+        if(known[id] == 0)
+            return false;
+
+        position[0] = xs[id][2];
+        position[1] = ys[id][2];
+
+        return true;
+    }
+
+    /**
+     * Predict the position of a pointer the horizon after its last sample.
+     *
+     * @param pointerId Identifier of the pointer
+     * @param position Receives x and y
+     * @return False if the pointer has too few samples to predict
+     */
+    public boolean predict(int pointerId, float[] position)
+    {
+        final int id = pointerId & (MAX_POINTERS - 1);
+
+        if(known[id] < 2)
+            return false;
+
+        final float dt = times[id][2] - times[id][1];
+        float vx = (xs[id][2] - xs[id][1]) / dt;
+        float vy = (ys[id][2] - ys[id][1]) / dt;
+        float ax = 0.0f;
+        float ay = 0.0f;
+
+        if(known[id] == 3)
+        {
+            final float previousDt = times[id][1] - times[id][0];
+            final float span = (times[id][2] - times[id][0]) * 0.5f;
+
+            ax = (vx - (xs[id][1] - xs[id][0]) / previousDt) / span * ACCELERATION_WEIGHT;
+            ay = (vy - (ys[id][1] - ys[id][0]) / previousDt) / span * ACCELERATION_WEIGHT;
+
+            // Do not let the acceleration turn the stroke around
+            if((vx + ax * horizon) * vx < 0.0f)
+                ax = 0.0f;
+
+            if((vy + ay * horizon) * vy < 0.0f)
+                ay = 0.0f;
+        }
+
+        position[0] = xs[id][2] + vx * horizon + 0.5f * ax * horizon * horizon;
+        position[1] = ys[id][2] + vy * horizon + 0.5f * ay * horizon * horizon;
+
+        return true;
+    }
+
+    /**
+     * Forget the measured errors.
+     */
+    public void resetErrors()
+    {
+        checked = 0;
+        predictedError = 0.0;
+        unpredictedError = 0.0;
+    }
+
+    /**
+     * Give the amount of predictions checked against later samples.
+     *
+     * @return Amount of predictions
+     */
+    public long getChecked()
+    {
+        return checked;
+    }
+
+    /**
+     * Give the mean distance of the predictions to the real positions.
+     *
+     * @return Distance in pixels, 0 if nothing has been checked
+     */
+    public float getPredictedError()
+    {
+        return checked > 0 ? (float) (predictedError / checked) : 0.0f;
+    }
+
+    /**
+     * Give the mean distance of the last samples to the real positions at the
+     * time of the predictions, i.e. the error without prediction.
+     *
+     * @return Distance in pixels, 0 if nothing has been checked
+     */
+    public float getUnpredictedError()
+    {
+        return checked > 0 ? (float) (unpredictedError / checked) : 0.0f;
+    }
+
+    /**
+     * Describe the measured errors.
+     *
+     * @return One line of text
+     */
+    public String describe()
+    {
+        StringBuilder text = new StringBuilder(64);
+
+        text.append("horizon ").append(horizon).append(" ms checked ").append(checked);
+        text.append(" error ").append(Math.round(getPredictedError() * 10.0f) / 10.0f).append(" px");
+        text.append(" without ").append(Math.round(getUnpredictedError() * 10.0f) / 10.0f).append(" px");
+
+        return text.toString();
+    }
+}
@@ -0,0 +1,285 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.util.Arrays;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.graphics.RectF;
+
+/**
+ * Renderer of a session onto a canvas.
+ *
+ * Events are drawn as circles, large as the size of the event, with a fat arc
+ * showing the pressure; consecutive samples of a pointer are connected by lines.
+ * In survey mode only lines and points are drawn.
+ *
+ * The quality can be lowered to keep up with many events: first the hairline
+ * arcs are left out, then only lines and points are drawn as in survey mode,
+ * and finally only every few samples of the history of a move are drawn.
+ *
+ * @author Wincent Balin
+ */
+public class StrokeRenderer implements SessionHandler
+{
+    private static final int MAX_EVENTS = 256;
+
+    /**
+     * Quality levels, from best to cheapest.
+     */
+    public static final int QUALITY_FULL = 0;
+    public static final int QUALITY_NO_HAIRLINES = 1;
+    public static final int QUALITY_SURVEY = 2;
+    public static final int QUALITY_DECIMATED = 3;
+
+    // Every how many samples of the history are drawn at the cheapest quality
+    private static final int DECIMATION = 4;
+
+    private final float[] previousX = new float[MAX_EVENTS];
+    private final float[] previousY = new float[MAX_EVENTS];
+    private final RectF[] previousBounds = new RectF[MAX_EVENTS];
+
+    private Canvas canvas;
+
+    private final Paint touchStartPaint;
+    private final Paint touchRestPaint;
+
+    private final int touchStartColor = Color.argb(200, 126, 0, 33); // Semi-transparent wine red
+    private final int touchRestColor = Color.argb(200, 0, 0, 0); // Semi-transparent black
+
+    private final float STROKE_WIDTH_HAIRLINE = 1.0f;
+    private final float STROKE_WIDTH_FAT = 5.0f;
+
+    private float radiusOf1 = 80.0f;
+    private float maxPressure = 360.0f;
+
+    private boolean surveyMode = false;
+    private float surveyModeLineWidth = 3.0f;
+
+    private int quality = QUALITY_FULL;
+
+    // State of the current event
+    private int action;
+    private int actionIndex;
+    private int historySize;
+    private int pointerCount;
+    private int samples;
+
+    /**
+     * Create renderer.
+     */
+    public StrokeRenderer()
+    {
+        touchStartPaint = new Paint();
+        touchStartPaint.setColor(touchStartColor);
+        touchStartPaint.setAntiAlias(true);
+        touchStartPaint.setStyle(Style.STROKE);
+
+        touchRestPaint = new Paint();
+        touchRestPaint.setColor(touchRestColor);
+        touchRestPaint.setAntiAlias(true);
+        touchRestPaint.setStyle(Style.STROKE);
+
+        reset();
+    }
+
+    /**
+     * Create renderer drawing with the dimensions and survey mode of another one, in full quality.
+     *
+     * @param settings Renderer to take the settings of
+     */
+    public StrokeRenderer(StrokeRenderer settings)
+    {
+        this();
+        setDimensions(settings.radiusOf1, settings.maxPressure);
+        setSurveyMode(settings.surveyMode, settings.surveyModeLineWidth);
+    }
+
+    /**
+     * Forget the previous positions of all pointers.
+     */
+    public void reset()
+    {
+        Arrays.fill(previousBounds, new RectF(-100.0f, -100.0f, -100.0f, -100.0f));
+    }
+
+    /**
+     * Set the canvas to draw onto.
+     *
+     * @param canvas Canvas
+     */
+    public void setCanvas(Canvas canvas)
+    {
+        this.canvas = canvas;
+    }
+
+    /**
+     * Set dimensions of the circles.
+     *
+     * @param radiusOf1 Radius of the circle of an event with size 1
+     * @param maxPressure How many 1/1000th of a pressure unit the circle may contain at most
+     */
+    public void setDimensions(float radiusOf1, float maxPressure)
+    {
+        this.radiusOf1 = radiusOf1;
+        this.maxPressure = maxPressure;
+    }
+
+    /**
+     * Set survey mode, where only lines and points are drawn.
+     *
+     * @param surveyMode Whether to draw lines and points only
+     * @param surveyModeLineWidth Width of the lines
+     */
+    public void setSurveyMode(boolean surveyMode, float surveyModeLineWidth)
+    {
+        this.surveyMode = surveyMode;
+        this.surveyModeLineWidth = surveyModeLineWidth;
+    }
+
+    /**
+     * Give how far the drawing of a sample may reach from its position, lines and circles included.
+     *
+     * @param size Size of the touch
+     * @return Distance in pixels
+     */
+    public float getReach(float size)
+    {
+        return Math.max(Math.max(1.0f, size * radiusOf1), surveyModeLineWidth) + STROKE_WIDTH_FAT;
+    }
+
+    /**
+     * Set the quality of drawing.
+     *
+     * @param quality One of the QUALITY constants
+     */
+    public void setQuality(int quality)
+    {
+        this.quality = quality;
+    }
+
+    public int getQuality()
+    {
+        return quality;
+    }
+
+    private boolean isSurvey()
+    {
+        return surveyMode || quality >= QUALITY_SURVEY;
+    }
+
+    @Override
+    public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+    {
+        this.action = action;
+        this.actionIndex = actionIndex;
+        this.historySize = historySize;
+        this.pointerCount = pointerCount;
+        samples = 0;
+    }
+
+    @Override
+    public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+    {
+        final int id = pointerId & (MAX_EVENTS - 1);
+        final int row = pointerCount > 0 ? samples++ / pointerCount : 0;
+
+        // Skipped samples are bridged by the line to the next drawn one
+        if(quality >= QUALITY_DECIMATED && action == SessionFormat.ACTION_MOVE && row < historySize && row % DECIMATION != 0)
+            return;
+
+        switch(action)
+        {
+        case SessionFormat.ACTION_DOWN:
+            drawEvent(x, y, size, pressure, id, false, touchStartPaint);
+            break;
+
+        case SessionFormat.ACTION_MOVE:
+            drawTransition(x, y, id, touchRestPaint);
+            drawEvent(x, y, size, pressure, id, false, touchRestPaint);
+            break;
+
+        case SessionFormat.ACTION_UP:
+        case SessionFormat.ACTION_CANCEL:
+            drawTransition(x, y, id, touchRestPaint);
+            drawEvent(x, y, size, pressure, id, true, touchRestPaint);
+            break;
+
+        case SessionFormat.ACTION_POINTER_DOWN:
+            if(pointerIndex == actionIndex)
+                drawEvent(x, y, size, pressure, id, false, touchStartPaint);
+            break;
+
+        case SessionFormat.ACTION_POINTER_UP:
+            if(pointerIndex == actionIndex)
+            {
+                drawTransition(x, y, id, touchRestPaint);
+                drawEvent(x, y, size, pressure, id, true, touchRestPaint);
+            }
+            break;
+        }
+    }
+
+    @Override
+    public void endEvent()
+    {
+    }
+
+    @Override
+    public void image(String fileName, long time)
+    {
+    }
+
+    @Override
+    public void endSession()
+    {
+    }
+
+    private void drawTransition(float x, float y, int pointerId, Paint paint)
+    {
+        paint.setStrokeWidth(isSurvey() ? surveyModeLineWidth : STROKE_WIDTH_HAIRLINE);
+        canvas.drawLine(previousX[pointerId], previousY[pointerId], x, y, paint);
+    }
+
+    private void drawEvent(float x, float y, float size, float pressure, int pointerId, boolean overlap, Paint paint)
+    {
+        final float radius = Math.max(1.0f, size * radiusOf1);
+
+        final float left = x - radius;
+        final float top = y - radius;
+        final float right = x + radius;
+        final float bottom = y + radius;
+        RectF bounds = new RectF(left, top, right, bottom);
+
+        if(isSurvey())
+        {
+            paint.setStrokeWidth(surveyModeLineWidth);
+            canvas.drawPoint(x, y, paint);
+        }
+        else
+        {
+            if(overlap || (!overlap && !RectF.intersects(bounds, previousBounds[pointerId])))
+            {
+                // Express one thousandth of one pressure unit as one degree angle
+                final float pressureAngle = Math.min(pressure, maxPressure) * (360.0f / maxPressure) * 1000.0f;
+
+                paint.setStrokeWidth(STROKE_WIDTH_FAT);
+                canvas.drawArc(bounds, 0.0f, pressureAngle, false, paint);
+
+                if(pressureAngle < 360.0f && quality < QUALITY_NO_HAIRLINES)
+                {
+                    paint.setStrokeWidth(STROKE_WIDTH_HAIRLINE);
+                    canvas.drawArc(bounds, pressureAngle, 360.0f, false, paint);
+                }
+
+                // Store boundaries
+                previousBounds[pointerId] = bounds;
+            }
+        }
+
+        // Store coordinates
+        previousX[pointerId] = x;
+        previousY[pointerId] = y;
+    }
+}
@@ -0,0 +1,306 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+/**
+ * Filter removing samples which do not change the shape of strokes noticeably.
+ *
+ * Every MOVE event is simplified on its own, so that the lookahead is bounded by
+ * one event: historical rows are thinned out with the Ramer-Douglas-Peucker algorithm
+ * between the last kept sample of each pointer and the current row; MOVE events whose
+ * samples all stay within the tolerance of the last kept samples are dropped completely.
+ * Events other than MOVE, and therefore the endpoints of strokes, are always kept,
+ * as are local extremes of pressure rising above the sensor noise and samples changing
+ * the pressure noticeably.
+ *
+ * @author Wincent Balin
+ */
+public class StrokeSimplifier extends SessionFilter
+{
+    private static final int MAX_POINTERS = 256;
+
+    // Changes of pressure below this are regarded as sensor noise
+    private static final float PRESSURE_NOISE = 0.01f;
+
+    private final float tolerance;
+    private float pressureTolerance = 0.05f;
+
+    // Last kept and last seen sample, indexed by pointer identifier
+    private final boolean[] known = new boolean[MAX_POINTERS];
+    private final float[] keptX = new float[MAX_POINTERS];
+    private final float[] keptY = new float[MAX_POINTERS];
+    private final float[] keptPressure = new float[MAX_POINTERS];
+    private final float[] seenPressure = new float[MAX_POINTERS];
+
+    // Working arrays, grown as needed
+    private boolean[] keepRow = new boolean[16];
+    private float[] pathX = new float[17];
+    private float[] pathY = new float[17];
+    private boolean[] pathKeep = new boolean[17];
+    private int[] stack = new int[34];
+
+    private long samplesIn = 0;
+    private long samplesOut = 0;
+
+    /**
+     * Create simplifier.
+     *
+     * @param next Handler to receive the simplified session
+     * @param tolerance Largest distance in pixels a removed sample may have from the simplified stroke
+     */
+    public StrokeSimplifier(SessionHandler next, float tolerance)
+    {
+        super(next);
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Set the largest change of pressure a removed sample may have.
+     *
+     * @param pressureTolerance Tolerance in pressure units
+     */
+    public void setPressureTolerance(float pressureTolerance)
+    {
+        this.pressureTolerance = pressureTolerance;
+    }
+
+    @Override
+    protected boolean filter(EventBuffer event)
+    {
+        final int count = event.getSampleCount();
+        samplesIn += count;
+
+        if(event.getAction() != SessionFormat.ACTION_MOVE)
+        {
+            remember(event, 0, count, true);
+            samplesOut += count;
+            return true;
+        }
+
+        final int historySize = event.getHistorySize();
+        final int pointerCount = event.getPointerCount();
+        final int rows = historySize + 1;
+
+        if(keepRow.length < rows)
+            grow(rows);
+
+        for(int r = 0; r < rows; r++)
+            keepRow[r] = false;
+
+        boolean keepEvent = false;
+
+        for(int p = 0; p < pointerCount; p++)
+        {
+            final int current = event.rowStart(historySize) + p;
+            final int id = event.getPointerId(current) & (MAX_POINTERS - 1);
+
+            if(!known[id])
+            {
+                // A pointer without anything kept before cannot be simplified
+                keepEvent = true;
+
+                for(int r = 0; r < historySize; r++)
+                    keepRow[r] = true;
+
+                continue;
+            }
+
+            // Path from the last kept sample through all rows to the current one
+            pathX[0] = keptX[id];
+            pathY[0] = keptY[id];
+
+            for(int r = 0; r < rows; r++)
+            {
+                final int sample = event.rowStart(r) + p;
+
+                pathX[r + 1] = event.getX(sample);
+                pathY[r + 1] = event.getY(sample);
+            }
+
+            simplify(rows + 1);
+
+            float previousPressure = seenPressure[id];
+            float lastKeptPressure = keptPressure[id];
+
+            for(int r = 0; r < historySize; r++)
+            {
+                final float pressure = event.getPressure(event.rowStart(r) + p);
+                final float nextPressure = event.getPressure(event.rowStart(r + 1) + p);
+
+                final boolean maximum = pressure > previousPressure + PRESSURE_NOISE && pressure >= nextPressure;
+                final boolean minimum = pressure < previousPressure - PRESSURE_NOISE && pressure <= nextPressure;
+
+                if(pathKeep[r + 1] || maximum || minimum || Math.abs(pressure - lastKeptPressure) > pressureTolerance)
+                {
+                    keepRow[r] = true;
+                    lastKeptPressure = pressure;
+                }
+
+                previousPressure = pressure;
+            }
+
+            final float currentPressure = event.getPressure(current);
+            final float dx = event.getX(current) - keptX[id];
+            final float dy = event.getY(current) - keptY[id];
+
+            if(dx * dx + dy * dy > tolerance * tolerance || Math.abs(currentPressure - lastKeptPressure) > pressureTolerance)
+                keepEvent = true;
+        }
+
+        for(int r = 0; r < historySize; r++)
+            keepEvent |= keepRow[r];
+
+        if(!keepEvent)
+        {
+            // Only note what has been seen, the kept samples stay the same
+            remember(event, event.rowStart(historySize), count, false);
+            return false;
+        }
+
+        for(int r = historySize - 1; r >= 0; r--)
+        {
+            if(!keepRow[r])
+                event.removeRow(r);
+        }
+
+        remember(event, 0, event.getSampleCount(), true);
+        samplesOut += event.getSampleCount();
+
+        return true;
+    }
+
+    private void remember(EventBuffer event, int from, int to, boolean kept)
+    {
+        for(int s = from; s < to; s++)
+        {
+            final int id = event.getPointerId(s) & (MAX_POINTERS - 1);
+
+            seenPressure[id] = event.getPressure(s);
+
+            if(kept)
+            {
+                known[id] = true;
+                keptX[id] = event.getX(s);
+                keptY[id] = event.getY(s);
+                keptPressure[id] = event.getPressure(s);
+            }
+        }
+
+        // Strokes end here; a later DOWN of the same pointer starts anew
+        if(kept && SessionFormat.endsStroke(event.getAction()))
+        {
+            if(event.getAction() == SessionFormat.ACTION_POINTER_UP)
+            {
+                final int current = event.rowStart(event.getHistorySize()) + event.getActionIndex();
+                known[event.getPointerId(current) & (MAX_POINTERS - 1)] = false;
+            }
+            else
+            {
+                for(int id = 0; id < MAX_POINTERS; id++)
+                    known[id] = false;
+            }
+        }
+    }
+
+    /**
+     * Mark the points of the path to keep with the Ramer-Douglas-Peucker algorithm.
+     *
+     * @param length Amount of points in the path; its endpoints are always kept
+     */
+    private void simplify(int length)
+    {
+        for(int i = 0; i < length; i++)
+            pathKeep[i] = false;
+
+        pathKeep[0] = true;
+        pathKeep[length - 1] = true;
+
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = length - 1;
+
+        while(top > 0)
+        {
+            final int last = stack[--top];
+            final int first = stack[--top];
+
+            final float ax = pathX[first];
+            final float ay = pathY[first];
+            final float dx = pathX[last] - ax;
+            final float dy = pathY[last] - ay;
+            final float lengthSquared = dx * dx + dy * dy;
+
+            float maxDistance = 0.0f;
+            int farthest = -1;
+
+            for(int i = first + 1; i < last; i++)
+            {
+                final float distance = distanceToSegment(pathX[i] - ax, pathY[i] - ay, dx, dy, lengthSquared);
+
+                if(distance > maxDistance)
+                {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+
+            if(farthest >= 0 && maxDistance > tolerance)
+            {
+                pathKeep[farthest] = true;
+
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+    }
+
+    private static float distanceToSegment(float px, float py, float dx, float dy, float lengthSquared)
+    {
+        float t = lengthSquared > 0.0f ? (px * dx + py * dy) / lengthSquared : 0.0f;
+        t = Math.max(0.0f, Math.min(1.0f, t));
+
+        final float ex = px - t * dx;
+        final float ey = py - t * dy;
+
+        return (float) Math.sqrt(ex * ex + ey * ey);
+    }
+
+    private void grow(int rows)
+    {
+        keepRow = new boolean[rows];
+        pathX = new float[rows + 1];
+        pathY = new float[rows + 1];
+        pathKeep = new boolean[rows + 1];
+        stack = new int[2 * (rows + 1)];
+    }
+
+    /**
+     * Give the amount of samples received.
+     *
+     * @return Amount of samples
+     */
+    public long getSamplesIn()
+    {
+        return samplesIn;
+    }
+
+    /**
+     * Give the amount of samples passed on.
+     *
+     * @return Amount of samples
+     */
+    public long getSamplesOut()
+    {
+        return samplesOut;
+    }
+
+    /**
+     * Give the share of samples removed.
+     *
+     * @return Ratio between 0 (nothing removed) and 1
+     */
+    public float getReductionRatio()
+    {
+        return samplesIn > 0 ? 1.0f - (float) samplesOut / samplesIn : 0.0f;
+    }
+}
@@ -0,0 +1,244 @@
+package at.balin.wincent.futureaudiointerfaces.touchrecorder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sparse index from the time of events to their position in a saved session.
+ *
+ * Every entry notes the time of the first sample of an event, its number and the byte
+ * offset of its first line. Saved machine-readable sessions end with the entries as a
+ * footer, which the parser skips:
+ *
+ * <pre>
+ * Index At 1000 event 0 offset 0
+ * Index At 5230 event 256 offset 48213
+ * Index footer 98765 entries 2
+ * </pre>
+ *
+ * The last line gives the offset of the footer, so that it can be found from the end of the file.
+ *
+ * @author Wincent Balin
+ */
+public class TimeIndex
+{
+    /**
+     * Default amount of events between two entries.
+     */
+    public static final int DEFAULT_INTERVAL = 256;
+
+    private static final int TAIL_LENGTH = 128;
+    private static final int MAX_FOOTER_LENGTH = 64 * 1024 * 1024;
+
+    private int count = 0;
+    private long[] times = new long[64];
+    private int[] events = new int[64];
+    private long[] offsets = new long[64];
+
+    /**
+     * Append an entry; entries are expected in ascending order of time.
+     *
+     * @param time Time of the first sample of the event
+     * @param event Number of the event in the session
+     * @param offset Byte offset of the event in the file
+     */
+    public void add(long time, int event, long offset)
+    {
+        if(count == times.length)
+        {
+            long[] newTimes = new long[count * 2];
+            System.arraycopy(times, 0, newTimes, 0, count);
+            times = newTimes;
+
+            int[] newEvents = new int[count * 2];
+            System.arraycopy(events, 0, newEvents, 0, count);
+            events = newEvents;
+
+            long[] newOffsets = new long[count * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            offsets = newOffsets;
+        }
+
+        times[count] = time;
+        events[count] = event;
+        offsets[count] = offset;
+        count++;
+    }
+
+    /**
+     * Change the time of an entry, e.g. when it becomes known after the entry has been added.
+     *
+     * @param entry Index of the entry
+     * @param time Time of the first sample of the event
+     */
+    public void setTime(int entry, long time)
+    {
+        times[entry] = time;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    public long getTime(int entry)
+    {
+        return times[entry];
+    }
+
+    public int getEvent(int entry)
+    {
+        return events[entry];
+    }
+
+    public long getOffset(int entry)
+    {
+        return offsets[entry];
+    }
+
+    /**
+     * Find the last entry before a time; no sample at or after the time precedes the entry.
+     *
+     * @param time Time in milliseconds
+     * @return Index of the entry, or -1 if there is none
+     */
+    public int findBefore(long time)
+    {
+        int low = 0;
+        int high = count;
+
+        // Find the first entry at or after the time
+        while(low < high)
+        {
+            final int middle = (low + high) >>> 1;
+
+            if(times[middle] < time)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low - 1;
+    }
+
+    /**
+     * Find the first entry after a time; no sample at or before the time follows the entry.
+     *
+     * @param time Time in milliseconds
+     * @return Index of the entry, or the amount of entries if there is none
+     */
+    public int findAfter(long time)
+    {
+        int low = 0;
+        int high = count;
+
+        while(low < high)
+        {
+            final int middle = (low + high) >>> 1;
+
+            if(times[middle] <= time)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    /**
+     * Write the entries as footer of a session.
+     *
+     * @param writer Destination of the text
+     * @param footerOffset Byte offset of the footer in the file
+     * @throws IOException If writing fails
+     */
+    public void write(Writer writer, long footerOffset) throws IOException
+    {
+        StringBuilder buffer = new StringBuilder(64);
+
+        for(int i = 0; i < count; i++)
+        {
+            buffer.setLength(0);
+            buffer.append("Index At ").append(times[i]);
+            buffer.append(" event ").append(events[i]);
+            buffer.append(" offset ").append(offsets[i]).append('\n');
+            writer.append(buffer);
+        }
+
+        buffer.setLength(0);
+        buffer.append("Index footer ").append(footerOffset);
+        buffer.append(" entries ").append(count).append('\n');
+        writer.append(buffer);
+    }
+
+    /**
+     * Read the footer of a saved session.
+     *
+     * @param channel Channel of the file
+     * @return Index, or null if the file has no valid footer
+     * @throws IOException If reading fails
+     */
+    public static TimeIndex read(FileChannel channel) throws IOException
+    {
+        final long size = channel.size();
+
+        // Last line gives the position of the footer
+        final String tail = readAscii(channel, Math.max(0, size - TAIL_LENGTH), (int) Math.min(size, TAIL_LENGTH));
+        final String[] tailLines = tail.split("\n");
+
+        if(tailLines.length == 0)
+            return null;
+
+        final String[] last = tailLines[tailLines.length - 1].trim().split(" ");
+
+        if(last.length != 5 || !last[0].equals("Index") || !last[1].equals("footer") || !last[3].equals("entries"))
+            return null;
+
+        try
+        {
+            final long footerOffset = Long.parseLong(last[2]);
+            final int entries = Integer.parseInt(last[4]);
+
+            if(footerOffset < 0 || footerOffset >= size || size - footerOffset > MAX_FOOTER_LENGTH)
+                return null;
+
+            final String[] lines = readAscii(channel, footerOffset, (int) (size - footerOffset)).split("\n");
+
+            if(lines.length != entries + 1)
+                return null;
+
+            TimeIndex index = new TimeIndex();
+
+            for(int i = 0; i < entries; i++)
+            {
+                final String[] fields = lines[i].trim().split(" ");
+
+                if(fields.length != 7 || !fields[0].equals("Index") || !fields[1].equals("At"))
+                    return null;
+
+                index.add(Long.parseLong(fields[2]), Integer.parseInt(fields[4]), Long.parseLong(fields[6]));
+            }
+
+            return index;
+        }
+        catch(NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    private static String readAscii(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+
+        while(bytes.hasRemaining())
+        {
+            if(channel.read(bytes, position + bytes.position()) < 0)
+                break;
+        }
+
+        return new String(bytes.array(), 0, bytes.position(), "US-ASCII");
+    }
+}
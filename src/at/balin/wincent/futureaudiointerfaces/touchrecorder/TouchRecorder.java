@@ -1,14 +1,26 @@
 package at.balin.wincent.futureaudiointerfaces.touchrecorder;
 
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -16,10 +28,13 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
-import android.graphics.RectF;
+import android.graphics.Rect;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.SystemClock;
 import android.util.Log;
+import android.view.GestureDetector;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -63,6 +78,49 @@ public class TouchRecorder extends Activity
     
     public static final int FILE_DIALOG_LOAD_IMAGE = 1;
     public static final int FILE_DIALOG_SAVE_LOG = 2;
+    public static final int EXPORT_DIALOG = 3;
+    public static final int FILE_DIALOG_EXPORT_LOG = 4;
+    public static final int FILE_DIALOG_OPEN_LOG = 5;
+    public static final int SESSIONS_VIEW = 6;
+    public static final int LOAD_DIALOG = 7;
+    public static final int FILE_DIALOG_EXPORT_IMAGE = 8;
+
+    /**
+     * Action of intents asking for a dump of the flight recorder, e.g. by a test harness;
+     * FileDialog.FILENAME may give the name of the file on the external storage, without a directory.
+     */
+    public static final String DUMP_ACTION = "at.balin.wincent.futureaudiointerfaces.touchrecorder.DUMP";
+
+    /**
+     * Permission needed to send DUMP_ACTION, granted to apps of the same signature only.
+     */
+    public static final String DUMP_PERMISSION = "at.balin.wincent.futureaudiointerfaces.touchrecorder.permission.DUMP";
+
+    private Intent exportSelection = null;
+
+    private final BroadcastReceiver dumpReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            final String fileName = intent.getStringExtra(FileDialog.FILENAME);
+
+            if(fileName == null)
+            {
+                graphics.dumpFlight(defaultDumpFile());
+                return;
+            }
+
+            // Dumps go to the external storage only, whatever the sender asks for
+            if(fileName.length() == 0 || fileName.indexOf(File.separatorChar) >= 0 || fileName.equals(".") || fileName.equals(".."))
+            {
+                Log.w("flight", "Ignoring dump into " + fileName);
+                return;
+            }
+
+            graphics.dumpFlight(new File(Environment.getExternalStorageDirectory(), fileName));
+        }
+    };
     
     /** Called when the activity is first created. */
     @Override
@@ -79,6 +137,42 @@ public class TouchRecorder extends Activity
 
         // Show short help message
         Toast.makeText(TouchRecorder.this, R.string.intro_help, Toast.LENGTH_LONG).show();
+
+        // Dumps may be asked for while in the background
+        registerReceiver(dumpReceiver, new IntentFilter(DUMP_ACTION), DUMP_PERMISSION, null);
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        unregisterReceiver(dumpReceiver);
+        graphics.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onLowMemory()
+    {
+        graphics.trimMemory(MemoryBudget.BACKGROUND, "low memory");
+        super.onLowMemory();
+    }
+
+    /**
+     * Release memory as the system asks for; called since API 14 only.
+     *
+     * @param level Level of trimming, e.g. MemoryBudget.TRIM_MEMORY_RUNNING_LOW
+     */
+    public void onTrimMemory(int level)
+    {
+        final int stage = MemoryBudget.stageOf(level);
+
+        if(stage != MemoryBudget.FIXED)
+            graphics.trimMemory(stage, "trim level " + level);
+    }
+
+    private static File defaultDumpFile()
+    {
+        return new File(Environment.getExternalStorageDirectory(), "touchrecorder-flight-" + System.currentTimeMillis() + ".txt");
     }
     
     @Override
@@ -122,26 +216,114 @@ public class TouchRecorder extends Activity
             finish();
     }
     
+    /**
+     * Answer whether the session is recorded into the store, else tell that only dumping saves it.
+     *
+     * @return True if the flight recorder is off
+     */
+    private boolean isSessionStored()
+    {
+        if(!graphics.isFlightRecording())
+            return true;
+
+        Toast.makeText(this, R.string.flight_on, Toast.LENGTH_LONG).show();
+        return false;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item)
     {
         switch(item.getItemId())
         {
         case R.id.view:
-            Bundle logViewBundle = new Bundle();
-            logViewBundle.putString("LogData", graphics.getLog());
-            Intent logViewIntent = new Intent(this, LogView.class);
-            logViewIntent.putExtras(logViewBundle);
-            startActivity(logViewIntent);
+            if(!isSessionStored())
+                return true;
+
+            LogView.show(this, graphics.getStore(), graphics.getHistory(), Preferences.viewFormatIsHumanReadable(this));
+            return true;
+        case R.id.open:
+            // Open file load dialog for a saved session
+            startActivityForResult(new Intent(this, FileDialog.class), FILE_DIALOG_OPEN_LOG);
+            return true;
+        case R.id.sessions:
+            // Choose a saved session from the catalog
+            startActivityForResult(new Intent(this, SessionsView.class), SESSIONS_VIEW);
             return true;
         case R.id.save:
+            if(!isSessionStored())
+                return true;
+
             // Open file save dialog
             Intent fileSaveIntent = new Intent(this, FileDialog.class);
             startActivityForResult(fileSaveIntent, FILE_DIALOG_SAVE_LOG);
             return true;
+        case R.id.export:
+            if(!isSessionStored())
+                return true;
+
+            // Choose the part to export, then the file
+            Intent exportIntent = new Intent(this, ExportDialog.class);
+            exportIntent.putExtra(ExportDialog.FROM, graphics.getStore().getEventCount() > 0 ? graphics.getStore().getEventTime(0) : 0);
+            exportIntent.putExtra(ExportDialog.UNTIL, graphics.getStore().getEventCount() > 0 ?
+                    graphics.getStore().getEventTime(graphics.getStore().getEventCount() - 1) : 0);
+            startActivityForResult(exportIntent, EXPORT_DIALOG);
+            return true;
+        case R.id.inspect:
+            graphics.setInspectMode(!graphics.isInspectMode());
+            Toast.makeText(this, graphics.isInspectMode() ? R.string.inspect_mode_on : R.string.inspect_mode_off, Toast.LENGTH_SHORT).show();
+            return true;
+        case R.id.share:
+            if(!isSessionStored())
+                return true;
+
+            // Let another app read the session as it is formatted
+            final String format = Preferences.saveFormatIsHumanReadable(this) ? "human" : "text";
+            Intent shareIntent = new Intent(Intent.ACTION_SEND);
+            shareIntent.setType("text/plain");
+            shareIntent.putExtra(Intent.EXTRA_STREAM, SessionProvider.currentUri(format));
+            shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            startActivity(Intent.createChooser(shareIntent, getString(R.string.share_title)));
+            return true;
+        case R.id.undo:
+            if(!isSessionStored())
+                return true;
+
+            if(!graphics.undo())
+                Toast.makeText(this, R.string.nothing_to_undo, Toast.LENGTH_SHORT).show();
+            return true;
+        case R.id.redo:
+            if(!isSessionStored())
+                return true;
+
+            if(!graphics.redo())
+                Toast.makeText(this, R.string.nothing_to_redo, Toast.LENGTH_SHORT).show();
+            return true;
+        case R.id.ink:
+            graphics.setInk(!graphics.isInk());
+            return true;
+        case R.id.heatmap:
+            graphics.setHeatmap(!graphics.isHeatmap());
+            return true;
         case R.id.clear:
             graphics.clear();
             return true;
+        case R.id.dump:
+            graphics.dumpFlight(defaultDumpFile());
+            return true;
+        case R.id.generate:
+            startActivityForResult(new Intent(this, LoadDialog.class), LOAD_DIALOG);
+            return true;
+        case R.id.exportimage:
+            if(!isSessionStored())
+                return true;
+
+            startActivityForResult(new Intent(this, FileDialog.class), FILE_DIALOG_EXPORT_IMAGE);
+            return true;
+        case R.id.memory:
+            Intent memoryIntent = new Intent(this, LogView.class);
+            memoryIntent.putExtra("LogData", graphics.describeMemory());
+            startActivity(memoryIntent);
+            return true;
         case R.id.loadimage:
             // Open file load dialog
             Intent fileLoadIntent = new Intent(this, FileDialog.class);
@@ -168,10 +350,36 @@ public class TouchRecorder extends Activity
             {
                 graphics.loadImage(data.getStringExtra(FileDialog.FILENAME));
             }
+            else if(requestCode == FILE_DIALOG_OPEN_LOG || requestCode == SESSIONS_VIEW)
+            {
+                graphics.openLog(data.getStringExtra(FileDialog.FILENAME));
+            }
             else if(requestCode == FILE_DIALOG_SAVE_LOG)
             {
                 graphics.saveLog(data.getStringExtra(FileDialog.FILENAME));
             }
+            else if(requestCode == EXPORT_DIALOG)
+            {
+                exportSelection = data;
+                startActivityForResult(new Intent(this, FileDialog.class), FILE_DIALOG_EXPORT_LOG);
+            }
+            else if(requestCode == FILE_DIALOG_EXPORT_LOG && exportSelection != null)
+            {
+                graphics.exportLog(data.getStringExtra(FileDialog.FILENAME), exportSelection);
+                exportSelection = null;
+            }
+            else if(requestCode == FILE_DIALOG_EXPORT_IMAGE)
+            {
+                graphics.exportImage(data.getStringExtra(FileDialog.FILENAME));
+            }
+            else if(requestCode == LOAD_DIALOG)
+            {
+                graphics.generateLoad(new LoadGenerator(data.getLongExtra(LoadDialog.SEED, 1),
+                        data.getIntExtra(LoadDialog.POINTERS, 1), data.getIntExtra(LoadDialog.RATE, 60),
+                        data.getIntExtra(LoadDialog.HISTORY, 0), data.getIntExtra(LoadDialog.SHAPE, LoadGenerator.SHAPE_SCRIBBLE),
+                        SystemClock.uptimeMillis(), data.getLongExtra(LoadDialog.DURATION, 0),
+                        graphics.getWidth(), graphics.getHeight()));
+            }
         }
     }
     
@@ -182,41 +390,128 @@ public class TouchRecorder extends Activity
      */
     class GraphicsView extends View
     {
-        private Bitmap bitmap;
-        private Canvas canvas;
+        // Layers composited on screen: background color and image below the ink of finished
+        // gestures, with the ink of the gesture in progress on top
+        private Bitmap inkBitmap;
+        private Canvas inkCanvas;
+        private Bitmap liveBitmap;
+        private Canvas liveCanvas;
+        private boolean liveInkFlag = false;
+        private boolean showInk = true;
         
         private Paint bitmapPaint;
-        private Paint touchStartPaint;
-        private Paint touchRestPaint;
-        
+
         private List<Event> log = new ArrayList<Event>();
         private int lastEventIndex = 0;
-        
-        private static final int MAX_EVENTS = 256;
-        private float[] previousX = new float[MAX_EVENTS];
-        private float[] previousY = new float[MAX_EVENTS];
-        private RectF[] previousBounds = new RectF[MAX_EVENTS];
-        
-        private boolean clearBackgroundFlag = true; // We clear the canvas on start
-        private boolean drawImageFlag = false;
+
         private boolean drawEventFlag = false;
 
-        private float radiusOf1 = 80.0f;
-        private float maxPressure = 360.0f;
-        
-        private boolean surveyMode = false;
-        private float surveyModeLineWidth = 3.0f;
+        private final StrokeRenderer renderer = new StrokeRenderer();
+
+        // Predicted ends of the live strokes, drawn onto the screen only and never recorded
+        private final StrokePredictor predictor = new StrokePredictor(0);
+        private final Paint predictionPaint;
+        private final float[] lastPosition = new float[2];
+        private final float[] predictedPosition = new float[2];
+
+        // Heads-up display of the time from input to display
+        private boolean showHud = false;
+        private final Paint hudPaint;
+        private long lastLag = 0;
+        private long lagSum = 0;
+        private long lagFrames = 0;
+
+        // Cheaper drawing of live strokes while events pile up; finished gestures are drawn anew in full
+        private boolean adaptiveQuality = false;
+        private final AdaptiveQuality governor = new AdaptiveQuality();
+        private int gestureStartEvent = 0;
+        private boolean gestureDegraded = false;
+
+        // Synthetic load being generated, with the measurements of its run
+        private LoadGenerator loadGenerator = null;
+        private long loadStart;
+        private long loadMemory;
+        private int loadFrames;
+        private long loadFrameNanos;
+        private long loadMaxFrameNanos;
+
+        private boolean simplifyDrawing = false;
+        private float simplifyTolerance = 2.0f;
+        private StrokeSimplifier drawingSimplifier;
 
         private final int backgroundColor = Color.WHITE;
-        private final int touchStartColor = Color.argb(200, 126, 0, 33); // Semi-transparent wine red
-        private final int touchRestColor = Color.argb(200, 0, 0, 0); // Semi-transparent black
-        
+
         private Bitmap backgroundBitmap = null;
-        
-        private final float STROKE_WIDTH_HAIRLINE = 1.0f;        
-        private final float STROKE_WIDTH_FAT = 5.0f;
+        private int backgroundScale = 1; // Times the background has been downsampled, drawn as large
+        private final Rect backgroundRect = new Rect();
+
+        private static final int MAX_BACKGROUND_SCALE = 8;
+
+        // Least memory of the store worth spilling
+        private static final long MIN_SPILL_BYTES = 1024 * 1024;
+
+        // Memory taken by the parts of the view, released in stages
+        private final MemoryBudget memory = new MemoryBudget();
+
+        // Part of the session moved out of memory, and the ink of its gestures, rendered once
+        private final File spillFile;
+        private int spilledEvents = 0;
+        private byte[] spilledInk = null;
+
+        // Image export in progress, reading the session in the background
+        private boolean exportingImage = false;
+
+        private static final long IMAGE_TILE_BYTES = ImageExporter.DEFAULT_TILE_BYTES;
+        private static final int IMAGE_COMPRESSION = 6;
+
+        // Samples of the session, indexed by position for inspection
+        private final SampleStore store = new SampleStore();
+        private SpatialIndex index = new SpatialIndex(1.0f, 1.0f, INDEX_CELL_SIZE);
+        private DensityGrid density = new DensityGrid(1.0f, 1.0f, HEATMAP_CELL_SIZE, DensityGrid.WEIGHT_DWELL);
+        private final StrokeHistory history = new StrokeHistory();
+        private CaptureMode recorder = new CaptureMode(new SessionTee(store, index, density, history), CaptureMode.FULL);
+
+        // Recorded events passed on to consumers on threads of their own, off the input path
+        private final EventRing ring = new EventRing(RING_CAPACITY);
+        private final EventLog eventLog = new EventLog();
+
+        private static final int RING_CAPACITY = 16384; // In records, about 600 KiB
+
+        // Touches dropped before they are logged, drawn or recorded; with the preferences it was compiled from
+        private CaptureFilter capture = new CaptureFilter(captureTarget());
+        private String captureSettings = "";
+
+        // Latest part of the session only, in fixed memory, instead of the store; with its copy being saved
+        private FlightRecorder flight = null;
+        private FlightRecorder flightSnapshot = null;
+        private long flightWindow = 0;
+        private boolean flightDumping = false;
+
+        // Snapshots of the committed ink, to undo without rendering the whole session
+        private final InkCheckpoints checkpoints = new InkCheckpoints(CHECKPOINT_BUDGET);
+        private int gesturesSinceCheckpoint = 0;
+        private boolean checkpointing = false;
+
+        private static final int CHECKPOINT_INTERVAL = 16; // In gestures
+        private static final long CHECKPOINT_BUDGET = 4 * 1024 * 1024;
+
+        // Highest rate of samples the flight recorder is sized for, e.g. ten pointers at 240 Hz
+        private static final int FLIGHT_SAMPLE_RATE = 2400;
+
+        private static final float INDEX_CELL_SIZE = 32.0f;
+        private static final float HEATMAP_CELL_SIZE = 16.0f;
+
+        // Heatmap overlay, one pixel per cell of the density grid, scaled onto the screen
+        private boolean showHeatmap = false;
+        private Bitmap heatmapBitmap;
+        private final Paint heatmapPaint;
+        private final Rect screenRect = new Rect();
+        private static final float INSPECT_RADIUS = 24.0f; // In density-independent pixels
+
+        private boolean inspectMode = false;
+        private final GestureDetector gestureDetector;
+
 
-    
         public GraphicsView(Context context)
         {
             super(context);
@@ -226,254 +521,1143 @@ public class TouchRecorder extends Activity
             bitmapPaint.setAntiAlias(true);
             bitmapPaint.setStyle(Style.FILL_AND_STROKE);
 
-            touchStartPaint = new Paint(); 
-            touchStartPaint.setColor(touchStartColor);
-            touchStartPaint.setAntiAlias(true);
-            touchStartPaint.setStyle(Style.STROKE);
-            
-            touchRestPaint = new Paint();
-            touchRestPaint.setColor(touchRestColor);
-            touchRestPaint.setAntiAlias(true);
-            touchRestPaint.setStyle(Style.STROKE);
-            
-            // Initialize array of previous boundaries
-            Arrays.fill(previousBounds, new RectF(-100.0f, -100.0f, -100.0f, -100.0f));
-            
+            heatmapPaint = new Paint();
+            heatmapPaint.setFilterBitmap(true);
+
+            predictionPaint = new Paint();
+            predictionPaint.setColor(Color.argb(120, 0, 0, 0)); // Lighter than the recorded strokes
+            predictionPaint.setAntiAlias(true);
+            predictionPaint.setStyle(Style.STROKE);
+            predictionPaint.setStrokeWidth(3.0f);
+
+            hudPaint = new Paint();
+            hudPaint.setColor(Color.argb(200, 0, 96, 0));
+            hudPaint.setAntiAlias(true);
+            hudPaint.setTextSize(14.0f * context.getResources().getDisplayMetrics().density);
+
+            drawingSimplifier = new StrokeSimplifier(renderer, simplifyTolerance);
+
+            // Other apps may read the session while it is recorded
+            SessionProvider.setSession(store, history);
+
+            // Spill of an earlier run is of no use
+            spillFile = new File(context.getCacheDir(), "spill.txt");
+            spillFile.delete();
+
+            registerMemory();
+
+            // Logging and statistics of the recorded events run besides the input thread
+            ring.addConsumer("Debug log", eventLog, EventRing.DROP);
+            ring.addConsumer("Statistics", new GestureReport(), EventRing.COALESCE);
+
+            // In inspect mode, a long press shows what has been recorded there
+            gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener()
+            {
+                @Override
+                public void onLongPress(MotionEvent event)
+                {
+                    inspect(event.getX(), event.getY());
+                }
+            });
+
             // Do not change orientation, as such change restarts the whole activity and wipes the log!
             setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_NOSENSOR);
         }
         
-        @Override
-        protected void onSizeChanged(int w, int h, int oldw, int oldh)
-        {
-            super.onSizeChanged(w, h, oldw, oldh);
-            bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-            canvas = new Canvas(bitmap);
-        }
-        
-        @Override
-        protected void onDraw(Canvas screenCanvas)
+        /**
+         * Register the parts taking memory with the budget, in the order they are released.
+         */
+        private void registerMemory()
         {
-            if(clearBackgroundFlag)
-            {
-                canvas.drawColor(backgroundColor);
-                clearBackgroundFlag = false;
-            }
-            
-            if(drawImageFlag)
-            {
-                canvas.drawBitmap(backgroundBitmap, 0, 0, bitmapPaint);
-                drawImageFlag = false;
-            }
-            
-            if(drawEventFlag)
+            memory.add("Event ring", MemoryBudget.FIXED, new MemoryBudget.Part()
             {
-                for(int eventIndex = lastEventIndex; eventIndex < log.size(); eventIndex++)
+                @Override
+                public long getBytes()
                 {
-                    Event event = log.get(eventIndex);
-                    
-                    if(!event.isMotionEvent()) // Image load event
-                        continue;
-                    
-                    MotionEvent motionEvent = event.getMotionEvent();
-                    final int motionEventAction = motionEvent.getAction() & MotionEvent.ACTION_MASK;
+                    return ring.getMemoryBytes();
+                }
 
-                    switch(motionEventAction)
-                    {
-                    case MotionEvent.ACTION_DOWN:
-                        visualizeActionDown(motionEvent);
-                        break;
+                @Override
+                public void release()
+                {
+                }
+            });
 
-                    case MotionEvent.ACTION_MOVE:
-                        visualizeActionMove(motionEvent);
-                        break;
+            memory.add("Ink", MemoryBudget.FIXED, new MemoryBudget.Part()
+            {
+                @Override
+                public long getBytes()
+                {
+                    return bitmapBytes(inkBitmap) + bitmapBytes(liveBitmap);
+                }
 
-                    case MotionEvent.ACTION_UP:
-                    case MotionEvent.ACTION_CANCEL:
-                        visualizeActionUp(motionEvent);
-                        break;
+                @Override
+                public void release()
+                {
+                }
+            });
 
-                    case MotionEvent.ACTION_POINTER_DOWN:
-                        visualizeActionPointerDown(motionEvent);
-                        break;
+            memory.add("Heatmap", MemoryBudget.FIXED, new MemoryBudget.Part()
+            {
+                @Override
+                public long getBytes()
+                {
+                    return bitmapBytes(heatmapBitmap);
+                }
 
-                    case MotionEvent.ACTION_POINTER_UP:
-                        visualizeActionPointerUp(motionEvent);
-                        break;
-                    }
+                @Override
+                public void release()
+                {
                 }
-                
-                lastEventIndex = log.size();
-                drawEventFlag = false;
-            }
-            
-            // Paint buffer
-            screenCanvas.drawBitmap(bitmap, 0, 0, bitmapPaint);
-        }
-        
-        private void visualizeActionDown(MotionEvent event)
-        {
-            for(int i = 0; i < event.getPointerCount(); i++)
-            {
-                final int pointerId = event.getPointerId(i);
+            });
 
-                final float x = event.getX(i);
-                final float y = event.getY(i);
-                final float size = event.getSize(i);
-                final float pressure = event.getPressure(i);
-                
-                drawEvent(canvas, x, y, size, pressure, pointerId, false, touchStartPaint);
-            }
-        }
-        
-        private void visualizeActionMove(MotionEvent event)
-        {
-            for(int i = 0; i < event.getPointerCount(); i++)
+            memory.add("Flight recorder", MemoryBudget.FIXED, new MemoryBudget.Part()
             {
-                final int pointerId = event.getPointerId(i);
+                @Override
+                public long getBytes()
+                {
+                    return flight != null ? flight.getMemoryBytes() * 2 : 0;
+                }
 
-                final int historySize = event.getHistorySize();
+                @Override
+                public void release()
+                {
+                }
+            });
 
-                for(int h = 0; h < historySize; h++)
+            memory.add("Ink snapshots", MemoryBudget.CACHES, new MemoryBudget.Part()
+            {
+                @Override
+                public long getBytes()
                 {
-                    final float x = event.getHistoricalX(i, h);
-                    final float y = event.getHistoricalY(i, h);
+                    return checkpoints.getBytes();
+                }
 
-                    drawTransition(canvas, x, y, pointerId, touchRestPaint);
+                @Override
+                public void release()
+                {
+                    // Undo renders from an earlier snapshot or the start instead
+                    checkpoints.clear();
+                    gesturesSinceCheckpoint = 0;
+                }
+            });
 
-                    final float size = event.getHistoricalSize(i, h);
-                    final float pressure = event.getHistoricalPressure(i, h);
+            memory.add("Session", MemoryBudget.SESSION, new MemoryBudget.Part()
+            {
+                @Override
+                public long getBytes()
+                {
+                    return store.getMemoryBytes() + (spilledInk != null ? spilledInk.length : 0);
+                }
 
-                    drawEvent(canvas, x, y, size, pressure, pointerId, false, touchRestPaint);
+                @Override
+                public void release()
+                {
+                    spillSession();
                 }
+            });
 
-                final float x = event.getX(i);
-                final float y = event.getY(i);
-                
-                drawTransition(canvas, x, y, pointerId, touchRestPaint);
-                
-                final float size = event.getSize(i);
-                final float pressure = event.getPressure(i);
-                
-                drawEvent(canvas, x, y, size, pressure, pointerId, false, touchRestPaint);
-            }
-        }
-        
-        private void visualizeActionUp(MotionEvent event)
-        {
-            for(int i = 0; i < event.getPointerCount(); i++)
+            memory.add("Background image", MemoryBudget.BACKGROUND, new MemoryBudget.Part()
             {
-                final int pointerId = event.getPointerId(i);
+                @Override
+                public long getBytes()
+                {
+                    return bitmapBytes(backgroundBitmap);
+                }
 
-                final float x = event.getX(i);
-                final float y = event.getY(i);
-                
-                drawTransition(canvas, x, y, pointerId, touchRestPaint);
-                
-                final float size = event.getSize(i);
-                final float pressure = event.getPressure(i);
-                
-                drawEvent(canvas, x, y, size, pressure, pointerId, true, touchRestPaint);
-            }
+                @Override
+                public void release()
+                {
+                    downsampleBackground();
+                }
+            });
         }
-        
-        private void visualizeActionPointerDown(MotionEvent event)
-        {
-            final int pointerIndex = event.getAction() >> MotionEvent.ACTION_POINTER_ID_SHIFT;
-            final int pointerId = event.getPointerId(pointerIndex);
 
-            final float x = event.getX(pointerIndex);
-            final float y = event.getY(pointerIndex);
-            final float size = event.getSize(pointerIndex);
-            final float pressure = event.getPressure(pointerIndex);
-            
-            drawEvent(canvas, x, y, size, pressure, pointerId, false, touchStartPaint);
+        private long bitmapBytes(Bitmap bitmap)
+        {
+            return bitmap != null ? (long) bitmap.getRowBytes() * bitmap.getHeight() : 0;
         }
-        
-        private void visualizeActionPointerUp(MotionEvent event)
+
+        /**
+         * Release memory of the stages up to a given one.
+         *
+         * @param stage Last stage to release memory in, e.g. MemoryBudget.SESSION
+         * @param reason Reason of the release, for the log and the status
+         */
+        public void trimMemory(int stage, String reason)
         {
-            final int pointerIndex = event.getAction() >> MotionEvent.ACTION_POINTER_ID_SHIFT;
-            final int pointerId = event.getPointerId(pointerIndex);
+            final long freed = memory.trim(stage, reason);
 
-            final float x = event.getX(pointerIndex);
-            final float y = event.getY(pointerIndex);
-            
-            drawTransition(canvas, x, y, pointerId, touchRestPaint);
-            
-            final float size = event.getSize(pointerIndex);
-            final float pressure = event.getPressure(pointerIndex);
-            
-            drawEvent(canvas, x, y, size, pressure, pointerId, true, touchRestPaint);
+            Log.i("memory", "Released " + freed / 1024 + " KiB up to " + MemoryBudget.STAGE_NAMES[stage] + " for " + reason +
+                    ", " + memory.getBytes() / 1024 + " KiB left");
+            invalidate();
         }
-        
-        private void drawTransition(Canvas canvas, float x, float y, int pointerId, Paint paint)
+
+        /**
+         * Describe the memory taken by the parts of the view and by the heap.
+         *
+         * @return Description
+         */
+        public String describeMemory()
         {
-            paint.setStrokeWidth(surveyMode ? surveyModeLineWidth : STROKE_WIDTH_HAIRLINE);
-            canvas.drawLine(previousX[pointerId], previousY[pointerId], x, y, paint);
+            StringBuilder text = new StringBuilder(memory.describe());
+
+            text.append(ring.describe());
+
+            text.append("Heap ").append(usedMemory() / 1024).append(" KiB of ").append(Runtime.getRuntime().maxMemory() / 1024).append(" KiB\n");
+
+            if(spilledEvents > 0)
+                text.append("Spilled ").append(spilledEvents).append(" events into ").append(spillFile.length() / 1024).append(" KiB of ").append(spillFile.getPath()).append('\n');
+
+            if(backgroundScale > 1)
+                text.append("Background downsampled by ").append(backgroundScale).append('\n');
+
+            return text.toString();
         }
-        
-        private void drawEvent(Canvas canvas, float x, float y, float size, float pressure, int pointerId, boolean overlap, Paint paint)
-        {
-            final float radius = Math.max(1.0f, size * radiusOf1);
-            
-            final float left = x - radius;
-            final float top = y - radius;
-            final float right = x + radius;
-            final float bottom = y + radius;
-            RectF bounds = new RectF(left, top, right, bottom);
 
-            if(surveyMode)
+        /**
+         * Release memory until within the budget, unless a gesture has begun meanwhile.
+         */
+        private final Runnable budgetEnforcer = new Runnable()
+        {
+            @Override
+            public void run()
             {
-                paint.setStrokeWidth(surveyModeLineWidth);
-                canvas.drawPoint(x, y, paint);
+                if(liveInkFlag || !log.isEmpty())
+                    return;
+
+                final long freed = memory.enforce();
+
+                if(freed > 0)
+                    Log.i("memory", "Released " + freed / 1024 + " KiB for the budget, " + memory.getBytes() / 1024 + " KiB left");
             }
-            else
-            {
-                if(overlap || (!overlap && !RectF.intersects(bounds, previousBounds[pointerId])))
-                {
-                    // Express one thousandth of one pressure unit as one degree angle
-                    final float pressureAngle = Math.min(pressure, maxPressure) * (360.0f / maxPressure) * 1000.0f;
+        };
+
+        /**
+         * Snapshot the ink, compressing a copy of it in the background.
+         *
+         * The snapshot is dropped if the checkpoints are invalidated before it is done.
+         */
+        private void takeCheckpoint()
+        {
+            final Bitmap ink = inkBitmap.copy(inkBitmap.getConfig(), false);
+
+            if(ink == null)
+                return;
 
-                    paint.setStrokeWidth(STROKE_WIDTH_FAT);
-                    canvas.drawArc(bounds, 0.0f, pressureAngle, false, paint);
+            final int event = store.getEventCount();
+            final int generation = checkpoints.getGeneration();
 
-                    if(pressureAngle < 360.0f)
+            checkpointing = true;
+
+            new AsyncTask<Void, Void, byte[]>()
+            {
+                @Override
+                protected byte[] doInBackground(Void... params)
+                {
+                    try
+                    {
+                        return InkCheckpoints.compress(ink);
+                    }
+                    finally
                     {
-                        paint.setStrokeWidth(STROKE_WIDTH_HAIRLINE);
-                        canvas.drawArc(bounds, pressureAngle, 360.0f, false, paint);
+                        ink.recycle();
                     }
+                }
+
+                @Override
+                protected void onPostExecute(byte[] image)
+                {
+                    checkpointing = false;
 
-                    // Store boundaries
-                    previousBounds[pointerId] = bounds;
+                    if(checkpoints.getGeneration() == generation)
+                        checkpoints.add(event, image);
                 }
-            }
-            
-            // Store coordinates
-            previousX[pointerId] = x;
-            previousY[pointerId] = y;
+            }.execute();
         }
-        
-        @Override
-        public boolean onTouchEvent(MotionEvent event)
-        {
-            // Dump motion event to debug log
-            final boolean debugIsHumanReadable = Preferences.debugFormatIsHumanReadable(getContext());
-            Log.i("event", describeEvent(event, debugIsHumanReadable));
-            
-            // Store event
-            log.add(new Event(MotionEvent.obtain(event)));
-            
+
+        /**
+         * Move the recorded session out of memory into the spill file, keeping the ink of its gestures.
+         *
+         * Only done between gestures, without flight recorder and while the session is neither
+         * shared nor viewed; undone gestures are dropped.
+         * Saving takes the spilled part as well, while viewing, inspecting and undoing see
+         * the events recorded since only.
+         */
+        private void spillSession()
+        {
+            if(flight != null || liveInkFlag || !log.isEmpty() || store.getEventCount() == 0 || exportingImage || SessionProvider.isProviding() ||
+                    LogView.isShowingSession())
+                return;
+
+            // Spilling a few gestures would not be worth rendering the ink into the spill
+            if(store.getMemoryBytes() < MIN_SPILL_BYTES)
+                return;
+
+            final long start = System.nanoTime();
+            final int events = store.getEventCount();
+
+            try
+            {
+                Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile, true), "UTF-8"), 64 * 1024);
+
+                try
+                {
+                    SessionWriter writer = new SessionWriter(output, false);
+                    history.replay(store, 0, events, writer);
+
+                    if(writer.getException() != null)
+                        throw writer.getException();
+                }
+                finally
+                {
+                    output.close();
+                }
+            }
+            catch(IOException e)
+            {
+                Log.w("memory", "Cannot spill session: " + e.getMessage());
+                return;
+            }
+
+            // The ink rendered so far is the base the rest of the session is rendered onto
+            ByteArrayOutputStream image = new ByteArrayOutputStream(64 * 1024);
+            inkBitmap.compress(Bitmap.CompressFormat.PNG, 100, image);
+            spilledInk = image.toByteArray();
+            spilledEvents += events;
+
+            store.release();
+            index.clear();
+            history.clear();
+            checkpoints.clear();
+            gesturesSinceCheckpoint = 0;
+
+            Log.i("memory", "Spilled " + events + " events into " + spillFile.length() / 1024 + " KiB in " +
+                    (System.nanoTime() - start) / 1000000 + " ms");
+        }
+
+        /**
+         * Deliver the spilled part of the session to a handler, without ending the session.
+         *
+         * @param handler Receiver of the events
+         * @throws IOException If the spill file cannot be read
+         */
+        private void replaySpill(SessionHandler handler) throws IOException
+        {
+            if(spilledEvents == 0)
+                return;
+
+            FileInputStream input = new FileInputStream(spillFile);
+
+            try
+            {
+                // The session goes on in memory
+                new SessionParser(new SessionFilter(handler)
+                {
+                    @Override
+                    protected boolean filter(EventBuffer event)
+                    {
+                        return true;
+                    }
+
+                    @Override
+                    public void endSession()
+                    {
+                    }
+                }).parse(input.getChannel());
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+
+        /**
+         * Export the session as an image at the scale set in the preferences, in the background.
+         *
+         * @param fileName Name of the PNG file
+         */
+        public void exportImage(final String fileName)
+        {
+            final Context context = getContext();
+            final String scaleString = Preferences.imageScale(context).trim();
+            float scale;
+
+            try
+            {
+                // Either a factor or a resolution in dpi, relative to the screen
+                if(scaleString.endsWith("dpi"))
+                    scale = Float.parseFloat(scaleString.substring(0, scaleString.length() - 3).trim()) / context.getResources().getDisplayMetrics().xdpi;
+                else
+                    scale = Float.parseFloat(scaleString);
+
+                if(scale <= 0.0f)
+                    throw new NumberFormatException("Scale must be positive");
+            }
+            catch(NumberFormatException e)
+            {
+                Toast.makeText(context, R.string.wrong_numeric_preference, Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            if(exportingImage)
+            {
+                Toast.makeText(context, R.string.image_busy, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            // Events recorded, undone or redone meanwhile are left out, as in a shared session
+            final int events = store.getEventCount();
+            final List<String> imageFileNames = store.getImageFileNames();
+            final BitSet undone = history.getUndone();
+
+            // Events left after undoing, numbered as the exporter sees them
+            final int[] kept = new int[events - undone.get(0, events).cardinality()];
+
+            for(int e = undone.nextClearBit(0), k = 0; k < kept.length; e = undone.nextClearBit(e + 1))
+                kept[k++] = e;
+
+            // The spilled part is read once and held in memory only while exporting
+            final SampleStore spilled = new SampleStore();
+
+            final ImageExporter exporter = new ImageExporter(new ImageExporter.Source()
+            {
+                @Override
+                public int getEventCount()
+                {
+                    return spilled.getEventCount() + kept.length;
+                }
+
+                @Override
+                public void replay(int fromEvent, int toEvent, SessionHandler handler) throws IOException
+                {
+                    final int spilledCount = spilled.getEventCount();
+
+                    if(fromEvent < spilledCount)
+                        spilled.replay(fromEvent, Math.min(toEvent, spilledCount), handler);
+
+                    // Kept events following each other are replayed at once
+                    final int last = toEvent - spilledCount;
+                    int k = Math.max(fromEvent, spilledCount) - spilledCount;
+
+                    while(k < last)
+                    {
+                        int end = k + 1;
+
+                        while(end < last && kept[end] == kept[end - 1] + 1)
+                            end++;
+
+                        store.replay(kept[k], kept[end - 1] + 1, handler, imageFileNames);
+                        k = end;
+                    }
+                }
+            }, renderer, getWidth(), getHeight(), scale);
+
+            exporter.setBackground(backgroundColor, backgroundBitmap, backgroundScale);
+            exporter.setTileBytes(IMAGE_TILE_BYTES);
+            exportingImage = true;
+
+            new AsyncTask<Void, Void, Boolean>()
+            {
+                @Override
+                protected Boolean doInBackground(Void... params)
+                {
+                    try
+                    {
+                        OutputStream output = new BufferedOutputStream(new FileOutputStream(fileName), 64 * 1024);
+
+                        try
+                        {
+                            replaySpill(spilled);
+                            exporter.export(output, IMAGE_COMPRESSION);
+                        }
+                        finally
+                        {
+                            output.close();
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        Log.w("image", fileName + ": " + e.getMessage());
+                        return false;
+                    }
+
+                    Log.i("image", "Exported " + exporter.describe());
+                    return true;
+                }
+
+                @Override
+                protected void onPostExecute(Boolean exported)
+                {
+                    exportingImage = false;
+
+                    if(exported)
+                        Toast.makeText(context, getResources().getString(R.string.image_exported, exporter.getWidth(), exporter.getHeight(), fileName), Toast.LENGTH_LONG).show();
+                    else
+                        Toast.makeText(context, R.string.something_wrong_with_file, Toast.LENGTH_LONG).show();
+                }
+            }.execute();
+        }
+
+        /**
+         * Halve the resolution of the background image; it is drawn as large as before.
+         */
+        private void downsampleBackground()
+        {
+            if(exportingImage || backgroundBitmap == null || backgroundScale >= MAX_BACKGROUND_SCALE ||
+                    backgroundBitmap.getWidth() < 2 || backgroundBitmap.getHeight() < 2)
+                return;
+
+            Bitmap smaller = Bitmap.createScaledBitmap(backgroundBitmap, backgroundBitmap.getWidth() / 2, backgroundBitmap.getHeight() / 2, true);
+            backgroundBitmap.recycle();
+            backgroundBitmap = smaller;
+            backgroundScale *= 2;
+        }
+
+        @Override
+        protected void onSizeChanged(int w, int h, int oldw, int oldh)
+        {
+            super.onSizeChanged(w, h, oldw, oldh);
+            final Bitmap oldInk = inkBitmap;
+            inkBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            inkCanvas = new Canvas(inkBitmap);
+            liveBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            liveCanvas = new Canvas(liveBitmap);
+            renderer.setCanvas(liveCanvas);
+
+            // Index the samples recorded so far anew
+            index = new SpatialIndex(w, h, INDEX_CELL_SIZE);
+            store.replay(0, store.getEventCount(), index);
+
+            density = new DensityGrid(w, h, HEATMAP_CELL_SIZE, density.getWeighting());
+            density.rebuild(store, Runtime.getRuntime().availableProcessors());
+            heatmapBitmap = Bitmap.createBitmap(density.getColumns(), density.getRows(), Bitmap.Config.ARGB_8888);
+            screenRect.set(0, 0, density.getColumns() * (int) HEATMAP_CELL_SIZE, density.getRows() * (int) HEATMAP_CELL_SIZE);
+
+            recorder = new CaptureMode(recorderTarget(), recorder);
+            capture = new CaptureFilter(captureTarget(), capture);
+
+            // Snapshots do not fit the new size
+            checkpoints.clear();
+
+            // Gestures of the flight recorder are not in the store, so the ink is kept as drawn
+            if(flight != null && oldInk != null)
+            {
+                inkCanvas.drawBitmap(oldInk, 0, 0, null);
+                oldInk.recycle();
+            }
+            else
+            {
+                renderInk();
+            }
+        }
+        
+        @Override
+        protected void onDraw(Canvas screenCanvas)
+        {
+            final long frameStart = System.nanoTime();
+            int backlog = 0;
+
+            if(drawEventFlag)
+            {
+                // Draw either directly or through the simplifier
+                final SessionHandler target = simplifyDrawing ? drawingSimplifier : renderer;
+                long newestEventTime = -1;
+                boolean gestureEnded = false;
+
+                for(int eventIndex = lastEventIndex; eventIndex < log.size(); eventIndex++)
+                {
+                    Event event = log.get(eventIndex);
+
+                    if(!event.isMotionEvent()) // Image load event
+                        continue;
+
+                    final int action = event.getAction();
+
+                    if(action == MotionEvent.ACTION_DOWN)
+                    {
+                        gestureStartEvent = event.getStoreEvent();
+                        gestureDegraded = false;
+                    }
+
+                    event.deliver(target);
+                    liveInkFlag = true;
+                    newestEventTime = event.getEventTime();
+                    backlog++;
+
+                    if(renderer.getQuality() != StrokeRenderer.QUALITY_FULL)
+                        gestureDegraded = true;
+
+                    if(predictor.getHorizon() > 0)
+                        event.deliver(predictor);
+
+                    // Finished gestures move into the layer below, drawn anew if drawn cheaper
+                    if(action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL)
+                    {
+                        gestureEnded = true;
+
+                        if(gestureDegraded && flight == null)
+                            commitInk(gestureStartEvent, event.getStoreEvent() + 1);
+                        else
+                            commitInk();
+                    }
+
+                    if(action == MotionEvent.ACTION_UP && predictor.getHorizon() > 0)
+                        Log.i("predict", predictor.describe());
+
+                    // Report the reduction at the end of each gesture
+                    if(simplifyDrawing && action == MotionEvent.ACTION_UP)
+                    {
+                        Log.i("simplify", "Drew " + drawingSimplifier.getSamplesOut() + " of " + drawingSimplifier.getSamplesIn() +
+                                " samples, " + Math.round(drawingSimplifier.getReductionRatio() * 100.0f) + "% removed");
+                    }
+                }
+
+                // Drawn events are kept in the store only
+                for(Event event : log)
+                    event.recycle();
+
+                log.clear();
+                lastEventIndex = 0;
+                drawEventFlag = false;
+
+                // Time the newest event waited for being drawn
+                if(newestEventTime >= 0)
+                {
+                    lastLag = SystemClock.uptimeMillis() - newestEventTime;
+                    lagSum += lastLag;
+                    lagFrames++;
+                }
+
+                // Take a snapshot between gestures, when the ink matches the store
+                if(!liveInkFlag && gesturesSinceCheckpoint >= CHECKPOINT_INTERVAL && flight == null && !checkpointing)
+                {
+                    takeCheckpoint();
+                    gesturesSinceCheckpoint = 0;
+                }
+
+                // Keep within the budget, releasing memory between gestures only, after drawing
+                if(gestureEnded && !liveInkFlag && memory.getBudget() > 0)
+                {
+                    removeCallbacks(budgetEnforcer);
+                    post(budgetEnforcer);
+                }
+            }
+            
+            // Composite layers
+            screenCanvas.drawColor(backgroundColor);
+
+            if(backgroundBitmap != null)
+            {
+                if(backgroundScale == 1)
+                {
+                    screenCanvas.drawBitmap(backgroundBitmap, 0, 0, bitmapPaint);
+                }
+                else
+                {
+                    backgroundRect.set(0, 0, backgroundBitmap.getWidth() * backgroundScale, backgroundBitmap.getHeight() * backgroundScale);
+                    screenCanvas.drawBitmap(backgroundBitmap, null, backgroundRect, bitmapPaint);
+                }
+            }
+
+            if(showInk)
+            {
+                screenCanvas.drawBitmap(inkBitmap, 0, 0, bitmapPaint);
+
+                if(liveInkFlag)
+                    screenCanvas.drawBitmap(liveBitmap, 0, 0, bitmapPaint);
+
+                if(predictor.getHorizon() > 0)
+                    drawPrediction(screenCanvas);
+            }
+
+            // Overlay heatmap, leaving the strokes below untouched
+            if(showHeatmap)
+            {
+                updateHeatmap();
+                screenCanvas.drawBitmap(heatmapBitmap, null, screenRect, heatmapPaint);
+            }
+
+            // Adapt the quality to the frames drawing events only
+            if(adaptiveQuality && backlog > 0 && governor.update(backlog, System.nanoTime() - frameStart))
+            {
+                renderer.setQuality(governor.getQuality());
+                Log.i("quality", "Quality " + governor.getQuality() + " after " + backlog + " events in " +
+                        governor.getLastFrameNanos() / 1000000 + " ms");
+            }
+
+            if(loadGenerator != null)
+            {
+                final long frameNanos = System.nanoTime() - frameStart;
+
+                loadFrames++;
+                loadFrameNanos += frameNanos;
+                loadMaxFrameNanos = Math.max(loadMaxFrameNanos, frameNanos);
+            }
+
+            if(showHud)
+                drawHud(screenCanvas);
+        }
+
+        /**
+         * Draw the predicted ends of the strokes in progress; they are replaced by the real ones in the next frame.
+         *
+         * @param screenCanvas Canvas of the screen
+         */
+        private void drawPrediction(Canvas screenCanvas)
+        {
+            for(int id = predictor.nextActive(0); id >= 0; id = predictor.nextActive(id + 1))
+            {
+                if(predictor.getLast(id, lastPosition) && predictor.predict(id, predictedPosition))
+                    screenCanvas.drawLine(lastPosition[0], lastPosition[1], predictedPosition[0], predictedPosition[1], predictionPaint);
+            }
+        }
+
+        /**
+         * Draw the heads-up display: lag from input to display, and how far the prediction misses.
+         *
+         * @param screenCanvas Canvas of the screen
+         */
+        private void drawHud(Canvas screenCanvas)
+        {
+            final float lineHeight = hudPaint.getTextSize() * 1.2f;
+            float y = lineHeight;
+
+            screenCanvas.drawText(getResources().getString(R.string.hud_lag, lastLag, lagFrames > 0 ? lagSum / lagFrames : 0),
+                    lineHeight / 2.0f, y, hudPaint);
+            y += lineHeight;
+
+            if(predictor.getHorizon() > 0)
+            {
+                screenCanvas.drawText(getResources().getString(R.string.hud_prediction, predictor.getHorizon(),
+                        predictor.getPredictedError(), predictor.getUnpredictedError()), lineHeight / 2.0f, y, hudPaint);
+                y += lineHeight;
+            }
+
+            if(adaptiveQuality)
+            {
+                final String quality = getResources().getStringArray(R.array.quality_labels)[governor.getQuality()];
+
+                screenCanvas.drawText(getResources().getString(R.string.hud_quality, quality, governor.getChanges(),
+                        governor.getLastBacklog(), governor.getLastFrameNanos() / 1000000), lineHeight / 2.0f, y, hudPaint);
+            }
+        }
+
+        /**
+         * Move the ink of the finished gesture into the layer of committed ink.
+         */
+        private void commitInk()
+        {
+            inkCanvas.drawBitmap(liveBitmap, 0, 0, null);
+            liveBitmap.eraseColor(Color.TRANSPARENT);
+            liveInkFlag = false;
+            gesturesSinceCheckpoint++;
+        }
+
+        /**
+         * Replace the ink of the finished gesture, drawn at lower quality, by the
+         * gesture rendered from the store in full quality.
+         *
+         * @param fromEvent First recorded event of the gesture
+         * @param toEvent Recorded event after the gesture
+         */
+        private void commitInk(int fromEvent, int toEvent)
+        {
+            liveBitmap.eraseColor(Color.TRANSPARENT);
+            renderEvents(fromEvent, toEvent);
+            liveInkFlag = false;
+            gesturesSinceCheckpoint++;
+        }
+
+        /**
+         * Render the committed ink anew from the last snapshot, leaving out undone gestures.
+         */
+        private void renderInk()
+        {
+            final long start = System.nanoTime();
+
+            inkBitmap.eraseColor(Color.TRANSPARENT);
+            int fromEvent = 0;
+
+            final int checkpoint = checkpoints.size() - 1;
+            Bitmap snapshot = checkpoint >= 0 ? checkpoints.restore(checkpoint) : null;
+
+            if(snapshot != null)
+            {
+                inkCanvas.drawBitmap(snapshot, 0, 0, null);
+                snapshot.recycle();
+                fromEvent = checkpoints.getEvent(checkpoint);
+            }
+            else if(spilledInk != null)
+            {
+                // Spilled gestures cannot be rendered from the store
+                Bitmap spilled = BitmapFactory.decodeByteArray(spilledInk, 0, spilledInk.length);
+
+                if(spilled != null)
+                {
+                    inkCanvas.drawBitmap(spilled, 0, 0, null);
+                    spilled.recycle();
+                }
+            }
+
+            renderEvents(fromEvent, store.getEventCount());
+
+            Log.i("undo", "Rendered events " + fromEvent + " to " + store.getEventCount() + " in " +
+                    (System.nanoTime() - start) / 1000000 + " ms, " + checkpoints.size() + " snapshots of " + checkpoints.getBytes() / 1024 + " KiB");
+        }
+
+        /**
+         * Render recorded events into the committed ink, leaving out undone gestures.
+         *
+         * @param fromEvent First event to render
+         * @param toEvent Event after the last one to render
+         */
+        private void renderEvents(int fromEvent, int toEvent)
+        {
+            // Committed ink is always drawn in full quality
+            final int quality = renderer.getQuality();
+
+            renderer.reset();
+            renderer.setCanvas(inkCanvas);
+            renderer.setQuality(StrokeRenderer.QUALITY_FULL);
+
+            final SessionHandler target = simplifyDrawing ? new StrokeSimplifier(renderer, simplifyTolerance) : renderer;
+            history.replay(store, fromEvent, toEvent, target);
+
+            renderer.reset();
+            renderer.setCanvas(liveCanvas);
+            renderer.setQuality(quality);
+        }
+
+        /**
+         * Remove the last gesture from the ink; it stays recorded, but is not saved.
+         *
+         * @return True if there was a gesture to undo
+         */
+        public boolean undo()
+        {
+            final int[] gesture = history.undo();
+
+            if(gesture == null)
+                return false;
+
+            checkpoints.invalidateFrom(gesture[0]);
+            gesturesSinceCheckpoint = CHECKPOINT_INTERVAL;
+            renderInk();
+            invalidate();
+
+            return true;
+        }
+
+        /**
+         * Bring back the last undone gesture.
+         *
+         * @return True if there was a gesture to redo
+         */
+        public boolean redo()
+        {
+            final int[] gesture = history.redo();
+
+            if(gesture == null)
+                return false;
+
+            // No gesture after it is in the ink, so it can be drawn on top
+            renderEvents(gesture[0], gesture[1]);
+            invalidate();
+
+            return true;
+        }
+
+        /**
+         * Colorize the cells of the heatmap changed since the last frame.
+         */
+        private void updateHeatmap()
+        {
+            final int columns = density.getColumns();
+
+            if(density.isAllDirty())
+            {
+                for(int cell = 0; cell < columns * density.getRows(); cell++)
+                    heatmapBitmap.setPixel(cell % columns, cell / columns, density.getColor(cell));
+            }
+            else
+            {
+                for(int i = 0; i < density.getDirtyCount(); i++)
+                {
+                    final int cell = density.getDirtyCell(i);
+                    heatmapBitmap.setPixel(cell % columns, cell / columns, density.getColor(cell));
+                }
+            }
+
+            density.clearDirty();
+        }
+        
+        @Override
+        public boolean onTouchEvent(MotionEvent event)
+        {
+            // Inspected touches are not recorded
+            if(inspectMode)
+            {
+                gestureDetector.onTouchEvent(event);
+                return true;
+            }
+
+            // The recording mode and the capture filter change between gestures only
+            if((event.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_DOWN)
+            {
+                updateFlightRecorder();
+                updateCaptureMode();
+                updateCaptureFilter();
+            }
+
+            // Record event, noting where it is recorded
+            final int storeEvent = store.getEventCount();
+            MotionEvents.deliver(event, capture);
+            
             // Beginning a touch, update dimensional settings
             if((event.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_DOWN)
                 updateSettings();
 
-            // Notify drawing method about new event
-            drawEventFlag = true;
-            invalidate();
-            
-            return true;
+            // Report the recording at the end of each gesture
+            if((event.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_UP)
+            {
+                Log.i("capture", recorder.describe(recorder.getMode()));
+
+                if(capture.isRestricting())
+                    Log.i("capture", capture.describe());
+            }
+
+            // Rejected touches are neither logged nor drawn
+            if(!capture.wasAccepted())
+                return true;
+
+            // Store motion event for drawing, as recorded; the debug log takes it from the ring
+            if(capture.wasChanged())
+                log.add(new Event(capture.copyEvent(), storeEvent));
+            else
+                log.add(new Event(MotionEvent.obtain(event), storeEvent));
+
+            // Notify drawing method about new event
+            drawEventFlag = true;
+            invalidate();
+            
+            return true;
+        }
+        
+        /**
+         * Give the handler of the captured events: the recorder and the ring.
+         *
+         * @return Handler
+         */
+        private SessionHandler captureTarget()
+        {
+            return new SessionTee(recorder, ring);
+        }
+
+        /**
+         * Stop the consumers of the ring once they have taken the events published.
+         */
+        public void shutdown()
+        {
+            ring.close();
+        }
+
+        /**
+         * Give the handler of the recorded events: the flight recorder if it is on, else the store with its indexes.
+         *
+         * @return Handler
+         */
+        private SessionHandler recorderTarget()
+        {
+            return flight != null ? new SessionTee(flight, density) : new SessionTee(store, index, density, history);
+        }
+
+        /**
+         * Switch the flight recorder on, off or to another window as set in the preferences.
+         */
+        private void updateFlightRecorder()
+        {
+            long window;
+
+            try
+            {
+                window = Long.parseLong(Preferences.flightWindow(getContext())) * 1000;
+            }
+            catch(NumberFormatException e)
+            {
+                Toast.makeText(getContext(), R.string.wrong_numeric_preference, Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            // The copy being saved must not be replaced meanwhile
+            if(window == flightWindow || flightDumping)
+                return;
+
+            flightWindow = window;
+            flight = null;
+            flightSnapshot = null;
+
+            if(window > 0)
+            {
+                final int capacity = FlightRecorder.capacityFor(window, FLIGHT_SAMPLE_RATE);
+
+                flight = new FlightRecorder(capacity, window);
+                flightSnapshot = new FlightRecorder(capacity, window);
+
+                Log.i("flight", "Keeping " + window / 1000 + " s in " + flight.getMemoryBytes() * 2 / 1024 + " KiB");
+            }
+
+            recorder = new CaptureMode(recorderTarget(), recorder);
+            capture = new CaptureFilter(captureTarget(), capture);
+        }
+
+        /**
+         * Set the capture mode and its interval from the preferences, before the DOWN of a gesture is recorded.
+         */
+        private void updateCaptureMode()
+        {
+            final Context context = getContext();
+
+            try
+            {
+                final long interval = Long.parseLong(Preferences.captureInterval(context));
+
+                recorder.setMode(Math.max(CaptureMode.FULL, CaptureMode.parse(Preferences.captureMode(context))));
+                recorder.setInterval(interval);
+            }
+            catch(NumberFormatException e)
+            {
+                Toast.makeText(context, R.string.wrong_numeric_preference, Toast.LENGTH_LONG).show();
+            }
+        }
+
+        /**
+         * Compile the capture filter anew if its preferences have changed.
+         */
+        private void updateCaptureFilter()
+        {
+            final Context context = getContext();
+
+            final String regions = Preferences.captureRegions(context).trim();
+            final String actions = Preferences.captureActions(context).trim();
+            final String pointers = Preferences.capturePointers(context).trim();
+            final String distance = Preferences.captureDistance(context).trim();
+
+            final String settings = regions + '|' + actions + '|' + pointers + '|' + distance;
+
+            if(settings.equals(captureSettings))
+                return;
+
+            // All settings are parsed before any is applied, so that a wrong one leaves the filter as it was
+            float[] regionBorders;
+            int actionMask;
+            BitSet pointerIds;
+            float minDistance;
+
+            try
+            {
+                regionBorders = regions.length() > 0 ? CaptureFilter.parseRegions(regions) : null;
+                actionMask = actions.length() > 0 ? CaptureFilter.parseActions(actions) : CaptureFilter.ALL_ACTIONS;
+                pointerIds = pointers.length() > 0 ? SelectionFilter.parseRanges(pointers) : null;
+                minDistance = distance.length() > 0 ? Float.parseFloat(distance) : 0.0f;
+            }
+            catch(NumberFormatException e)
+            {
+                Toast.makeText(context, R.string.wrong_numeric_preference, Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            capture.setRegions(regionBorders);
+            capture.setActionMask(actionMask);
+            capture.setPointerIds(pointerIds);
+            capture.setMinDistance(minDistance);
+
+            captureSettings = settings;
         }
-        
+
+        /**
+         * Save the latest part of the session kept by the flight recorder, in the background.
+         *
+         * @param file File to save into
+         */
+        public void dumpFlight(final File file)
+        {
+            if(flight == null)
+            {
+                Toast.makeText(getContext(), R.string.flight_off, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            if(flightDumping)
+            {
+                Toast.makeText(getContext(), R.string.flight_busy, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            // Copying takes little time, the recording goes on meanwhile
+            flight.copyTo(flightSnapshot);
+            flightDumping = true;
+
+            final FlightRecorder snapshot = flightSnapshot;
+
+            new AsyncTask<Void, Void, Integer>()
+            {
+                @Override
+                protected Integer doInBackground(Void... params)
+                {
+                    SessionSummary summary = new SessionSummary("text");
+                    snapshot.replay(summary);
+
+                    try
+                    {
+                        Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+
+                        try
+                        {
+                            SessionWriter writer = new SessionWriter(output, false);
+                            writer.writeHeader(summary);
+                            snapshot.replay(writer);
+
+                            if(writer.getException() != null)
+                                throw writer.getException();
+                        }
+                        finally
+                        {
+                            output.close();
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        Log.w("flight", file + ": " + e.getMessage());
+                        return null;
+                    }
+
+                    try
+                    {
+                        SessionCatalog.update(SessionsView.catalogFile(), file, summary);
+                    }
+                    catch(IOException e)
+                    {
+                        // The dump itself has been saved
+                        Log.w("flight", "Cannot update catalog: " + e.getMessage());
+                    }
+
+                    return summary.getEvents();
+                }
+
+                @Override
+                protected void onPostExecute(Integer events)
+                {
+                    flightDumping = false;
+
+                    if(events == null)
+                        Toast.makeText(getContext(), R.string.something_wrong_with_file, Toast.LENGTH_LONG).show();
+                    else
+                        Toast.makeText(getContext(), getResources().getString(R.string.flight_dumped, events, file.getPath()), Toast.LENGTH_LONG).show();
+                }
+            }.execute();
+        }
+
         private void updateSettings()
         {
             final Context context = getContext();
@@ -483,324 +1667,808 @@ public class TouchRecorder extends Activity
 
             final float displayDensity = context.getResources().getDisplayMetrics().density;
 
-            final String surveyModeLineWidthString = Preferences.surveyModeLineWidth(context);
+            final String surveyModeLineWidthString = Preferences.surveyModeLineWidth(context);
+
+            final String simplifyToleranceString = Preferences.simplifyTolerance(context);
+
+            try
+            {
+                float radiusOf1 = Float.parseFloat(radiusOf1String);
+                radiusOf1 *= displayDensity;
+
+                final float maxPressure = Float.parseFloat(maxPressureString);
+
+                renderer.setDimensions(radiusOf1, maxPressure);
+
+                final boolean surveyMode = Preferences.surveyMode(context);
+
+                final float surveyModeLineWidth = Float.parseFloat(surveyModeLineWidthString);
+
+                renderer.setSurveyMode(surveyMode, surveyModeLineWidth);
+
+                simplifyDrawing = Preferences.simplifyDrawing(context);
+
+                eventLog.setHumanReadable(Preferences.debugFormatIsHumanReadable(context));
+
+                final float tolerance = Float.parseFloat(simplifyToleranceString);
+
+                // Simplifier keeps its state between gestures, renew it only if needed
+                if(tolerance != simplifyTolerance)
+                {
+                    simplifyTolerance = tolerance;
+                    drawingSimplifier = new StrokeSimplifier(renderer, simplifyTolerance);
+                }
+
+                predictor.setHorizon(Long.parseLong(Preferences.predictHorizon(context)));
+                showHud = Preferences.showHud(context);
+
+                adaptiveQuality = Preferences.adaptiveQuality(context);
+
+                memory.setBudget(Long.parseLong(Preferences.memoryBudget(context)) * 1024 * 1024);
+
+                if(!adaptiveQuality)
+                {
+                    governor.reset();
+                    renderer.setQuality(StrokeRenderer.QUALITY_FULL);
+                }
+            }
+            catch(NumberFormatException e)
+            {
+                Toast.makeText(context, R.string.wrong_numeric_preference, Toast.LENGTH_LONG).show();
+            }
+        }
+        
+        /**
+         * Feed a synthetic load in real time into the session, as if touched.
+         *
+         * Events are taken where onTouchEvent() takes them, as several pointers
+         * cannot be put into a MotionEvent before API 9. At the end, the rate of
+         * accepted events, the frame times, the growth of memory and the time to
+         * save the session are reported.
+         *
+         * @param generator Generator of the load, starting at the current time
+         */
+        public void generateLoad(LoadGenerator generator)
+        {
+            removeCallbacks(loadInjector);
+
+            loadGenerator = generator;
+            loadStart = SystemClock.uptimeMillis();
+            loadMemory = usedMemory();
+            loadFrames = 0;
+            loadFrameNanos = 0;
+            loadMaxFrameNanos = 0;
+
+            Log.i("load", "Generating " + generator.describe());
+            post(loadInjector);
+        }
+
+        private final Runnable loadInjector = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if(loadGenerator == null)
+                    return;
+
+                // Events due by now; late ones follow each other without delay
+                final long now = SystemClock.uptimeMillis();
+
+                while(loadGenerator.hasNext() && loadGenerator.nextTime() <= now)
+                {
+                    EventBuffer event = new EventBuffer();
+
+                    if(!loadGenerator.next(event))
+                        break;
+
+                    final int storeEvent = store.getEventCount();
+                    event.replay(capture);
+
+                    if(!capture.wasAccepted())
+                        continue;
+
+                    log.add(new Event(capture.wasChanged() ? capture.copyEvent() : event, storeEvent));
+                    drawEventFlag = true;
+                }
+
+                invalidate();
+
+                if(loadGenerator.hasNext())
+                    postDelayed(this, Math.max(1, loadGenerator.nextTime() - now));
+                else
+                    reportLoad();
+            }
+        };
+
+        /**
+         * Report the measurements of the finished load.
+         */
+        private void reportLoad()
+        {
+            final long elapsed = Math.max(1, SystemClock.uptimeMillis() - loadStart);
+            final int events = loadGenerator.getEvents();
+            final long memory = (usedMemory() - loadMemory) / 1024;
+
+            // Save into a temporary file, as the session would be saved
+            long saveTime = -1;
+            File file = new File(getContext().getCacheDir(), "load.txt");
+
+            try
+            {
+                final long saveStart = SystemClock.uptimeMillis();
+                Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+
+                try
+                {
+                    SessionWriter writer = new SessionWriter(output, false);
+                    store.replay(writer);
+
+                    if(writer.getException() != null)
+                        throw writer.getException();
+                }
+                finally
+                {
+                    output.close();
+                }
+
+                saveTime = SystemClock.uptimeMillis() - saveStart;
+            }
+            catch(IOException e)
+            {
+                Log.w("load", "Cannot save generated session: " + e.getMessage());
+            }
+            finally
+            {
+                file.delete();
+            }
+
+            final String report = getResources().getString(R.string.load_report, events, elapsed, events * 1000L / elapsed,
+                    loadFrames > 0 ? loadFrameNanos / loadFrames / 1000000.0f : 0.0f, loadMaxFrameNanos / 1000000.0f,
+                    memory, saveTime);
+
+            Log.i("load", loadGenerator.describe() + ": " + report);
+            Toast.makeText(getContext(), report, Toast.LENGTH_LONG).show();
+
+            loadGenerator = null;
+        }
+
+        private long usedMemory()
+        {
+            final Runtime runtime = Runtime.getRuntime();
+
+            System.gc();
+
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        /**
+         * Clear ink and recorded session, keeping the background image.
+         *
+         * @return True if cleared, false if the session is being shared or exported as image
+         */
+        public boolean clear()
+        {
+            if(SessionProvider.isProviding())
+            {
+                Toast.makeText(getContext(), R.string.share_busy, Toast.LENGTH_SHORT).show();
+                return false;
+            }
+
+            // The exporter reads the store and the spill file
+            if(exportingImage)
+            {
+                Toast.makeText(getContext(), R.string.image_busy, Toast.LENGTH_SHORT).show();
+                return false;
+            }
+
+            removeCallbacks(loadInjector);
+            loadGenerator = null;
+
+            log.clear();
+            store.clear();
+
+            if(flight != null)
+                flight.clear();
+
+            index.clear();
+            density.clear();
+            history.clear();
+            checkpoints.clear();
+            gesturesSinceCheckpoint = 0;
+            lastEventIndex = 0;
+
+            spillFile.delete();
+            spilledEvents = 0;
+            spilledInk = null;
+            renderer.reset();
+            drawingSimplifier = new StrokeSimplifier(renderer, simplifyTolerance);
+
+            inkBitmap.eraseColor(Color.TRANSPARENT);
+            liveBitmap.eraseColor(Color.TRANSPARENT);
+            liveInkFlag = false;
+            invalidate();
+
+            return true;
+        }
+        
+        /**
+         * Load image below the ink, replacing the previous one.
+         * 
+         * @param fileName Name of the image file
+         */
+        public void loadImage(String fileName)
+        {
+            setBackground(fileName);
+            
+            // Store this event
+            final long time = SystemClock.uptimeMillis();
+            log.add(new Event(fileName, time));
+            recorder.image(fileName, time);
+            ring.image(fileName, time);
+            
+            // Make this update known to the system
+            invalidate();
+        }
+        
+        private void setBackground(String fileName)
+        {
+            // Load and decode file
+            if(backgroundBitmap != null)
+                backgroundBitmap.recycle();
+
+            backgroundBitmap = BitmapFactory.decodeFile(fileName);
+            backgroundScale = 1;
+        }
+
+        /**
+         * Replace the recorded session by a saved one, compressed or not, and draw it.
+         *
+         * @param fileName Name of the session file
+         */
+        public void openLog(final String fileName)
+        {
+            new AsyncTask<Void, Void, SampleStore>()
+            {
+                @Override
+                protected SampleStore doInBackground(Void... params)
+                {
+                    SampleStore loaded = new SampleStore();
+                    SessionParser parser = new SessionParser(loaded);
+
+                    try
+                    {
+                        SessionFiles.parse(new File(fileName), parser);
+                    }
+                    catch(IOException e)
+                    {
+                        return null;
+                    }
+
+                    if(parser.getErrors() > 0)
+                        Log.w("open", fileName + ": " + parser.getErrors() + " malformed lines, first " + parser.getFirstError());
+
+                    return loaded;
+                }
+
+                @Override
+                protected void onPostExecute(SampleStore loaded)
+                {
+                    if(loaded == null)
+                    {
+                        Toast.makeText(TouchRecorder.this, R.string.something_wrong_with_file, Toast.LENGTH_LONG).show();
+                        return;
+                    }
+
+                    if(!clear())
+                        return;
+
+                    loaded.replay(0, loaded.getEventCount(), new SessionTee(store, index, density, history));
+
+                    // Show the last image of the session below the ink
+                    for(int e = loaded.getEventCount() - 1; e >= 0; e--)
+                    {
+                        if(loaded.getEventAction(e) == SampleStore.ACTION_IMAGE)
+                        {
+                            setBackground(loaded.getImageFileName(e));
+                            break;
+                        }
+                    }
+
+                    renderInk();
+                    invalidate();
+
+                    final String message = getResources().getString(R.string.log_opened, loaded.getEventCount());
+                    Toast.makeText(TouchRecorder.this, message, Toast.LENGTH_SHORT).show();
+                }
+            }.execute();
+        }
+
+        /**
+         * Save log list into a file.
+         * 
+         * @param fileName Name of the log file
+         */
+        public void saveLog(String fileName)
+        {
+            saveLog(fileName, null);
+        }
+
+        /**
+         * Save a part of the log list into a file.
+         *
+         * @param fileName Name of the log file
+         * @param selection Result of the ExportDialog
+         */
+        public void exportLog(String fileName, Intent selection)
+        {
+            saveLog(fileName, selection);
+        }
+
+        private void saveLog(String fileName, Intent selection)
+        {
+            final Context context = getContext();
+
+            final boolean simplify = Preferences.simplifySaving(context);
+            float tolerance = 0.0f;
+            int compressionLevel;
+
+            try
+            {
+                if(simplify)
+                    tolerance = Float.parseFloat(Preferences.simplifyTolerance(context));
+
+                compressionLevel = Integer.parseInt(Preferences.compressionLevel(context));
+            }
+            catch(NumberFormatException e)
+            {
+                Toast.makeText(context, R.string.wrong_numeric_preference, Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            final boolean columnar = selection != null && selection.getBooleanExtra(ExportDialog.COLUMNAR, false);
+            final boolean saveDataFormatIsHumanReadable = Preferences.saveFormatIsHumanReadable(context);
+
+            Closeable output = null;
+            StrokeSimplifier simplifier = null;
+
+            final long start = System.nanoTime();
+
+            try
+            {
+                final int[] range = selectEvents(selection);
+
+                // Summary of what is saved, for the header and the catalog
+                SessionSummary summary = new SessionSummary(columnar ? "columnar" : saveDataFormatIsHumanReadable ? "human" : "text");
+                SessionHandler summaryTarget = select(simplify ? new StrokeSimplifier(summary, tolerance) : summary, selection);
+                replaySpill(summaryTarget);
+                history.replay(store, range[0], range[1], summaryTarget);
+                summaryTarget.endSession();
+
+                File file;
+                SessionWriter sessionWriter = null;
+                ColumnarWriter columnarWriter = null;
+                SessionHandler target;
+
+                if(columnar)
+                {
+                    // Not compressed, so that readers can seek in it
+                    file = new File(fileName);
+                    OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+                    output = stream;
+
+                    columnarWriter = new ColumnarWriter(stream);
+                    target = columnarWriter;
+                }
+                else
+                {
+                    // Compressed while being formatted
+                    file = new File(SessionFiles.name(fileName, compressionLevel));
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(SessionFiles.create(file, compressionLevel), "UTF-8"), 64 * 1024);
+                    output = writer;
+
+                    sessionWriter = new SessionWriter(writer, saveDataFormatIsHumanReadable);
+                    sessionWriter.setIndexInterval(TimeIndex.DEFAULT_INTERVAL);
+                    sessionWriter.writeHeader(summary);
+                    target = sessionWriter;
+                }
+
+                if(simplify)
+                {
+                    simplifier = new StrokeSimplifier(target, tolerance);
+                    target = simplifier;
+                }
+
+                target = select(target, selection);
+
+                // Undone gestures are not saved; spilled ones come first
+                replaySpill(target);
+                history.replay(store, range[0], range[1], target);
+                target.endSession();
+
+                output.close();
+                output = null;
+
+                if(columnarWriter != null)
+                {
+                    if(columnarWriter.getException() != null)
+                        throw columnarWriter.getException();
+
+                    Log.i("save", "Saved " + columnarWriter.getGroups() + " row groups into " + file.length() + " bytes in " +
+                            (System.nanoTime() - start) / 1000000 + " ms");
+                }
+                else
+                {
+                    if(sessionWriter.getException() != null)
+                        throw sessionWriter.getException();
+
+                    Log.i("save", "Saved " + sessionWriter.getBytes() + " bytes into " + file.length() + " bytes in " +
+                            (System.nanoTime() - start) / 1000000 + " ms, compression level " + compressionLevel);
+                }
 
-            try
+                try
+                {
+                    SessionCatalog.update(SessionsView.catalogFile(), file, summary);
+                }
+                catch(IOException e)
+                {
+                    // The session itself has been saved
+                    Log.w("save", "Cannot update catalog: " + e.getMessage());
+                }
+            }
+            catch (IOException e)
             {
-                radiusOf1 = Float.parseFloat(radiusOf1String);
-                radiusOf1 *= displayDensity;
+                Toast.makeText(TouchRecorder.this, R.string.something_wrong_with_file, Toast.LENGTH_LONG).show();
+                return;
+            }
+            finally
+            {
+                // Left open by a failure; closing also ends the compressor thread
+                if(output != null)
+                {
+                    try
+                    {
+                        output.close();
+                    }
+                    catch(IOException e)
+                    {
+                        Log.w("save", "Cannot close " + fileName + ": " + e.getMessage());
+                    }
+                }
+            }
 
-                maxPressure = Float.parseFloat(maxPressureString);
+            if(simplifier != null)
+            {
+                final String message = getResources().getString(R.string.simplified_log_saved,
+                        Math.round(simplifier.getReductionRatio() * 100.0f));
+                Toast.makeText(TouchRecorder.this, message, Toast.LENGTH_LONG).show();
+            }
+        }
 
-                surveyMode = Preferences.surveyMode(context);
+        /**
+         * Give the range of events to visit for a selection.
+         *
+         * @param selection Result of the ExportDialog, or null for the whole session
+         * @return First event and event after the last one
+         */
+        private int[] selectEvents(Intent selection)
+        {
+            int fromEvent = 0;
+            int toEvent = store.getEventCount();
 
-                surveyModeLineWidth = Float.parseFloat(surveyModeLineWidthString);
-            }
-            catch(NumberFormatException e)
+            if(selection != null)
             {
-                Toast.makeText(context, R.string.wrong_numeric_preference, Toast.LENGTH_LONG).show();
+                final long from = selection.getLongExtra(ExportDialog.FROM, Long.MIN_VALUE);
+                final long until = selection.getLongExtra(ExportDialog.UNTIL, Long.MAX_VALUE);
+
+                // Visit only the events of the time window; numbering strokes needs all events before
+                if(from != Long.MIN_VALUE && selection.getSerializableExtra(ExportDialog.STROKES) == null)
+                    fromEvent = store.findEventAt(from);
+
+                if(until != Long.MAX_VALUE)
+                    toEvent = store.findEventAt(until + 1);
             }
+
+            return new int[] {fromEvent, toEvent};
         }
-        
+
         /**
-         * Clear both canvas and log list.
+         * Put a filter for a selection in front of a handler.
+         *
+         * @param target Receiver of the selected part of the session
+         * @param selection Result of the ExportDialog, or null for the whole session
+         * @return Filter, or the target if nothing is to be filtered
          */
-        public void clear()
+        private SessionHandler select(SessionHandler target, Intent selection)
         {
-            log.clear();
-            lastEventIndex = 0;
-            clearBackgroundFlag = true;
-            invalidate();
+            if(selection == null)
+                return target;
+
+            final float[] region = selection.getFloatArrayExtra(ExportDialog.REGION);
+
+            SelectionFilter filter = new SelectionFilter(target);
+            filter.setTimeWindow(selection.getLongExtra(ExportDialog.FROM, Long.MIN_VALUE), selection.getLongExtra(ExportDialog.UNTIL, Long.MAX_VALUE));
+            filter.setPointerIds((BitSet) selection.getSerializableExtra(ExportDialog.POINTERS));
+            filter.setStrokes((BitSet) selection.getSerializableExtra(ExportDialog.STROKES));
+
+            if(region != null)
+                filter.setRegion(region[0], region[1], region[2], region[3]);
+
+            return filter;
         }
-        
+
         /**
-         * Load image onto canvas.
-         * 
-         * @param fileName Name of the image file
+         * Switch between recording touches and inspecting the recorded ones.
+         *
+         * @param inspectMode True to inspect, false to record
          */
-        public void loadImage(String fileName)
+        public void setInspectMode(boolean inspectMode)
         {
-            // Load and decode file
-            backgroundBitmap = BitmapFactory.decodeFile(fileName);
-            
-            // Store this event
-            log.add(new Event(fileName, SystemClock.uptimeMillis()));
-            
-            // Make this update known to the system
-            drawImageFlag = true;
-            invalidate();
+            this.inspectMode = inspectMode;
         }
-        
+
+        public boolean isInspectMode()
+        {
+            return inspectMode;
+        }
+
         /**
-         * Save log list into a file.
-         * 
-         * @param fileName Name of the log file
+         * Show or hide the heatmap of the touches over the strokes.
+         *
+         * @param showHeatmap True to show the heatmap
          */
-        public void saveLog(String fileName)
+        public void setHeatmap(boolean showHeatmap)
         {
-            FileWriter writer;
-            
-            try
-            {
-                writer = new FileWriter(fileName);
-                
-                boolean saveDataFormatIsHumanReadable = Preferences.saveFormatIsHumanReadable(getContext());
-                
-                writer.write(createLogData(saveDataFormatIsHumanReadable));
-                
-                writer.close();
-            }
-            catch (IOException e)
+            this.showHeatmap = showHeatmap;
+
+            // Accumulate the session anew if the weighting has changed meanwhile
+            final int weighting = Preferences.heatmapPressure(getContext()) ? DensityGrid.WEIGHT_PRESSURE : DensityGrid.WEIGHT_DWELL;
+
+            if(showHeatmap && weighting != density.getWeighting())
             {
-                Toast.makeText(TouchRecorder.this, R.string.something_wrong_with_file, Toast.LENGTH_LONG).show();
-                return;
+                density = new DensityGrid(getWidth(), getHeight(), HEATMAP_CELL_SIZE, weighting);
+                density.rebuild(store, Runtime.getRuntime().availableProcessors());
+                recorder = new CaptureMode(recorderTarget(), recorder);
+                capture = new CaptureFilter(captureTarget(), capture);
             }
+
+            invalidate();
         }
-        
-        private String getLog()
+
+        public boolean isHeatmap()
         {
-            boolean logViewFormatIsHumanReadable = Preferences.viewFormatIsHumanReadable(getContext());
-            
-            return createLogData(logViewFormatIsHumanReadable);
+            return showHeatmap;
         }
-        
-        private String createLogData(boolean humanReadable)
+
+        /**
+         * Show or hide the ink over the background, keeping it.
+         *
+         * @param showInk True to show the ink
+         */
+        public void setInk(boolean showInk)
         {
-            StringBuilder buffer = new StringBuilder();
-            
-            for(int i = 0; i < log.size(); i++)
-                buffer.append(describeEvent(log.get(i), humanReadable));
-            
-            return buffer.toString();
+            this.showInk = showInk;
+            invalidate();
         }
-        
-        private String describeEvent(Event event, boolean humanReadable)
+
+        public boolean isInk()
         {
-            if(event.isMotionEvent())
+            return showInk;
+        }
+
+        /**
+         * Show the samples recorded around a point.
+         *
+         * @param x X coordinate of the point
+         * @param y Y coordinate of the point
+         */
+        private void inspect(float x, float y)
+        {
+            final float radius = INSPECT_RADIUS * getContext().getResources().getDisplayMetrics().density;
+
+            final long start = System.nanoTime();
+            final int[] samples = index.findWithin(x, y, radius);
+            final long duration = System.nanoTime() - start;
+
+            Log.i("inspect", "Found " + samples.length + " of " + index.getSampleCount() + " samples in " + duration / 1000 + " us");
+
+            if(samples.length == 0)
             {
-                return describeEvent(event.getMotionEvent(), humanReadable);
+                Toast.makeText(TouchRecorder.this, R.string.nothing_recorded_here, Toast.LENGTH_SHORT).show();
+                return;
             }
-            else
+
+            Bundle logViewBundle = new Bundle();
+            logViewBundle.putString("LogData", describeSamples(samples));
+            Intent logViewIntent = new Intent(TouchRecorder.this, LogView.class);
+            logViewIntent.putExtras(logViewBundle);
+            startActivity(logViewIntent);
+        }
+
+        /**
+         * Describe samples in human-readable form, grouped by their events.
+         *
+         * @param samples Indexes of the samples in ascending order
+         * @return Description
+         */
+        private String describeSamples(int[] samples)
+        {
+            final String prefix = "        ";
+            StringBuilder buffer = new StringBuilder();
+            int previousEvent = -1;
+
+            for(int sample : samples)
             {
-                final String prefix = "        ";
-                StringBuilder buffer = new StringBuilder();
-                
-                // Create prefix
-                buffer.append("Image ");
-                
-                // Append image file name
-                buffer.append(event.getImageFileName());
-                
-                if(humanReadable)
-                {
-                    buffer.append('\n');
-                    buffer.append(prefix);
-                }
-                else
+                final int event = store.findEvent(sample);
+
+                if(event != previousEvent)
                 {
-                    buffer.append(' ');
+                    if(previousEvent >= 0)
+                        buffer.append('\n');
+
+                    buffer.append("Event ");
+                    buffer.append(event);
+                    buffer.append(" with action ");
+                    buffer.append(SessionFormat.actionName(store.getEventAction(event)));
+                    buffer.append(":\n");
+
+                    previousEvent = event;
                 }
-                
-                // Append time
+
+                buffer.append(prefix);
                 buffer.append("At ");
-                buffer.append(event.getImageLoadTime());
-                
-                if(humanReadable)
-                    buffer.append(" ms");
-                
+                buffer.append(store.getTime(sample));
+                buffer.append(" ms pointer ");
+                buffer.append(store.getPointerIndex(sample));
+                buffer.append(" known as ");
+                buffer.append(store.getPointerId(sample));
+                buffer.append(": x = ");
+                buffer.append(store.getX(sample));
+                buffer.append("  y = ");
+                buffer.append(store.getY(sample));
+                buffer.append("  size = ");
+                buffer.append(store.getSize(sample));
+                buffer.append("  pressure = ");
+                buffer.append(store.getPressure(sample));
                 buffer.append('\n');
-                
-                return buffer.toString();
             }
+
+            return buffer.toString();
         }
 
-        private final String[] actionNames = {"DOWN", "UP", "MOVE", "CANCEL", "OUTSIDE", "POINTER_DOWN", "POINTER_UP"};
+        /**
+         * Answer whether the flight recorder keeps the session instead of the store.
+         *
+         * @return True if the flight recorder is on
+         */
+        public boolean isFlightRecording()
+        {
+            return flight != null;
+        }
 
-        private String describeEvent(MotionEvent event, boolean humanReadable)
+        /**
+         * Give the recorded session.
+         *
+         * @return Store of the session
+         */
+        public SampleStore getStore()
         {
-            StringBuilder buffer = new StringBuilder();
+            return store;
+        }
 
-            // Create prefix; describe event and time
-            buffer.append("Event ");
-            
-            // Describe action
-            final int action = event.getAction() & MotionEvent.ACTION_MASK;
-            
-            if(humanReadable)
-                buffer.append("with action ");
-            
-            buffer.append(action < actionNames.length ? actionNames[action] : "UNKNOWN");
-            buffer.append(':');
-            
-            buffer.append(humanReadable ? '\n' : ' ');
-            
-            final String prefix = "        ";
-            
-            // If this is a DOWN action, look whether it was started at the edge
-            final int edgeFlags = event.getEdgeFlags();
-            
-            if(action == MotionEvent.ACTION_DOWN && edgeFlags != 0)
+        /**
+         * Give the history of the gestures, telling which are undone.
+         *
+         * @return History of the gestures
+         */
+        public StrokeHistory getHistory()
+        {
+            return history;
+        }
+
+        /**
+         * Consumer of the ring writing every recorded event into the debug log, as it is saved.
+         */
+        private class EventLog implements SessionHandler
+        {
+            private final StringWriter text = new StringWriter();
+            private SessionWriter writer = new SessionWriter(text, false);
+            private boolean writerIsHumanReadable = false;
+
+            // Set by the input thread, taken from the next event on
+            private volatile boolean humanReadable = false;
+
+            public void setHumanReadable(boolean humanReadable)
             {
-                if(humanReadable)
-                {
-                    buffer.append(prefix);
-                    buffer.append("Following screen edges had been crossed: ");
-                }
-                else
-                {
-                    buffer.append("edges ");
-                }
-                
-                if((edgeFlags & MotionEvent.EDGE_BOTTOM) != 0)
-                {
-                    buffer.append("BOTTOM");
-                    buffer.append(humanReadable ? ' ' : '/');
-                }
+                this.humanReadable = humanReadable;
+            }
 
-                if((edgeFlags & MotionEvent.EDGE_LEFT) != 0)
+            @Override
+            public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+            {
+                if(humanReadable != writerIsHumanReadable)
                 {
-                    buffer.append("LEFT");
-                    buffer.append(humanReadable ? ' ' : '/');
+                    writerIsHumanReadable = humanReadable;
+                    writer = new SessionWriter(text, writerIsHumanReadable);
                 }
 
-                if((edgeFlags & MotionEvent.EDGE_RIGHT) != 0)
-                {
-                    buffer.append("RIGHT");
-                    buffer.append(humanReadable ? ' ' : '/');
-                }
+                writer.beginEvent(action, actionIndex, edgeFlags, historySize, pointerCount);
+            }
 
-                if((edgeFlags & MotionEvent.EDGE_TOP) != 0)
-                {
-                    buffer.append("TOP");
-                    buffer.append(humanReadable ? ' ' : '/');
-                }
-                
-                buffer.append(humanReadable ? '\n' : ' ');
+            @Override
+            public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+            {
+                writer.sample(time, pointerIndex, pointerId, x, y, size, pressure);
             }
-            
-            // If this is a POINTER_DOWN or POINTER_UP action, describe the source pointer
-            if(action == MotionEvent.ACTION_POINTER_DOWN || action == MotionEvent.ACTION_POINTER_UP)
+
+            @Override
+            public void endEvent()
             {
-                if(humanReadable)
-                {
-                    buffer.append(prefix);
-                    
-                    buffer.append("Created by pointer ");
-                }
-                else
-                {
-                    buffer.append("pointer ");
-                }
-                
-                
-                buffer.append(event.getAction() >> MotionEvent.ACTION_POINTER_ID_SHIFT);
-                
-                buffer.append(humanReadable ? '\n' : ' ');
+                writer.endEvent();
+                flush();
             }
-            
-            // If we moved, print history
-            if(action == MotionEvent.ACTION_MOVE)
+
+            @Override
+            public void image(String fileName, long time)
             {
-                if(!humanReadable)
-                {
-                    buffer.append("history ");
-                    buffer.append(event.getHistorySize());
-                    buffer.append(' ');
-                    
-                    if(event.getHistorySize() > 0)
-                    {
-                        buffer.append("pointers ");
-                        buffer.append(event.getPointerCount());
-                        buffer.append(' ');
-                    }
-                }
-                
-                for(int h = 0; h < event.getHistorySize(); h++)
-                {
-                    for(int i = 0; i < event.getPointerCount(); i++)
-                    {
-                        if(humanReadable)
-                            buffer.append(prefix);
-                        
-                        buffer.append("At ");
-                        buffer.append(event.getHistoricalEventTime(h));
-                        buffer.append(humanReadable ? " ms " : " ");
-                        
-                        buffer.append("pointer ");
-                        buffer.append(i);
-                        buffer.append(" known as ");
-                        buffer.append(event.getPointerId(i));
-                        buffer.append(": ");
-                        
-                        buffer.append(humanReadable ? "x = " : "x ");
-                        buffer.append(event.getHistoricalX(i, h));
-                        buffer.append(humanReadable ? "  " : " ");
-                        
-                        buffer.append(humanReadable ? "y = " : "y ");
-                        buffer.append(event.getHistoricalY(i, h));
-                        buffer.append(humanReadable ? "  " : " ");
-                        
-                        buffer.append(humanReadable ? "size = " : "size ");
-                        buffer.append(event.getHistoricalSize(i, h));
-                        buffer.append(humanReadable ? "  " : " ");
-                        
-                        buffer.append(humanReadable ? "pressure = " : "pressure ");
-                        buffer.append(event.getHistoricalPressure(i, h));
-                        buffer.append(humanReadable ? "  " : " ");
-                        
-                        buffer.append(humanReadable ? '\n' : ' ');
-                    }
-                }
+                writer.image(fileName, time);
+                flush();
             }
-            
-            // Describe every pointer for the current time
-            if(!humanReadable)
+
+            @Override
+            public void endSession()
             {
-                buffer.append("pointers ");
-                buffer.append(event.getPointerCount());
-                buffer.append(' ');
             }
 
-            
-            for(int i = 0; i < event.getPointerCount(); i++)
+            private void flush()
             {
-                if(humanReadable)
-                    buffer.append(prefix);
-                
-                buffer.append("At ");
-                buffer.append(event.getEventTime());
-                buffer.append(humanReadable ? " ms " : " ");
+                Log.i("event", text.toString());
+                text.getBuffer().setLength(0);
+            }
+        }
 
-                buffer.append("pointer ");
-                buffer.append(i);
-                buffer.append(" known as ");
-                buffer.append(event.getPointerId(i));
-                buffer.append(": ");
-                
-                buffer.append(humanReadable ? "x = " : "x ");
-                buffer.append(event.getX(i));
-                buffer.append(humanReadable ? "  " : " ");
-                
-                buffer.append(humanReadable ? "y = " : "y ");
-                buffer.append(event.getY(i));
-                buffer.append(humanReadable ? "  " : " ");
-                
-                buffer.append(humanReadable ? "size = " : "size ");
-                buffer.append(event.getSize(i));
-                buffer.append(humanReadable ? "  " : " ");
-                
-                buffer.append(humanReadable ? "pressure = " : "pressure ");
-                buffer.append(event.getPressure(i));
-                buffer.append(humanReadable ? "  " : " ");
-                
-                buffer.append(humanReadable ? '\n' : ' ');
+        /**
+         * Consumer of the ring reporting the statistics of the session at the end of each gesture.
+         * Falling behind, it skips moves rather than holding up the input, so lengths may come out short.
+         */
+        private class GestureReport implements SessionHandler
+        {
+            private final SessionStatistics statistics = new SessionStatistics(null);
+            private int action;
+
+            @Override
+            public void beginEvent(int action, int actionIndex, int edgeFlags, int historySize, int pointerCount)
+            {
+                this.action = action;
+                statistics.beginEvent(action, actionIndex, edgeFlags, historySize, pointerCount);
+            }
+
+            @Override
+            public void sample(long time, int pointerIndex, int pointerId, float x, float y, float size, float pressure)
+            {
+                statistics.sample(time, pointerIndex, pointerId, x, y, size, pressure);
+            }
+
+            @Override
+            public void endEvent()
+            {
+                statistics.endEvent();
+
+                if(action == SessionFormat.ACTION_UP)
+                    Log.i("session", statistics.describe());
+            }
+
+            @Override
+            public void image(String fileName, long time)
+            {
+                statistics.image(fileName, time);
+            }
+
+            @Override
+            public void endSession()
+            {
+                statistics.endSession();
+                Log.i("session", statistics.describe());
             }
-            
-            buffer.append('\n');
-            
-            
-            // Return result
-            return buffer.toString();
         }
     }
     
@@ -812,6 +2480,8 @@ public class TouchRecorder extends Activity
     class Event
     {
         private MotionEvent motionEvent = null;
+        private EventBuffer generatedEvent = null;
+        private int storeEvent;
         private String imageFileName;
         private long imageLoadTime;
         
@@ -819,10 +2489,24 @@ public class TouchRecorder extends Activity
          * Create TouchRecorder event out of a MotionEvent.
          * 
          * @param motionEvent Event to store
+         * @param storeEvent Index of the event in the sample store
          */
-        public Event(MotionEvent motionEvent)
+        public Event(MotionEvent motionEvent, int storeEvent)
         {
             this.motionEvent = motionEvent;
+            this.storeEvent = storeEvent;
+        }
+        
+        /**
+         * Create TouchRecorder event out of a generated event.
+         * 
+         * @param generatedEvent Event to store
+         * @param storeEvent Index of the event in the sample store
+         */
+        public Event(EventBuffer generatedEvent, int storeEvent)
+        {
+            this.generatedEvent = generatedEvent;
+            this.storeEvent = storeEvent;
         }
         
         /**
@@ -844,7 +2528,7 @@ public class TouchRecorder extends Activity
          */
         public boolean isMotionEvent()
         {
-            return (motionEvent != null);
+            return (motionEvent != null || generatedEvent != null);
         }
         
         /**
@@ -857,6 +2541,58 @@ public class TouchRecorder extends Activity
             return motionEvent;
         }
         
+        /**
+         * Deliver the motion event, touched or generated, to a handler.
+         *
+         * @param handler Receiver of the event
+         */
+        public void deliver(SessionHandler handler)
+        {
+            if(generatedEvent != null)
+                generatedEvent.replay(handler);
+            else
+                MotionEvents.deliver(motionEvent, handler);
+        }
+        
+        /**
+         * Give the action of the motion event, without pointer index.
+         *
+         * @return Action
+         */
+        public int getAction()
+        {
+            return generatedEvent != null ? generatedEvent.getAction() : motionEvent.getAction() & MotionEvent.ACTION_MASK;
+        }
+        
+        /**
+         * Give the time of the motion event.
+         *
+         * @return Time in milliseconds since the last start of the device
+         */
+        public long getEventTime()
+        {
+            return generatedEvent != null ? generatedEvent.getEventTime() : motionEvent.getEventTime();
+        }
+        
+        /**
+         * Release the motion event.
+         */
+        public void recycle()
+        {
+            if(motionEvent != null)
+                motionEvent.recycle();
+        }
+        
+        /**
+         * Give the index the motion event is recorded at in the sample store.
+         *
+         * @return Index of the event
+         */
+        public int getStoreEvent()
+        {
+            return storeEvent;
+        }
+        
         /**
          * Give the name of the image file loaded.
          * 